@@ -0,0 +1,84 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.benchmarks;
+
+import org.crownj.core.Block;
+import org.crownj.core.MerkleBuilder;
+import org.crownj.core.Sha256Hash;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Block header hashing and merkle root calculation, using a checked-in mainnet block and a generated full-size one. The parallel threshold of
+ * {@link MerkleBuilder} can be varied with {@code -p parallelThreshold=...}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BlockBenchmark {
+    @Param({Fixtures.BLOCK_169482, Fixtures.LARGE_BLOCK})
+    public String fixture;
+
+    @Param({"1024"})
+    public int parallelThreshold;
+
+    private Block block;
+    private Block header;
+
+    @Setup
+    public void setUp() throws IOException {
+        Fixtures.propagateContext(Fixtures.MAINNET);
+        MerkleBuilder.setParallelThreshold(parallelThreshold);
+        block = Fixtures.loadBlock(fixture);
+        // Make sure all transaction ids are cached, so that only the tree itself is measured.
+        block.getMerkleRoot();
+        block.getWitnessRoot();
+        header = block.cloneAsHeader();
+    }
+
+    @Benchmark
+    public Sha256Hash calculateHash() {
+        // Setting a field throws away the cached hash.
+        header.setNonce(header.getNonce());
+        return header.getHash();
+    }
+
+    @Benchmark
+    public Sha256Hash merkleRoot() {
+        return copyWithoutRoots().getMerkleRoot();
+    }
+
+    @Benchmark
+    public Sha256Hash witnessRoot() {
+        return copyWithoutRoots().getWitnessRoot();
+    }
+
+    @Benchmark
+    public Sha256Hash[] bothRoots() {
+        return MerkleBuilder.buildRoots(block.getTransactions(), true);
+    }
+
+    private Block copyWithoutRoots() {
+        return new Block(block.getParams(), block.getVersion(), block.getPrevBlockHash(), null,
+                block.getTimeSeconds(), block.getDifficultyTarget(), block.getNonce(), block.getTransactions());
+    }
+}
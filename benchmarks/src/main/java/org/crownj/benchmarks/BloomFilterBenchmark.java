@@ -0,0 +1,96 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.benchmarks;
+
+import org.crownj.core.Block;
+import org.crownj.core.BloomFilter;
+import org.crownj.core.Transaction;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bloom filter hashing and membership tests, as done for every output and outpoint when matching blocks, and matching
+ * the transactions of a whole block.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BloomFilterBenchmark {
+    private static final int ELEMENTS = 1000;
+
+    private BloomFilter filter;
+    private byte[][] inserted;
+    private byte[][] absent;
+    private byte[] filterBytes;
+    private List<Transaction> blockTransactions;
+    private int i;
+
+    @Setup
+    public void setUp() throws IOException {
+        Random random = new Random(ELEMENTS);
+        filter = new BloomFilter(ELEMENTS, 0.0001, 0x12345678L);
+        inserted = new byte[ELEMENTS][];
+        absent = new byte[ELEMENTS][];
+        for (int i = 0; i < ELEMENTS; i++) {
+            inserted[i] = new byte[20];
+            random.nextBytes(inserted[i]);
+            filter.insert(inserted[i]);
+            absent[i] = new byte[36];
+            random.nextBytes(absent[i]);
+        }
+        filterBytes = new byte[(int) Math.ceil(ELEMENTS * 2.4)];
+        Fixtures.propagateContext(Fixtures.MAINNET);
+        Block block = Fixtures.loadBlock(Fixtures.BLOCK_169482);
+        blockTransactions = block.getTransactions();
+    }
+
+    @Benchmark
+    public boolean containsHit() {
+        return filter.contains(inserted[next()]);
+    }
+
+    @Benchmark
+    public boolean containsMiss() {
+        return filter.contains(absent[next()]);
+    }
+
+    @Benchmark
+    public int murmurHash3() {
+        return BloomFilter.murmurHash3(filterBytes, 0x12345678L, 3, absent[next()]);
+    }
+
+    @Benchmark
+    public int applyAndUpdateBlock() {
+        // None of the random elements are in the block, so the filter is never updated.
+        int matched = 0;
+        for (Transaction tx : blockTransactions)
+            if (filter.applyAndUpdate(tx))
+                matched++;
+        return matched;
+    }
+
+    private int next() {
+        return i = (i + 1) % ELEMENTS;
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.benchmarks;
+
+import org.crownj.core.Address;
+import org.crownj.core.Coin;
+import org.crownj.core.ECKey;
+import org.crownj.core.InsufficientMoneyException;
+import org.crownj.core.LegacyAddress;
+import org.crownj.core.Sha256Hash;
+import org.crownj.core.Transaction;
+import org.crownj.core.TransactionInput;
+import org.crownj.core.TransactionOutPoint;
+import org.crownj.script.Script;
+import org.crownj.wallet.CoinSelector;
+import org.crownj.wallet.DefaultCoinSelector;
+import org.crownj.wallet.LargestFirstCoinSelector;
+import org.crownj.wallet.SendRequest;
+import org.crownj.wallet.Wallet;
+import org.crownj.wallet.WalletTransaction;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/** Balance queries and coin selection on a wallet holding many confirmed outputs. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CoinSelectionBenchmark {
+    @Param({"1000", "100000"})
+    public int outputs;
+
+    private Wallet wallet;
+    private Address destination;
+
+    @Setup
+    public void setUp() {
+        Fixtures.propagateContext(Fixtures.UNITTEST);
+        wallet = Wallet.createDeterministic(Fixtures.UNITTEST, Script.ScriptType.P2PKH);
+        destination = LegacyAddress.fromKey(Fixtures.UNITTEST, new ECKey());
+        Address address = wallet.currentReceiveAddress();
+        Random random = new Random(1);
+        for (int i = 0; i < outputs; i++) {
+            Transaction tx = new Transaction(Fixtures.UNITTEST);
+            tx.addInput(new TransactionInput(Fixtures.UNITTEST, tx, new byte[0],
+                    new TransactionOutPoint(Fixtures.UNITTEST, i, Sha256Hash.ZERO_HASH)));
+            tx.addOutput(Coin.valueOf(1 + random.nextInt(1000), 0).divide(100), address);
+            tx.getConfidence().setAppearedAtChainHeight(1 + i / 10);
+            tx.getConfidence().setDepthInBlocks(1 + (outputs - i) / 10);
+            wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.UNSPENT, tx));
+        }
+    }
+
+    @Benchmark
+    public Coin availableBalance() {
+        return wallet.getBalance(Wallet.BalanceType.AVAILABLE_SPENDABLE);
+    }
+
+    @Benchmark
+    public Transaction completeTxDefaultSelector() throws InsufficientMoneyException {
+        return completeTx(DefaultCoinSelector.get());
+    }
+
+    @Benchmark
+    public Transaction completeTxLargestFirstSelector() throws InsufficientMoneyException {
+        return completeTx(LargestFirstCoinSelector.get());
+    }
+
+    private Transaction completeTx(CoinSelector selector) throws InsufficientMoneyException {
+        SendRequest req = SendRequest.to(destination, Coin.COIN.multiply(7));
+        req.coinSelector = selector;
+        req.signInputs = false;
+        wallet.completeTx(req);
+        return req.tx;
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.benchmarks;
+
+import org.crownj.core.ECKey;
+import org.crownj.core.Sha256Hash;
+import org.crownj.crypto.SignatureCache;
+import org.openjdk.jmh.annotations.*;
+
+import java.math.BigInteger;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ECDSA signing and verification with the pure Java implementation. With {@code signatureCache=hit}, verification
+ * measures a hit in the cache of valid signatures, with {@code signatureCache=miss} a miss followed by the maths.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ECKeyBenchmark {
+    @Param({"none", "hit", "miss"})
+    public String signatureCache;
+
+    private ECKey key;
+    private Sha256Hash hash;
+    private ECKey.ECDSASignature signature;
+
+    @Setup
+    public void setUp() {
+        key = ECKey.fromPrivate(BigInteger.valueOf(0xC0FFEE));
+        hash = Sha256Hash.of(new byte[] { 1, 2, 3 });
+        signature = key.sign(hash);
+        ECKey.setSignatureCache(signatureCache.equals("none") ? null : new SignatureCache());
+    }
+
+    @Setup(Level.Invocation)
+    public void clearSignatureCache() {
+        if (signatureCache.equals("miss"))
+            ECKey.getSignatureCache().clear();
+    }
+
+    @TearDown
+    public void tearDown() {
+        ECKey.setSignatureCache(null);
+    }
+
+    @Benchmark
+    public ECKey.ECDSASignature sign() {
+        return key.sign(hash);
+    }
+
+    @Benchmark
+    public boolean verify() {
+        return key.verify(hash, signature);
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.benchmarks;
+
+import com.google.common.base.Splitter;
+import com.google.common.io.ByteStreams;
+import org.crownj.core.*;
+import org.crownj.crypto.TransactionSignature;
+import org.crownj.params.MainNetParams;
+import org.crownj.params.UnitTestParams;
+import org.crownj.script.Script;
+import org.crownj.script.ScriptBuilder;
+import org.crownj.wallet.DeterministicSeed;
+import org.crownj.wallet.UnreadableWalletException;
+import org.crownj.wallet.Wallet;
+import org.crownj.wallet.WalletProtobufSerializer;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * <p>Fixtures shared by the benchmarks. Besides one small checked-in mainnet block they are generated
+ * deterministically at setup time, so that results are reproducible offline and comparable between runs.</p>
+ */
+public class Fixtures {
+    public static final NetworkParameters MAINNET = MainNetParams.get();
+    public static final NetworkParameters UNITTEST = UnitTestParams.get();
+
+    /** A small checked-in mainnet block with a few dozen transactions. */
+    public static final String BLOCK_169482 = "block169482.dat";
+    /** A generated block of {@link #LARGE_BLOCK_TXNS} segwit transactions, about the size of a full mainnet block. */
+    public static final String LARGE_BLOCK = "large";
+
+    static final int LARGE_BLOCK_TXNS = 2000;
+    static final int WALLET_BLOCKS = 200;
+    static final int WALLET_TXNS_PER_BLOCK = 10;
+    private static final String WALLET_MNEMONIC =
+            "legal winner thank year wave sausage worth useful legal winner thank yellow";
+    private static final long WALLET_CREATION_TIME = 1389353062L;
+
+    private static byte[] walletBytes;
+
+    /**
+     * Sets up a context for the given network on the calling thread. JMH runs setup and benchmark methods on threads
+     * of its own, so every benchmark that touches core objects has to call this in its setup.
+     */
+    public static void propagateContext(NetworkParameters params) {
+        Context.propagate(new Context(params));
+    }
+
+    /** Reads a checked-in fixture from the classpath. */
+    public static byte[] load(String name) throws IOException {
+        try (InputStream input = Fixtures.class.getResourceAsStream(name)) {
+            if (input == null)
+                throw new FileNotFoundException("Missing fixture: " + name);
+            return ByteStreams.toByteArray(input);
+        }
+    }
+
+    /** Parses the checked-in mainnet block, or builds the large block, as named. */
+    public static Block loadBlock(String name) throws IOException {
+        if (LARGE_BLOCK.equals(name))
+            return MAINNET.getDefaultSerializer().makeBlock(createLargeBlock().crownSerialize());
+        return MAINNET.getDefaultSerializer().makeBlock(load(name));
+    }
+
+    /**
+     * Returns the serialized wallet fixture, see {@link #createWallet()}. It is built once per JVM, as that takes a
+     * while.
+     */
+    public static synchronized byte[] walletBytes() throws IOException {
+        if (walletBytes == null) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            new WalletProtobufSerializer().writeWallet(createWallet(), output);
+            walletBytes = output.toByteArray();
+        }
+        return walletBytes;
+    }
+
+    /** Reads the wallet fixture, as an application would load it from disk. */
+    public static Wallet loadWallet() throws IOException, UnreadableWalletException {
+        return new WalletProtobufSerializer().readWallet(new ByteArrayInputStream(walletBytes()));
+    }
+
+    /**
+     * Builds a mainnet block of {@link #LARGE_BLOCK_TXNS} transactions after a coinbase. Each spends two random
+     * outpoints with P2WPKH witnesses and pays to a P2WPKH and a P2PKH output. Signatures are dummies, as nothing
+     * checks them.
+     */
+    static Block createLargeBlock() {
+        Random random = new Random(481815);
+        ECKey key = ECKey.fromPrivate(BigInteger.valueOf(0xBEEF));
+        List<Transaction> txns = new ArrayList<>(LARGE_BLOCK_TXNS + 1);
+        Transaction coinbase = new Transaction(MAINNET);
+        coinbase.addInput(new TransactionInput(MAINNET, coinbase, new ScriptBuilder().number(481815).build()
+                .getProgram()));
+        coinbase.addOutput(Coin.COIN, ScriptBuilder.createP2WPKHOutputScript(key));
+        txns.add(coinbase);
+        for (int i = 0; i < LARGE_BLOCK_TXNS; i++) {
+            Transaction tx = new Transaction(MAINNET);
+            for (int j = 0; j < 2; j++) {
+                byte[] hash = new byte[32];
+                random.nextBytes(hash);
+                TransactionInput input = tx.addInput(new TransactionInput(MAINNET, tx, new byte[0],
+                        new TransactionOutPoint(MAINNET, random.nextInt(4), Sha256Hash.wrap(hash))));
+                input.setWitness(TransactionWitness.redeemP2WPKH(TransactionSignature.dummy(), key));
+            }
+            byte[] pubKeyHash = new byte[20];
+            random.nextBytes(pubKeyHash);
+            tx.addOutput(Coin.valueOf(random.nextInt(Integer.MAX_VALUE)),
+                    ScriptBuilder.createP2WPKHOutputScript(pubKeyHash));
+            random.nextBytes(pubKeyHash);
+            tx.addOutput(Coin.valueOf(random.nextInt(Integer.MAX_VALUE)),
+                    ScriptBuilder.createP2PKHOutputScript(pubKeyHash));
+            txns.add(tx);
+        }
+        Block genesis = MAINNET.getGenesisBlock();
+        return new Block(MAINNET, Block.BLOCK_VERSION_BIP65, genesis.getHash(), null,
+                genesis.getTimeSeconds() + 600, genesis.getDifficultyTarget(), random.nextInt() & 0xFFFFFFFFL, txns);
+    }
+
+    /**
+     * Builds the wallet fixture: a deterministic wallet that receives payments in a chain of fake blocks, and spends
+     * every fourth payment it received so that there is a mix of spent and unspent outputs. Signatures are dummies,
+     * as the wallet doesn't check them.
+     */
+    static Wallet createWallet() {
+        DeterministicSeed seed = new DeterministicSeed(Splitter.on(' ').splitToList(WALLET_MNEMONIC), null, "",
+                WALLET_CREATION_TIME);
+        Wallet wallet = Wallet.fromSeed(UNITTEST, seed, Script.ScriptType.P2PKH);
+        Address elsewhere = LegacyAddress.fromKey(UNITTEST, ECKey.fromPrivate(BigInteger.valueOf(0xDEAD)));
+        Block genesis = UNITTEST.getGenesisBlock();
+        StoredBlock prev = new StoredBlock(genesis, genesis.getWork(), 0);
+        List<TransactionOutput> received = new ArrayList<>();
+        int counter = 0;
+        for (int height = 1; height <= WALLET_BLOCKS; height++) {
+            List<Transaction> txns = new ArrayList<>();
+            for (int i = 0; i < WALLET_TXNS_PER_BLOCK; i++, counter++) {
+                Transaction tx = new Transaction(UNITTEST);
+                if (counter % 4 == 3 && !received.isEmpty()) {
+                    TransactionOutput spent = received.remove(0);
+                    tx.addInput(spent).setScriptSig(ScriptBuilder.createInputScript(TransactionSignature.dummy()));
+                    tx.addOutput(spent.getValue().divide(2), elsewhere);
+                    tx.addOutput(spent.getValue().subtract(spent.getValue().divide(2)), wallet.freshReceiveAddress());
+                } else {
+                    TransactionOutPoint outpoint = new TransactionOutPoint(UNITTEST, 0,
+                            Sha256Hash.of(Utils.reverseBytes(BigInteger.valueOf(counter + 1).toByteArray())));
+                    tx.addInput(new TransactionInput(UNITTEST, tx,
+                            ScriptBuilder.createInputScript(TransactionSignature.dummy()).getProgram(), outpoint));
+                    tx.addOutput(Coin.MILLICOIN.multiply(counter + 1), wallet.freshReceiveAddress());
+                }
+                txns.add(tx);
+            }
+            Block header = new Block(UNITTEST, Block.BLOCK_VERSION_BIP65, prev.getHeader().getHash(),
+                    Sha256Hash.ZERO_HASH, prev.getHeader().getTimeSeconds() + 600,
+                    genesis.getDifficultyTarget(), height, Collections.<Transaction>emptyList());
+            StoredBlock block = prev.build(header);
+            for (int i = 0; i < txns.size(); i++) {
+                Transaction tx = txns.get(i);
+                wallet.receiveFromBlock(tx, block, AbstractBlockChain.NewBlockType.BEST_CHAIN, i);
+                for (TransactionOutput output : tx.getOutputs())
+                    if (output.isMine(wallet))
+                        received.add(output);
+            }
+            wallet.notifyNewBestBlock(block);
+            prev = block;
+        }
+        return wallet;
+    }
+}
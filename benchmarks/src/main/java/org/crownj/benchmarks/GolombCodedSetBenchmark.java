@@ -0,0 +1,88 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.benchmarks;
+
+import org.crownj.core.GolombCodedSet;
+import org.crownj.core.ProtocolException;
+import org.crownj.core.Sha256Hash;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Matching a wallet's scripts against the compact filter of a block, as done for every block of a compact filter
+ * scan, and building a filter.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GolombCodedSetBenchmark {
+    // About the number of scripts in a full block.
+    private static final int BLOCK_ELEMENTS = 5000;
+    // Three scripts for each of 100 keys.
+    private static final int WALLET_ELEMENTS = 300;
+
+    private Sha256Hash blockHash;
+    private List<byte[]> blockElements;
+    private GolombCodedSet filter;
+    private List<byte[]> walletElements;
+    private List<byte[]> hitElements;
+    private long[] scratch;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(BLOCK_ELEMENTS);
+        blockHash = Sha256Hash.of(new byte[] { 1 });
+        blockElements = randomScripts(random, BLOCK_ELEMENTS);
+        filter = GolombCodedSet.buildBasicFilter(blockHash, blockElements);
+        walletElements = randomScripts(random, WALLET_ELEMENTS);
+        hitElements = new ArrayList<>(walletElements);
+        hitElements.set(WALLET_ELEMENTS - 1, blockElements.get(BLOCK_ELEMENTS - 1));
+        scratch = new long[WALLET_ELEMENTS];
+    }
+
+    private static List<byte[]> randomScripts(Random random, int count) {
+        List<byte[]> scripts = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] script = new byte[25];
+            random.nextBytes(script);
+            scripts.add(script);
+        }
+        return scripts;
+    }
+
+    @Benchmark
+    public boolean matchAnyMiss() throws ProtocolException {
+        return filter.matchAny(walletElements, scratch);
+    }
+
+    @Benchmark
+    public boolean matchAnyHit() throws ProtocolException {
+        return filter.matchAny(hitElements, scratch);
+    }
+
+    @Benchmark
+    public GolombCodedSet build() {
+        return GolombCodedSet.buildBasicFilter(blockHash, blockElements);
+    }
+}
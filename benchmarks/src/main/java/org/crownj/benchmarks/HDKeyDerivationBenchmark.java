@@ -0,0 +1,65 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.benchmarks;
+
+import org.crownj.crypto.ChildNumber;
+import org.crownj.crypto.DeterministicKey;
+import org.crownj.crypto.HDKeyDerivation;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/** BIP32 child key derivation, as done when extending the lookahead of a wallet's key chain. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HDKeyDerivationBenchmark {
+    private DeterministicKey privateParent;
+    private DeterministicKey publicParent;
+    private int i;
+
+    @Setup
+    public void setUp() {
+        byte[] seed = new byte[32];
+        for (int i = 0; i < seed.length; i++)
+            seed[i] = (byte) i;
+        privateParent = HDKeyDerivation.createMasterPrivateKey(seed);
+        publicParent = privateParent.dropPrivateBytes();
+    }
+
+    @Benchmark
+    public DeterministicKey deriveHardened() {
+        return HDKeyDerivation.deriveChildKey(privateParent, new ChildNumber(next(), true));
+    }
+
+    @Benchmark
+    public DeterministicKey deriveFromPrivate() {
+        return HDKeyDerivation.deriveChildKey(privateParent, new ChildNumber(next(), false));
+    }
+
+    @Benchmark
+    public DeterministicKey deriveFromPublic() {
+        return HDKeyDerivation.deriveChildKey(publicParent, new ChildNumber(next(), false));
+    }
+
+    private int next() {
+        return i = (i + 1) & 0xFFFF;
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.benchmarks;
+
+import org.crownj.core.Block;
+import org.crownj.core.HeadersMessage;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** Parsing of a full headers message, as received during headers-first sync. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HeadersMessageBenchmark {
+    private byte[] payload;
+
+    @Setup
+    public void setUp() throws IOException {
+        Fixtures.propagateContext(Fixtures.MAINNET);
+        Block template = Fixtures.loadBlock(Fixtures.BLOCK_169482).cloneAsHeader();
+        List<Block> headers = new ArrayList<>(HeadersMessage.MAX_HEADERS);
+        for (int i = 0; i < HeadersMessage.MAX_HEADERS; i++) {
+            // Distinct nonces give every header its own hash. Nothing checks proof of work here.
+            Block header = template.cloneAsHeader();
+            header.setNonce(i);
+            headers.add(header);
+        }
+        payload = new HeadersMessage(Fixtures.MAINNET, headers).crownSerialize();
+    }
+
+    @Benchmark
+    public HeadersMessage parse() {
+        return new HeadersMessage(Fixtures.MAINNET, payload);
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.benchmarks;
+
+import org.crownj.core.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding of inbound messages from the wire, header and command dispatch included. The stream mixes the small
+ * messages a connected peer mostly receives. Times are per message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageDecodeBenchmark {
+    private static final int MESSAGES = 100;
+
+    private MessageSerializer serializer;
+    private byte[] stream;
+
+    @Setup
+    public void setUp() throws IOException {
+        Fixtures.propagateContext(Fixtures.MAINNET);
+        serializer = Fixtures.MAINNET.getDefaultSerializer();
+        List<Transaction> transactions = Fixtures.loadBlock(Fixtures.BLOCK_169482).getTransactions();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < MESSAGES; i++) {
+            Transaction tx = transactions.get(i % transactions.size());
+            Message message;
+            switch (i % 5) {
+                case 0:
+                    message = new Ping(i);
+                    break;
+                case 1:
+                    message = new Pong(i);
+                    break;
+                case 2:
+                    InventoryMessage inv = new InventoryMessage(Fixtures.MAINNET);
+                    inv.addTransaction(tx);
+                    message = inv;
+                    break;
+                case 3:
+                    message = tx;
+                    break;
+                default:
+                    GetDataMessage getdata = new GetDataMessage(Fixtures.MAINNET);
+                    getdata.addTransaction(tx.getTxId(), false);
+                    message = getdata;
+                    break;
+            }
+            serializer.serialize(message, out);
+        }
+        stream = out.toByteArray();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void decode(Blackhole blackhole) throws Exception {
+        ByteBuffer in = ByteBuffer.wrap(stream);
+        for (int i = 0; i < MESSAGES; i++)
+            blackhole.consume(serializer.deserialize(in));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void decodeHeaders(Blackhole blackhole) throws Exception {
+        ByteBuffer in = ByteBuffer.wrap(stream);
+        for (int i = 0; i < MESSAGES; i++) {
+            serializer.seekPastMagicBytes(in);
+            crownSerializer.crownPacketHeader header = serializer.deserializeHeader(in);
+            blackhole.consume(header.command);
+            in.position(in.position() + header.size);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.benchmarks;
+
+import org.crownj.core.*;
+import org.crownj.store.BlockStoreException;
+import org.crownj.store.SPVBlockStore;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Collections;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Header lookups in an {@link SPVBlockStore} filled with many more headers than its block cache holds, so that most
+ * lookups have to go to the ring.</p>
+ *
+ * <p>The {@code get} variants with different thread counts show how read throughput scales with concurrent readers.
+ * The {@code readWhileWriting} group adds a writer that keeps putting headers, like a chain being synced.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SPVBlockStoreBenchmark {
+    private static final int CAPACITY = 50000;
+
+    private File file;
+    private SPVBlockStore store;
+    private Sha256Hash[] hashes;
+    private int height;
+
+    @Setup
+    public void setUp() throws IOException, BlockStoreException {
+        Fixtures.propagateContext(Fixtures.UNITTEST);
+        file = File.createTempFile("spvblockstore-benchmark", null);
+        file.delete();
+        store = new SPVBlockStore(Fixtures.UNITTEST, file, CAPACITY, false);
+        hashes = new Sha256Hash[CAPACITY];
+        for (height = 0; height < CAPACITY; height++)
+            hashes[height] = put(height).getHeader().getHash();
+    }
+
+    @TearDown
+    public void tearDown() throws BlockStoreException {
+        store.close();
+        file.delete();
+        new File(file.getPath() + SPVBlockStore.INDEX_FILE_SUFFIX).delete();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public StoredBlock get() throws BlockStoreException {
+        return randomGet();
+    }
+
+    @Benchmark
+    @Threads(2)
+    public StoredBlock get2Threads() throws BlockStoreException {
+        return randomGet();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public StoredBlock get4Threads() throws BlockStoreException {
+        return randomGet();
+    }
+
+    @Benchmark
+    @Group("readWhileWriting")
+    @GroupThreads(3)
+    public StoredBlock read() throws BlockStoreException {
+        return randomGet();
+    }
+
+    @Benchmark
+    @Group("readWhileWriting")
+    @GroupThreads(1)
+    public void write() throws BlockStoreException {
+        // Cycling through exactly as many headers as the ring holds means each put overwrites the previous copy of
+        // the same header, so the headers the readers look up never drop out of the store.
+        height = (height + 1) % CAPACITY;
+        store.setChainHead(put(height));
+    }
+
+    private StoredBlock randomGet() throws BlockStoreException {
+        return store.get(hashes[ThreadLocalRandom.current().nextInt(hashes.length)]);
+    }
+
+    private StoredBlock put(int nonce) throws BlockStoreException {
+        Block block = new Block(Fixtures.UNITTEST, Block.BLOCK_VERSION_GENESIS, Sha256Hash.ZERO_HASH,
+                Sha256Hash.ZERO_HASH, 0, 0, nonce, Collections.<Transaction>emptyList());
+        StoredBlock stored = new StoredBlock(block, BigInteger.valueOf(nonce), nonce);
+        store.put(stored);
+        return stored;
+    }
+}
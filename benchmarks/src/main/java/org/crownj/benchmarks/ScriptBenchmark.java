@@ -0,0 +1,109 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.benchmarks;
+
+import org.crownj.core.*;
+import org.crownj.crypto.SignatureCache;
+import org.crownj.script.Script;
+import org.crownj.script.ScriptBuilder;
+import org.openjdk.jmh.annotations.*;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Script execution of a signed pay-to-pubkey-hash spend. The key and the transaction are fixed and signatures are
+ * deterministic (RFC 6979), so the spend is identical on every run.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScriptBenchmark {
+    /** Number of spends verified per block by {@link #verifyBlock()}. */
+    private static final int BLOCK_SPENDS = 200;
+
+    /**
+     * Whether signatures are looked up in a cache of valid signatures: "none" for no cache, "hit" for a cache that
+     * has seen them all before and "miss" for one that is emptied before every invocation, like for a block of new
+     * transactions.
+     */
+    @Param({"none", "hit", "miss"})
+    public String signatureCache;
+
+    private Transaction spendingTx;
+    private final List<Transaction> blockSpends = new ArrayList<>(BLOCK_SPENDS);
+    private ScriptVerificationEngine engine;
+    private Script scriptPubKey;
+    private Set<Script.VerifyFlag> flags;
+
+    @Setup
+    public void setUp() {
+        Fixtures.propagateContext(Fixtures.UNITTEST);
+        NetworkParameters params = Fixtures.UNITTEST;
+        ECKey key = ECKey.fromPrivate(BigInteger.valueOf(0xC0FFEE));
+        scriptPubKey = ScriptBuilder.createP2PKHOutputScript(key);
+        spendingTx = new Transaction(params);
+        spendingTx.addOutput(Coin.COIN, LegacyAddress.fromKey(params, ECKey.fromPrivate(BigInteger.TEN)));
+        TransactionOutPoint outpoint = new TransactionOutPoint(params, 0, Sha256Hash.of(new byte[] { 1 }));
+        spendingTx.addSignedInput(outpoint, scriptPubKey, key);
+        // Every spend of the block is a transaction of its own, as the engine verifies transactions concurrently.
+        for (int i = 0; i < BLOCK_SPENDS; i++) {
+            Transaction tx = new Transaction(params);
+            tx.addOutput(Coin.COIN, LegacyAddress.fromKey(params, ECKey.fromPrivate(BigInteger.TEN)));
+            tx.addSignedInput(new TransactionOutPoint(params, i, Sha256Hash.of(new byte[] { 1 })), scriptPubKey, key);
+            blockSpends.add(tx);
+        }
+        engine = new ScriptVerificationEngine();
+        ECKey.setSignatureCache(signatureCache.equals("none") ? null : new SignatureCache());
+        flags = EnumSet.of(Script.VerifyFlag.P2SH, Script.VerifyFlag.STRICTENC, Script.VerifyFlag.DERSIG,
+                Script.VerifyFlag.LOW_S);
+    }
+
+    @Setup(Level.Invocation)
+    public void clearSignatureCache() {
+        if (signatureCache.equals("miss"))
+            ECKey.getSignatureCache().clear();
+    }
+
+    @Benchmark
+    public void correctlySpends() {
+        spendingTx.getInput(0).getScriptSig().correctlySpends(spendingTx, 0, null, null, scriptPubKey, flags);
+    }
+
+    @Benchmark
+    public void verifyBlock() throws VerificationException {
+        ScriptVerificationEngine.BlockVerification verification = engine.begin(Sha256Hash.ZERO_HASH);
+        List<Script> prevOutScripts = Collections.singletonList(scriptPubKey);
+        for (Transaction tx : blockSpends)
+            verification.add(tx, prevOutScripts, flags);
+        verification.complete();
+    }
+
+    @TearDown
+    public void tearDown() {
+        engine.shutdown();
+        ECKey.setSignatureCache(null);
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.benchmarks;
+
+import org.crownj.core.Sha256Hash;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/** Double SHA-256 over a block header sized input and a typical transaction sized input. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Sha256HashBenchmark {
+    @Param({"80", "250", "1000"})
+    public int length;
+
+    private byte[] input;
+    private final byte[] output = new byte[Sha256Hash.LENGTH];
+
+    @Setup
+    public void setUp() {
+        input = new byte[length];
+        new Random(length).nextBytes(input);
+    }
+
+    @Benchmark
+    public byte[] hashTwice() {
+        return Sha256Hash.hashTwice(input);
+    }
+
+    @Benchmark
+    public byte[] hashTwiceIntoArray() {
+        Sha256Hash.hashTwice(input, 0, input.length, output, 0);
+        return output;
+    }
+
+    @Benchmark
+    public Sha256Hash twiceOf() {
+        return Sha256Hash.twiceOf(input);
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.benchmarks;
+
+import org.crownj.core.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** Transaction parsing, serialization and signature hashing, using transactions from a checked-in mainnet block. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransactionBenchmark {
+    private MessageSerializer serializer;
+    private Transaction tx;
+    private Transaction mutableTx;
+    private byte[] txBytes;
+    private byte[] connectedScript;
+
+    @Setup
+    public void setUp() throws IOException {
+        Fixtures.propagateContext(Fixtures.MAINNET);
+        Block block = Fixtures.loadBlock(Fixtures.BLOCK_169482);
+        serializer = Fixtures.MAINNET.getDefaultSerializer();
+        // Pick the transaction with the most inputs, as that's where signature hashing hurts.
+        List<Transaction> transactions = block.getTransactions();
+        tx = transactions.get(1);
+        for (Transaction candidate : transactions.subList(1, transactions.size()))
+            if (candidate.getInputs().size() > tx.getInputs().size())
+                tx = candidate;
+        txBytes = tx.crownSerialize();
+        mutableTx = serializer.makeTransaction(txBytes);
+        // The script being signed doesn't matter for the cost of hashing, as long as it has a typical size.
+        connectedScript = tx.getOutput(0).getScriptBytes();
+    }
+
+    @Benchmark
+    public Transaction parse() {
+        return serializer.makeTransaction(txBytes);
+    }
+
+    @Benchmark
+    public byte[] serialize() {
+        // Touching a field throws away the cached payload, so it isn't just handed back.
+        mutableTx.setLockTime(mutableTx.getLockTime());
+        return mutableTx.crownSerialize();
+    }
+
+    @Benchmark
+    public Sha256Hash txId() {
+        return serializer.makeTransaction(txBytes).getTxId();
+    }
+
+    @Benchmark
+    public Sha256Hash hashForSignature() {
+        return tx.hashForSignature(0, connectedScript, Transaction.SigHash.ALL, false);
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.benchmarks;
+
+import org.crownj.core.Address;
+import org.crownj.core.Coin;
+import org.crownj.core.Sha256Hash;
+import org.crownj.core.Transaction;
+import org.crownj.core.TransactionInput;
+import org.crownj.core.TransactionOutPoint;
+import org.crownj.script.Script;
+import org.crownj.wallet.TransactionFilter;
+import org.crownj.wallet.TransactionPage;
+import org.crownj.wallet.Wallet;
+import org.crownj.wallet.WalletTransaction;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/** Listing the most recent transactions of a wallet with a long history, as a UI or API showing one page would. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransactionHistoryBenchmark {
+    private static final int PAGE = 20;
+
+    @Param({"1000", "100000"})
+    public int transactions;
+
+    private Wallet wallet;
+    private TransactionFilter largeReceives;
+
+    @Setup
+    public void setUp() {
+        Fixtures.propagateContext(Fixtures.UNITTEST);
+        wallet = Wallet.createDeterministic(Fixtures.UNITTEST, Script.ScriptType.P2PKH);
+        Address address = wallet.currentReceiveAddress();
+        Random random = new Random(1);
+        for (int i = 0; i < transactions; i++) {
+            Transaction tx = new Transaction(Fixtures.UNITTEST);
+            tx.addInput(new TransactionInput(Fixtures.UNITTEST, tx, new byte[0],
+                    new TransactionOutPoint(Fixtures.UNITTEST, i, Sha256Hash.ZERO_HASH)));
+            tx.addOutput(Coin.valueOf(1 + random.nextInt(1000), 0).divide(100), address);
+            tx.setUpdateTime(new Date(1500000000000L + i * 600000L));
+            tx.getConfidence().setAppearedAtChainHeight(1 + i);
+            wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.UNSPENT, tx));
+        }
+        largeReceives = TransactionFilter.builder().direction(TransactionFilter.Direction.RECEIVED)
+                .valueRange(Coin.COIN, null).build();
+    }
+
+    @Benchmark
+    public List<Transaction> recentTransactions() {
+        return wallet.getRecentTransactions(PAGE, false);
+    }
+
+    @Benchmark
+    public TransactionPage firstPage() {
+        return wallet.getTransactions(null, PAGE, TransactionFilter.ALL);
+    }
+
+    @Benchmark
+    public TransactionPage filteredPage() {
+        return wallet.getTransactions(null, PAGE, largeReceives);
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.benchmarks;
+
+import org.crownj.core.Address;
+import org.crownj.core.Block;
+import org.crownj.core.BlockChain;
+import org.crownj.core.Coin;
+import org.crownj.core.Sha256Hash;
+import org.crownj.core.StoredBlock;
+import org.crownj.core.Transaction;
+import org.crownj.core.TransactionInput;
+import org.crownj.core.TransactionOutPoint;
+import org.crownj.wallet.UnreadableWalletException;
+import org.crownj.wallet.Wallet;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Readers of the generated wallet fixture while another thread replays blocks into it. Each replayed block pays the
+ * wallet once, which holds the wallet lock for about as long as connecting a block does. The "replay" group reads
+ * through the wallet's getters, which wait for the lock, and "replaySnapshot" through {@link Wallet#getReadSnapshot()}.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WalletContentionBenchmark {
+    private Wallet wallet;
+    private Address address;
+    private Block header;
+    private int height;
+
+    @Setup
+    public void setUp() throws IOException, UnreadableWalletException {
+        Fixtures.propagateContext(Fixtures.UNITTEST);
+        wallet = Fixtures.loadWallet();
+        address = wallet.currentReceiveAddress();
+        header = Fixtures.UNITTEST.getGenesisBlock().cloneAsHeader();
+        height = wallet.getLastBlockSeenHeight();
+    }
+
+    /** JMH runs each thread of the group on a thread of its own, which all need a context. */
+    @State(Scope.Thread)
+    public static class ThreadContext {
+        @Setup
+        public void setUp() {
+            Fixtures.propagateContext(Fixtures.UNITTEST);
+        }
+    }
+
+    @Benchmark
+    @Group("replay")
+    @GroupThreads(1)
+    public Wallet replayBlock(ThreadContext context) {
+        height++;
+        Transaction tx = new Transaction(Fixtures.UNITTEST);
+        tx.addInput(new TransactionInput(Fixtures.UNITTEST, tx, new byte[0],
+                new TransactionOutPoint(Fixtures.UNITTEST, height, Sha256Hash.ZERO_HASH)));
+        tx.addOutput(Coin.CENT, address);
+        header.setNonce(height);
+        StoredBlock block = new StoredBlock(header.cloneAsHeader(), BigInteger.valueOf(height), height);
+        wallet.receiveFromBlock(tx, block, BlockChain.NewBlockType.BEST_CHAIN, 0);
+        wallet.notifyNewBestBlock(block);
+        return wallet;
+    }
+
+    @Benchmark
+    @Group("replay")
+    @GroupThreads(2)
+    public Coin getBalance(ThreadContext context) {
+        return wallet.getBalance(Wallet.BalanceType.ESTIMATED);
+    }
+
+    @Benchmark
+    @Group("replay")
+    @GroupThreads(1)
+    public Set<Transaction> getTransactions(ThreadContext context) {
+        return wallet.getTransactions(false);
+    }
+
+    @Benchmark
+    @Group("replaySnapshot")
+    @GroupThreads(1)
+    public Wallet replayBlockWithSnapshots(ThreadContext context) {
+        return replayBlock(context);
+    }
+
+    @Benchmark
+    @Group("replaySnapshot")
+    @GroupThreads(2)
+    public Coin getSnapshotBalance(ThreadContext context) {
+        return wallet.getReadSnapshot().getBalance(Wallet.BalanceType.ESTIMATED);
+    }
+
+    @Benchmark
+    @Group("replaySnapshot")
+    @GroupThreads(1)
+    public Set<Transaction> getSnapshotTransactions(ThreadContext context) {
+        return wallet.getReadSnapshot().getTransactions(false);
+    }
+}
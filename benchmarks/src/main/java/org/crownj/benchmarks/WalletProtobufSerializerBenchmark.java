@@ -0,0 +1,68 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.benchmarks;
+
+import org.crownj.wallet.UnreadableWalletException;
+import org.crownj.wallet.Wallet;
+import org.crownj.wallet.WalletProtobufSerializer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/** Loading and saving of the generated wallet fixture. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WalletProtobufSerializerBenchmark {
+    private WalletProtobufSerializer serializer;
+    private byte[] walletBytes;
+    private Wallet wallet;
+
+    @Setup
+    public void setUp() throws IOException, UnreadableWalletException {
+        Fixtures.propagateContext(Fixtures.UNITTEST);
+        serializer = new WalletProtobufSerializer();
+        walletBytes = Fixtures.walletBytes();
+        wallet = serializer.readWallet(new ByteArrayInputStream(walletBytes));
+    }
+
+    @Benchmark
+    public Wallet read() throws UnreadableWalletException {
+        return serializer.readWallet(new ByteArrayInputStream(walletBytes));
+    }
+
+    @Benchmark
+    public byte[] write() throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(walletBytes.length);
+        serializer.writeWallet(wallet, output);
+        return output.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] roundTrip() throws IOException, UnreadableWalletException {
+        Wallet read = serializer.readWallet(new ByteArrayInputStream(walletBytes));
+        ByteArrayOutputStream output = new ByteArrayOutputStream(walletBytes.length);
+        serializer.writeWallet(read, output);
+        return output.toByteArray();
+    }
+}
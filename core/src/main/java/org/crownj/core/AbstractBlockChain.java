@@ -114,7 +114,8 @@ public abstract class AbstractBlockChain {
         final Map<Sha256Hash, Transaction> filteredTxn;
         OrphanBlock(Block block, @Nullable List<Sha256Hash> filteredTxHashes, @Nullable Map<Sha256Hash, Transaction> filteredTxn) {
             final boolean filtered = filteredTxHashes != null && filteredTxn != null;
-            Preconditions.checkArgument((block.getTransactions() == null && filtered)
+            // In headers-only mode, orphans are bare headers.
+            Preconditions.checkArgument((block.getTransactions() == null && (filtered || headersOnly))
                                         || (block.getTransactions() != null && !filtered));
             this.block = block;
             this.filteredTxHashes = filteredTxHashes;
@@ -136,6 +137,9 @@ public abstract class AbstractBlockChain {
 
     private final VersionTally versionTally;
 
+    // Whether blocks are connected as bare headers, see setHeadersOnly().
+    private volatile boolean headersOnly;
+
     /**
      * Constructs a BlockChain connected to the given list of listeners (wallets) and a store.
      * @param params network parameters for this chain
@@ -324,6 +328,22 @@ public abstract class AbstractBlockChain {
                                                    @Nullable TransactionOutputChanges txOutputChanges)
             throws BlockStoreException, VerificationException;
 
+    /**
+     * Adds a run of headers, each building on the one before it, to the block store, in one go if it is a
+     * {@link BatchingBlockStore}.
+     * Only called if(!shouldVerifyTransactions())
+     * @param blocks the headers to add, in chain order
+     * @throws BlockStoreException if a failure occurs while storing a block
+     */
+    protected void addAllToBlockStore(List<StoredBlock> blocks) throws BlockStoreException {
+        if (blockStore instanceof BatchingBlockStore) {
+            ((BatchingBlockStore) blockStore).putAll(blocks);
+        } else {
+            for (StoredBlock block : blocks)
+                blockStore.put(block);
+        }
+    }
+
     /**
      * Rollback the block store to a given height. This is currently only supported by {@link BlockChain} instances.
      *
@@ -419,6 +439,41 @@ public abstract class AbstractBlockChain {
         }
     }
     
+    /**
+     * <p>Processes a run of received blocks in which each block builds on the one before it, such as the headers of a
+     * headers message. The outcome is the same as adding the blocks one by one with {@link #add(Block)}, but if they
+     * are headers that extend the best chain, they are connected as a batch: the chain lock is taken once, all of
+     * them are verified and then written to the block store at once, and the chain head moves once, to the last
+     * of them. {@link NewBestBlockListener}s are still told about every block, but each listener gets the whole run
+     * in one call to its executor.</p>
+     *
+     * <p>Other runs, for instance blocks with transactions or blocks that fork the chain, are added one by one.</p>
+     *
+     * @param blocks blocks to add, in chain order
+     * @return true if all blocks can be connected, false if some are valid but can't be connected
+     * @throws VerificationException if a block is invalid, in which case the blocks before it have been added
+     * @throws PrunedException a reorg that is too-long for our stored block data has occurred
+     */
+    public boolean addAll(List<Block> blocks) throws VerificationException, PrunedException {
+        lock.lock();
+        try {
+            if (!extendsChainHead(blocks)) {
+                boolean connected = true;
+                for (Block block : blocks)
+                    connected &= add(block);
+                return connected;
+            }
+            connectHeaders(blocks);
+            tryConnectingOrphans();
+            return true;
+        } catch (BlockStoreException e) {
+            // TODO: Figure out a better way to propagate this exception to the user.
+            throw new RuntimeException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * Whether or not we are maintaining a set of unspent outputs and are verifying all transactions.
      * Also indicates that all calls to add() should provide a block containing transactions
@@ -455,6 +510,13 @@ public abstract class AbstractBlockChain {
     private boolean add(Block block, boolean tryConnecting,
                         @Nullable List<Sha256Hash> filteredTxHashList, @Nullable Map<Sha256Hash, Transaction> filteredTxn)
             throws BlockStoreException, VerificationException, PrunedException {
+        if (headersOnly) {
+            // Blocks and filtered blocks that arrive anyway are connected like their header.
+            if (block.getTransactions() != null)
+                block = block.cloneAsHeader();
+            filteredTxHashList = null;
+            filteredTxn = null;
+        }
         // TODO: Use read/write locks to ensure that during chain download properties are still low latency.
         lock.lock();
         try {
@@ -528,6 +590,80 @@ public abstract class AbstractBlockChain {
         }
     }
 
+    // True if the blocks are headers, or connected as such, that build on the chain head and on each other.
+    private boolean extendsChainHead(List<Block> blocks) {
+        checkState(lock.isHeldByCurrentThread());
+        if (blocks.isEmpty() || shouldVerifyTransactions())
+            return false;
+        Sha256Hash prevHash = getChainHead().getHeader().getHash();
+        for (Block block : blocks) {
+            // Headers off the wire have an empty transaction list.
+            if (block.getTransactions() != null && !block.getTransactions().isEmpty() && !headersOnly)
+                return false;
+            if (!block.getPrevBlockHash().equals(prevHash))
+                return false;
+            prevHash = block.getHash();
+        }
+        return true;
+    }
+
+    // Connects a run of headers that extends the best chain, with the same checks as connecting them one by one. If a
+    // header fails verification, the headers before it are connected before the exception is thrown.
+    private void connectHeaders(List<Block> blocks) throws BlockStoreException, VerificationException {
+        checkState(lock.isHeldByCurrentThread());
+        List<StoredBlock> connected = new ArrayList<>(blocks.size());
+        // How many of the connected headers are in the block store already.
+        int stored = 0;
+        StoredBlock storedPrev = getChainHead();
+        VerificationException failure = null;
+        for (Block block : blocks) {
+            if (block.getTransactions() != null)
+                block = block.cloneAsHeader();
+            try {
+                block.verifyHeader();
+                if (stored < connected.size() && params.needsBlockStoreForDifficulty(storedPrev, block)) {
+                    // The check looks back at headers of this run, so they have to be in the block store.
+                    addAllToBlockStore(connected.subList(stored, connected.size()));
+                    stored = connected.size();
+                }
+                params.checkDifficultyTransitions(storedPrev, block, blockStore);
+                if (!params.passesCheckpoint(storedPrev.getHeight() + 1, block.getHash()))
+                    throw new VerificationException("Block failed checkpoint lockin at " + (storedPrev.getHeight() + 1));
+                // BIP 66 & 65: Enforce block version 3/4 once they are a supermajority of blocks, see connectBlock().
+                if (block.getVersion() == Block.BLOCK_VERSION_BIP34
+                    || block.getVersion() == Block.BLOCK_VERSION_BIP66) {
+                    final Integer count = versionTally.getCountAtOrAbove(block.getVersion() + 1);
+                    if (count != null
+                        && count >= params.getMajorityRejectBlockOutdated()) {
+                        throw new VerificationException.BlockVersionOutOfDate(block.getVersion());
+                    }
+                }
+            } catch (VerificationException e) {
+                log.error("Failed to verify block: ", e);
+                log.error(block.getHashAsString());
+                failure = new VerificationException("Could not verify block:\n" + block.toString(), e);
+                break;
+            }
+            StoredBlock newStoredBlock = storedPrev.build(block);
+            connected.add(newStoredBlock);
+            versionTally.add(block.getVersion());
+            storedPrev = newStoredBlock;
+        }
+        if (!connected.isEmpty()) {
+            if (stored < connected.size())
+                addAllToBlockStore(connected.subList(stored, connected.size()));
+            setChainHead(storedPrev);
+            if (log.isDebugEnabled())
+                log.debug("Chain is now {} blocks high after {} headers, running listeners", storedPrev.getHeight(),
+                        connected.size());
+            informListenersForNewBestBlocks(connected);
+        }
+        if (failure != null) {
+            notSettingChainHead();
+            throw failure;
+        }
+    }
+
     /**
      * Returns the hashes of the currently stored orphan blocks and then deletes them from this objects storage.
      * Used by Peer when a filter exhaustion event has occurred and thus any orphan blocks that have been downloaded
@@ -707,6 +843,30 @@ public abstract class AbstractBlockChain {
         trackFalsePositives(falsePositives.size());
     }
 
+    // Tells the listeners about a run of headers that became the best chain. Each listener hears about every block, but
+    // listeners on other threads get the run as a single task.
+    private void informListenersForNewBestBlocks(final List<StoredBlock> newStoredBlocks) throws VerificationException {
+        for (final ListenerRegistration<NewBestBlockListener> registration : newBestBlockListeners) {
+            if (registration.executor == Threading.SAME_THREAD) {
+                for (StoredBlock newStoredBlock : newStoredBlocks)
+                    registration.listener.notifyNewBestBlock(newStoredBlock);
+            } else {
+                // Listener wants to be run on some other thread, so marshal it across here.
+                registration.executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            for (StoredBlock newStoredBlock : newStoredBlocks)
+                                registration.listener.notifyNewBestBlock(newStoredBlock);
+                        } catch (VerificationException e) {
+                            log.error("Block chain listener threw exception: ", e);
+                        }
+                    }
+                });
+            }
+        }
+    }
+
     private static void informListenerForNewTransactions(Block block, NewBlockType newBlockType,
                                                          @Nullable List<Sha256Hash> filteredTxHashList,
                                                          @Nullable Map<Sha256Hash, Transaction> filteredTxn,
@@ -975,6 +1135,25 @@ public abstract class AbstractBlockChain {
         } while (blocksConnectedThisRound > 0);
     }
 
+    /**
+     * <p>Puts the chain into headers-only mode, or takes it out of it. In this mode peers download block headers only,
+     * never block bodies or filtered blocks, whatever the fast catchup time. Headers are still checked for proof of
+     * work and difficulty transitions, and {@link NewBestBlockListener}s are still told about new best blocks, but no
+     * transactions are ever passed on. This is the cheap way to follow the best chain and its work, for instance into
+     * an {@link org.crownj.store.SPVBlockStore}.</p>
+     *
+     * <p>Not possible when verifying transactions. Set this before starting the chain download.</p>
+     */
+    public void setHeadersOnly(boolean headersOnly) {
+        checkState(!headersOnly || !shouldVerifyTransactions(), "Headers-only mode is incompatible with fully verifying");
+        this.headersOnly = headersOnly;
+    }
+
+    /** Returns true if the chain is in headers-only mode, see {@link #setHeadersOnly(boolean)}. */
+    public boolean isHeadersOnly() {
+        return headersOnly;
+    }
+
     /**
      * Returns the block at the head of the current best chain. This is the block which represents the greatest
      * amount of cumulative work done.
@@ -27,6 +27,7 @@ import org.slf4j.*;
 import javax.annotation.*;
 import java.io.*;
 import java.math.*;
+import java.nio.*;
 import java.util.*;
 
 import static com.google.common.base.Preconditions.checkState;
@@ -201,6 +202,40 @@ public class Block extends Message {
         this.transactions.addAll(transactions);
     }
 
+    /**
+     * Reads a block header from the given buffer and advances its position past it. This is the fast path for
+     * headers-first sync and block stores: unlike {@link MessageSerializer#makeBlock(byte[])} it neither copies nor
+     * retains the bytes, skips the generic message parsing machinery and only calculates the hash if it isn't known
+     * yet. The result is equivalent to {@link #cloneAsHeader()} of a parsed block.
+     * @param params Which network the block is for.
+     * @param buffer buffer positioned at the header, with at least {@link #HEADER_SIZE} bytes remaining
+     * @param hash The hash of the header if the caller already knows it, for example because it is stored alongside
+     * the header. It is trusted, not verified. If null, the hash is calculated from the buffer.
+     */
+    public static Block readHeader(NetworkParameters params, ByteBuffer buffer, @Nullable Sha256Hash hash) {
+        byte[] bytes;
+        int offset;
+        if (buffer.hasArray()) {
+            bytes = buffer.array();
+            offset = buffer.arrayOffset() + buffer.position();
+            if (buffer.remaining() < HEADER_SIZE)
+                throw new BufferUnderflowException();
+            ((Buffer) buffer).position(buffer.position() + HEADER_SIZE);
+        } else {
+            bytes = new byte[HEADER_SIZE];
+            offset = 0;
+            buffer.get(bytes);
+        }
+        Block block = new Block(params, Utils.readUint32(bytes, offset));
+        block.prevBlockHash = Sha256Hash.wrapReversed(bytes, offset + 4);
+        block.merkleRoot = Sha256Hash.wrapReversed(bytes, offset + 36);
+        block.time = Utils.readUint32(bytes, offset + 68);
+        block.difficultyTarget = Utils.readUint32(bytes, offset + 72);
+        block.nonce = Utils.readUint32(bytes, offset + 76);
+        block.hash = hash != null ? hash : Sha256Hash.twiceOfReversed(bytes, offset, HEADER_SIZE);
+        return block;
+    }
+
     /** @deprecated Use {@link AbstractcrownNetParams#getBlockInflation(int)} */
     @Deprecated
     public Coin getBlockInflation(int height) {
@@ -248,7 +283,7 @@ public class Block extends Message {
         time = readUint32();
         difficultyTarget = readUint32();
         nonce = readUint32();
-        hash = Sha256Hash.wrapReversed(Sha256Hash.hashTwice(payload, offset, cursor - offset));
+        hash = Sha256Hash.twiceOfReversed(payload, offset, cursor - offset);
         headerBytesValid = serializer.isParseRetainMode();
 
         // transactions
@@ -418,13 +453,16 @@ public class Block extends Message {
 
     /**
      * Calculates the block hash by serializing the block and hashing the
-     * resulting bytes.
+     * resulting bytes. If the header is unchanged since it was parsed, it is
+     * hashed straight from the payload instead.
      */
     private Sha256Hash calculateHash() {
+        if (headerBytesValid && payload != null && payload.length >= offset + HEADER_SIZE)
+            return Sha256Hash.twiceOfReversed(payload, offset, HEADER_SIZE);
         try {
-            ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(HEADER_SIZE);
+            UnsafeByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(HEADER_SIZE);
             writeHeader(bos);
-            return Sha256Hash.wrapReversed(Sha256Hash.hashTwice(bos.toByteArray()));
+            return Sha256Hash.twiceOfReversed(bos.getBuffer(), 0, bos.size());
         } catch (IOException e) {
             throw new RuntimeException(e); // Cannot happen.
         }
@@ -593,7 +631,14 @@ public class Block extends Message {
     }
 
     private void checkMerkleRoot() throws VerificationException {
-        Sha256Hash calculatedRoot = calculateMerkleRoot();
+        // If the block commits to witnesses, the witness root is going to be needed as well. Get both in one pass.
+        Transaction coinbase = transactions.get(0);
+        boolean withWitnessRoot = witnessRoot == null && coinbase.isCoinBase()
+                && coinbase.findWitnessCommitment() != null;
+        Sha256Hash[] roots = MerkleBuilder.buildRoots(transactions, withWitnessRoot);
+        if (withWitnessRoot)
+            witnessRoot = roots[1];
+        Sha256Hash calculatedRoot = roots[0];
         if (!calculatedRoot.equals(merkleRoot)) {
             log.error("Merkle tree did not verify");
             throw new VerificationException("Merkle hashes do not match: " + calculatedRoot + " vs " + merkleRoot);
@@ -627,72 +672,11 @@ public class Block extends Message {
     }
 
     private Sha256Hash calculateMerkleRoot() {
-        List<byte[]> tree = buildMerkleTree(false);
-        return Sha256Hash.wrap(tree.get(tree.size() - 1));
+        return MerkleBuilder.buildRoots(transactions, false)[0];
     }
 
     private Sha256Hash calculateWitnessRoot() {
-        List<byte[]> tree = buildMerkleTree(true);
-        return Sha256Hash.wrap(tree.get(tree.size() - 1));
-    }
-
-    private List<byte[]> buildMerkleTree(boolean useWTxId) {
-        // The Merkle root is based on a tree of hashes calculated from the transactions:
-        //
-        //     root
-        //      / \
-        //   A      B
-        //  / \    / \
-        // t1 t2 t3 t4
-        //
-        // The tree is represented as a list: t1,t2,t3,t4,A,B,root where each
-        // entry is a hash.
-        //
-        // The hashing algorithm is double SHA-256. The leaves are a hash of the serialized contents of the transaction.
-        // The interior nodes are hashes of the concatenation of the two child hashes.
-        //
-        // This structure allows the creation of proof that a transaction was included into a block without having to
-        // provide the full block contents. Instead, you can provide only a Merkle branch. For example to prove tx2 was
-        // in a block you can just provide tx2, the hash(tx1) and B. Now the other party has everything they need to
-        // derive the root, which can be checked against the block header. These proofs aren't used right now but
-        // will be helpful later when we want to download partial block contents.
-        //
-        // Note that if the number of transactions is not even the last tx is repeated to make it so (see
-        // tx3 above). A tree with 5 transactions would look like this:
-        //
-        //         root
-        //        /     \
-        //       1        5
-        //     /   \     / \
-        //    2     3    4  4
-        //  / \   / \   / \
-        // t1 t2 t3 t4 t5 t5
-        ArrayList<byte[]> tree = new ArrayList<>(transactions.size());
-        // Start by adding all the hashes of the transactions as leaves of the tree.
-        for (Transaction tx : transactions) {
-            final Sha256Hash id;
-            if (useWTxId && tx.isCoinBase())
-                id = Sha256Hash.ZERO_HASH;
-            else
-                id = useWTxId ? tx.getWTxId() : tx.getTxId();
-            tree.add(id.getBytes());
-        }
-        int levelOffset = 0; // Offset in the list where the currently processed level starts.
-        // Step through each level, stopping when we reach the root (levelSize == 1).
-        for (int levelSize = transactions.size(); levelSize > 1; levelSize = (levelSize + 1) / 2) {
-            // For each pair of nodes on that level:
-            for (int left = 0; left < levelSize; left += 2) {
-                // The right hand node can be the same as the left hand, in the case where we don't have enough
-                // transactions.
-                int right = Math.min(left + 1, levelSize - 1);
-                byte[] leftBytes = Utils.reverseBytes(tree.get(levelOffset + left));
-                byte[] rightBytes = Utils.reverseBytes(tree.get(levelOffset + right));
-                tree.add(Utils.reverseBytes(hashTwice(leftBytes, rightBytes)));
-            }
-            // Move to the next level.
-            levelOffset += levelSize;
-        }
-        return tree;
+        return MerkleBuilder.buildRoots(transactions, true)[1];
     }
 
     /**
@@ -834,6 +818,7 @@ public class Block extends Message {
         adjustLength(transactions.size(), t.length);
         // Force a recalculation next time the values are needed.
         merkleRoot = null;
+        witnessRoot = null;
         hash = null;
     }
 
@@ -18,7 +18,7 @@
 package org.crownj.core;
 
 import org.crownj.script.Script;
-import org.crownj.script.ScriptChunk;
+import org.crownj.script.ScriptOpCodes;
 import org.crownj.script.ScriptPattern;
 
 import com.google.common.base.MoreObjects;
@@ -43,7 +43,8 @@ import static java.lang.Math.*;
  * a useful privacy feature - if you have spare bandwidth the false positive rate can be increased so the remote peer
  * gets a noisy picture of what transactions are relevant to your wallet.</p>
  * 
- * <p>Instances of this class are not safe for use by multiple threads.</p>
+ * <p>Instances of this class are safe for use by multiple threads. {@link #contains(byte[])} takes no lock: it reads
+ * an immutable snapshot of the filter bits, which is copied again on the first read after the filter was changed.</p>
  */
 public class BloomFilter extends Message {
     /** The BLOOM_UPDATE_* constants control when the bloom filter is auto-updated by the peer using
@@ -55,9 +56,14 @@ public class BloomFilter extends Message {
         UPDATE_P2PUBKEY_ONLY //2
     }
     
+    // Changed in place by writers, under the lock of this object.
     private byte[] data;
+    // Immutable copy of data for readers, or null if data changed since the last copy.
+    private volatile byte[] snapshot;
     private long hashFuncs;
     private long nTweak;
+    // Reused by applyAndUpdate(Transaction), under the lock of this object.
+    private final byte[] outPointBuffer = new byte[TransactionOutPoint.MESSAGE_LENGTH];
     private byte nFlags;
 
     // Same value as crown Core
@@ -172,13 +178,21 @@ public class BloomFilter extends Message {
      * See this <a href="https://github.com/aappleby/smhasher/blob/master/src/MurmurHash3.cpp">C++ code for the original.</a>
      */
     public static int murmurHash3(byte[] data, long nTweak, int hashNum, byte[] object) {
+        return murmurHash3(data, nTweak, hashNum, object, 0, object.length);
+    }
+
+    /**
+     * Applies the MurmurHash3 (x86_32) algorithm to the given range of the object array, so that elements can be
+     * hashed where they are, e.g. in a serialized transaction.
+     */
+    public static int murmurHash3(byte[] data, long nTweak, int hashNum, byte[] object, int offset, int length) {
         int h1 = (int)(hashNum * 0xFBA4C795L + nTweak);
         final int c1 = 0xcc9e2d51;
         final int c2 = 0x1b873593;
 
-        int numBlocks = (object.length / 4) * 4;
+        int numBlocks = offset + (length / 4) * 4;
         // body
-        for(int i = 0; i < numBlocks; i += 4) {
+        for(int i = offset; i < numBlocks; i += 4) {
             int k1 = (object[i] & 0xFF) |
                   ((object[i+1] & 0xFF) << 8) |
                   ((object[i+2] & 0xFF) << 16) |
@@ -194,7 +208,7 @@ public class BloomFilter extends Message {
         }
         
         int k1 = 0;
-        switch(object.length & 3)
+        switch(length & 3)
         {
             case 3:
                 k1 ^= (object[numBlocks + 2] & 0xff) << 16;
@@ -212,7 +226,7 @@ public class BloomFilter extends Message {
         }
 
         // finalization
-        h1 ^= object.length;
+        h1 ^= length;
         h1 ^= h1 >>> 16;
         h1 *= 0x85ebca6b;
         h1 ^= h1 >>> 13;
@@ -226,18 +240,42 @@ public class BloomFilter extends Message {
      * Returns true if the given object matches the filter either because it was inserted, or because we have a
      * false-positive.
      */
-    public synchronized boolean contains(byte[] object) {
+    public boolean contains(byte[] object) {
+        return contains(object, 0, object.length);
+    }
+
+    /**
+     * Returns true if the given range of the array matches the filter either because it was inserted, or because we
+     * have a false-positive.
+     */
+    public boolean contains(byte[] array, int offset, int length) {
+        return contains(snapshot(), array, offset, length);
+    }
+
+    private boolean contains(byte[] bits, byte[] array, int offset, int length) {
         for (int i = 0; i < hashFuncs; i++) {
-            if (!Utils.checkBitLE(data, murmurHash3(data, nTweak, i, object)))
+            if (!Utils.checkBitLE(bits, murmurHash3(bits, nTweak, i, array, offset, length)))
                 return false;
         }
         return true;
     }
-    
+
+    private byte[] snapshot() {
+        byte[] bits = snapshot;
+        if (bits != null)
+            return bits;
+        synchronized (this) {
+            if (snapshot == null)
+                snapshot = data.clone();
+            return snapshot;
+        }
+    }
+
     /** Insert the given arbitrary data into the filter */
     public synchronized void insert(byte[] object) {
         for (int i = 0; i < hashFuncs; i++)
             Utils.setBitLE(data, murmurHash3(data, nTweak, i, object));
+        snapshot = null;
     }
 
     /** Inserts the given key and equivalent hashed form (for the address). */
@@ -260,6 +298,7 @@ public class BloomFilter extends Message {
      */
     public synchronized void setMatchAll() {
         data = new byte[] {(byte) 0xff};
+        snapshot = null;
     }
 
     /**
@@ -276,14 +315,15 @@ public class BloomFilter extends Message {
         } else {
             this.data = new byte[] {(byte) 0xff};
         }
+        snapshot = null;
     }
 
     /**
      * Returns true if this filter will match anything. See {@link BloomFilter#setMatchAll()}
      * for when this can be a useful thing to do.
      */
-    public synchronized boolean matchesAll() {
-        for (byte b : data)
+    public boolean matchesAll() {
+        for (byte b : snapshot())
             if (b != (byte) 0xff)
                 return false;
         return true;
@@ -330,37 +370,89 @@ public class BloomFilter extends Message {
         return filteredBlock;
     }
 
+    /**
+     * Returns true if the transaction matches the filter, which is also updated according to the
+     * {@link #getUpdateFlag() update flag}. Data pushes are matched where they are in the script bytes, and outpoints
+     * are serialized into a reused buffer, so unless the filter is updated nothing is allocated.
+     */
     public synchronized boolean applyAndUpdate(Transaction tx) {
-        if (contains(tx.getTxId().getBytes()))
+        Sha256Hash txId = tx.getTxId();
+        byte[] txIdBytes = txId.getBytes();
+        if (contains(data, txIdBytes, 0, txIdBytes.length))
             return true;
         boolean found = false;
         BloomUpdate flag = getUpdateFlag();
-        for (TransactionOutput output : tx.getOutputs()) {
-            Script script = output.getScriptPubKey();
-            for (ScriptChunk chunk : script.getChunks()) {
-                if (!chunk.isPushData())
-                    continue;
-                if (contains(chunk.data)) {
-                    boolean isSendingToPubKeys = ScriptPattern.isP2PK(script) || ScriptPattern.isSentToMultisig(script);
-                    if (flag == BloomUpdate.UPDATE_ALL || (flag == BloomUpdate.UPDATE_P2PUBKEY_ONLY && isSendingToPubKeys))
-                        insert(output.getOutPointFor());
-                    found = true;
-                }
+        List<TransactionOutput> outputs = tx.getOutputs();
+        for (int i = 0; i < outputs.size(); i++) {
+            TransactionOutput output = outputs.get(i);
+            byte[] script = output.getScriptBytes();
+            if (anyPushMatches(script, 0, script.length)) {
+                if (flag == BloomUpdate.UPDATE_ALL || (flag == BloomUpdate.UPDATE_P2PUBKEY_ONLY
+                        && isSendingToPubKeys(output.getScriptPubKey())))
+                    insert(serializeOutPoint(txId, i));
+                found = true;
             }
         }
         if (found) return true;
-        for (TransactionInput input : tx.getInputs()) {
-            if (contains(input.getOutpoint().unsafecrownSerialize())) {
+        List<TransactionInput> inputs = tx.getInputs();
+        for (int i = 0; i < inputs.size(); i++) {
+            TransactionInput input = inputs.get(i);
+            TransactionOutPoint outpoint = input.getOutpoint();
+            if (contains(data, serializeOutPoint(outpoint.getHash(), outpoint.getIndex()), 0,
+                    TransactionOutPoint.MESSAGE_LENGTH))
                 return true;
+            byte[] script = input.getScriptBytes();
+            if (script != null && anyPushMatches(script, 0, script.length))
+                return true;
+        }
+        return false;
+    }
+
+    private static boolean isSendingToPubKeys(Script script) {
+        return ScriptPattern.isP2PK(script) || ScriptPattern.isSentToMultisig(script);
+    }
+
+    // Serializes the outpoint like TransactionOutPoint does, into the buffer of this filter.
+    private byte[] serializeOutPoint(Sha256Hash hash, long index) {
+        byte[] hashBytes = hash.getBytes();
+        for (int i = 0; i < 32; i++)
+            outPointBuffer[i] = hashBytes[31 - i];
+        Utils.uint32ToByteArrayLE(index, outPointBuffer, 32);
+        return outPointBuffer;
+    }
+
+    // Returns true if data pushed by the script in the given range matches, going over the opcodes the way
+    // Script.parse() does. A push that runs past the end of the script ends the walk.
+    private boolean anyPushMatches(byte[] bytes, int offset, int end) {
+        while (offset < end) {
+            int opcode = bytes[offset++] & 0xff;
+            long length;
+            if (opcode < ScriptOpCodes.OP_PUSHDATA1) {
+                length = opcode;
+            } else if (opcode == ScriptOpCodes.OP_PUSHDATA1) {
+                if (end - offset < 1) return false;
+                length = bytes[offset] & 0xff;
+                offset += 1;
+            } else if (opcode == ScriptOpCodes.OP_PUSHDATA2) {
+                if (end - offset < 2) return false;
+                length = Utils.readUint16(bytes, offset);
+                offset += 2;
+            } else if (opcode == ScriptOpCodes.OP_PUSHDATA4) {
+                if (end - offset < 4) return false;
+                length = Utils.readUint32(bytes, offset);
+                offset += 4;
+            } else {
+                continue;
             }
-            for (ScriptChunk chunk : input.getScriptSig().getChunks()) {
-                if (chunk.isPushData() && contains(chunk.data))
-                    return true;
-            }
+            if (length > end - offset)
+                return false;
+            if (contains(data, bytes, offset, (int) length))
+                return true;
+            offset += (int) length;
         }
         return false;
     }
-    
+
     @Override
     public synchronized boolean equals(Object o) {
         if (this == o) return true;
@@ -0,0 +1,107 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>Represents the "cfcheckpt" P2P network message, the answer to a {@link GetCFCheckptMessage}. It carries the filter
+ * headers at heights {@link #CHECKPOINT_INTERVAL}, 2 * {@link #CHECKPOINT_INTERVAL} and so on.</p>
+ *
+ * <p>See <a href="https://github.com/bitcoin/bips/blob/master/bip-0157.mediawiki">BIP157</a> for details.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public class CFCheckptMessage extends Message {
+    /** The distance in blocks between filter header checkpoints. */
+    public static final int CHECKPOINT_INTERVAL = 1000;
+
+    private byte filterType;
+    private Sha256Hash stopHash;
+    private List<Sha256Hash> filterHeaders;
+
+    public CFCheckptMessage(NetworkParameters params, byte filterType, Sha256Hash stopHash,
+                            List<Sha256Hash> filterHeaders) {
+        super(params);
+        this.filterType = filterType;
+        this.stopHash = stopHash;
+        this.filterHeaders = filterHeaders;
+    }
+
+    public CFCheckptMessage(NetworkParameters params, byte[] payload) throws ProtocolException {
+        super(params, payload, 0);
+    }
+
+    @Override
+    protected void parse() throws ProtocolException {
+        filterType = readByte();
+        stopHash = readHash();
+        long count = readVarInt().longValue();
+        // Each header takes 32 bytes, which bounds the count by the payload size.
+        if (count < 0 || count > (payload.length - cursor) / 32)
+            throw new ProtocolException("Bad filter header count: " + count);
+        filterHeaders = new ArrayList<>((int) count);
+        for (int i = 0; i < count; i++)
+            filterHeaders.add(readHash());
+        length = cursor - offset;
+    }
+
+    @Override
+    protected void crownSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(filterType);
+        stream.write(stopHash.getReversedBytes());
+        stream.write(new VarInt(filterHeaders.size()).encode());
+        for (Sha256Hash header : filterHeaders)
+            stream.write(header.getReversedBytes());
+    }
+
+    public byte getFilterType() {
+        return filterType;
+    }
+
+    public Sha256Hash getStopHash() {
+        return stopHash;
+    }
+
+    /** Returns the filter headers, the first one being at height {@link #CHECKPOINT_INTERVAL}. */
+    public List<Sha256Hash> getFilterHeaders() {
+        return Collections.unmodifiableList(filterHeaders);
+    }
+
+    @Override
+    public String toString() {
+        return "cfcheckpt: type " + filterType + ", " + filterHeaders.size() + " headers up to " + stopHash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        CFCheckptMessage other = (CFCheckptMessage) o;
+        return filterType == other.filterType && stopHash.equals(other.stopHash)
+                && filterHeaders.equals(other.filterHeaders);
+    }
+
+    @Override
+    public int hashCode() {
+        return filterType ^ stopHash.hashCode() ^ filterHeaders.hashCode();
+    }
+}
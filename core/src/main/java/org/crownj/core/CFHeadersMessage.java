@@ -0,0 +1,123 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>Represents the "cfheaders" P2P network message, the answer to a {@link GetCFHeadersMessage}. It carries the filter
+ * header of the block before the range, followed by the hashes of the filters in the range. The headers of the range
+ * follow from them, see {@link #getFilterHeaders()}.</p>
+ *
+ * <p>See <a href="https://github.com/bitcoin/bips/blob/master/bip-0157.mediawiki">BIP157</a> for details.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public class CFHeadersMessage extends Message {
+    private byte filterType;
+    private Sha256Hash stopHash;
+    private Sha256Hash previousHeader;
+    private List<Sha256Hash> filterHashes;
+
+    public CFHeadersMessage(NetworkParameters params, byte filterType, Sha256Hash stopHash, Sha256Hash previousHeader,
+                            List<Sha256Hash> filterHashes) {
+        super(params);
+        this.filterType = filterType;
+        this.stopHash = stopHash;
+        this.previousHeader = previousHeader;
+        this.filterHashes = filterHashes;
+    }
+
+    public CFHeadersMessage(NetworkParameters params, byte[] payload) throws ProtocolException {
+        super(params, payload, 0);
+    }
+
+    @Override
+    protected void parse() throws ProtocolException {
+        filterType = readByte();
+        stopHash = readHash();
+        previousHeader = readHash();
+        long count = readVarInt().longValue();
+        if (count < 0 || count > GetCFHeadersMessage.MAX_HEADERS)
+            throw new ProtocolException("Too many filter hashes: " + count);
+        filterHashes = new ArrayList<>((int) count);
+        for (int i = 0; i < count; i++)
+            filterHashes.add(readHash());
+        length = cursor - offset;
+    }
+
+    @Override
+    protected void crownSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(filterType);
+        stream.write(stopHash.getReversedBytes());
+        stream.write(previousHeader.getReversedBytes());
+        stream.write(new VarInt(filterHashes.size()).encode());
+        for (Sha256Hash hash : filterHashes)
+            stream.write(hash.getReversedBytes());
+    }
+
+    public byte getFilterType() {
+        return filterType;
+    }
+
+    public Sha256Hash getStopHash() {
+        return stopHash;
+    }
+
+    /** Returns the filter header of the block before the first one of the range. */
+    public Sha256Hash getPreviousHeader() {
+        return previousHeader;
+    }
+
+    public List<Sha256Hash> getFilterHashes() {
+        return Collections.unmodifiableList(filterHashes);
+    }
+
+    /** Computes the filter headers of the range, by chaining the filter hashes onto the previous header. */
+    public List<Sha256Hash> getFilterHeaders() {
+        List<Sha256Hash> headers = new ArrayList<>(filterHashes.size());
+        Sha256Hash header = previousHeader;
+        for (Sha256Hash filterHash : filterHashes) {
+            header = GolombCodedSet.filterHeader(filterHash, header);
+            headers.add(header);
+        }
+        return headers;
+    }
+
+    @Override
+    public String toString() {
+        return "cfheaders: type " + filterType + ", " + filterHashes.size() + " hashes up to " + stopHash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        CFHeadersMessage other = (CFHeadersMessage) o;
+        return filterType == other.filterType && stopHash.equals(other.stopHash)
+                && previousHeader.equals(other.previousHeader) && filterHashes.equals(other.filterHashes);
+    }
+
+    @Override
+    public int hashCode() {
+        return filterType ^ stopHash.hashCode() ^ previousHeader.hashCode() ^ filterHashes.hashCode();
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * <p>Represents the "cfilter" P2P network message, which carries the compact filter of one block in answer to a
+ * {@link GetCFiltersMessage}. Use {@link #getFilter()} to match against it.</p>
+ *
+ * <p>See <a href="https://github.com/bitcoin/bips/blob/master/bip-0157.mediawiki">BIP157</a> for details.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public class CFilterMessage extends Message {
+    private byte filterType;
+    private Sha256Hash blockHash;
+    private byte[] filterBytes;
+
+    public CFilterMessage(NetworkParameters params, byte filterType, Sha256Hash blockHash, byte[] filterBytes) {
+        super(params);
+        this.filterType = filterType;
+        this.blockHash = blockHash;
+        this.filterBytes = filterBytes;
+    }
+
+    public CFilterMessage(NetworkParameters params, byte[] payload) throws ProtocolException {
+        super(params, payload, 0);
+    }
+
+    @Override
+    protected void parse() throws ProtocolException {
+        filterType = readByte();
+        blockHash = readHash();
+        filterBytes = readByteArray();
+        length = cursor - offset;
+    }
+
+    @Override
+    protected void crownSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(filterType);
+        stream.write(blockHash.getReversedBytes());
+        stream.write(new VarInt(filterBytes.length).encode());
+        stream.write(filterBytes);
+    }
+
+    public byte getFilterType() {
+        return filterType;
+    }
+
+    public Sha256Hash getBlockHash() {
+        return blockHash;
+    }
+
+    /** Returns the serialized filter. The array must not be modified. */
+    public byte[] getFilterBytes() {
+        return filterBytes;
+    }
+
+    /**
+     * Parses the filter. Only basic filters are understood.
+     * @throws ProtocolException if the filter is not a basic filter or is malformed
+     */
+    public GolombCodedSet getFilter() throws ProtocolException {
+        if (filterType != GolombCodedSet.BASIC_FILTER_TYPE)
+            throw new ProtocolException("Unknown filter type: " + filterType);
+        return GolombCodedSet.parseBasicFilter(blockHash, filterBytes);
+    }
+
+    @Override
+    public String toString() {
+        return "cfilter: type " + filterType + " for " + blockHash + ", " + filterBytes.length + " bytes";
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        CFilterMessage other = (CFilterMessage) o;
+        return filterType == other.filterType && blockHash.equals(other.blockHash)
+                && Arrays.equals(filterBytes, other.filterBytes);
+    }
+
+    @Override
+    public int hashCode() {
+        return filterType ^ blockHash.hashCode() ^ Arrays.hashCode(filterBytes);
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.core;
+
+import javax.annotation.Nullable;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.*;
+
+/**
+ * Maps the 12 byte command field of packet headers to the message types registered for them. The field is packed into
+ * a long and an int and looked up in an open addressed table, so decoding a known command neither copies bytes nor
+ * allocates a string. Lookups are lock free, registrations replace the table. Every {@link NetworkParameters} has a
+ * table of its own.
+ */
+final class CommandTable {
+    static final int COMMAND_LEN = 12;
+
+    /** A registered message type. */
+    static final class Entry {
+        final String command;
+        final Class<? extends Message> type;
+        final MessageFactory factory;
+        private final long high;
+        private final int low;
+
+        private Entry(String command, Class<? extends Message> type, MessageFactory factory, long high, int low) {
+            this.command = command;
+            this.type = type;
+            this.factory = factory;
+            this.high = high;
+            this.low = low;
+        }
+    }
+
+    // Immutable snapshots, replaced as a whole on registration.
+    private volatile Entry[] table = new Entry[64];
+    private volatile Map<String, Entry> byCommand = new HashMap<>();
+    private volatile Map<Class<? extends Message>, Entry> byType = new HashMap<>();
+
+    CommandTable() {
+    }
+
+    /** Creates a table holding the registrations of the given one, later registrations only affect the new table. */
+    CommandTable(CommandTable from) {
+        synchronized (from) {
+            table = from.table;
+            byCommand = from.byCommand;
+            byType = from.byType;
+        }
+    }
+
+    /**
+     * Registers a message type, replacing any previous registration of the command or the type.
+     * @param command ASCII command name, at most 12 characters
+     */
+    synchronized void register(String command, Class<? extends Message> type, MessageFactory factory) {
+        checkArgument(!command.isEmpty() && command.length() <= COMMAND_LEN, "Bad command length: %s", command);
+        checkArgument(StandardCharsets.US_ASCII.newEncoder().canEncode(command) && command.indexOf(0) < 0,
+                "Bad command: %s", command);
+        byte[] field = new byte[COMMAND_LEN];
+        System.arraycopy(command.getBytes(StandardCharsets.US_ASCII), 0, field, 0, command.length());
+        Entry entry = new Entry(command, checkNotNull(type), checkNotNull(factory), high(field, 0), low(field, 0));
+
+        Map<String, Entry> newByCommand = new HashMap<>(byCommand);
+        Entry replaced = newByCommand.put(command, entry);
+        Map<Class<? extends Message>, Entry> newByType = new HashMap<>(byType);
+        if (replaced != null)
+            newByType.remove(replaced.type);
+        Entry replacedType = newByType.put(type, entry);
+        if (replacedType != null && replacedType != replaced)
+            newByCommand.remove(replacedType.command);
+        publish(newByCommand, newByType);
+    }
+
+    /** Removes the registration of the given command, if any. */
+    synchronized void unregister(String command) {
+        Map<String, Entry> newByCommand = new HashMap<>(byCommand);
+        Entry removed = newByCommand.remove(command);
+        if (removed == null)
+            return;
+        Map<Class<? extends Message>, Entry> newByType = new HashMap<>(byType);
+        newByType.remove(removed.type);
+        publish(newByCommand, newByType);
+    }
+
+    private void publish(Map<String, Entry> newByCommand, Map<Class<? extends Message>, Entry> newByType) {
+        int capacity = table.length;
+        while (newByCommand.size() * 2 > capacity)
+            capacity *= 2;
+        Entry[] newTable = new Entry[capacity];
+        for (Entry e : newByCommand.values())
+            insert(newTable, e);
+        table = newTable;
+        byCommand = newByCommand;
+        byType = newByType;
+    }
+
+    /**
+     * Looks up the command field starting at the given offset of the header.
+     * @return the entry, or null if the command is unknown
+     */
+    @Nullable
+    Entry lookup(byte[] header, int offset) {
+        long high = high(header, offset);
+        int low = low(header, offset);
+        Entry[] table = this.table;
+        int mask = table.length - 1;
+        for (int i = index(high, low, mask); ; i = (i + 1) & mask) {
+            Entry entry = table[i];
+            if (entry == null || (entry.high == high && entry.low == low))
+                return entry;
+        }
+    }
+
+    /** Looks up the given command name. */
+    @Nullable
+    Entry lookup(String command) {
+        return byCommand.get(command);
+    }
+
+    /** Looks up the entry registered for the given message type. */
+    @Nullable
+    Entry lookup(Class<? extends Message> type) {
+        return byType.get(type);
+    }
+
+    private static void insert(Entry[] table, Entry entry) {
+        int mask = table.length - 1;
+        int i = index(entry.high, entry.low, mask);
+        while (table[i] != null)
+            i = (i + 1) & mask;
+        table[i] = entry;
+    }
+
+    private static int index(long high, int low, int mask) {
+        long h = (high ^ (high >>> 29) ^ low) * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32) & mask;
+    }
+
+    private static long high(byte[] bytes, int offset) {
+        long result = 0;
+        for (int i = 0; i < 8; i++)
+            result = (result << 8) | (bytes[offset + i] & 0xFF);
+        return result;
+    }
+
+    private static int low(byte[] bytes, int offset) {
+        int result = 0;
+        for (int i = 8; i < COMMAND_LEN; i++)
+            result = (result << 8) | (bytes[offset + i] & 0xFF);
+        return result;
+    }
+}
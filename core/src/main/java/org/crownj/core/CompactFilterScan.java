@@ -0,0 +1,399 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.core;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import org.crownj.core.listeners.PeerDisconnectedEventListener;
+import org.crownj.core.listeners.PreMessageReceivedEventListener;
+import org.crownj.store.BlockStore;
+import org.crownj.store.BlockStoreException;
+import org.crownj.store.FilterHeaderStore;
+import org.crownj.utils.Threading;
+import org.crownj.wallet.Wallet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.concurrent.GuardedBy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.*;
+
+/**
+ * <p>Finds the blocks relevant to a wallet with compact block filters (BIP157 and BIP158), instead of a Bloom filter
+ * that tells the peer which addresses are ours. The block chain only needs the headers, e.g. a chain in
+ * {@link AbstractBlockChain#setHeadersOnly(boolean) headers only} mode.</p>
+ *
+ * <p>A scan first brings the {@link FilterHeaderStore} up to the chain head. Stored filter headers of blocks that a
+ * reorganization took out of the chain are dropped. Filter headers are checked to follow on from the stored ones and
+ * against the checkpoints the peer sends with a {@link CFCheckptMessage}. Then the filters of
+ * the blocks from the given height on are downloaded, checked against their headers and matched against
+ * {@link Wallet#getCompactFilterElements()}. Only the blocks whose filter matches are downloaded in full, as
+ * {@link TransactionSlices}, and of those only the transactions touching the wallet are parsed, see
+ * {@link Wallet#receiveFromPastBlock(TransactionSlices, StoredBlock)}.</p>
+ *
+ * <p>The scan ends at the chain head it started from. It talks to a single peer, which must serve compact filters, see
+ * {@link VersionMessage#isCompactFiltersSupported()}. Instances of this class are safe for use by multiple
+ * threads.</p>
+ */
+public class CompactFilterScan {
+    private static final Logger log = LoggerFactory.getLogger(CompactFilterScan.class);
+
+    private enum Phase { CHECKPOINTS, HEADERS, FILTERS, BLOCKS, DONE }
+
+    private final ReentrantLock lock = Threading.lock(CompactFilterScan.class);
+    private final Peer peer;
+    private final AbstractBlockChain chain;
+    private final FilterHeaderStore filterHeaderStore;
+    private final Wallet wallet;
+    private final SettableFuture<Integer> future = SettableFuture.create();
+
+    @GuardedBy("lock") private Phase phase;
+    // Block hashes of the heights from hashesFrom to stopHeight.
+    @GuardedBy("lock") private List<Sha256Hash> hashes;
+    @GuardedBy("lock") private int hashesFrom, stopHeight;
+    @GuardedBy("lock") private Sha256Hash stopHash;
+    @GuardedBy("lock") private final Map<Integer, Sha256Hash> checkpoints = new HashMap<>();
+    // The range asked for with the last getcfheaders or getcfilters.
+    @GuardedBy("lock") private int requestFrom, requestTo;
+    @GuardedBy("lock") private int nextFilterHeight;
+    @GuardedBy("lock") private final List<Integer> matches = new ArrayList<>();
+    @GuardedBy("lock") private List<byte[]> elements;
+    @GuardedBy("lock") private long[] scratch = new long[0];
+    @GuardedBy("lock") private int filtersScanned, blocksMatched;
+
+    private final PreMessageReceivedEventListener messageListener = new PreMessageReceivedEventListener() {
+        @Override
+        public Message onPreMessageReceived(Peer peer, Message m) {
+            if (m instanceof CFCheckptMessage)
+                onCheckpoints((CFCheckptMessage) m);
+            else if (m instanceof CFHeadersMessage)
+                onHeaders((CFHeadersMessage) m);
+            else if (m instanceof CFilterMessage)
+                onFilter((CFilterMessage) m);
+            else
+                return m;
+            return null;
+        }
+    };
+
+    private final PeerDisconnectedEventListener disconnectedListener = new PeerDisconnectedEventListener() {
+        @Override
+        public void onPeerDisconnected(Peer peer, int peerCount) {
+            future.setException(new PeerException("Peer disconnected during compact filter scan"));
+        }
+    };
+
+    /**
+     * @param peer the peer to download filters and blocks from
+     * @param chain the block chain, which must hold the headers up to the point the scan should go to
+     * @param filterHeaderStore the filter headers checked in earlier scans, which this scan adds to
+     * @param wallet the wallet to match filters against and to pass matched blocks to
+     */
+    public CompactFilterScan(Peer peer, AbstractBlockChain chain, FilterHeaderStore filterHeaderStore, Wallet wallet) {
+        this.peer = checkNotNull(peer);
+        this.chain = checkNotNull(chain);
+        this.filterHeaderStore = checkNotNull(filterHeaderStore);
+        this.wallet = checkNotNull(wallet);
+        checkArgument(peer.getPeerVersionMessage().isCompactFiltersSupported(),
+                "Peer does not serve compact filters: %s", peer);
+    }
+
+    /**
+     * Starts the scan. It can only be started once.
+     * @param fromHeight the height of the first block whose filter to match, e.g. the height the wallet was created at
+     * @return a future that completes with the number of blocks that matched, once the scan has reached the chain head
+     */
+    public ListenableFuture<Integer> start(int fromHeight) throws BlockStoreException {
+        checkArgument(fromHeight >= 0, "Negative height: %s", fromHeight);
+        lock.lock();
+        try {
+            checkState(phase == null, "Already started");
+            StoredBlock head = chain.getChainHead();
+            stopHeight = head.getHeight();
+            stopHash = head.getHeader().getHash();
+            nextFilterHeight = fromHeight;
+            int storedHeight = rollbackStaleHeaders(head);
+            hashesFrom = Math.max(0, Math.min(fromHeight, storedHeight + 1));
+            hashes = hashesFrom <= stopHeight ? collectHashes(head, hashesFrom) : Collections.<Sha256Hash>emptyList();
+            phase = Phase.CHECKPOINTS;
+            peer.addPreMessageReceivedEventListener(Threading.SAME_THREAD, messageListener);
+            peer.addDisconnectedEventListener(Threading.SAME_THREAD, disconnectedListener);
+            future.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    peer.removePreMessageReceivedEventListener(messageListener);
+                    peer.removeDisconnectedEventListener(disconnectedListener);
+                    lock.lock();
+                    try {
+                        phase = Phase.DONE;
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+            }, MoreExecutors.directExecutor());
+            log.info("{}: Scanning compact filters from height {} to {}", peer, fromHeight, stopHeight);
+            peer.sendMessage(new GetCFCheckptMessage(chain.params, GolombCodedSet.BASIC_FILTER_TYPE, stopHash));
+        } finally {
+            lock.unlock();
+        }
+        return future;
+    }
+
+    // Removes the stored filter headers from the first one whose block isn't in the chain any more on. Returns the
+    // height of the last header kept. Headers below what the block store reaches back to are kept.
+    private int rollbackStaleHeaders(StoredBlock head) throws BlockStoreException {
+        BlockStore store = chain.getBlockStore();
+        int height = Math.min(filterHeaderStore.getHeight(), head.getHeight());
+        if (height < 0)
+            return -1;
+        StoredBlock cursor = head;
+        while (cursor != null && cursor.getHeight() > height)
+            cursor = cursor.getPrev(store);
+        while (cursor != null && !cursor.getHeader().getHash().equals(filterHeaderStore.getBlockHash(height))) {
+            height--;
+            cursor = cursor.getPrev(store);
+        }
+        if (height < filterHeaderStore.getHeight()) {
+            log.info("{}: Dropping filter headers above height {}, their blocks are not in the chain", peer, height);
+            filterHeaderStore.rollback(height);
+        }
+        return height;
+    }
+
+    // Walks back from the head to the given height, as the block store has no index by height.
+    private List<Sha256Hash> collectHashes(StoredBlock head, int fromHeight) throws BlockStoreException {
+        BlockStore store = chain.getBlockStore();
+        Sha256Hash[] result = new Sha256Hash[head.getHeight() - fromHeight + 1];
+        StoredBlock cursor = head;
+        for (int i = result.length - 1; i >= 0; i--) {
+            if (cursor == null)
+                throw new BlockStoreException("Block store does not reach back to height " + fromHeight);
+            result[i] = cursor.getHeader().getHash();
+            if (i > 0)
+                cursor = cursor.getPrev(store);
+        }
+        List<Sha256Hash> list = new ArrayList<>(result.length);
+        Collections.addAll(list, result);
+        return list;
+    }
+
+    private Sha256Hash hashAt(int height) {
+        return hashes.get(height - hashesFrom);
+    }
+
+    private Sha256Hash filterHeaderBefore(int height) throws BlockStoreException {
+        return height == 0 ? Sha256Hash.ZERO_HASH : checkNotNull(filterHeaderStore.get(height - 1));
+    }
+
+    private void onCheckpoints(CFCheckptMessage m) {
+        lock.lock();
+        try {
+            if (phase != Phase.CHECKPOINTS || !m.getStopHash().equals(stopHash)) {
+                log.debug("{}: Ignoring unrequested {}", peer, m);
+                return;
+            }
+            List<Sha256Hash> headers = m.getFilterHeaders();
+            for (int i = 0; i < headers.size(); i++)
+                checkpoints.put((i + 1) * CFCheckptMessage.CHECKPOINT_INTERVAL, headers.get(i));
+            // Headers stored by earlier scans must agree with the checkpoints too.
+            int storedHeight = filterHeaderStore.getHeight();
+            for (Map.Entry<Integer, Sha256Hash> checkpoint : checkpoints.entrySet()) {
+                if (checkpoint.getKey() <= storedHeight
+                        && !checkpoint.getValue().equals(filterHeaderStore.get(checkpoint.getKey())))
+                    throw new VerificationException("Stored filter header at height " + checkpoint.getKey()
+                            + " does not match checkpoint");
+            }
+            phase = Phase.HEADERS;
+            requestHeaders();
+        } catch (Exception e) {
+            fail(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void requestHeaders() throws BlockStoreException {
+        requestFrom = filterHeaderStore.getHeight() + 1;
+        if (requestFrom > stopHeight) {
+            startFilters();
+            return;
+        }
+        requestTo = Math.min(requestFrom + GetCFHeadersMessage.MAX_HEADERS - 1, stopHeight);
+        peer.sendMessage(new GetCFHeadersMessage(chain.params, GolombCodedSet.BASIC_FILTER_TYPE, requestFrom,
+                hashAt(requestTo)));
+    }
+
+    private void onHeaders(CFHeadersMessage m) {
+        lock.lock();
+        try {
+            if (phase != Phase.HEADERS || !m.getStopHash().equals(hashAt(requestTo))) {
+                log.debug("{}: Ignoring unrequested {}", peer, m);
+                return;
+            }
+            if (m.getFilterType() != GolombCodedSet.BASIC_FILTER_TYPE)
+                throw new ProtocolException("Unexpected filter type: " + m.getFilterType());
+            if (m.getFilterHashes().size() != requestTo - requestFrom + 1)
+                throw new ProtocolException("Expected " + (requestTo - requestFrom + 1) + " filter hashes, got "
+                        + m.getFilterHashes().size());
+            if (!m.getPreviousHeader().equals(filterHeaderBefore(requestFrom)))
+                throw new VerificationException("Filter headers do not connect at height " + requestFrom);
+            List<Sha256Hash> headers = m.getFilterHeaders();
+            for (int i = 0; i < headers.size(); i++) {
+                Sha256Hash checkpoint = checkpoints.get(requestFrom + i);
+                if (checkpoint != null && !checkpoint.equals(headers.get(i)))
+                    throw new VerificationException("Filter header at height " + (requestFrom + i)
+                            + " does not match checkpoint");
+            }
+            filterHeaderStore.putAll(requestFrom,
+                    hashes.subList(requestFrom - hashesFrom, requestTo - hashesFrom + 1), headers);
+            requestHeaders();
+        } catch (Exception e) {
+            fail(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void startFilters() {
+        phase = Phase.FILTERS;
+        requestFilters();
+    }
+
+    @GuardedBy("lock")
+    private void requestFilters() {
+        if (nextFilterHeight > stopHeight) {
+            log.info("{}: Compact filter scan done, {} filters, {} blocks matched", peer, filtersScanned,
+                    blocksMatched);
+            future.set(blocksMatched);
+            return;
+        }
+        // Keys used by the blocks received so far may have moved the lookahead on.
+        elements = wallet.getCompactFilterElements();
+        if (scratch.length < elements.size())
+            scratch = new long[elements.size()];
+        phase = Phase.FILTERS;
+        requestFrom = nextFilterHeight;
+        requestTo = Math.min(requestFrom + GetCFiltersMessage.MAX_FILTERS - 1, stopHeight);
+        peer.sendMessage(new GetCFiltersMessage(chain.params, GolombCodedSet.BASIC_FILTER_TYPE, requestFrom,
+                hashAt(requestTo)));
+    }
+
+    private void onFilter(CFilterMessage m) {
+        lock.lock();
+        try {
+            if (phase != Phase.FILTERS || !m.getBlockHash().equals(hashAt(nextFilterHeight))) {
+                // Filters are sent in order. One of a later block means the peer skipped some, which we would
+                // otherwise wait for forever.
+                if (phase == Phase.FILTERS && requestedFilter(m.getBlockHash()))
+                    throw new ProtocolException("Filter of block " + m.getBlockHash() + " is out of order");
+                log.debug("{}: Ignoring unrequested {}", peer, m);
+                return;
+            }
+            GolombCodedSet filter = m.getFilter();
+            if (!filter.getHeader(filterHeaderBefore(nextFilterHeight)).equals(filterHeaderStore.get(nextFilterHeight)))
+                throw new VerificationException("Filter of block " + m.getBlockHash() + " does not match its header");
+            if (filter.matchAny(elements, scratch))
+                matches.add(nextFilterHeight);
+            filtersScanned++;
+            if (nextFilterHeight++ == requestTo)
+                downloadMatches();
+        } catch (Exception e) {
+            fail(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private boolean requestedFilter(Sha256Hash blockHash) {
+        for (int height = nextFilterHeight + 1; height <= requestTo; height++)
+            if (hashAt(height).equals(blockHash))
+                return true;
+        return false;
+    }
+
+    @GuardedBy("lock")
+    private void downloadMatches() {
+        if (matches.isEmpty()) {
+            requestFilters();
+            return;
+        }
+        phase = Phase.BLOCKS;
+        final Sha256Hash hash = hashAt(matches.remove(0));
+        Futures.addCallback(peer.getBlockSlices(hash), new FutureCallback<TransactionSlices>() {
+            @Override
+            public void onSuccess(TransactionSlices slices) {
+                lock.lock();
+                try {
+                    if (phase != Phase.BLOCKS)
+                        return;
+                    StoredBlock storedBlock = chain.getBlockStore().get(hash);
+                    if (storedBlock == null)
+                        throw new BlockStoreException("Block " + hash + " vanished from the block store");
+                    wallet.receiveFromPastBlock(slices, storedBlock);
+                    blocksMatched++;
+                    downloadMatches();
+                } catch (Exception e) {
+                    fail(e);
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                fail(t);
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    private void fail(Throwable t) {
+        log.warn("{}: Compact filter scan failed: {}", peer, t.toString());
+        future.setException(t);
+    }
+
+    /** Returns the number of filters checked and matched so far. */
+    public int getFiltersScanned() {
+        lock.lock();
+        try {
+            return filtersScanned;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of blocks that matched and were passed to the wallet so far. */
+    public int getBlocksMatched() {
+        lock.lock();
+        try {
+            return blocksMatched;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
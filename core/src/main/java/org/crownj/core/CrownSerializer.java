@@ -20,13 +20,12 @@ package org.crownj.core;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.Objects;
 
 import static org.crownj.core.Utils.*;
@@ -38,46 +37,110 @@ import static org.crownj.core.Utils.*;
  * <p>To be able to serialize and deserialize new Message subclasses the following criteria needs to be met.</p>
  *
  * <ul>
- * <li>The proper Class instance needs to be mapped to its message name in the names variable below</li>
- * <li>There needs to be a constructor matching: NetworkParameters params, byte[] payload</li>
+ * <li>The proper Class instance needs to be registered with its message name and a {@link MessageFactory}, see
+ * {@link NetworkParameters#registerMessage(String, Class, MessageFactory)}</li>
  * <li>Message.crownSerializeToStream() needs to be properly subclassed</li>
  * </ul>
  */
 public class crownSerializer extends MessageSerializer {
     private static final Logger log = LoggerFactory.getLogger(crownSerializer.class);
     private static final int COMMAND_LEN = 12;
+    private static final int HEADER_BYTES = 4 + COMMAND_LEN + 4 + 4 /* checksum */;
 
     private final NetworkParameters params;
     private final int protocolVersion;
     private final boolean parseRetain;
 
-    private static final Map<Class<? extends Message>, String> names = new HashMap<>();
+    private final CommandTable commands;
+
+    // The message types built into the library, by their command. Each network starts with a copy of this table, see
+    // NetworkParameters#registerMessage.
+    static final CommandTable DEFAULT_COMMANDS = new CommandTable();
 
     static {
-        names.put(VersionMessage.class, "version");
-        names.put(InventoryMessage.class, "inv");
-        names.put(Block.class, "block");
-        names.put(GetDataMessage.class, "getdata");
-        names.put(Transaction.class, "tx");
-        names.put(AddressV1Message.class, "addr");
-        names.put(AddressV2Message.class, "addrv2");
-        names.put(Ping.class, "ping");
-        names.put(Pong.class, "pong");
-        names.put(VersionAck.class, "verack");
-        names.put(GetBlocksMessage.class, "getblocks");
-        names.put(GetHeadersMessage.class, "getheaders");
-        names.put(GetAddrMessage.class, "getaddr");
-        names.put(SendAddrV2Message.class, "sendaddrv2");
-        names.put(HeadersMessage.class, "headers");
-        names.put(BloomFilter.class, "filterload");
-        names.put(FilteredBlock.class, "merkleblock");
-        names.put(NotFoundMessage.class, "notfound");
-        names.put(MemoryPoolMessage.class, "mempool");
-        names.put(RejectMessage.class, "reject");
-        names.put(GetUTXOsMessage.class, "getutxos");
-        names.put(UTXOsMessage.class, "utxos");
-        names.put(SendHeadersMessage.class, "sendheaders");
-        names.put(FeeFilterMessage.class, "feefilter");
+        registerDefault("version", VersionMessage.class);
+        registerDefault("inv", InventoryMessage.class);
+        registerDefault("block", Block.class);
+        registerDefault("merkleblock", FilteredBlock.class);
+        registerDefault("getdata", GetDataMessage.class);
+        registerDefault("getblocks", GetBlocksMessage.class);
+        registerDefault("getheaders", GetHeadersMessage.class);
+        registerDefault("getaddr", GetAddrMessage.class);
+        registerDefault("tx", Transaction.class);
+        registerDefault("sendaddrv2", SendAddrV2Message.class);
+        registerDefault("addr", AddressV1Message.class);
+        registerDefault("addrv2", AddressV2Message.class);
+        registerDefault("ping", Ping.class);
+        registerDefault("pong", Pong.class);
+        registerDefault("verack", VersionAck.class);
+        registerDefault("headers", HeadersMessage.class);
+        registerDefault("filterload", BloomFilter.class);
+        registerDefault("notfound", NotFoundMessage.class);
+        registerDefault("mempool", MemoryPoolMessage.class);
+        registerDefault("reject", RejectMessage.class);
+        registerDefault("utxos", UTXOsMessage.class);
+        registerDefault("getutxos", GetUTXOsMessage.class);
+        registerDefault("sendheaders", SendHeadersMessage.class);
+        registerDefault("feefilter", FeeFilterMessage.class);
+        registerDefault("getcfilters", GetCFiltersMessage.class);
+        registerDefault("getcfheaders", GetCFHeadersMessage.class);
+        registerDefault("getcfcheckpt", GetCFCheckptMessage.class);
+        registerDefault("cfilter", CFilterMessage.class);
+        registerDefault("cfheaders", CFHeadersMessage.class);
+        registerDefault("cfcheckpt", CFCheckptMessage.class);
+    }
+
+    private static void registerDefault(String command, Class<? extends Message> type) {
+        DEFAULT_COMMANDS.register(command, type, new DefaultFactory(command));
+    }
+
+    // Parses the built in message types. We switch on the command rather than use reflection because reflection is
+    // very slow on Android.
+    private static final class DefaultFactory implements MessageFactory {
+        private final String command;
+
+        DefaultFactory(String command) {
+            this.command = command;
+        }
+
+        @Override
+        public Message make(crownSerializer serializer, byte[] payload, int length, byte[] hash)
+                throws ProtocolException {
+            NetworkParameters params = serializer.params;
+            switch (command) {
+                case "version": return new VersionMessage(params, payload);
+                case "inv": return serializer.makeInventoryMessage(payload, length);
+                case "block": return serializer.makeBlock(payload, length);
+                case "merkleblock": return serializer.makeFilteredBlock(payload);
+                case "getdata": return new GetDataMessage(params, payload, serializer, length);
+                case "getblocks": return new GetBlocksMessage(params, payload);
+                case "getheaders": return new GetHeadersMessage(params, payload);
+                case "getaddr": return new GetAddrMessage(params);
+                case "tx": return serializer.makeTransaction(payload, 0, length, hash);
+                case "sendaddrv2": return new SendAddrV2Message(params);
+                case "addr": return serializer.makeAddressV1Message(payload, length);
+                case "addrv2": return serializer.makeAddressV2Message(payload, length);
+                case "ping": return new Ping(params, payload);
+                case "pong": return new Pong(params, payload);
+                case "verack": return new VersionAck(params, payload);
+                case "headers": return new HeadersMessage(params, payload);
+                case "filterload": return serializer.makeBloomFilter(payload);
+                case "notfound": return new NotFoundMessage(params, payload);
+                case "mempool": return new MemoryPoolMessage();
+                case "reject": return new RejectMessage(params, payload);
+                case "utxos": return new UTXOsMessage(params, payload);
+                case "getutxos": return new GetUTXOsMessage(params, payload);
+                case "sendheaders": return new SendHeadersMessage(params, payload);
+                case "feefilter": return new FeeFilterMessage(params, payload, serializer, length);
+                case "getcfilters": return new GetCFiltersMessage(params, payload);
+                case "getcfheaders": return new GetCFHeadersMessage(params, payload);
+                case "getcfcheckpt": return new GetCFCheckptMessage(params, payload);
+                case "cfilter": return new CFilterMessage(params, payload);
+                case "cfheaders": return new CFHeadersMessage(params, payload);
+                case "cfcheckpt": return new CFCheckptMessage(params, payload);
+                default: throw new IllegalStateException("No built in message type for " + command);
+            }
+        }
     }
 
     /**
@@ -101,6 +164,7 @@ public class crownSerializer extends MessageSerializer {
         this.params = params;
         this.protocolVersion = protocolVersion;
         this.parseRetain = parseRetain;
+        this.commands = params.commands;
     }
 
     @Override
@@ -119,19 +183,8 @@ public class crownSerializer extends MessageSerializer {
      */
     @Override
     public void serialize(String name, byte[] message, OutputStream out) throws IOException {
-        byte[] header = new byte[4 + COMMAND_LEN + 4 + 4 /* checksum */];
-        uint32ToByteArrayBE(params.getPacketMagic(), header, 0);
-
-        // The header array is initialized to zero by Java so we don't have to worry about
-        // NULL terminating the string here.
-        for (int i = 0; i < name.length() && i < COMMAND_LEN; i++) {
-            header[4 + i] = (byte) (name.codePointAt(i) & 0xFF);
-        }
-
-        Utils.uint32ToByteArrayLE(message.length, header, 4 + COMMAND_LEN);
-
-        byte[] hash = Sha256Hash.hashTwice(message);
-        System.arraycopy(hash, 0, header, 4 + COMMAND_LEN + 4, 4);
+        byte[] header = new byte[HEADER_BYTES];
+        writeHeader(name, message, header);
         out.write(header);
         out.write(message);
 
@@ -144,11 +197,47 @@ public class crownSerializer extends MessageSerializer {
      */
     @Override
     public void serialize(Message message, OutputStream out) throws IOException {
-        String name = names.get(message.getClass());
-        if (name == null) {
+        serialize(nameOf(message), message.crownSerialize(), out);
+    }
+
+    /**
+     * Serializes the message, header included, into a frame of exactly the right size.
+     */
+    @Override
+    public MessageFrame serializeFrame(Message message) {
+        String name = nameOf(message);
+        byte[] payload = message.crownSerialize();
+        byte[] bytes = new byte[HEADER_BYTES + payload.length];
+        writeHeader(name, payload, bytes);
+        System.arraycopy(payload, 0, bytes, HEADER_BYTES, payload.length);
+
+        if (log.isDebugEnabled())
+            log.debug("Framed {} message: {}", name, HEX.encode(bytes));
+        return new MessageFrame(params, name, bytes);
+    }
+
+    private String nameOf(Message message) {
+        CommandTable.Entry entry = commands.lookup(message.getClass());
+        if (entry == null) {
             throw new Error("crownSerializer doesn't currently know how to serialize " + message.getClass());
         }
-        serialize(name, message.crownSerialize(), out);
+        return entry.command;
+    }
+
+    // Writes the packet header for the given message to the start of the given array.
+    private void writeHeader(String name, byte[] message, byte[] header) {
+        uint32ToByteArrayBE(params.getPacketMagic(), header, 0);
+
+        // The header array is initialized to zero by Java so we don't have to worry about
+        // NULL terminating the string here.
+        for (int i = 0; i < name.length() && i < COMMAND_LEN; i++) {
+            header[4 + i] = (byte) (name.codePointAt(i) & 0xFF);
+        }
+
+        Utils.uint32ToByteArrayLE(message.length, header, 4 + COMMAND_LEN);
+
+        byte[] hash = Sha256Hash.hashTwice(message);
+        System.arraycopy(hash, 0, header, 4 + COMMAND_LEN + 4, 4);
     }
 
     /**
@@ -171,7 +260,7 @@ public class crownSerializer extends MessageSerializer {
         // crown Core ignores garbage before the magic header bytes. We have to do the same because
         // sometimes it sends us stuff that isn't part of any message.
         seekPastMagicBytes(in);
-        crownPacketHeader header = new crownPacketHeader(in);
+        crownPacketHeader header = new crownPacketHeader(in, commands);
         // Now try to read the whole message.
         return deserializePayload(header, in);
     }
@@ -182,7 +271,7 @@ public class crownSerializer extends MessageSerializer {
      */
     @Override
     public crownPacketHeader deserializeHeader(ByteBuffer in) throws ProtocolException, IOException {
-        return new crownPacketHeader(in);
+        return new crownPacketHeader(in, commands);
     }
 
     /**
@@ -193,16 +282,22 @@ public class crownSerializer extends MessageSerializer {
     public Message deserializePayload(crownPacketHeader header, ByteBuffer in) throws ProtocolException, BufferUnderflowException {
         byte[] payloadBytes = new byte[header.size];
         in.get(payloadBytes, 0, header.size);
+        return decodePayload(header, payloadBytes, Sha256Hash.hashTwice(payloadBytes));
+    }
 
-        // Verify the checksum.
-        byte[] hash;
-        hash = Sha256Hash.hashTwice(payloadBytes);
-        if (header.checksum[0] != hash[0] || header.checksum[1] != hash[1] ||
-                header.checksum[2] != hash[2] || header.checksum[3] != hash[3]) {
-            throw new ProtocolException("Checksum failed to verify, actual " +
-                    HEX.encode(hash) +
-                    " vs " + HEX.encode(header.checksum));
-        }
+    /**
+     * Starts reading the payload of a message incrementally, e.g. a large block arriving in many network reads. The
+     * payload is hashed while it is read and the message is parsed from the very array it was read into.
+     */
+    @Override
+    public PayloadReader newPayloadReader(crownPacketHeader header) {
+        return new PayloadReader(this, header);
+    }
+
+    // Verifies the checksum against the double SHA-256 hash of the payload and parses the message.
+    @Override
+    Message decodePayload(crownPacketHeader header, byte[] payloadBytes, byte[] hash) throws ProtocolException {
+        verifyChecksum(header, hash);
 
         if (log.isDebugEnabled()) {
             log.debug("Received {} byte '{}' message: {}", header.size, header.command,
@@ -210,65 +305,28 @@ public class crownSerializer extends MessageSerializer {
         }
 
         try {
-            return makeMessage(header.command, header.size, payloadBytes, hash, header.checksum);
+            return makeMessage(header, payloadBytes, hash);
         } catch (Exception e) {
             throw new ProtocolException("Error deserializing message " + HEX.encode(payloadBytes) + "\n", e);
         }
     }
 
-    private Message makeMessage(String command, int length, byte[] payloadBytes, byte[] hash, byte[] checksum) throws ProtocolException {
-        // We use an if ladder rather than reflection because reflection is very slow on Android.
-        if (command.equals("version")) {
-            return new VersionMessage(params, payloadBytes);
-        } else if (command.equals("inv")) { 
-            return makeInventoryMessage(payloadBytes, length);
-        } else if (command.equals("block")) {
-            return makeBlock(payloadBytes, length);
-        } else if (command.equals("merkleblock")) {
-            return makeFilteredBlock(payloadBytes);
-        } else if (command.equals("getdata")) {
-            return new GetDataMessage(params, payloadBytes, this, length);
-        } else if (command.equals("getblocks")) {
-            return new GetBlocksMessage(params, payloadBytes);
-        } else if (command.equals("getheaders")) {
-            return new GetHeadersMessage(params, payloadBytes);
-        } else if (command.equals("tx")) {
-            return makeTransaction(payloadBytes, 0, length, hash);
-        } else if (command.equals("sendaddrv2")) {
-            return new SendAddrV2Message(params);
-        } else if (command.equals("addr")) {
-            return makeAddressV1Message(payloadBytes, length);
-        } else if (command.equals("addrv2")) {
-            return makeAddressV2Message(payloadBytes, length);
-        } else if (command.equals("ping")) {
-            return new Ping(params, payloadBytes);
-        } else if (command.equals("pong")) {
-            return new Pong(params, payloadBytes);
-        } else if (command.equals("verack")) {
-            return new VersionAck(params, payloadBytes);
-        } else if (command.equals("headers")) {
-            return new HeadersMessage(params, payloadBytes);
-        } else if (command.equals("filterload")) {
-            return makeBloomFilter(payloadBytes);
-        } else if (command.equals("notfound")) {
-            return new NotFoundMessage(params, payloadBytes);
-        } else if (command.equals("mempool")) {
-            return new MemoryPoolMessage();
-        } else if (command.equals("reject")) {
-            return new RejectMessage(params, payloadBytes);
-        } else if (command.equals("utxos")) {
-            return new UTXOsMessage(params, payloadBytes);
-        } else if (command.equals("getutxos")) {
-            return new GetUTXOsMessage(params, payloadBytes);
-        } else if (command.equals("sendheaders")) {
-            return new SendHeadersMessage(params, payloadBytes);
-        } else if (command.equals("feefilter")) {
-            return new FeeFilterMessage(params, payloadBytes, this, length);
-        } else {
-            return new UnknownMessage(params, command, payloadBytes);
+    // Throws if the checksum in the header isn't the start of the double SHA-256 hash of the payload.
+    static void verifyChecksum(crownPacketHeader header, byte[] hash) throws ProtocolException {
+        if (header.checksum[0] != hash[0] || header.checksum[1] != hash[1] ||
+                header.checksum[2] != hash[2] || header.checksum[3] != hash[3]) {
+            throw new ProtocolException("Checksum failed to verify, actual " +
+                    HEX.encode(hash) +
+                    " vs " + HEX.encode(header.checksum));
         }
     }
 
+    private Message makeMessage(crownPacketHeader header, byte[] payloadBytes, byte[] hash) throws ProtocolException {
+        if (header.entry == null)
+            return new UnknownMessage(params, header.command, payloadBytes);
+        return header.entry.factory.make(this, payloadBytes, header.size, hash);
+    }
+
     /**
      * Get the network parameters for this serializer.
      */
@@ -379,20 +437,33 @@ public class crownSerializer extends MessageSerializer {
         public final String command;
         public final int size;
         public final byte[] checksum;
+        // The registered message type, or null if the command is unknown.
+        @Nullable final CommandTable.Entry entry;
 
+        /** Reads a header, recognizing the message types built into the library. */
         public crownPacketHeader(ByteBuffer in) throws ProtocolException, BufferUnderflowException {
+            this(in, DEFAULT_COMMANDS);
+        }
+
+        crownPacketHeader(ByteBuffer in, CommandTable commands) throws ProtocolException, BufferUnderflowException {
             header = new byte[HEADER_LENGTH];
             in.get(header, 0, header.length);
 
-            int cursor = 0;
-
-            // The command is a NULL terminated string, unless the command fills all twelve bytes
-            // in which case the termination is implicit.
-            for (; header[cursor] != 0 && cursor < COMMAND_LEN; cursor++) ;
-            byte[] commandBytes = new byte[cursor];
-            System.arraycopy(header, 0, commandBytes, 0, cursor);
-            command = new String(commandBytes, StandardCharsets.US_ASCII);
-            cursor = COMMAND_LEN;
+            // Known commands are looked up straight from the header bytes, without building a string.
+            CommandTable.Entry known = commands.lookup(header, 0);
+            if (known != null) {
+                entry = known;
+                command = known.command;
+            } else {
+                // The command is a NULL terminated string, unless the command fills all twelve bytes
+                // in which case the termination is implicit.
+                int end = 0;
+                for (; end < COMMAND_LEN && header[end] != 0; end++) ;
+                command = new String(header, 0, end, StandardCharsets.US_ASCII);
+                // A known command followed by garbage after the terminating NULL.
+                entry = commands.lookup(command);
+            }
+            int cursor = COMMAND_LEN;
 
             size = (int) readUint32(header, cursor);
             cursor += 4;
@@ -627,6 +627,25 @@ public class ECKey implements EncryptableItem {
     @VisibleForTesting
     public static boolean FAKE_SIGNATURES = false;
 
+    @Nullable
+    private static volatile SignatureCache signatureCache;
+
+    /**
+     * Sets the cache of valid signatures that {@link #verify(byte[], ECDSASignature, byte[])} consults, or null to
+     * always do the elliptic curve maths. There is no cache by default. It pays off where the same signatures are
+     * checked more than once, e.g. transactions that are verified when they are relayed and again in a block. Every
+     * signature that isn't found costs an extra hash, and the cache is shared by everything in the process.
+     */
+    public static void setSignatureCache(@Nullable SignatureCache cache) {
+        signatureCache = cache;
+    }
+
+    /** Returns the cache of valid signatures, or null if there is none. */
+    @Nullable
+    public static SignatureCache getSignatureCache() {
+        return signatureCache;
+    }
+
     /**
      * Signs the given hash and returns the R and S components as BigIntegers. In the crown protocol, they are
      * usually encoded using DER format, so you want {@link ECKey.ECDSASignature#encodeToDER()}
@@ -690,6 +709,19 @@ public class ECKey implements EncryptableItem {
         if (FAKE_SIGNATURES)
             return true;
 
+        SignatureCache cache = signatureCache;
+        if (cache == null)
+            return verifyUncached(data, signature, pub);
+        byte[] encodedSignature = signature.encodeToDER();
+        if (cache.contains(data, encodedSignature, pub))
+            return true;
+        boolean valid = verifyUncached(data, signature, pub);
+        if (valid)
+            cache.add(data, encodedSignature, pub);
+        return valid;
+    }
+
+    private static boolean verifyUncached(byte[] data, ECDSASignature signature, byte[] pub) {
         if (Secp256k1Context.isEnabled()) {
             try {
                 return NativeSecp256k1.verify(data, signature.encodeToDER(), pub);
@@ -722,8 +754,14 @@ public class ECKey implements EncryptableItem {
      */
     public static boolean verify(byte[] data, byte[] signature, byte[] pub) throws SignatureDecodeException {
         if (Secp256k1Context.isEnabled()) {
+            SignatureCache cache = signatureCache;
+            if (cache != null && cache.contains(data, signature, pub))
+                return true;
             try {
-                return NativeSecp256k1.verify(data, signature, pub);
+                boolean valid = NativeSecp256k1.verify(data, signature, pub);
+                if (valid && cache != null)
+                    cache.add(data, signature, pub);
+                return valid;
             } catch (NativeSecp256k1Util.AssertFailException e) {
                 log.error("Caught AssertFailException inside secp256k1", e);
                 return false;
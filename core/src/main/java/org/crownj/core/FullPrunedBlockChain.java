@@ -23,7 +23,6 @@ import org.crownj.script.Script.VerifyFlag;
 import org.crownj.script.ScriptPattern;
 import org.crownj.store.BlockStoreException;
 import org.crownj.store.FullPrunedBlockStore;
-import org.crownj.utils.*;
 import org.crownj.wallet.Wallet;
 import org.crownj.wallet.WalletExtension;
 import org.slf4j.Logger;
@@ -34,10 +33,9 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Set;
-import java.util.concurrent.*;
 
+import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
 /**
@@ -147,42 +145,19 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         this.runScripts = value;
     }
 
-    // TODO: Remove lots of duplicated code in the two connectTransactions
-
-    // TODO: execute in order of largest transaction (by input count) first
-    ExecutorService scriptVerificationExecutor = Executors.newFixedThreadPool(
-            Runtime.getRuntime().availableProcessors(), new ContextPropagatingThreadFactory("Script verification"));
-
     /**
-     * A job submitted to the executor which verifies signatures.
+     * Sets the engine that verifies scripts, for example to size its thread pool. By default, there is a thread per
+     * available processor. The engine may be shared between chains.
      */
-    private static class Verifier implements Callable<VerificationException> {
-        final Transaction tx;
-        final List<Script> prevOutScripts;
-        final Set<VerifyFlag> verifyFlags;
-
-        public Verifier(final Transaction tx, final List<Script> prevOutScripts, final Set<VerifyFlag> verifyFlags) {
-            this.tx = tx;
-            this.prevOutScripts = prevOutScripts;
-            this.verifyFlags = verifyFlags;
-        }
-
-        @Nullable
-        @Override
-        public VerificationException call() throws Exception {
-            try {
-                ListIterator<Script> prevOutIt = prevOutScripts.listIterator();
-                for (int index = 0; index < tx.getInputs().size(); index++) {
-                    tx.getInputs().get(index).getScriptSig().correctlySpends(tx, index, null, null, prevOutIt.next(),
-                            verifyFlags);
-                }
-            } catch (VerificationException e) {
-                return e;
-            }
-            return null;
-        }
+    public void setScriptVerificationEngine(ScriptVerificationEngine engine) {
+        this.scriptVerificationEngine = checkNotNull(engine);
     }
 
+    // TODO: Remove lots of duplicated code in the two connectTransactions
+
+    // TODO: execute in order of largest transaction (by input count) first
+    private volatile ScriptVerificationEngine scriptVerificationEngine = new ScriptVerificationEngine();
+
     /**
      * Get the {@link Script} from the script bytes or return Script of empty byte array.
      */
@@ -226,10 +201,8 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         LinkedList<UTXO> txOutsCreated = new LinkedList<>();
         long sigOps = 0;
 
-        if (scriptVerificationExecutor.isShutdown())
-            scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-
-        List<Future<VerificationException>> listScriptVerificationResults = new ArrayList<>(block.getTransactions().size());
+        ScriptVerificationEngine.BlockVerification scriptVerification =
+                scriptVerificationEngine.begin(block.getHash());
         try {
             if (!params.isCheckpoint(height)) {
                 // BIP30 violator blocks are ones that contain a duplicated transaction. They are all in the
@@ -313,28 +286,14 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
 
                 if (!isCoinBase && runScripts) {
                     // Because correctlySpends modifies transactions, this must come after we are done with tx
-                    FutureTask<VerificationException> future = new FutureTask<>(new Verifier(tx, prevOutScripts, verifyFlags));
-                    scriptVerificationExecutor.execute(future);
-                    listScriptVerificationResults.add(future);
+                    scriptVerification.add(tx, prevOutScripts, verifyFlags);
                 }
             }
             if (totalFees.compareTo(params.getMaxMoney()) > 0 || getBlockInflation(height).add(totalFees).compareTo(coinbaseValue) < 0)
                 throw new VerificationException("Transaction fees out of range");
-            for (Future<VerificationException> future : listScriptVerificationResults) {
-                VerificationException e;
-                try {
-                    e = future.get();
-                } catch (InterruptedException thrownE) {
-                    throw new RuntimeException(thrownE); // Shouldn't happen
-                } catch (ExecutionException thrownE) {
-                    log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
-                    throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
-                }
-                if (e != null)
-                    throw e;
-            }
+            scriptVerification.complete();
         } catch (VerificationException | BlockStoreException e) {
-            scriptVerificationExecutor.shutdownNow();
+            scriptVerification.cancel();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         }
@@ -359,6 +318,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
             throw new PrunedException(newBlock.getHeader().getHash());
         }
         TransactionOutputChanges txOutChanges;
+        ScriptVerificationEngine.BlockVerification scriptVerification = null;
         try {
             List<Transaction> transactions = block.getTransactions();
             if (transactions != null) {
@@ -376,9 +336,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                 Coin totalFees = Coin.ZERO;
                 Coin coinbaseValue = null;
 
-                if (scriptVerificationExecutor.isShutdown())
-                    scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-                List<Future<VerificationException>> listScriptVerificationResults = new ArrayList<>(transactions.size());
+                scriptVerification = scriptVerificationEngine.begin(newBlock.getHeader().getHash());
                 for (final Transaction tx : transactions) {
                     final Set<VerifyFlag> verifyFlags =
                         params.getTransactionVerificationFlags(newBlock.getHeader(), tx, getVersionTally(), Integer.SIZE);
@@ -440,27 +398,13 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
 
                     if (!isCoinBase) {
                         // Because correctlySpends modifies transactions, this must come after we are done with tx
-                        FutureTask<VerificationException> future = new FutureTask<>(new Verifier(tx, prevOutScripts, verifyFlags));
-                        scriptVerificationExecutor.execute(future);
-                        listScriptVerificationResults.add(future);
+                        scriptVerification.add(tx, prevOutScripts, verifyFlags);
                     }
                 }
                 if (totalFees.compareTo(params.getMaxMoney()) > 0 || getBlockInflation(newBlock.getHeight()).add(totalFees).compareTo(coinbaseValue) < 0)
                     throw new VerificationException("Transaction fees out of range");
                 txOutChanges = new TransactionOutputChanges(txOutsCreated, txOutsSpent);
-                for (Future<VerificationException> future : listScriptVerificationResults) {
-                    VerificationException e;
-                    try {
-                        e = future.get();
-                    } catch (InterruptedException thrownE) {
-                        throw new RuntimeException(thrownE); // Shouldn't happen
-                    } catch (ExecutionException thrownE) {
-                        log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
-                        throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
-                    }
-                    if (e != null)
-                        throw e;
-                }
+                scriptVerification.complete();
             } else {
                 txOutChanges = block.getTxOutChanges();
                 if (!params.isCheckpoint(newBlock.getHeight()))
@@ -475,7 +419,8 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     blockStore.removeUnspentTransactionOutput(out);
             }
         } catch (VerificationException | BlockStoreException e) {
-            scriptVerificationExecutor.shutdownNow();
+            if (scriptVerification != null)
+                scriptVerification.cancel();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         }
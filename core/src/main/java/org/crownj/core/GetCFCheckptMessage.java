@@ -0,0 +1,83 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * <p>Represents the "getcfcheckpt" P2P network message, which requests the filter headers at every
+ * {@link CFCheckptMessage#CHECKPOINT_INTERVAL}th block up to the given block. Clients use them to check the
+ * filter headers they download from different peers against each other.</p>
+ *
+ * <p>See <a href="https://github.com/bitcoin/bips/blob/master/bip-0157.mediawiki">BIP157</a> for details.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public class GetCFCheckptMessage extends Message {
+    private byte filterType;
+    private Sha256Hash stopHash;
+
+    public GetCFCheckptMessage(NetworkParameters params, byte filterType, Sha256Hash stopHash) {
+        super(params);
+        this.filterType = filterType;
+        this.stopHash = stopHash;
+    }
+
+    public GetCFCheckptMessage(NetworkParameters params, byte[] payload) throws ProtocolException {
+        super(params, payload, 0);
+    }
+
+    @Override
+    protected void parse() throws ProtocolException {
+        filterType = readByte();
+        stopHash = readHash();
+        length = cursor - offset;
+    }
+
+    @Override
+    protected void crownSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(filterType);
+        stream.write(stopHash.getReversedBytes());
+    }
+
+    public byte getFilterType() {
+        return filterType;
+    }
+
+    public Sha256Hash getStopHash() {
+        return stopHash;
+    }
+
+    @Override
+    public String toString() {
+        return "getcfcheckpt: type " + filterType + " up to " + stopHash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        GetCFCheckptMessage other = (GetCFCheckptMessage) o;
+        return filterType == other.filterType && stopHash.equals(other.stopHash);
+    }
+
+    @Override
+    public int hashCode() {
+        return filterType ^ stopHash.hashCode();
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.core;
+
+/**
+ * <p>Represents the "getcfheaders" P2P network message, which requests the filter headers of a range of blocks, at most
+ * {@link #MAX_HEADERS} of them. It is laid out like a {@link GetCFiltersMessage}. The peer answers with a
+ * {@link CFHeadersMessage}.</p>
+ *
+ * <p>See <a href="https://github.com/bitcoin/bips/blob/master/bip-0157.mediawiki">BIP157</a> for details.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public class GetCFHeadersMessage extends GetCFiltersMessage {
+    /** The most filter headers one request may ask for. */
+    public static final int MAX_HEADERS = 2000;
+
+    public GetCFHeadersMessage(NetworkParameters params, byte filterType, long startHeight, Sha256Hash stopHash) {
+        super(params, filterType, startHeight, stopHash);
+    }
+
+    public GetCFHeadersMessage(NetworkParameters params, byte[] payload) throws ProtocolException {
+        super(params, payload);
+    }
+
+    @Override
+    public String toString() {
+        return "getcfheaders: type " + filterType + " from " + startHeight + " to " + stopHash;
+    }
+}
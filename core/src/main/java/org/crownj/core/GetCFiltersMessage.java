@@ -0,0 +1,94 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * <p>Represents the "getcfilters" P2P network message, which requests the compact filters of a range of blocks. The
+ * range starts at a height and ends at a block given by its hash, and may hold at most {@link #MAX_FILTERS} blocks.
+ * Each filter comes back in a {@link CFilterMessage}.</p>
+ *
+ * <p>See <a href="https://github.com/bitcoin/bips/blob/master/bip-0157.mediawiki">BIP157</a> for details.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public class GetCFiltersMessage extends Message {
+    /** The most filters one request may ask for. */
+    public static final int MAX_FILTERS = 1000;
+
+    protected byte filterType;
+    protected long startHeight;
+    protected Sha256Hash stopHash;
+
+    public GetCFiltersMessage(NetworkParameters params, byte filterType, long startHeight, Sha256Hash stopHash) {
+        super(params);
+        this.filterType = filterType;
+        this.startHeight = startHeight;
+        this.stopHash = stopHash;
+    }
+
+    public GetCFiltersMessage(NetworkParameters params, byte[] payload) throws ProtocolException {
+        super(params, payload, 0);
+    }
+
+    @Override
+    protected void parse() throws ProtocolException {
+        filterType = readByte();
+        startHeight = readUint32();
+        stopHash = readHash();
+        length = cursor - offset;
+    }
+
+    @Override
+    protected void crownSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(filterType);
+        Utils.uint32ToByteStreamLE(startHeight, stream);
+        stream.write(stopHash.getReversedBytes());
+    }
+
+    public byte getFilterType() {
+        return filterType;
+    }
+
+    public long getStartHeight() {
+        return startHeight;
+    }
+
+    public Sha256Hash getStopHash() {
+        return stopHash;
+    }
+
+    @Override
+    public String toString() {
+        return "getcfilters: type " + filterType + " from " + startHeight + " to " + stopHash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        GetCFiltersMessage other = (GetCFiltersMessage) o;
+        return filterType == other.filterType && startHeight == other.startHeight && stopHash.equals(other.stopHash);
+    }
+
+    @Override
+    public int hashCode() {
+        return filterType ^ (int) startHeight ^ stopHash.hashCode() ^ getClass().hashCode();
+    }
+}
@@ -0,0 +1,361 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.core;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.*;
+
+/**
+ * <p>A Golomb-coded set, the probabilistic set that compact block filters are made of. Elements are hashed into the
+ * range {@code [0, N * M)} with SipHash, sorted, and the differences between neighbouring values are Golomb-Rice coded
+ * with parameter P. Like a {@link BloomFilter}, a set can say an element is in it when it isn't, with a probability of
+ * about {@code 1 / M}, but never the other way round.</p>
+ *
+ * <p>This implements the filters of <a href="https://github.com/bitcoin/bips/blob/master/bip-0158.mediawiki">BIP158</a>.
+ * The SipHash key of a block filter is taken from the hash of its block, see {@link #parseBasicFilter(Sha256Hash,
+ * byte[])}. Peers serve the filters with {@link CFilterMessage}s.</p>
+ *
+ * <p>Matching runs against the filter of every block in the chain, so it decodes the set as it goes and allocates
+ * nothing. Instances of this class are immutable and safe for use by multiple threads.</p>
+ */
+public final class GolombCodedSet {
+    /** The filter type of basic filters. */
+    public static final byte BASIC_FILTER_TYPE = 0;
+    /** The Golomb-Rice parameter of basic filters. */
+    public static final int BASIC_FILTER_P = 19;
+    /** The inverse false positive rate of basic filters. */
+    public static final long BASIC_FILTER_M = 784931;
+
+    private final long k0, k1;
+    private final int p;
+    private final long m;
+    private final int n;
+    // N as a var int, followed by the Golomb-Rice coded values.
+    private final byte[] encoded;
+    private final int dataOffset;
+
+    private GolombCodedSet(long k0, long k1, int p, long m, byte[] encoded) throws ProtocolException {
+        checkArgument(p > 0 && p < 32, "Bad P: %s", p);
+        checkArgument(m > 0 && m < (1L << 32), "Bad M: %s", m);
+        this.k0 = k0;
+        this.k1 = k1;
+        this.p = p;
+        this.m = m;
+        this.encoded = encoded;
+        try {
+            VarInt varInt = new VarInt(encoded, 0);
+            long count = varInt.longValue();
+            // Each value takes at least P + 1 bits.
+            if (count < 0 || count > (encoded.length * 8L) / (p + 1))
+                throw new ProtocolException("Bad element count: " + count);
+            this.n = (int) count;
+            this.dataOffset = varInt.getOriginalSizeInBytes();
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new ProtocolException(e);
+        }
+    }
+
+    /**
+     * Parses a set.
+     * @param key the 16 byte SipHash key
+     * @param p the Golomb-Rice parameter
+     * @param m the inverse false positive rate
+     * @param encoded the element count as a var int, followed by the coded values
+     */
+    public static GolombCodedSet parse(byte[] key, int p, long m, byte[] encoded) throws ProtocolException {
+        checkArgument(key.length >= 16, "Key too short: %s", key.length);
+        return new GolombCodedSet(Utils.readInt64(key, 0), Utils.readInt64(key, 8), p, m, encoded);
+    }
+
+    /** Parses the basic filter of the block with the given hash. */
+    public static GolombCodedSet parseBasicFilter(Sha256Hash blockHash, byte[] encoded) throws ProtocolException {
+        return parse(blockHash.getReversedBytes(), BASIC_FILTER_P, BASIC_FILTER_M, encoded);
+    }
+
+    /**
+     * Builds a set of the given elements, leaving out duplicates.
+     * @param key the 16 byte SipHash key
+     * @param p the Golomb-Rice parameter
+     * @param m the inverse false positive rate
+     */
+    public static GolombCodedSet build(byte[] key, int p, long m, List<byte[]> elements) {
+        checkArgument(key.length >= 16, "Key too short: %s", key.length);
+        long k0 = Utils.readInt64(key, 0), k1 = Utils.readInt64(key, 8);
+        Set<ByteArrayKey> unique = new LinkedHashSet<>();
+        for (byte[] element : elements)
+            unique.add(new ByteArrayKey(element));
+        long range = unique.size() * m;
+        long[] values = new long[unique.size()];
+        int i = 0;
+        for (ByteArrayKey element : unique)
+            values[i++] = hashToRange(k0, k1, element.bytes, range);
+        Arrays.sort(values);
+
+        BitWriter writer = new BitWriter();
+        long previous = 0;
+        for (long value : values) {
+            long delta = value - previous;
+            for (long q = delta >>> p; q > 0; q--)
+                writer.write(1, 1);
+            writer.write(0, 1);
+            writer.write(delta & ((1L << p) - 1), p);
+            previous = value;
+        }
+        byte[] count = new VarInt(values.length).encode();
+        byte[] data = writer.toByteArray();
+        byte[] encoded = new byte[count.length + data.length];
+        System.arraycopy(count, 0, encoded, 0, count.length);
+        System.arraycopy(data, 0, encoded, count.length, data.length);
+        try {
+            return new GolombCodedSet(k0, k1, p, m, encoded);
+        } catch (ProtocolException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+
+    /** Builds the basic filter of the block with the given hash from the given elements. */
+    public static GolombCodedSet buildBasicFilter(Sha256Hash blockHash, List<byte[]> elements) {
+        return build(blockHash.getReversedBytes(), BASIC_FILTER_P, BASIC_FILTER_M, elements);
+    }
+
+    /** Returns the number of elements in the set. */
+    public int size() {
+        return n;
+    }
+
+    /** Returns the serialized set, as found in a {@link CFilterMessage}. The array must not be modified. */
+    public byte[] getEncoded() {
+        return encoded;
+    }
+
+    /** Returns the filter hash, which is what {@link CFHeadersMessage}s carry. */
+    public Sha256Hash getHash() {
+        return Sha256Hash.wrapReversed(Sha256Hash.hashTwice(encoded));
+    }
+
+    /**
+     * Returns the filter header that commits to this filter and, through the given previous filter header, to the
+     * filters of all earlier blocks.
+     */
+    public Sha256Hash getHeader(Sha256Hash previousHeader) {
+        return filterHeader(getHash(), previousHeader);
+    }
+
+    /** Computes a filter header from the hash of a filter and the filter header of the block before it. */
+    public static Sha256Hash filterHeader(Sha256Hash filterHash, Sha256Hash previousHeader) {
+        return Sha256Hash.wrapReversed(Sha256Hash.hashTwice(filterHash.getReversedBytes(),
+                previousHeader.getReversedBytes()));
+    }
+
+    /** Returns true if the element may be in the set. */
+    public boolean match(byte[] element) throws ProtocolException {
+        long[] scratch = new long[1];
+        return matchAny(Collections.singletonList(element), scratch);
+    }
+
+    /**
+     * Returns true if any of the elements may be in the set. The elements are hashed into the given scratch array,
+     * which must be at least as long as the list of elements. With the same scratch array passed each time, matching
+     * allocates nothing, which is how a scan over many filters should use it.
+     * @throws ProtocolException if the set runs past the end of its encoding
+     */
+    public boolean matchAny(List<byte[]> elements, long[] scratch) throws ProtocolException {
+        int count = elements.size();
+        checkArgument(scratch.length >= count, "Scratch array too small: %s < %s", scratch.length, count);
+        if (n == 0 || count == 0)
+            return false;
+        long range = n * m;
+        for (int i = 0; i < count; i++)
+            scratch[i] = hashToRange(k0, k1, elements.get(i), range);
+        Arrays.sort(scratch, 0, count);
+
+        final byte[] data = encoded;
+        final long limit = data.length * 8L;
+        long pos = dataOffset * 8L;
+        long value = 0;
+        int queryIndex = 0;
+        long query = scratch[0];
+        for (int i = 0; i < n; i++) {
+            // The quotient is coded in unary: a one for each multiple of 2^P, then a zero.
+            long quotient = 0;
+            while (true) {
+                if (pos >= limit)
+                    throw new ProtocolException("Set runs past the end of its encoding");
+                int bitInByte = (int) (pos & 7);
+                int available = 8 - bitInByte;
+                int bits = ((data[(int) (pos >>> 3)] & 0xff) << bitInByte) & 0xff;
+                int ones = Integer.numberOfLeadingZeros(~bits << 24);
+                if (ones < available) {
+                    quotient += ones;
+                    pos += ones + 1;
+                    break;
+                }
+                quotient += available;
+                pos += available;
+            }
+            if (pos + p > limit)
+                throw new ProtocolException("Set runs past the end of its encoding");
+            value += (quotient << p) | readBits(data, pos, p);
+            pos += p;
+            // Both the set and the query are sorted, so walk them like a merge.
+            while (query < value) {
+                if (++queryIndex == count)
+                    return false;
+                query = scratch[queryIndex];
+            }
+            if (query == value)
+                return true;
+        }
+        return false;
+    }
+
+    // Reads the given number of bits, most significant first, starting at the given bit position.
+    private static long readBits(byte[] data, long pos, int count) {
+        long result = 0;
+        while (count > 0) {
+            int bitInByte = (int) (pos & 7);
+            int available = 8 - bitInByte;
+            int take = Math.min(available, count);
+            int bits = ((data[(int) (pos >>> 3)] & 0xff) >>> (available - take)) & ((1 << take) - 1);
+            result = (result << take) | bits;
+            pos += take;
+            count -= take;
+        }
+        return result;
+    }
+
+    // Maps the SipHash of the element uniformly onto [0, range), as (hash * range) >> 64.
+    static long hashToRange(long k0, long k1, byte[] element, long range) {
+        return multiplyHighUnsigned(sipHash24(k0, k1, element), range);
+    }
+
+    private static long multiplyHighUnsigned(long x, long y) {
+        long x0 = x & 0xffffffffL, x1 = x >>> 32;
+        long y0 = y & 0xffffffffL, y1 = y >>> 32;
+        long p00 = x0 * y0, p01 = x0 * y1, p10 = x1 * y0, p11 = x1 * y1;
+        long middle = (p00 >>> 32) + (p01 & 0xffffffffL) + (p10 & 0xffffffffL);
+        return p11 + (p01 >>> 32) + (p10 >>> 32) + (middle >>> 32);
+    }
+
+    /** SipHash-2-4 of the data under the key (k0, k1). */
+    static long sipHash24(long k0, long k1, byte[] data) {
+        long v0 = 0x736f6d6570736575L ^ k0;
+        long v1 = 0x646f72616e646f6dL ^ k1;
+        long v2 = 0x6c7967656e657261L ^ k0;
+        long v3 = 0x7465646279746573L ^ k1;
+        int length = data.length;
+        int end = length - (length & 7);
+        for (int offset = 0; offset <= end; offset += 8) {
+            long word;
+            if (offset < end) {
+                word = Utils.readInt64(data, offset);
+            } else {
+                // The last word holds the remaining bytes and the length.
+                word = ((long) length) << 56;
+                for (int i = end; i < length; i++)
+                    word |= (data[i] & 0xffL) << (8 * (i - end));
+            }
+            v3 ^= word;
+            for (int round = 0; round < 2; round++) {
+                v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+                v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+                v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+                v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+            }
+            v0 ^= word;
+        }
+        v2 ^= 0xff;
+        for (int round = 0; round < 4; round++) {
+            v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+            v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+            v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+            v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+        }
+        return v0 ^ v1 ^ v2 ^ v3;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        GolombCodedSet other = (GolombCodedSet) o;
+        return k0 == other.k0 && k1 == other.k1 && p == other.p && m == other.m
+                && Arrays.equals(encoded, other.encoded);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(encoded);
+    }
+
+    @Override
+    public String toString() {
+        return "Golomb-coded set of " + n + " elements, " + encoded.length + " bytes";
+    }
+
+    // Collects bits, most significant first.
+    private static class BitWriter {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private int current;
+        private int used;
+
+        void write(long value, int count) {
+            for (int i = count - 1; i >= 0; i--) {
+                current = (current << 1) | (int) ((value >>> i) & 1);
+                if (++used == 8) {
+                    out.write(current);
+                    current = 0;
+                    used = 0;
+                }
+            }
+        }
+
+        byte[] toByteArray() {
+            if (used > 0) {
+                out.write(current << (8 - used));
+                current = 0;
+                used = 0;
+            }
+            return out.toByteArray();
+        }
+    }
+
+    // Compares byte arrays by content, for leaving out duplicate elements.
+    private static class ByteArrayKey {
+        final byte[] bytes;
+
+        ByteArrayKey(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof ByteArrayKey && Arrays.equals(bytes, ((ByteArrayKey) o).bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(bytes);
+        }
+    }
+}
@@ -22,6 +22,8 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -72,14 +74,20 @@ public class HeadersMessage extends Message {
                                          MAX_HEADERS);
 
         blockHeaders = new ArrayList<>();
-        final crownSerializer serializer = this.params.getSerializer(true);
+        final ByteBuffer buffer = ByteBuffer.wrap(payload);
 
         for (int i = 0; i < numHeaders; ++i) {
-            final Block newBlockHeader = serializer.makeBlock(payload, cursor, UNKNOWN_LENGTH);
-            if (newBlockHeader.hasTransactions()) {
+            // Read the header fields straight from the payload, rather than parsing each one as a full block.
+            if (cursor + Block.HEADER_SIZE > payload.length)
+                throw new ProtocolException("Truncated block header");
+            ((Buffer) buffer).position(cursor);
+            final Block newBlockHeader = Block.readHeader(params, buffer, null);
+            cursor += Block.HEADER_SIZE;
+            if (readVarInt().longValue() != 0) {
                 throw new ProtocolException("Block header does not end with a null byte");
             }
-            cursor += newBlockHeader.optimalEncodingMessageSize;
+            // Like a block parsed off the wire, the header has an empty rather than a missing transaction list.
+            newBlockHeader.transactions = new ArrayList<>(0);
             blockHeaders.add(newBlockHeader);
         }
 
@@ -0,0 +1,212 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import static com.google.common.base.Preconditions.*;
+
+/**
+ * <p>Calculates merkle roots as used in block headers, without materializing the tree. Leaves are added one at a time
+ * with {@link #add(Sha256Hash)}, so callers that receive transactions one by one can calculate the root as they go.
+ * Only the pending left hand node of each level is kept, in a scratch buffer that is allocated once per builder.</p>
+ *
+ * <p>Just like in crown Core, a level with an odd number of nodes is completed by repeating its last node. A tree with
+ * five leaves t1 .. t5 is therefore calculated as if t5 was present twice.</p>
+ *
+ * <p>{@link #buildRoots(List, boolean)} calculates the transaction and witness roots of a block in one pass over the
+ * transactions. Above {@link #getParallelThreshold()} transactions, the work is split into subtrees that are
+ * calculated by fork/join tasks.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public class MerkleBuilder {
+    /** Default number of leaves above which {@link #buildRoots(List, boolean)} splits the work into parallel tasks. */
+    public static final int DEFAULT_PARALLEL_THRESHOLD = 1024;
+
+    private static final int MAX_LEVELS = 32;
+
+    private static volatile int parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+
+    // Pending left hand nodes, one per level, in wire (little endian) byte order. The node of a level is only valid
+    // while the corresponding bit of count is set.
+    private final byte[] inner = new byte[MAX_LEVELS * 32];
+    // The node that is currently being combined in the second half, and its left hand sibling in the first half, so
+    // that the pair can be hashed in place.
+    private final byte[] pair = new byte[64];
+    private int count;
+
+    /**
+     * Adds the next leaf to the tree.
+     * @param leaf transaction id or witness transaction id, in the usual (big endian) byte order
+     * @return this builder, for chaining
+     */
+    public MerkleBuilder add(Sha256Hash leaf) {
+        checkState(count != -1 >>> 1, "Too many leaves");
+        copyReversed(leaf.getBytes(), 0, pair, 32);
+        count++;
+        int level = 0;
+        // Every trailing zero bit of the new count completes a subtree: combine with the pending left hand node.
+        for (; (count & (1 << level)) == 0; level++)
+            combine(level);
+        System.arraycopy(pair, 32, inner, level * 32, 32);
+        return this;
+    }
+
+    /** Returns the number of leaves added so far. */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Returns the root of the leaves added so far. The builder is not changed, so more leaves may be added afterwards.
+     * @throws IllegalStateException if no leaves have been added
+     */
+    public Sha256Hash build() {
+        return root(0);
+    }
+
+    /** Forgets all leaves added so far, so the builder can be reused. */
+    public void reset() {
+        count = 0;
+    }
+
+    /**
+     * Calculates the root, repeating the last node of odd levels. The root is never lower than the given height, which
+     * is what a partial subtree of the given height contributes to a larger tree.
+     */
+    private Sha256Hash root(int minHeight) {
+        checkState(count > 0, "No leaves");
+        int remaining = count;
+        int level = Integer.numberOfTrailingZeros(remaining);
+        System.arraycopy(inner, level * 32, pair, 32, 32);
+        while (remaining != 1 << level || level < minHeight) {
+            // The current node has no right hand sibling, so it is combined with itself.
+            System.arraycopy(pair, 32, pair, 0, 32);
+            Sha256Hash.hashTwice(pair, 0, 64, pair, 32);
+            remaining += 1 << level;
+            level++;
+            // That may have completed subtrees further up.
+            for (; (remaining & (1 << level)) == 0; level++)
+                combine(level);
+        }
+        byte[] root = new byte[32];
+        copyReversed(pair, 32, root, 0);
+        return Sha256Hash.wrap(root);
+    }
+
+    /** Hashes the pending node of the given level with the current node, making the result the current node. */
+    private void combine(int level) {
+        System.arraycopy(inner, level * 32, pair, 0, 32);
+        Sha256Hash.hashTwice(pair, 0, 64, pair, 32);
+    }
+
+    private static void copyReversed(byte[] src, int srcOffset, byte[] dst, int dstOffset) {
+        for (int i = 0; i < 32; i++)
+            dst[dstOffset + i] = src[srcOffset + 31 - i];
+    }
+
+    /** Returns the number of leaves above which {@link #buildRoots(List, boolean)} uses parallel tasks. */
+    public static int getParallelThreshold() {
+        return parallelThreshold;
+    }
+
+    /**
+     * Sets the number of leaves above which {@link #buildRoots(List, boolean)} splits the work into subtrees that are
+     * calculated by tasks in the common fork/join pool. Use {@link Integer#MAX_VALUE} to always stay on the calling
+     * thread.
+     */
+    public static void setParallelThreshold(int leaves) {
+        checkArgument(leaves > 0);
+        parallelThreshold = leaves;
+    }
+
+    /**
+     * Calculates the merkle roots of the given block transactions in one pass. The first element of the result is the
+     * root of the transaction ids, the second one the root of the witness transaction ids, or null if not requested.
+     * As defined by BIP141, the coinbase contributes an all zero witness transaction id.
+     * @param transactions the transactions of a block, coinbase first
+     * @param withWitnessRoot whether to calculate the witness root as well
+     */
+    public static Sha256Hash[] buildRoots(List<Transaction> transactions, boolean withWitnessRoot) {
+        checkArgument(!transactions.isEmpty(), "No transactions");
+        if (!(transactions instanceof RandomAccess))
+            transactions = new ArrayList<>(transactions);
+        int size = transactions.size();
+        int height = 32 - Integer.numberOfLeadingZeros(size - 1);
+        RootsTask task = new RootsTask(transactions, withWitnessRoot, 0, height, parallelThreshold);
+        return size > task.threshold ? ForkJoinPool.commonPool().invoke(task) : task.compute();
+    }
+
+    /** Calculates the roots of the subtree of the given height whose leftmost leaf is at the given index. */
+    private static class RootsTask extends RecursiveTask<Sha256Hash[]> {
+        private final List<Transaction> transactions;
+        private final boolean withWitnessRoot;
+        private final int from;
+        private final int height;
+        private final int threshold;
+
+        RootsTask(List<Transaction> transactions, boolean withWitnessRoot, int from, int height, int threshold) {
+            this.transactions = transactions;
+            this.withWitnessRoot = withWitnessRoot;
+            this.from = from;
+            this.height = height;
+            this.threshold = threshold;
+        }
+
+        @Override
+        protected Sha256Hash[] compute() {
+            long leaves = 1L << height;
+            if (leaves <= threshold)
+                return computeDirectly();
+            int half = (int) (leaves / 2);
+            RootsTask left = new RootsTask(transactions, withWitnessRoot, from, height - 1, threshold);
+            if (from + half >= transactions.size()) {
+                // Nothing on the right, so the left hand subtree is repeated.
+                Sha256Hash[] roots = left.compute();
+                return combine(roots, roots);
+            }
+            RootsTask right = new RootsTask(transactions, withWitnessRoot, from + half, height - 1, threshold);
+            right.fork();
+            Sha256Hash[] leftRoots = left.compute();
+            return combine(leftRoots, right.join());
+        }
+
+        private Sha256Hash[] computeDirectly() {
+            int to = (int) Math.min(transactions.size(), from + (1L << height));
+            MerkleBuilder txIds = new MerkleBuilder();
+            MerkleBuilder wtxIds = withWitnessRoot ? new MerkleBuilder() : null;
+            for (int i = from; i < to; i++) {
+                Transaction tx = transactions.get(i);
+                txIds.add(tx.getTxId());
+                if (wtxIds != null)
+                    wtxIds.add(tx.isCoinBase() ? Sha256Hash.ZERO_HASH : tx.getWTxId());
+            }
+            return new Sha256Hash[] { txIds.root(height), wtxIds != null ? wtxIds.root(height) : null };
+        }
+
+        private static Sha256Hash[] combine(Sha256Hash[] left, Sha256Hash[] right) {
+            return new Sha256Hash[] {
+                    new MerkleBuilder().add(left[0]).add(right[0]).build(),
+                    left[1] != null ? new MerkleBuilder().add(left[1]).add(right[1]).build() : null };
+        }
+    }
+}
@@ -340,8 +340,14 @@ public abstract class Message {
 
     protected Sha256Hash readHash() throws ProtocolException {
         // We have to flip it around, as it's been read off the wire in little endian.
-        // Not the most efficient way to do this but the clearest.
-        return Sha256Hash.wrapReversed(readBytes(32));
+        checkReadLength(32);
+        try {
+            Sha256Hash hash = Sha256Hash.wrapReversed(payload, cursor);
+            cursor += 32;
+            return hash;
+        } catch (IndexOutOfBoundsException e) {
+            throw new ProtocolException(e);
+        }
     }
 
     protected boolean hasMoreBytes() {
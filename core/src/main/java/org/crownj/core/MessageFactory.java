@@ -0,0 +1,34 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.core;
+
+/**
+ * Creates a {@link Message} of one type from its payload. Factories are registered for a command name with
+ * {@link NetworkParameters#registerMessage(String, Class, MessageFactory)}, which is how applications add message
+ * types of their own.
+ */
+public interface MessageFactory {
+    /**
+     * Parses a message from its payload.
+     * @param serializer the serializer decoding the message, which provides the network parameters and the
+     *                   {@code make...} extension points
+     * @param payload the payload, checksum already verified
+     * @param length the length of the payload
+     * @param hash the double SHA-256 hash of the payload
+     */
+    Message make(crownSerializer serializer, byte[] payload, int length, byte[] hash) throws ProtocolException;
+}
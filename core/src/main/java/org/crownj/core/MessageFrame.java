@@ -0,0 +1,74 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.core;
+
+import com.google.common.base.MoreObjects;
+
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>A message serialized exactly as it goes over the wire, header and checksum included. Sending the same message to
+ * many peers, e.g. when broadcasting a transaction or a Bloom filter, would otherwise serialize and hash it once per
+ * peer. A frame is created by {@link MessageSerializer#serializeFrame(Message)} and passed to
+ * {@link PeerSocketHandler#sendMessage(MessageFrame)}, which hands the same bytes to every connection.</p>
+ *
+ * <p>Frames are immutable and only valid for the network they were created for.</p>
+ */
+public final class MessageFrame {
+    private final NetworkParameters params;
+    private final String name;
+    // Shared by all connections the frame is sent to, so never modified.
+    private final byte[] bytes;
+
+    MessageFrame(NetworkParameters params, String name, byte[] bytes) {
+        this.params = checkNotNull(params);
+        this.name = checkNotNull(name);
+        this.bytes = checkNotNull(bytes);
+    }
+
+    /** Returns the network the frame was created for. */
+    public NetworkParameters getParams() {
+        return params;
+    }
+
+    /** Returns the command name of the message, e.g. "tx". */
+    public String getName() {
+        return name;
+    }
+
+    /** Returns the length of the frame in bytes, header included. */
+    public int length() {
+        return bytes.length;
+    }
+
+    /** Returns a copy of the bytes of the frame. */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(bytes, bytes.length);
+    }
+
+    // Not copied, callers must not modify the array.
+    byte[] bytes() {
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this).add("name", name).add("length", bytes.length).toString();
+    }
+}
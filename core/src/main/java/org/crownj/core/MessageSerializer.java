@@ -18,6 +18,7 @@
 
 package org.crownj.core;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.BufferUnderflowException;
@@ -56,6 +57,23 @@ public abstract class MessageSerializer {
      */
     public abstract Message deserializePayload(crownSerializer.crownPacketHeader header, ByteBuffer in) throws ProtocolException, BufferUnderflowException, UnsupportedOperationException;
 
+    /**
+     * Starts reading the payload of the given header incrementally, hashing it while it is read. The default
+     * implementation parses the complete payload with {@link #deserializePayload(crownSerializer.crownPacketHeader, ByteBuffer)}.
+     */
+    public PayloadReader newPayloadReader(crownSerializer.crownPacketHeader header) throws UnsupportedOperationException {
+        return new PayloadReader(this, header);
+    }
+
+    /**
+     * Parses a complete payload that was read by a {@link PayloadReader}, given the double SHA-256 hash of the
+     * payload. The default implementation ignores the hash and hands the payload to
+     * {@link #deserializePayload(crownSerializer.crownPacketHeader, ByteBuffer)}.
+     */
+    Message decodePayload(crownSerializer.crownPacketHeader header, byte[] payloadBytes, byte[] hash) throws ProtocolException {
+        return deserializePayload(header, ByteBuffer.wrap(payloadBytes));
+    }
+
     /**
      * Whether the serializer will produce cached mode Messages
      */
@@ -172,5 +190,28 @@ public abstract class MessageSerializer {
      * it does not support serializing the given message.
      */
     public abstract void serialize(Message message, OutputStream out) throws IOException, UnsupportedOperationException;
+
+    /**
+     * Serializes message into a frame that can be sent to any number of peers without serializing it again. The
+     * default implementation writes the message with {@link #serialize(Message, OutputStream)} and reads the command
+     * back with {@link #deserializeHeader(ByteBuffer)}.
+     *
+     * @throws UnsupportedOperationException if this serializer/deserializer
+     * does not support serialization. This can occur either because it's a dummy
+     * serializer (i.e. for messages with no network parameters), or because
+     * it does not support serializing the given message.
+     */
+    public MessageFrame serializeFrame(Message message) throws UnsupportedOperationException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            serialize(message, out);
+            byte[] bytes = out.toByteArray();
+            ByteBuffer in = ByteBuffer.wrap(bytes);
+            seekPastMagicBytes(in);
+            return new MessageFrame(message.getParams(), deserializeHeader(in).command, bytes);
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
     
 }
@@ -17,6 +17,7 @@
 
 package org.crownj.core;
 
+import com.google.common.annotations.VisibleForTesting;
 import org.crownj.net.discovery.*;
 import org.crownj.params.*;
 import org.crownj.script.*;
@@ -96,6 +97,8 @@ public abstract class NetworkParameters {
     protected HttpDiscovery.Details[] httpSeeds = {};
     protected Map<Integer, Sha256Hash> checkpoints = new HashMap<>();
     protected volatile transient MessageSerializer defaultSerializer = null;
+    // The message types the serializers of this network know, see registerMessage.
+    final CommandTable commands = new CommandTable(crownSerializer.DEFAULT_COMMANDS);
 
     protected NetworkParameters() {
     }
@@ -185,6 +188,16 @@ public abstract class NetworkParameters {
      */
     public abstract void checkDifficultyTransitions(StoredBlock storedPrev, Block next, final BlockStore blockStore) throws VerificationException, BlockStoreException;
 
+    /**
+     * Returns whether {@link #checkDifficultyTransitions(StoredBlock, Block, BlockStore)} may look up blocks before
+     * storedPrev in the block store when checking the given block. When connecting a run of headers, the block chain
+     * writes the headers connected so far to the store before such a check. Subclasses that override
+     * checkDifficultyTransitions have to override this as well. The default is true.
+     */
+    public boolean needsBlockStoreForDifficulty(StoredBlock storedPrev, Block next) {
+        return true;
+    }
+
     /**
      * Returns true if the block height is either not a checkpoint, or is a checkpoint and the hash matches.
      */
@@ -369,6 +382,25 @@ public abstract class NetworkParameters {
      */
     public abstract crownSerializer getSerializer(boolean parseRetain);
 
+    /**
+     * Registers a message type with this network, so that all its serializers parse it when received and can serialize
+     * it for sending. This is how applications add message types the library doesn't know about. A later registration
+     * of the same command or type replaces the earlier one, including a built in one.
+     *
+     * @param command the command name in the packet header, at most 12 ASCII characters
+     * @param type    the message class, which must be serializable with {@link Message#crownSerialize()}
+     * @param factory creates messages of the type from received payloads
+     */
+    public void registerMessage(String command, Class<? extends Message> type, MessageFactory factory) {
+        commands.register(command, type, factory);
+    }
+
+    /** Removes a registration made by {@link #registerMessage(String, Class, MessageFactory)}, for tests. */
+    @VisibleForTesting
+    void unregisterMessage(String command) {
+        commands.unregister(command);
+    }
+
     /**
      * The number of blocks in the last {@link #getMajorityWindow()} blocks
      * at which to trigger a notice to the user to upgrade their client, where
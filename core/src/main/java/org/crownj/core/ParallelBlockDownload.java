@@ -0,0 +1,815 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.core;
+
+import com.google.common.base.MoreObjects;
+import org.crownj.store.BlockStore;
+import org.crownj.store.BlockStoreException;
+import org.crownj.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.*;
+
+/**
+ * <p>Downloads the block chain from several peers at once. The download peer sends the headers of the blocks we are
+ * missing, then the blocks themselves, or filtered blocks if a Bloom filter is in use, are requested in small ranges
+ * from every suitable connected peer. Each peer has a limited window of requests in flight, requests that aren't
+ * answered in time are handed to other peers, and blocks are connected to the chain strictly in order, as if they had
+ * all come from the download peer. Once the headers run out and all blocks are connected, the download peer takes
+ * over again and follows newly announced blocks.</p>
+ *
+ * <p>Created and driven by {@link PeerGroup}, see {@link PeerGroup#setParallelDownload(boolean)}. Instances of this
+ * class are safe for use by multiple threads.</p>
+ */
+public class ParallelBlockDownload {
+    private static final Logger log = LoggerFactory.getLogger(ParallelBlockDownload.class);
+
+    /** How many blocks are asked for in one request. */
+    public static final int BLOCKS_PER_REQUEST = 16;
+    /** How many requests a single peer may have in flight. */
+    public static final int MAX_REQUESTS_PER_PEER = 4;
+    /** How many blocks may be in flight or waiting for their predecessors at any time. */
+    public static final int MAX_BLOCKS_AHEAD = 1024;
+    /** The default limit of the memory taken by blocks ahead of the chain, see {@link #setMaxBufferedBytes(long)}. */
+    public static final long DEFAULT_MAX_BUFFERED_BYTES = 32 * 1024 * 1024;
+    /** The default time after which an unanswered request is given to another peer. */
+    public static final long DEFAULT_STALL_TIMEOUT_MILLIS = 10 * 1000;
+
+    private final ReentrantLock lock = Threading.lock(ParallelBlockDownload.class);
+    // Held while connecting blocks, so that blocks received by different peers are connected one after another.
+    private final ReentrantLock connectLock = Threading.lock("ParallelBlockDownload-connect lock");
+    private final NetworkParameters params;
+    private final AbstractBlockChain chain;
+    private final ScheduledExecutorService executor;
+
+    @GuardedBy("lock") private boolean running;
+    @GuardedBy("lock") @Nullable private Peer downloadPeer;
+    @GuardedBy("lock") private boolean useFilteredBlocks;
+    @GuardedBy("lock") private final Map<Peer, PeerState> peers = new LinkedHashMap<>();
+    // Blocks whose header we have but which aren't connected yet, in chain order.
+    @GuardedBy("lock") private final ArrayDeque<Slot> pending = new ArrayDeque<>();
+    @GuardedBy("lock") private final Map<Sha256Hash, Slot> slots = new HashMap<>();
+    // Blocks not requested from any peer yet. Usually in chain order, except that blocks of stalled requests go first.
+    @GuardedBy("lock") private final ArrayDeque<Slot> unrequested = new ArrayDeque<>();
+    // Blocks requested or received, but not connected yet.
+    @GuardedBy("lock") private int blocksAhead;
+    // Blocks received but not connected yet, and their size.
+    @GuardedBy("lock") private int blocksBuffered;
+    @GuardedBy("lock") private long bufferedBytes;
+    @GuardedBy("lock") private long maxBufferedBytes = DEFAULT_MAX_BUFFERED_BYTES;
+    // The last header received, or the chain head we started from.
+    @GuardedBy("lock") private Sha256Hash lastHeaderHash;
+    @GuardedBy("lock") private boolean awaitingHeaders, headersComplete;
+    @GuardedBy("lock") private long stallTimeoutMillis = DEFAULT_STALL_TIMEOUT_MILLIS;
+    @GuardedBy("lock") @Nullable private ScheduledFuture<?> stallCheck;
+
+    @GuardedBy("lock") private long startTimeMillis, endTimeMillis;
+    @GuardedBy("lock") private long blocksConnected, blocksReceived, bytesReceived, stalls;
+
+    ParallelBlockDownload(NetworkParameters params, AbstractBlockChain chain, ScheduledExecutorService executor) {
+        this.params = checkNotNull(params);
+        this.chain = checkNotNull(chain);
+        this.executor = checkNotNull(executor);
+    }
+
+    // A block to download.
+    private static class Slot {
+        final Sha256Hash hash;
+        @Nullable Request request;
+        @Nullable Block block;
+        @Nullable FilteredBlock filteredBlock;
+        long size;
+
+        Slot(Sha256Hash hash) {
+            this.hash = hash;
+        }
+    }
+
+    // A range of blocks asked for from one peer with a single getdata.
+    private static class Request {
+        final PeerState owner;
+        final Set<Slot> remaining;
+        final long sentAtMillis;
+
+        Request(PeerState owner, Set<Slot> remaining, long sentAtMillis) {
+            this.owner = owner;
+            this.remaining = remaining;
+            this.sentAtMillis = sentAtMillis;
+        }
+    }
+
+    private static class PeerState {
+        final Peer peer;
+        final List<Request> requests = new ArrayList<>(MAX_REQUESTS_PER_PEER);
+        // The peer isn't given new requests before this time, because it let one stall.
+        long idleUntilMillis;
+        long blocks, bytes;
+
+        PeerState(Peer peer) {
+            this.peer = peer;
+        }
+    }
+
+    /**
+     * Starts downloading from the given peer, or switches the source of headers to it if a download is already
+     * running, for instance because the previous download peer disconnected.
+     */
+    void start(Peer peer, boolean useFilteredBlocks) {
+        List<Request> requests;
+        lock.lock();
+        try {
+            if (!running) {
+                clearLocked();
+                running = true;
+                this.useFilteredBlocks = useFilteredBlocks;
+                lastHeaderHash = chain.getChainHead().getHeader().getHash();
+                startTimeMillis = Utils.currentTimeMillis();
+                endTimeMillis = 0;
+                blocksConnected = blocksReceived = bytesReceived = stalls = 0;
+                for (PeerState state : peers.values())
+                    state.blocks = state.bytes = 0;
+                stallCheck = executor.scheduleAtFixedRate(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            checkForStalls();
+                        } catch (Throwable e) {
+                            log.error("Exception in stall check", e);  // The executor swallows exceptions :(
+                        }
+                    }
+                }, 1, 1, TimeUnit.SECONDS);
+                log.info("Starting parallel block download after {} from {}", lastHeaderHash, peer);
+            } else if (peer == downloadPeer) {
+                return;
+            } else {
+                log.info("Continuing parallel block download with headers from {}", peer);
+            }
+            downloadPeer = peer;
+            if (!peers.containsKey(peer))
+                peers.put(peer, new PeerState(peer));
+            if (!headersComplete)
+                requestHeadersLocked();
+            requests = assignLocked();
+        } finally {
+            lock.unlock();
+        }
+        send(requests);
+        // Blocks may have been waiting for a download peer. The caller holds the lock of the peer, which connecting
+        // blocks takes after the connect lock, so connect them from another thread.
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                connectReceivedBlocks();
+            }
+        });
+    }
+
+    /** Stops the download. Blocks received but not connected yet are thrown away. */
+    void stop() {
+        lock.lock();
+        try {
+            stopLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns true if a download is running. */
+    public boolean isRunning() {
+        lock.lock();
+        try {
+            return running;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Adds a peer that blocks may be requested from. */
+    void addPeer(Peer peer) {
+        List<Request> requests;
+        lock.lock();
+        try {
+            if (peers.containsKey(peer))
+                return;
+            peers.put(peer, new PeerState(peer));
+            requests = assignLocked();
+        } finally {
+            lock.unlock();
+        }
+        send(requests);
+    }
+
+    /** Removes a peer, usually because it disconnected. Its outstanding requests are given to other peers. */
+    void removePeer(Peer peer) {
+        List<Request> requests;
+        lock.lock();
+        try {
+            PeerState state = peers.remove(peer);
+            if (state == null)
+                return;
+            requeueLocked(state.requests);
+            state.requests.clear();
+            if (peer == downloadPeer) {
+                // Headers and connected blocks wait for the next download peer, see start().
+                downloadPeer = null;
+                awaitingHeaders = false;
+            }
+            requests = assignLocked();
+        } finally {
+            lock.unlock();
+        }
+        send(requests);
+    }
+
+    /**
+     * Handles headers sent by the given peer.
+     * @return false if the headers weren't requested by this download, true otherwise
+     */
+    boolean onHeaders(Peer peer, List<Block> headers) {
+        List<Request> requests;
+        boolean forked = false;
+        lock.lock();
+        try {
+            if (!running || peer != downloadPeer || !awaitingHeaders)
+                return false;
+            awaitingHeaders = false;
+            for (Block header : headers) {
+                if (!header.getPrevBlockHash().equals(lastHeaderHash)) {
+                    // The peer is on a fork of our chain, or misbehaving. The sequential download sorts it out.
+                    log.info("{}: Header {} doesn't follow {}, stopping parallel block download", peer,
+                            header.getHash(), lastHeaderHash);
+                    forked = true;
+                    break;
+                }
+                try {
+                    header.verifyHeader();
+                } catch (VerificationException e) {
+                    log.warn("{}: Block header verification failed, stopping parallel block download", peer, e);
+                    forked = true;
+                    break;
+                }
+                Slot slot = new Slot(header.getHash());
+                pending.add(slot);
+                slots.put(slot.hash, slot);
+                unrequested.add(slot);
+                lastHeaderHash = slot.hash;
+            }
+            if (forked) {
+                stopLocked();
+                requests = null;
+            } else {
+                if (headers.size() < HeadersMessage.MAX_HEADERS) {
+                    log.info("Received all headers up to {}, {} blocks to download", lastHeaderHash, pending.size());
+                    headersComplete = true;
+                }
+                requests = assignLocked();
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (forked) {
+            peer.startSingleChainDownload();
+            return true;
+        }
+        send(requests);
+        connectReceivedBlocks(); // In case there was nothing left to download.
+        return true;
+    }
+
+    /**
+     * Handles a block or filtered block sent by the given peer.
+     * @param block the block, or the header of the filtered block
+     * @param filteredBlock the filtered block, or null for full blocks
+     * @return false if the block doesn't belong to this download, true otherwise
+     */
+    boolean onBlock(Peer peer, Block block, @Nullable FilteredBlock filteredBlock) {
+        List<Request> requests;
+        lock.lock();
+        try {
+            if (!running)
+                return false;
+            Slot slot = slots.get(block.getHash());
+            if (slot == null)
+                return false;
+            if (slot.block != null)
+                return true; // Received twice, because the request stalled and was given to another peer.
+            if (useFilteredBlocks != (filteredBlock != null))
+                return false;
+            slot.block = block;
+            slot.filteredBlock = filteredBlock;
+            Request request = slot.request;
+            if (request != null) {
+                slot.request = null;
+                request.remaining.remove(slot);
+                if (request.remaining.isEmpty())
+                    request.owner.requests.remove(request);
+            } else {
+                // Arrived after the request stalled, but before it was handed to another peer.
+                unrequested.remove(slot);
+                blocksAhead++;
+            }
+            long bytes = sizeOf(block, filteredBlock);
+            slot.size = bytes;
+            blocksBuffered++;
+            bufferedBytes += bytes;
+            blocksReceived++;
+            bytesReceived += bytes;
+            PeerState state = peers.get(peer);
+            if (state != null) {
+                state.blocks++;
+                state.bytes += bytes;
+            }
+            requests = assignLocked();
+        } finally {
+            lock.unlock();
+        }
+        send(requests);
+        connectReceivedBlocks();
+        return true;
+    }
+
+    /** Handles a notfound message: the blocks the peer doesn't have are given to other peers right away. */
+    void onNotFound(Peer peer, List<InventoryItem> items) {
+        List<Request> requests;
+        lock.lock();
+        try {
+            PeerState state = peers.get(peer);
+            if (!running || state == null)
+                return;
+            boolean found = false;
+            for (InventoryItem item : items) {
+                Slot slot = slots.get(item.hash);
+                if (slot != null && slot.request != null && slot.request.owner == state) {
+                    Request request = slot.request;
+                    slot.request = null;
+                    request.remaining.remove(slot);
+                    if (request.remaining.isEmpty())
+                        state.requests.remove(request);
+                    unrequested.addFirst(slot);
+                    blocksAhead--;
+                    found = true;
+                }
+            }
+            if (!found)
+                return;
+            // Probably behind us, so don't ask it again for a while.
+            state.idleUntilMillis = Utils.currentTimeMillis() + stallTimeoutMillis;
+            requests = assignLocked();
+        } finally {
+            lock.unlock();
+        }
+        send(requests);
+    }
+
+    // Connects the blocks at the front of the queue, as far as they have been received.
+    private void connectReceivedBlocks() {
+        Peer fallbackPeer = null;
+        connectLock.lock();
+        try {
+            while (true) {
+                Peer peer;
+                Slot slot;
+                lock.lock();
+                try {
+                    if (!running)
+                        return;
+                    if (pending.isEmpty() && headersComplete) {
+                        log.info("Parallel block download complete: {}", statsLocked());
+                        fallbackPeer = downloadPeer;
+                        stopLocked();
+                        break;
+                    }
+                    slot = pending.peekFirst();
+                    peer = downloadPeer;
+                    if (slot == null || slot.block == null || peer == null)
+                        return;
+                    pending.pollFirst();
+                    slots.remove(slot.hash);
+                    blocksAhead--;
+                    blocksBuffered--;
+                    bufferedBytes -= slot.size;
+                } finally {
+                    lock.unlock();
+                }
+                try {
+                    if (peer.connectDownloadedBlock(slot.block, slot.filteredBlock)) {
+                        List<Request> requests;
+                        lock.lock();
+                        try {
+                            blocksConnected++;
+                            requests = assignLocked();
+                        } finally {
+                            lock.unlock();
+                        }
+                        send(requests);
+                    } else {
+                        // Either the Bloom filter ran out, and the peer restarts the download once it has a fresh one,
+                        // or the block doesn't connect, which the sequential download deals with.
+                        log.info("Block {} not connected, stopping parallel block download", slot.hash);
+                        stop();
+                        return;
+                    }
+                } catch (VerificationException e) {
+                    log.warn("{}: Block verification failed, stopping parallel block download", peer, e);
+                    stop();
+                    fallbackPeer = peer;
+                    break;
+                } catch (PrunedException e) {
+                    // Unreachable when in SPV mode.
+                    throw new RuntimeException(e);
+                }
+            }
+        } finally {
+            connectLock.unlock();
+        }
+        // From here on, the download peer follows new blocks as usual.
+        if (fallbackPeer != null)
+            fallbackPeer.startSingleChainDownload();
+    }
+
+    private void checkForStalls() {
+        List<Request> requests;
+        lock.lock();
+        try {
+            if (!running)
+                return;
+            long now = Utils.currentTimeMillis();
+            List<Request> stalled = new ArrayList<>();
+            for (PeerState state : peers.values()) {
+                for (Iterator<Request> it = state.requests.iterator(); it.hasNext(); ) {
+                    Request request = it.next();
+                    if (now - request.sentAtMillis < stallTimeoutMillis)
+                        continue;
+                    log.info("{}: Request for {} blocks stalled, asking other peers", state.peer,
+                            request.remaining.size());
+                    it.remove();
+                    stalled.add(request);
+                    state.idleUntilMillis = now + stallTimeoutMillis;
+                    stalls++;
+                }
+            }
+            requeueLocked(stalled);
+            requests = assignLocked();
+        } finally {
+            lock.unlock();
+        }
+        send(requests);
+    }
+
+    @GuardedBy("lock")
+    private void requeueLocked(List<Request> requests) {
+        Set<Slot> requeued = new HashSet<>();
+        for (Request request : requests) {
+            for (Slot slot : request.remaining) {
+                slot.request = null;
+                requeued.add(slot);
+                blocksAhead--;
+            }
+            request.remaining.clear();
+        }
+        // Put the blocks back at the front in chain order, so that the block the chain waits for comes first.
+        List<Slot> inOrder = new ArrayList<>(requeued.size());
+        for (Iterator<Slot> it = pending.iterator(); it.hasNext() && inOrder.size() < requeued.size(); ) {
+            Slot slot = it.next();
+            if (requeued.contains(slot))
+                inOrder.add(slot);
+        }
+        for (int i = inOrder.size() - 1; i >= 0; i--)
+            unrequested.addFirst(inOrder.get(i));
+    }
+
+    // Hands out requests to the peers that have room for them, one request per peer at a time so that the blocks
+    // nearest to the chain head are spread out.
+    @GuardedBy("lock")
+    private List<Request> assignLocked() {
+        List<Request> requests = new ArrayList<>();
+        if (!running)
+            return requests;
+        long now = Utils.currentTimeMillis();
+        boolean assigned = true;
+        while (assigned && !unrequested.isEmpty() && blocksAhead < MAX_BLOCKS_AHEAD
+                && withinBufferLimitLocked()) {
+            assigned = false;
+            for (PeerState state : peers.values()) {
+                if (unrequested.isEmpty() || blocksAhead >= MAX_BLOCKS_AHEAD || !withinBufferLimitLocked())
+                    break;
+                if (state.requests.size() >= MAX_REQUESTS_PER_PEER || state.idleUntilMillis > now
+                        || !canServe(state.peer))
+                    continue;
+                Set<Slot> remaining = new LinkedHashSet<>();
+                Request request = new Request(state, remaining, now);
+                while (remaining.size() < BLOCKS_PER_REQUEST && !unrequested.isEmpty()) {
+                    Slot slot = unrequested.pollFirst();
+                    slot.request = request;
+                    remaining.add(slot);
+                    blocksAhead++;
+                }
+                state.requests.add(request);
+                requests.add(request);
+                assigned = true;
+            }
+        }
+        // Keep enough headers around to give every peer something to do.
+        if (!headersComplete && !awaitingHeaders && unrequested.size() < MAX_BLOCKS_AHEAD)
+            requestHeadersLocked();
+        return requests;
+    }
+
+    // Whether another request fits into the byte limit. Blocks in flight are estimated at the average size of the
+    // blocks received so far. The block the chain waits for is always requested, or the download could get stuck.
+    @GuardedBy("lock")
+    private boolean withinBufferLimitLocked() {
+        if (unrequested.peekFirst() == pending.peekFirst())
+            return true;
+        long averageSize = blocksReceived == 0 ? 0 : bytesReceived / blocksReceived;
+        long inFlight = blocksAhead - blocksBuffered + BLOCKS_PER_REQUEST;
+        return bufferedBytes + inFlight * averageSize < maxBufferedBytes;
+    }
+
+    @GuardedBy("lock")
+    private boolean canServe(Peer peer) {
+        VersionMessage version = peer.getPeerVersionMessage();
+        if (version == null || !version.hasBlockChain())
+            return false;
+        return !useFilteredBlocks || version.isBloomFilteringSupported();
+    }
+
+    @GuardedBy("lock")
+    private void requestHeadersLocked() {
+        Peer peer = downloadPeer;
+        if (peer == null)
+            return;
+        BlockLocator locator = new BlockLocator();
+        if (!lastHeaderHash.equals(chain.getChainHead().getHeader().getHash())) {
+            // The headers we already have are known to connect.
+            locator = locator.add(lastHeaderHash);
+        } else {
+            // The peer may be on a different branch, so describe our chain the way Peer does.
+            BlockStore store = chain.getBlockStore();
+            StoredBlock cursor = chain.getChainHead();
+            for (int i = 100; cursor != null && i > 0; i--) {
+                locator = locator.add(cursor.getHeader().getHash());
+                try {
+                    cursor = cursor.getPrev(store);
+                } catch (BlockStoreException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            if (cursor != null)
+                locator = locator.add(params.getGenesisBlock().getHash());
+        }
+        awaitingHeaders = true;
+        peer.sendMessage(new GetHeadersMessage(params, locator, Sha256Hash.ZERO_HASH));
+    }
+
+    private void send(@Nullable List<Request> requests) {
+        if (requests == null)
+            return;
+        for (Request request : requests) {
+            Peer peer = request.owner.peer;
+            boolean witness = peer.getPeerVersionMessage().isWitnessSupported();
+            GetDataMessage getdata = new GetDataMessage(params);
+            boolean filtered;
+            lock.lock();
+            try {
+                filtered = useFilteredBlocks;
+                for (Slot slot : request.remaining) {
+                    if (filtered)
+                        getdata.addFilteredBlock(slot.hash);
+                    else
+                        getdata.addBlock(slot.hash, witness);
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (getdata.getItems().isEmpty())
+                continue;
+            peer.sendMessage(getdata);
+            // Like Peer, ping so that a pong marks the end of the last filtered block.
+            if (filtered)
+                peer.sendMessage(new Ping((long) (Math.random() * Long.MAX_VALUE)));
+        }
+    }
+
+    @GuardedBy("lock")
+    private void stopLocked() {
+        if (!running)
+            return;
+        running = false;
+        endTimeMillis = Utils.currentTimeMillis();
+        if (stallCheck != null) {
+            stallCheck.cancel(false);
+            stallCheck = null;
+        }
+        clearLocked();
+    }
+
+    @GuardedBy("lock")
+    private void clearLocked() {
+        pending.clear();
+        slots.clear();
+        unrequested.clear();
+        blocksAhead = blocksBuffered = 0;
+        bufferedBytes = 0;
+        awaitingHeaders = headersComplete = false;
+        for (PeerState state : peers.values()) {
+            state.requests.clear();
+            state.idleUntilMillis = 0;
+        }
+    }
+
+    private static long sizeOf(Block block, @Nullable FilteredBlock filteredBlock) {
+        if (filteredBlock == null)
+            return block.length == Message.UNKNOWN_LENGTH ? 0 : block.length;
+        long size = filteredBlock.length == Message.UNKNOWN_LENGTH ? 0 : filteredBlock.length;
+        for (Transaction tx : filteredBlock.getAssociatedTransactions().values())
+            size += tx.length == Message.UNKNOWN_LENGTH ? 0 : tx.length;
+        return size;
+    }
+
+    /**
+     * Sets the time after which a request that hasn't been answered is given to another peer. The peer that let it
+     * stall isn't given new requests for the same amount of time.
+     */
+    public void setStallTimeoutMillis(long stallTimeoutMillis) {
+        checkArgument(stallTimeoutMillis > 0);
+        lock.lock();
+        try {
+            this.stallTimeoutMillis = stallTimeoutMillis;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Limits the memory held by blocks that were received ahead of the chain and wait for their predecessors, for
+     * instance because a slow peer holds up the next block. New requests are only sent while the blocks waiting plus
+     * the blocks in flight, estimated at the average size received so far, stay under the limit. The request for the
+     * block the chain waits for is always sent. Defaults to {@link #DEFAULT_MAX_BUFFERED_BYTES}.
+     *
+     * <p>As the size of blocks in flight is only estimated, blocks larger than the ones before can push the memory used
+     * over the limit, as can the request for the block the chain waits for. Without this limit, full blocks of up to
+     * {@link Block#MAX_BLOCK_SIZE} bytes could take {@link #MAX_BLOCKS_AHEAD} times that much memory.</p>
+     */
+    public void setMaxBufferedBytes(long maxBufferedBytes) {
+        checkArgument(maxBufferedBytes > 0);
+        lock.lock();
+        try {
+            this.maxBufferedBytes = maxBufferedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of bytes of the blocks received but not connected to the chain yet. */
+    public long getBufferedBytes() {
+        lock.lock();
+        try {
+            return bufferedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of blocks connected to the chain by the current or last download. */
+    public long getBlocksConnected() {
+        lock.lock();
+        try {
+            return blocksConnected;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of block bytes received by the current or last download, transactions included. */
+    public long getBytesReceived() {
+        lock.lock();
+        try {
+            return bytesReceived;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of requests that stalled and were given to other peers. */
+    public long getStalls() {
+        lock.lock();
+        try {
+            return stalls;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of blocks requested but not received yet. */
+    public int getBlocksInFlight() {
+        lock.lock();
+        try {
+            int blocks = 0;
+            for (PeerState state : peers.values())
+                for (Request request : state.requests)
+                    blocks += request.remaining.size();
+            return blocks;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the average number of blocks connected per second over the current or last download. */
+    public double getBlocksPerSecond() {
+        lock.lock();
+        try {
+            return perSecondLocked(blocksConnected);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the average number of block bytes received per second over the current or last download. */
+    public double getBytesPerSecond() {
+        lock.lock();
+        try {
+            return perSecondLocked(bytesReceived);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of blocks received from the given peer by the current or last download. */
+    public long getBlocksReceivedFrom(Peer peer) {
+        lock.lock();
+        try {
+            PeerState state = peers.get(peer);
+            return state != null ? state.blocks : 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private double perSecondLocked(long count) {
+        if (startTimeMillis == 0)
+            return 0;
+        long end = running ? Utils.currentTimeMillis() : endTimeMillis;
+        long elapsedMillis = Math.max(1, end - startTimeMillis);
+        return count * 1000.0 / elapsedMillis;
+    }
+
+    @GuardedBy("lock")
+    private String statsLocked() {
+        return String.format(Locale.US, "%d blocks, %d bytes, %.1f blocks/sec, %.1f bytes/sec, %d stalls",
+                blocksConnected, bytesReceived, perSecondLocked(blocksConnected), perSecondLocked(bytesReceived),
+                stalls);
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return MoreObjects.toStringHelper(this).omitNullValues()
+                    .add("running", running)
+                    .add("downloadPeer", downloadPeer)
+                    .add("pending", pending.size())
+                    .add("blocksAhead", blocksAhead)
+                    .add("bufferedBytes", bufferedBytes)
+                    .add("blocksPerSecond", String.format(Locale.US, "%.1f", perSecondLocked(blocksConnected)))
+                    .add("bytesPerSecond", String.format(Locale.US, "%.1f", perSecondLocked(bytesReceived)))
+                    .toString();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.core;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+
+import static com.google.common.base.Preconditions.*;
+
+/**
+ * <p>Reads the payload of one message incrementally, for messages that arrive in many network reads such as large
+ * blocks. Bytes are hashed as they come in, so once the payload is complete its checksum is known without another pass
+ * over it, and the message is parsed from the array the bytes were read into rather than a copy. Created by
+ * {@link MessageSerializer#newPayloadReader(crownSerializer.crownPacketHeader)}.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple threads.</p>
+ */
+public final class PayloadReader {
+    private final MessageSerializer serializer;
+    private final crownSerializer.crownPacketHeader header;
+    private final byte[] payload;
+    private final MessageDigest digest = Sha256Hash.newDigest();
+    private int position;
+
+    PayloadReader(MessageSerializer serializer, crownSerializer.crownPacketHeader header) {
+        this.serializer = checkNotNull(serializer);
+        this.header = checkNotNull(header);
+        this.payload = new byte[header.size];
+    }
+
+    /** Returns the header of the message being read. */
+    public crownSerializer.crownPacketHeader getHeader() {
+        return header;
+    }
+
+    /**
+     * Reads as many payload bytes from the buffer as are available, but no more than the payload is missing.
+     * @return the number of bytes read
+     */
+    public int read(ByteBuffer in) {
+        int count = Math.min(in.remaining(), payload.length - position);
+        in.get(payload, position, count);
+        digest.update(payload, position, count);
+        position += count;
+        return count;
+    }
+
+    /** Returns the number of payload bytes still missing. */
+    public int remaining() {
+        return payload.length - position;
+    }
+
+    /** Returns true once the whole payload has been read. */
+    public boolean isComplete() {
+        return position == payload.length;
+    }
+
+    /**
+     * Verifies the checksum of the complete payload and parses the message.
+     * @throws ProtocolException if the checksum doesn't match or the message can't be parsed
+     */
+    public Message finish() throws ProtocolException {
+        checkState(isComplete(), "Payload incomplete, %s bytes missing", remaining());
+        byte[] hash = Sha256Hash.hash(digest.digest());
+        return serializer.decodePayload(header, payload, hash);
+    }
+
+    /**
+     * Verifies the checksum of a complete block payload and locates its transactions without parsing them.
+     * @throws ProtocolException if the checksum doesn't match or the transactions run past the payload
+     */
+    public TransactionSlices finishSlices() throws ProtocolException {
+        checkState(isComplete(), "Payload incomplete, %s bytes missing", remaining());
+        checkState(header.command.equals("block"), "Not a block: %s", header.command);
+        crownSerializer.verifyChecksum(header, Sha256Hash.hash(digest.digest()));
+        return TransactionSlices.ofBlock(serializer, payload, 0);
+    }
+}
@@ -108,6 +108,8 @@ public class Peer extends PeerSocketHandler {
     @GuardedBy("lock") private boolean downloadBlockBodies = true;
     // Whether to request filtered blocks instead of full blocks if the protocol version allows for them.
     @GuardedBy("lock") private boolean useFilteredBlocks = false;
+    // Whether we asked for headers and are still waiting for them, so block announcements don't ask again.
+    @GuardedBy("lock") private boolean headersRequested;
     // The current Bloom filter set on the connection, used to tell the remote peer what transactions to send us.
     private volatile BloomFilter vBloomFilter;
     // The last filtered block we received, we're waiting to fill it out with transactions.
@@ -116,6 +118,8 @@ public class Peer extends PeerSocketHandler {
     // to be calculated by the PeerGroup. The discarded block hashes should be added here so we can re-request them
     // once we've recalculated and resent a new filter.
     @GuardedBy("lock") @Nullable private List<Sha256Hash> awaitingFreshFilter;
+    // If non-null, block bodies are downloaded from several peers at once by this, instead of by this peer alone.
+    @Nullable private volatile ParallelBlockDownload vParallelDownload;
     // Keeps track of things we requested internally with getdata but didn't receive yet, so we can avoid re-requests.
     // It's not quite the same as getDataFutures, as this is used only for getdatas done as part of downloading
     // the chain and so is lighter weight (we just keep a bunch of hashes not futures).
@@ -145,6 +149,8 @@ public class Peer extends PeerSocketHandler {
     }
     // TODO: The types/locking should be rationalised a bit.
     private final CopyOnWriteArrayList<GetDataRequest> getDataFutures;
+    // Blocks requested with getBlockSlices(), answered with the located but unparsed transactions.
+    private final CopyOnWriteArrayList<GetDataRequest> getSlicesFutures;
     @GuardedBy("getAddrFutures") private final LinkedList<SettableFuture<AddressMessage>> getAddrFutures;
     @Nullable @GuardedBy("lock") private LinkedList<SettableFuture<UTXOsMessage>> getutxoFutures;
 
@@ -225,6 +231,7 @@ public class Peer extends PeerSocketHandler {
         this.requiredServices = requiredServices;
         this.vDownloadData = chain != null;
         this.getDataFutures = new CopyOnWriteArrayList<>();
+        this.getSlicesFutures = new CopyOnWriteArrayList<>();
         this.getAddrFutures = new LinkedList<>();
         this.fastCatchupTimeSecs = params.getGenesisBlock().getTimeSeconds();
         this.pendingPings = new CopyOnWriteArrayList<>();
@@ -605,6 +612,9 @@ public class Peer extends PeerSocketHandler {
         // in the chain).
         //
         // We go through and cancel the pending getdata futures for the items we were told weren't found.
+        ParallelBlockDownload parallelDownload = vParallelDownload;
+        if (parallelDownload != null)
+            parallelDownload.onNotFound(this, m.getItems());
         for (GetDataRequest req : getDataFutures) {
             for (InventoryItem item : m.getItems()) {
                 if (item.hash.equals(req.hash)) {
@@ -615,6 +625,16 @@ public class Peer extends PeerSocketHandler {
                 }
             }
         }
+        for (GetDataRequest req : getSlicesFutures) {
+            for (InventoryItem item : m.getItems()) {
+                if (item.hash.equals(req.hash)) {
+                    log.info("{}: Block {} not found", this, req.hash);
+                    req.future.cancel(true);
+                    getSlicesFutures.remove(req);
+                    break;
+                }
+            }
+        }
     }
 
     protected void processHeaders(HeadersMessage m) throws ProtocolException {
@@ -626,6 +646,14 @@ public class Peer extends PeerSocketHandler {
         // request the full blocks from that point on instead.
         boolean downloadBlockBodies;
         long fastCatchupTimeSecs;
+        boolean headersOnly;
+
+        ParallelBlockDownload parallelDownload = vParallelDownload;
+        if (parallelDownload != null && parallelDownload.isRunning()) {
+            if (!parallelDownload.onHeaders(this, m.getBlockHeaders()))
+                log.info("{}: Ignoring {} headers we did not ask for", this, m.getBlockHeaders().size());
+            return;
+        }
 
         lock.lock();
         try {
@@ -635,51 +663,68 @@ public class Peer extends PeerSocketHandler {
                 return;
             }
             fastCatchupTimeSecs = this.fastCatchupTimeSecs;
-            downloadBlockBodies = this.downloadBlockBodies;
+            downloadBlockBodies = downloadBodiesLocked();
+            headersOnly = blockChain.isHeadersOnly();
+            // Set again below once the next batch is requested, so a batch that fails to connect doesn't hold off the
+            // requests triggered by new blocks.
+            headersRequested = false;
         } finally {
             lock.unlock();
         }
 
         try {
             checkState(!downloadBlockBodies, toString());
-            for (int i = 0; i < m.getBlockHeaders().size(); i++) {
-                Block header = m.getBlockHeaders().get(i);
-                // Process headers until we pass the fast catchup time, or are about to catch up with the head
-                // of the chain - always process the last block as a full/filtered block to kick us out of the
-                // fast catchup mode (in which we ignore new blocks).
-                boolean passedTime = header.getTimeSeconds() >= fastCatchupTimeSecs;
-                boolean reachedTop = blockChain.getBestChainHeight() >= vPeerVersionMessage.bestHeight;
-                if (!passedTime && !reachedTop) {
-                    if (!vDownloadData) {
-                        // Not download peer anymore, some other peer probably became better.
-                        log.info("Lost download peer status, throwing away downloaded headers.");
-                        return;
-                    }
-                    if (blockChain.add(header)) {
-                        // The block was successfully linked into the chain. Notify the user of our progress.
-                        invokeOnBlocksDownloaded(header, null);
-                    } else {
-                        // This block is unconnected - we don't know how to get from it back to the genesis block yet.
-                        // That must mean that the peer is buggy or malicious because we specifically requested for
-                        // headers that are part of the best chain.
-                        throw new ProtocolException("Got unconnected header from peer: " + header.getHashAsString());
-                    }
-                } else {
-                    lock.lock();
-                    try {
-                        log.info(
-                                "Passed the fast catchup time ({}) at height {}, discarding {} headers and requesting full blocks",
-                                Utils.dateTimeFormat(fastCatchupTimeSecs * 1000), blockChain.getBestChainHeight() + 1,
-                                m.getBlockHeaders().size() - i);
-                        this.downloadBlockBodies = true;
-                        // Prevent this request being seen as a duplicate.
-                        this.lastGetBlocksBegin = Sha256Hash.ZERO_HASH;
-                        blockChainDownloadLocked(Sha256Hash.ZERO_HASH);
-                    } finally {
-                        lock.unlock();
-                    }
+            // Process headers until we pass the fast catchup time, or are about to catch up with the head of the
+            // chain - always process the last block as a full/filtered block to kick us out of the fast catchup mode
+            // (in which we ignore new blocks).
+            List<Block> headers = m.getBlockHeaders();
+            int bestHeight = blockChain.getBestChainHeight();
+            int count = 0;
+            while (count < headers.size()) {
+                boolean passedTime = headers.get(count).getTimeSeconds() >= fastCatchupTimeSecs;
+                boolean reachedTop = bestHeight + count >= vPeerVersionMessage.bestHeight;
+                if (!headersOnly && (passedTime || reachedTop))
+                    break;
+                count++;
+            }
+            if (count > 0) {
+                if (!vDownloadData) {
+                    // Not download peer anymore, some other peer probably became better.
+                    log.info("Lost download peer status, throwing away downloaded headers.");
                     return;
                 }
+                List<Block> run = headers.subList(0, count);
+                boolean connected;
+                try {
+                    connected = blockChain.addAll(run);
+                } finally {
+                    // Notify the user of our progress, including any headers linked into the chain before a failure.
+                    int linked = Math.min(blockChain.getBestChainHeight() - bestHeight, count);
+                    for (int i = 0; i < linked; i++)
+                        invokeOnBlocksDownloaded(run.get(i), null, bestHeight + i + 1);
+                }
+                if (!connected) {
+                    // Some headers are unconnected - we don't know how to get from them back to the genesis block
+                    // yet. That must mean that the peer is buggy or malicious because we specifically requested for
+                    // headers that are part of the best chain.
+                    throw new ProtocolException("Got unconnected headers from peer: " + run.get(0).getHashAsString());
+                }
+            }
+            if (count < headers.size()) {
+                lock.lock();
+                try {
+                    log.info(
+                            "Passed the fast catchup time ({}) at height {}, discarding {} headers and requesting full blocks",
+                            Utils.dateTimeFormat(fastCatchupTimeSecs * 1000), blockChain.getBestChainHeight() + 1,
+                            headers.size() - count);
+                    this.downloadBlockBodies = true;
+                    // Prevent this request being seen as a duplicate.
+                    this.lastGetBlocksBegin = Sha256Hash.ZERO_HASH;
+                    startChainDownloadLocked();
+                } finally {
+                    lock.unlock();
+                }
+                return;
             }
             // We added all headers in the message to the chain. Request some more if we got up to the limit, otherwise
             // we are at the end of the chain.
@@ -941,6 +986,9 @@ public class Peer extends PeerSocketHandler {
                 log.debug("Received block but was not configured with an AbstractBlockChain");
             return;
         }
+        ParallelBlockDownload parallelDownload = vParallelDownload;
+        if (parallelDownload != null && parallelDownload.onBlock(this, m, null))
+            return;
         // Did we lose download peer status after requesting block data?
         if (!vDownloadData) {
             if (log.isDebugEnabled())
@@ -997,6 +1045,9 @@ public class Peer extends PeerSocketHandler {
     protected void endFilteredBlock(FilteredBlock m) {
         if (log.isDebugEnabled())
             log.debug("{}: Received broadcast filtered block {}", getAddress(), m.getHash().toString());
+        ParallelBlockDownload parallelDownload = vParallelDownload;
+        if (parallelDownload != null && blockChain != null && parallelDownload.onBlock(this, m.getBlockHeader(), m))
+            return;
         if (!vDownloadData) {
             if (log.isDebugEnabled())
                 log.debug("{}: Received block we did not ask for: {}", getAddress(), m.getHash().toString());
@@ -1102,6 +1153,26 @@ public class Peer extends PeerSocketHandler {
         return exhausted;
     }
 
+    @Override
+    @Nullable
+    protected Message decode(PayloadReader reader) throws ProtocolException {
+        if (getSlicesFutures.isEmpty() || !reader.getHeader().command.equals("block"))
+            return super.decode(reader);
+        // Runs in network loop thread for this peer.
+        TransactionSlices slices = reader.finishSlices();
+        Sha256Hash hash = slices.getBlockHash();
+        boolean found = false;
+        for (GetDataRequest req : getSlicesFutures) {
+            if (hash.equals(req.hash)) {
+                req.future.set(slices);
+                getSlicesFutures.remove(req);
+                found = true;
+            }
+        }
+        // A block nobody asked slices of goes the usual way.
+        return found ? null : slices.parseBlock();
+    }
+
     private boolean maybeHandleRequestedData(Message m) {
         boolean found = false;
         Sha256Hash hash = m.getHash();
@@ -1117,10 +1188,15 @@ public class Peer extends PeerSocketHandler {
     }
 
     private void invokeOnBlocksDownloaded(final Block block, @Nullable final FilteredBlock fb) {
+        invokeOnBlocksDownloaded(block, fb, checkNotNull(blockChain).getBestChainHeight());
+    }
+
+    // The height is the one of the chain once the given block is connected.
+    private void invokeOnBlocksDownloaded(final Block block, @Nullable final FilteredBlock fb, int height) {
         // It is possible for the peer block height difference to be negative when blocks have been solved and broadcast
         // since the time we first connected to the peer. However, it's weird and unexpected to receive a callback
         // with negative "blocks left" in this case, so we clamp to zero so the API user doesn't have to think about it.
-        final int blocksLeft = Math.max(0, (int) vPeerVersionMessage.bestHeight - checkNotNull(blockChain).getBestChainHeight());
+        final int blocksLeft = Math.max(0, (int) vPeerVersionMessage.bestHeight - height);
         for (final ListenerRegistration<BlocksDownloadedEventListener> registration : blocksDownloadedEventListeners) {
             registration.executor.execute(new Runnable() {
                 @Override
@@ -1152,6 +1228,9 @@ public class Peer extends PeerSocketHandler {
         }
 
         final boolean downloadData = this.vDownloadData;
+        // Blocks are fetched by the parallel download while it runs, and followed by this peer again afterwards.
+        final ParallelBlockDownload parallelDownload = this.vParallelDownload;
+        final boolean downloadBlocks = downloadData && (parallelDownload == null || !parallelDownload.isRunning());
 
         if (transactions.size() == 0 && blocks.size() == 1) {
             // Single block announcement. If we're downloading the chain this is just a tickle to make us continue
@@ -1207,7 +1286,14 @@ public class Peer extends PeerSocketHandler {
 
         lock.lock();
         try {
-            if (blocks.size() > 0 && downloadData && blockChain != null) {
+            if (blocks.size() > 0 && downloadBlocks && blockChain != null && blockChain.isHeadersOnly()) {
+                // Fetch the headers of the announced blocks from our chain head, unless headers are on their way.
+                if (!headersRequested) {
+                    // Prevent this request being seen as a duplicate.
+                    lastGetBlocksBegin = Sha256Hash.ZERO_HASH;
+                    blockChainDownloadLocked(Sha256Hash.ZERO_HASH);
+                }
+            } else if (blocks.size() > 0 && downloadBlocks && blockChain != null) {
                 // Ideally, we'd only ask for the data here if we actually needed it. However that can imply a lot of
                 // disk IO to figure out what we've got. Normally peers will not send us inv for things we already have
                 // so we just re-request it here, and if we get duplicates the block chain / wallet will filter them out.
@@ -1277,6 +1363,23 @@ public class Peer extends PeerSocketHandler {
         return sendSingleGetData(getdata);
     }
 
+    /**
+     * Like {@link #getBlock(Sha256Hash)}, but the future completes with the transactions of the block located rather
+     * than parsed, see {@link TransactionSlices}. This is for callers that only want the few transactions of a block
+     * that concern them, e.g. a wallet scanning blocks matched by a compact filter. The block isn't passed to the
+     * chain, nor checked against its header beyond the message checksum.
+     */
+    public ListenableFuture<TransactionSlices> getBlockSlices(Sha256Hash blockHash) {
+        // This does not need to be locked.
+        log.info("Request to fetch slices of block {}", blockHash);
+        GetDataMessage getdata = new GetDataMessage(params);
+        getdata.addBlock(blockHash, true);
+        SettableFuture<TransactionSlices> future = SettableFuture.create();
+        getSlicesFutures.add(new GetDataRequest(blockHash, future));
+        sendMessage(getdata);
+        return future;
+    }
+
     /**
      * Asks the connected peer for the given transaction from its memory pool. Transactions in the chain cannot be
      * retrieved this way because peers don't have a transaction ID to transaction-pos-on-disk index, and besides,
@@ -1439,16 +1542,24 @@ public class Peer extends PeerSocketHandler {
         lastGetBlocksBegin = chainHeadHash;
         lastGetBlocksEnd = toHash;
 
-        if (downloadBlockBodies) {
+        if (downloadBodiesLocked()) {
             GetBlocksMessage message = new GetBlocksMessage(params, blockLocator, toHash);
             sendMessage(message);
         } else {
             // Downloading headers for a while instead of full blocks.
             GetHeadersMessage message = new GetHeadersMessage(params, blockLocator, toHash);
+            headersRequested = true;
             sendMessage(message);
         }
     }
 
+    // Whether block bodies are downloaded rather than just headers, because we are past the fast catchup time and
+    // the chain isn't in headers-only mode.
+    @GuardedBy("lock")
+    private boolean downloadBodiesLocked() {
+        return downloadBlockBodies && !checkNotNull(blockChain).isHeadersOnly();
+    }
+
     /**
      * Starts an asynchronous download of the block chain. The chain download is deemed to be complete once we've
      * downloaded the same number of blocks that the peer advertised having in its version handshake message.
@@ -1470,13 +1581,70 @@ public class Peer extends PeerSocketHandler {
             // When we just want as many blocks as possible, we can set the target hash to zero.
             lock.lock();
             try {
-                blockChainDownloadLocked(Sha256Hash.ZERO_HASH);
+                startChainDownloadLocked();
             } finally {
                 lock.unlock();
             }
         }
     }
 
+    // Starts downloading from the chain head: block bodies from several peers if a parallel download is set and we
+    // are past the fast catchup time, otherwise from this peer alone.
+    @GuardedBy("lock")
+    private void startChainDownloadLocked() {
+        ParallelBlockDownload parallelDownload = vParallelDownload;
+        if (parallelDownload != null && downloadBodiesLocked())
+            parallelDownload.start(this, useFilteredBlocks && vPeerVersionMessage.isBloomFilteringSupported());
+        else
+            blockChainDownloadLocked(Sha256Hash.ZERO_HASH);
+    }
+
+    /** Downloads the chain from this peer alone, for instance once a parallel download has caught up. */
+    void startSingleChainDownload() {
+        lock.lock();
+        try {
+            // Prevent this request being seen as a duplicate.
+            lastGetBlocksBegin = Sha256Hash.ZERO_HASH;
+            blockChainDownloadLocked(Sha256Hash.ZERO_HASH);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Connects a block fetched by a {@link ParallelBlockDownload} to the chain and notifies the listeners of this
+     * peer, as if it had downloaded the block itself.
+     * @return false if the block exhausted the Bloom filter, in which case the download restarts once a fresh filter
+     * has been set
+     * @throws VerificationException if the block is invalid or doesn't connect to the chain
+     */
+    boolean connectDownloadedBlock(Block block, @Nullable FilteredBlock fb)
+            throws VerificationException, PrunedException {
+        checkNotNull(blockChain);
+        if (fb != null) {
+            lock.lock();
+            try {
+                if (checkForFilterExhaustion(fb)) {
+                    log.info("Bloom filter exhausted whilst processing block {}, discarding", fb.getHash());
+                    awaitingFreshFilter = new LinkedList<>();
+                    awaitingFreshFilter.add(fb.getHash());
+                    return false;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        if (!(fb != null ? blockChain.add(fb) : blockChain.add(block)))
+            throw new VerificationException("Downloaded block doesn't connect to the chain: " + block.getHashAsString());
+        invokeOnBlocksDownloaded(block, fb);
+        return true;
+    }
+
+    /** Sets the parallel download that fetches block bodies instead of this peer, or null to download alone. */
+    void setParallelDownload(@Nullable ParallelBlockDownload parallelDownload) {
+        this.vParallelDownload = parallelDownload;
+    }
+
     private class PendingPing {
         // The future that will be invoked when the pong is heard back.
         public final SettableFuture<Long> future;
@@ -1709,13 +1877,24 @@ public class Peer extends PeerSocketHandler {
      * unset a filter, though the underlying p2p protocol does support it.</p>
      */
     public void setBloomFilter(BloomFilter filter, boolean andQueryMemPool) {
+        setBloomFilter(filter, null, andQueryMemPool);
+    }
+
+    /**
+     * Like {@link #setBloomFilter(BloomFilter, boolean)}, but sends the given frame of the filter if not null, so that
+     * the filter is serialized only once for all peers.
+     */
+    void setBloomFilter(BloomFilter filter, @Nullable MessageFrame filterFrame, boolean andQueryMemPool) {
         checkNotNull(filter, "Clearing filters is not currently supported");
         final VersionMessage version = vPeerVersionMessage;
         checkNotNull(version, "Cannot set filter before version handshake is complete");
         if (version.isBloomFilteringSupported()) {
             vBloomFilter = filter;
             log.info("{}: Sending Bloom filter{}", this, andQueryMemPool ? " and querying mempool" : "");
-            sendMessage(filter);
+            if (filterFrame != null)
+                sendMessage(filterFrame);
+            else
+                sendMessage(filter);
             if (andQueryMemPool)
                 sendMessage(new MemoryPoolMessage());
             maybeRestartChainDownload();
@@ -1742,6 +1921,17 @@ public class Peer extends PeerSocketHandler {
                 public void run() {
                     lock.lock();
                     checkNotNull(awaitingFreshFilter);
+                    if (vParallelDownload != null) {
+                        // Blocks already connected are skipped by the new download, so there is nothing to re-request.
+                        awaitingFreshFilter = null;
+                        log.info("Restarting chain download");
+                        try {
+                            startChainDownloadLocked();
+                        } finally {
+                            lock.unlock();
+                        }
+                        return;
+                    }
                     GetDataMessage getdata = new GetDataMessage(params);
                     for (Sha256Hash hash : awaitingFreshFilter)
                         getdata.addFilteredBlock(hash);
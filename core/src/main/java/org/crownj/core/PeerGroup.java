@@ -113,6 +113,8 @@ public class PeerGroup implements TransactionBroadcaster {
     @GuardedBy("lock") private Peer downloadPeer;
     // Callback for events related to chain download.
     @Nullable @GuardedBy("lock") private PeerDataEventListener downloadListener;
+    // If non-null, block bodies are downloaded from all suitable peers at once.
+    @Nullable @GuardedBy("lock") private ParallelBlockDownload parallelDownload;
     private final CopyOnWriteArrayList<ListenerRegistration<BlocksDownloadedEventListener>> peersBlocksDownloadedEventListeners
         = new CopyOnWriteArrayList<>();
     private final CopyOnWriteArrayList<ListenerRegistration<ChainDownloadStartedEventListener>> peersChainDownloadStartedEventListeners
@@ -1291,11 +1293,13 @@ public class PeerGroup implements TransactionBroadcaster {
                         throw new UnsupportedOperationException();
                 }
                 if (send) {
+                    // Serialize once, all peers are sent the same bytes.
+                    MessageFrame filterFrame = params.getDefaultSerializer().serializeFrame(result.filter);
                     for (Peer peer : peers /* COW */) {
                         // Only query the mempool if this recalculation request is not in order to lower the observed FP
                         // rate. There's no point querying the mempool when doing this because the FP rate can only go
                         // down, and we will have seen all the relevant txns before: it's pointless to ask for them again.
-                        peer.setBloomFilter(result.filter, mode != FilterRecalculateMode.FORCE_SEND_FOR_REFRESH);
+                        peer.setBloomFilter(result.filter, filterFrame, mode != FilterRecalculateMode.FORCE_SEND_FOR_REFRESH);
                     }
                     // Reset the false positive estimate so that we don't send a flood of filter updates
                     // if the estimate temporarily overshoots our threshold.
@@ -1523,6 +1527,10 @@ public class PeerGroup implements TransactionBroadcaster {
             // OK because it helps improve wallet privacy. Old nodes will just ignore the message.
             if (bloomFilterMerger.getLastFilter() != null) peer.setBloomFilter(bloomFilterMerger.getLastFilter());
             peer.setDownloadData(false);
+            if (parallelDownload != null) {
+                peer.setParallelDownload(parallelDownload);
+                parallelDownload.addPeer(peer);
+            }
             // TODO: The peer should calculate the fast catchup time from the added wallets here.
             for (Wallet wallet : wallets)
                 peer.addWallet(wallet);
@@ -1683,6 +1691,8 @@ public class PeerGroup implements TransactionBroadcaster {
             PeerAddress address = peer.getAddress();
 
             log.info("{}: Peer died      ({} connected, {} pending, {} max)", address, peers.size(), pendingPeers.size(), maxConnections);
+            if (parallelDownload != null)
+                parallelDownload.removePeer(peer);
             if (peer == downloadPeer) {
                 log.info("Download peer died. Picking a new one.");
                 setDownloadPeer(null);
@@ -2337,6 +2347,53 @@ public class PeerGroup implements TransactionBroadcaster {
         }
     }
 
+    /**
+     * If true, block bodies are downloaded from all suitable connected peers at once rather than from the download peer
+     * alone: the download peer supplies the headers, and the blocks are requested in ranges from every peer. See
+     * {@link ParallelBlockDownload}. Defaults to false. Call this before starting block chain download.
+     *
+     * <p>Blocks received ahead of the chain are held in memory until their predecessors arrive, by default up to
+     * {@link ParallelBlockDownload#DEFAULT_MAX_BUFFERED_BYTES}. When downloading full blocks, consider lowering that
+     * limit on memory constrained devices with {@link ParallelBlockDownload#setMaxBufferedBytes(long)}, see
+     * {@link #getParallelDownload()}.</p>
+     */
+    public void setParallelDownload(boolean parallelDownload) {
+        lock.lock();
+        try {
+            checkState(chain != null, "Parallel download requires a block chain");
+            if (parallelDownload == (this.parallelDownload != null))
+                return;
+            if (parallelDownload) {
+                this.parallelDownload = new ParallelBlockDownload(params, chain, executor);
+                for (Peer peer : peers) {
+                    peer.setParallelDownload(this.parallelDownload);
+                    this.parallelDownload.addPeer(peer);
+                }
+            } else {
+                this.parallelDownload.stop();
+                for (Peer peer : peers)
+                    peer.setParallelDownload(null);
+                this.parallelDownload = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the parallel block download, which reports its throughput, or null if it isn't enabled. See
+     * {@link #setParallelDownload(boolean)}.
+     */
+    @Nullable
+    public ParallelBlockDownload getParallelDownload() {
+        lock.lock();
+        try {
+            return parallelDownload;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * When true (the default), PeerGroup will attempt to connect to a crown node running on localhost before
      * attempting to use the P2P network. If successful, only localhost will be used. This makes for a simple
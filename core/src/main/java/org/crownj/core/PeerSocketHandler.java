@@ -28,7 +28,6 @@ import com.google.common.annotations.VisibleForTesting;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
@@ -38,6 +37,8 @@ import java.nio.ByteBuffer;
 import java.nio.channels.NotYetConnectedException;
 import java.util.concurrent.locks.Lock;
 
+import javax.annotation.Nullable;
+
 import static com.google.common.base.Preconditions.*;
 
 /**
@@ -48,6 +49,7 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
     private static final Logger log = LoggerFactory.getLogger(PeerSocketHandler.class);
     private final Lock lock = Threading.lock(PeerSocketHandler.class);
 
+    private final NetworkParameters params;
     private final MessageSerializer serializer;
     protected PeerAddress peerAddress;
     // If we close() before we know our writeTarget, set this to true to call writeTarget.closeConnection() right away.
@@ -57,19 +59,17 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
 
     // The ByteBuffers passed to us from the writeTarget are static in size, and usually smaller than some messages we
     // will receive. For SPV clients, this should be rare (ie we're mostly dealing with small transactions), but for
-    // messages which are larger than the read buffer, we have to keep a temporary buffer with its bytes.
-    private byte[] largeReadBuffer;
-    private int largeReadBufferPos;
-    private crownSerializer.crownPacketHeader header;
+    // messages which are larger than the read buffer, we collect the payload as it arrives, hashing it on the way.
+    private PayloadReader largePayload;
 
     public PeerSocketHandler(NetworkParameters params, InetSocketAddress remoteIp) {
-        checkNotNull(params);
+        this.params = checkNotNull(params);
         serializer = params.getDefaultSerializer();
         this.peerAddress = new PeerAddress(params, remoteIp);
     }
 
     public PeerSocketHandler(NetworkParameters params, PeerAddress peerAddress) {
-        checkNotNull(params);
+        this.params = checkNotNull(params);
         serializer = params.getDefaultSerializer();
         this.peerAddress = checkNotNull(peerAddress);
     }
@@ -87,11 +87,29 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
         } finally {
             lock.unlock();
         }
-        // TODO: Some round-tripping could be avoided here
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        return write(serializer.serializeFrame(message));
+    }
+
+    /**
+     * Sends the given pre-serialized message to the peer, sharing its bytes with any other peers it is sent to. Due to
+     * the asynchronousness of network programming, there is no guarantee the peer will have received it. Throws
+     * NotYetConnectedException if we are not yet connected to the remote peer.
+     */
+    public ListenableFuture sendMessage(MessageFrame frame) throws NotYetConnectedException {
+        checkArgument(frame.getParams().getPacketMagic() == params.getPacketMagic(), "Frame of other network: %s", frame);
+        lock.lock();
+        try {
+            if (writeTarget == null)
+                throw new NotYetConnectedException();
+        } finally {
+            lock.unlock();
+        }
+        return write(frame);
+    }
+
+    private ListenableFuture write(MessageFrame frame) {
         try {
-            serializer.serialize(message, out);
-            return writeTarget.writeBytes(out.toByteArray());
+            return writeTarget.writeBytes(frame.bytes());
         } catch (IOException e) {
             exceptionCaught(e);
             return Futures.immediateFailedFuture(e);
@@ -125,6 +143,16 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
      */
     protected abstract void processMessage(Message m) throws Exception;
 
+    /**
+     * Called with the complete payload of every message received, to turn it into the message passed to
+     * {@link #processMessage(Message)}. Subclasses can take over messages they'd rather not have parsed in full, by
+     * returning null once they've handled them.
+     */
+    @Nullable
+    protected Message decode(PayloadReader reader) throws ProtocolException {
+        return reader.finish();
+    }
+
     @Override
     public int receiveBytes(ByteBuffer buff) {
         checkArgument(buff.position() == 0 &&
@@ -134,41 +162,45 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
             boolean firstMessage = true;
             while (true) {
                 // If we are in the middle of reading a message, try to fill that one first, before we expect another
-                if (largeReadBuffer != null) {
+                if (largePayload != null) {
                     // This can only happen in the first iteration
                     checkState(firstMessage);
-                    // Read new bytes into the largeReadBuffer
-                    int bytesToGet = Math.min(buff.remaining(), largeReadBuffer.length - largeReadBufferPos);
-                    buff.get(largeReadBuffer, largeReadBufferPos, bytesToGet);
-                    largeReadBufferPos += bytesToGet;
-                    // Check the largeReadBuffer's status
-                    if (largeReadBufferPos == largeReadBuffer.length) {
+                    // Read new bytes into the largePayload
+                    largePayload.read(buff);
+                    // Check the largePayload's status
+                    if (largePayload.isComplete()) {
                         // ...processing a message if one is available
-                        processMessage(serializer.deserializePayload(header, ByteBuffer.wrap(largeReadBuffer)));
-                        largeReadBuffer = null;
-                        header = null;
+                        PayloadReader complete = largePayload;
+                        largePayload = null;
+                        Message message = decode(complete);
+                        if (message != null)
+                            processMessage(message);
                         firstMessage = false;
                     } else // ...or just returning if we don't have enough bytes yet
                         return buff.position();
                 }
                 // Now try to deserialize any messages left in buff
-                Message message;
+                PayloadReader reader;
                 int preSerializePosition = buff.position();
                 try {
-                    message = serializer.deserialize(buff);
+                    serializer.seekPastMagicBytes(buff);
+                    crownSerializer.crownPacketHeader header = serializer.deserializeHeader(buff);
+                    if (buff.remaining() < header.size)
+                        throw new BufferUnderflowException();
+                    reader = serializer.newPayloadReader(header);
+                    reader.read(buff);
                 } catch (BufferUnderflowException e) {
-                    // If we went through the whole buffer without a full message, we need to use the largeReadBuffer
+                    // If we went through the whole buffer without a full message, we need to use the largePayload
                     if (firstMessage && buff.limit() == buff.capacity()) {
                         // ...so reposition the buffer to 0 and read the next message header
                         ((Buffer) buff).position(0);
                         try {
                             serializer.seekPastMagicBytes(buff);
-                            header = serializer.deserializeHeader(buff);
-                            // Initialize the largeReadBuffer with the next message's size and fill it with any bytes
-                            // left in buff
-                            largeReadBuffer = new byte[header.size];
-                            largeReadBufferPos = buff.remaining();
-                            buff.get(largeReadBuffer, 0, largeReadBufferPos);
+                            crownSerializer.crownPacketHeader header = serializer.deserializeHeader(buff);
+                            // Start the largePayload with the next message's header and fill it with any bytes left
+                            // in buff
+                            largePayload = serializer.newPayloadReader(header);
+                            largePayload.read(buff);
                         } catch (BufferUnderflowException e1) {
                             // If we went through a whole buffer's worth of bytes without getting a header, give up
                             // In cases where the buff is just really small, we could create a second largeReadBuffer
@@ -184,7 +216,9 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
                     return buff.position();
                 }
                 // Process our freshly deserialized message
-                processMessage(message);
+                Message message = decode(reader);
+                if (message != null)
+                    processMessage(message);
                 firstMessage = false;
             }
         } catch (Exception e) {
@@ -0,0 +1,257 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.core;
+
+import com.google.common.base.Stopwatch;
+import org.crownj.script.Script;
+import org.crownj.script.Script.VerifyFlag;
+import org.crownj.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.google.common.base.Preconditions.*;
+
+/**
+ * <p>Verifies the input scripts of blocks on a long-lived {@link ForkJoinPool}. While a block is being connected, the
+ * signature checks of its transactions are collected with {@link BlockVerification#add(Transaction, List, Set)} and
+ * handed to the pool in batches of roughly {@link #getBatchInputs()} inputs, so that verification overlaps with the
+ * lookups of further unspent outputs. {@link BlockVerification#complete()} waits for the outstanding batches. As soon
+ * as one check fails, all batches that haven't got to their checks yet skip them.</p>
+ *
+ * <p>The inputs of a transaction are always verified by the same batch, one after another, as checking a signature
+ * serializes the transaction and that is not safe to do concurrently.</p>
+ *
+ * <p>Pool threads are started on demand and inherit the {@link Context} of the thread that submits the work. They are
+ * daemon threads that go away when idle, so an engine doesn't need to be shut down unless its threads should stop
+ * right away.</p>
+ */
+public class ScriptVerificationEngine {
+    private static final Logger log = LoggerFactory.getLogger(ScriptVerificationEngine.class);
+
+    /** Default number of inputs that are verified by one task. */
+    public static final int DEFAULT_BATCH_INPUTS = 32;
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    private final ForkJoinPool pool;
+    private final int batchInputs;
+
+    /** Creates an engine with a thread per available processor and the default batch size. */
+    public ScriptVerificationEngine() {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_BATCH_INPUTS);
+    }
+
+    /**
+     * Creates an engine.
+     * @param parallelism number of threads verifying scripts
+     * @param batchInputs number of inputs after which collected checks are handed to the pool as a task
+     */
+    public ScriptVerificationEngine(int parallelism, int batchInputs) {
+        checkArgument(parallelism > 0);
+        checkArgument(batchInputs > 0);
+        this.batchInputs = batchInputs;
+        this.pool = new ForkJoinPool(parallelism, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+            @Override
+            public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                // Threads are started on demand by the thread submitting work, or by other pool threads.
+                return new WorkerThread(pool, Context.get());
+            }
+        }, Threading.uncaughtExceptionHandler, false);
+    }
+
+    /** Returns the number of threads verifying scripts. */
+    public int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    /** Returns the number of inputs after which collected checks are handed to the pool. */
+    public int getBatchInputs() {
+        return batchInputs;
+    }
+
+    /**
+     * Starts collecting the checks of a block.
+     * @param blockHash hash of the block, used for reporting
+     */
+    public BlockVerification begin(Sha256Hash blockHash) {
+        return new BlockVerification(blockHash);
+    }
+
+    /** Stops the threads. Blocks can no longer be verified afterwards. */
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    /** The signature checks of a single block. Instances are used by a single thread, the one connecting the block. */
+    public class BlockVerification {
+        private final Sha256Hash blockHash;
+        private final Stopwatch watch = Stopwatch.createStarted();
+        private final List<Batch> submitted = new ArrayList<>();
+        private final AtomicReference<VerificationException> failure = new AtomicReference<>();
+        private Batch pending = new Batch();
+        private int inputs;
+
+        private BlockVerification(Sha256Hash blockHash) {
+            this.blockHash = blockHash;
+        }
+
+        /**
+         * Queues the check of all inputs of the given transaction. Because checking modifies the transaction, it must
+         * not be touched anymore until {@link #complete()} returns.
+         * @param tx transaction to check
+         * @param prevOutScripts the scripts of the outputs spent by the inputs, in input order
+         * @param verifyFlags flags to check the scripts with
+         */
+        public void add(Transaction tx, List<Script> prevOutScripts, Set<VerifyFlag> verifyFlags) {
+            checkArgument(tx.getInputs().size() == prevOutScripts.size());
+            pending.add(new Check(tx, prevOutScripts, verifyFlags));
+            inputs += prevOutScripts.size();
+            if (pending.inputs >= batchInputs)
+                submit();
+        }
+
+        /**
+         * Waits for all checks of the block. Even after a check has failed, the other batches are waited for, so that
+         * no transaction is touched anymore once this returns. Those that haven't got to their checks yet skip them.
+         * @throws VerificationException the first failure found, if any
+         */
+        public void complete() throws VerificationException {
+            if (!pending.checks.isEmpty())
+                submit();
+            // Not cancelling batches, as join() treats a cancelled task as done even while it is still running.
+            for (Batch batch : submitted)
+                batch.join();
+            watch.stop();
+            VerificationException e = failure.get();
+            if (e != null) {
+                log.info("Script verification of block {} failed after {}", blockHash, watch);
+                throw e;
+            }
+            if (log.isDebugEnabled())
+                log.debug("Verified {} inputs of block {} in {} batches, took {}", inputs, blockHash,
+                        submitted.size(), watch);
+        }
+
+        /** Makes all outstanding checks of the block a no-op, for when the block fails for another reason. */
+        public void cancel() {
+            failure.compareAndSet(null, new VerificationException("Script verification cancelled"));
+        }
+
+        /** Returns the number of inputs queued so far. */
+        public int getInputCount() {
+            return inputs;
+        }
+
+        /** Returns the time since the verification started, or the time it took if it is complete. */
+        public long getElapsedMillis() {
+            return watch.elapsed(TimeUnit.MILLISECONDS);
+        }
+
+        private void submit() {
+            Batch batch = pending;
+            pending = new Batch();
+            submitted.add(batch);
+            pool.execute(batch);
+        }
+
+        /** A number of transactions whose inputs are verified by one task. */
+        private class Batch extends RecursiveAction {
+            private final List<Check> checks = new ArrayList<>();
+            private int inputs;
+
+            void add(Check check) {
+                checks.add(check);
+                inputs += check.prevOutScripts.size();
+            }
+
+            @Override
+            protected void compute() {
+                for (Check check : checks) {
+                    if (failure.get() != null)
+                        return;
+                    VerificationException e = check.run(failure);
+                    if (e != null) {
+                        failure.compareAndSet(null, e);
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /** The checks of all inputs of a transaction. */
+    private static class Check {
+        final Transaction tx;
+        final List<Script> prevOutScripts;
+        final Set<VerifyFlag> verifyFlags;
+
+        Check(Transaction tx, List<Script> prevOutScripts, Set<VerifyFlag> verifyFlags) {
+            this.tx = tx;
+            this.prevOutScripts = prevOutScripts;
+            this.verifyFlags = verifyFlags;
+        }
+
+        /** Verifies the inputs one by one, giving up early once the block has failed elsewhere. */
+        @Nullable
+        VerificationException run(AtomicReference<VerificationException> failure) {
+            try {
+                int index = 0;
+                for (Script prevOutScript : prevOutScripts) {
+                    if (failure.get() != null)
+                        return null;
+                    tx.getInputs().get(index).getScriptSig().correctlySpends(tx, index, null, null, prevOutScript,
+                            verifyFlags);
+                    index++;
+                }
+                return null;
+            } catch (VerificationException e) {
+                return e;
+            } catch (RuntimeException e) {
+                log.error("Script.correctlySpends threw a non-normal exception: " + e);
+                return new VerificationException(
+                        "Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", e);
+            }
+        }
+    }
+
+    private static class WorkerThread extends ForkJoinWorkerThread {
+        private final Context context;
+
+        WorkerThread(ForkJoinPool pool, Context context) {
+            super(pool);
+            this.context = context;
+            setName("Script verification " + threadCount.incrementAndGet());
+        }
+
+        @Override
+        protected void onStart() {
+            super.onStart();
+            Context.propagate(context);
+        }
+    }
+}
@@ -25,6 +25,9 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.Serializable;
 import java.math.BigInteger;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
@@ -41,6 +44,16 @@ public class Sha256Hash implements Serializable, Comparable<Sha256Hash> {
     public static final int LENGTH = 32; // bytes
     public static final Sha256Hash ZERO_HASH = wrap(new byte[LENGTH]);
 
+    // Looking up and instantiating a MessageDigest is expensive compared to hashing a header or a transaction, so the
+    // static helpers below share one instance per thread. They never call out while using it, so it can't be used
+    // re-entrantly.
+    private static final ThreadLocal<MessageDigest> DIGEST = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            return newDigest();
+        }
+    };
+
     private final byte[] bytes;
 
     private Sha256Hash(byte[] rawHashBytes) {
@@ -82,6 +95,24 @@ public class Sha256Hash implements Serializable, Comparable<Sha256Hash> {
         return wrap(Utils.reverseBytes(rawHashBytes));
     }
 
+    /**
+     * Creates a new instance that wraps the 32 bytes at the given offset of the given array, but with byte order
+     * reversed. Equivalent to, but cheaper than, wrapping a reversed copy of the range.
+     *
+     * @param bytes the array containing the raw hash bytes
+     * @param offset the offset of the raw hash bytes within the array
+     * @return a new instance
+     * @throws ArrayIndexOutOfBoundsException if the array has fewer than 32 bytes after the offset
+     */
+    public static Sha256Hash wrapReversed(byte[] bytes, int offset) {
+        if (offset < 0 || bytes.length - offset < LENGTH)
+            throw new ArrayIndexOutOfBoundsException(offset);
+        byte[] reversed = new byte[LENGTH];
+        for (int i = 0; i < LENGTH; i++)
+            reversed[i] = bytes[offset + LENGTH - 1 - i];
+        return new Sha256Hash(reversed);
+    }
+
     /**
      * Creates a new instance containing the calculated (one-time) hash of the given bytes.
      *
@@ -113,6 +144,27 @@ public class Sha256Hash implements Serializable, Comparable<Sha256Hash> {
         return wrap(hashTwice(content1, content2));
     }
 
+    /**
+     * Creates a new instance containing the hash of the calculated hash of the given byte range, with byte order
+     * reversed. This is how block and transaction ids are calculated from their serialized form. It is equivalent to,
+     * but cheaper than, {@code wrapReversed(hashTwice(input, offset, length))}.
+     *
+     * @param input the array containing the bytes to hash
+     * @param offset the offset within the array of the bytes to hash
+     * @param length the number of bytes to hash
+     * @return a new instance containing the calculated (two-time) hash, reversed
+     */
+    public static Sha256Hash twiceOfReversed(byte[] input, int offset, int length) {
+        byte[] hash = new byte[LENGTH];
+        hashTwice(input, offset, length, hash, 0);
+        for (int i = 0, j = LENGTH - 1; i < j; i++, j--) {
+            byte b = hash[i];
+            hash[i] = hash[j];
+            hash[j] = b;
+        }
+        return new Sha256Hash(hash);
+    }
+
     /**
      * Creates a new instance containing the calculated (one-time) hash of the given file's contents.
      *
@@ -144,6 +196,25 @@ public class Sha256Hash implements Serializable, Comparable<Sha256Hash> {
         }
     }
 
+    /** Returns the digest of the calling thread, reset and ready for use. */
+    private static MessageDigest threadDigest() {
+        MessageDigest digest = DIGEST.get();
+        // A previous user may have bailed out half way, e.g. because of an out of range argument.
+        digest.reset();
+        return digest;
+    }
+
+    /** Finishes the digest, hashes the result again and writes it to the given array. */
+    private static void digestTwice(MessageDigest digest, byte[] output, int outputOffset) {
+        try {
+            digest.digest(output, outputOffset, LENGTH);
+            digest.update(output, outputOffset, LENGTH);
+            digest.digest(output, outputOffset, LENGTH);
+        } catch (DigestException e) {
+            throw new RuntimeException(e);  // Can't happen.
+        }
+    }
+
     /**
      * Calculates the SHA-256 hash of the given bytes.
      *
@@ -163,7 +234,7 @@ public class Sha256Hash implements Serializable, Comparable<Sha256Hash> {
      * @return the hash (in big-endian order)
      */
     public static byte[] hash(byte[] input, int offset, int length) {
-        MessageDigest digest = newDigest();
+        MessageDigest digest = threadDigest();
         digest.update(input, offset, length);
         return digest.digest();
     }
@@ -184,7 +255,7 @@ public class Sha256Hash implements Serializable, Comparable<Sha256Hash> {
      * chunks and then passing the result to {@link #hashTwice(byte[])}.
      */
     public static byte[] hashTwice(byte[] input1, byte[] input2) {
-        MessageDigest digest = newDigest();
+        MessageDigest digest = threadDigest();
         digest.update(input1);
         digest.update(input2);
         return digest.digest(digest.digest());
@@ -200,7 +271,7 @@ public class Sha256Hash implements Serializable, Comparable<Sha256Hash> {
      * @return the double-hash (in big-endian order)
      */
     public static byte[] hashTwice(byte[] input, int offset, int length) {
-        MessageDigest digest = newDigest();
+        MessageDigest digest = threadDigest();
         digest.update(input, offset, length);
         return digest.digest(digest.digest());
     }
@@ -211,12 +282,50 @@ public class Sha256Hash implements Serializable, Comparable<Sha256Hash> {
      */
     public static byte[] hashTwice(byte[] input1, int offset1, int length1,
                                    byte[] input2, int offset2, int length2) {
-        MessageDigest digest = newDigest();
+        MessageDigest digest = threadDigest();
         digest.update(input1, offset1, length1);
         digest.update(input2, offset2, length2);
         return digest.digest(digest.digest());
     }
 
+    /**
+     * Calculates the SHA-256 hash of the given byte range, and then hashes the resulting hash again. Instead of
+     * allocating a new array, the double-hash is written to the given one.
+     *
+     * @param input the array containing the bytes to hash
+     * @param offset the offset within the array of the bytes to hash
+     * @param length the number of bytes to hash
+     * @param output the array to write the double-hash (in big-endian order) to
+     * @param outputOffset the offset within the output array to write the 32 bytes of the double-hash to
+     */
+    public static void hashTwice(byte[] input, int offset, int length, byte[] output, int outputOffset) {
+        MessageDigest digest = threadDigest();
+        digest.update(input, offset, length);
+        digestTwice(digest, output, outputOffset);
+    }
+
+    /**
+     * Calculates the SHA-256 hash of the remaining bytes of the input buffer, and then hashes the resulting hash
+     * again. The input buffer is consumed and the double-hash is written at the position of the output buffer, which
+     * is advanced by 32 bytes. No memory is allocated if the output buffer is backed by an array.
+     *
+     * @param input the buffer containing the bytes to hash
+     * @param output the buffer to write the double-hash (in big-endian order) to
+     */
+    public static void hashTwice(ByteBuffer input, ByteBuffer output) {
+        MessageDigest digest = threadDigest();
+        digest.update(input);
+        if (output.hasArray()) {
+            checkArgument(output.remaining() >= LENGTH);
+            digestTwice(digest, output.array(), output.arrayOffset() + output.position());
+            ((Buffer) output).position(output.position() + LENGTH);
+        } else {
+            byte[] hash = new byte[LENGTH];
+            digestTwice(digest, hash, 0);
+            output.put(hash);
+        }
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -19,6 +19,7 @@ package org.crownj.core;
 import org.crownj.store.BlockStore;
 import org.crownj.store.BlockStoreException;
 
+import javax.annotation.Nullable;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.util.Locale;
@@ -140,13 +141,21 @@ public class StoredBlock {
 
     /** De-serializes the stored block from a custom packed format. Used by {@link CheckpointManager}. */
     public static StoredBlock deserializeCompact(NetworkParameters params, ByteBuffer buffer) throws ProtocolException {
+        return deserializeCompact(params, buffer, null);
+    }
+
+    /**
+     * De-serializes the stored block from a custom packed format. Used by block stores that keep the hash next to the
+     * packed block, so that it doesn't have to be calculated again.
+     * @param hash hash of the block header, or null to calculate it
+     */
+    public static StoredBlock deserializeCompact(NetworkParameters params, ByteBuffer buffer,
+            @Nullable Sha256Hash hash) throws ProtocolException {
         byte[] chainWorkBytes = new byte[StoredBlock.CHAIN_WORK_BYTES];
         buffer.get(chainWorkBytes);
         BigInteger chainWork = new BigInteger(1, chainWorkBytes);
         int height = buffer.getInt();  // +4 bytes
-        byte[] header = new byte[Block.HEADER_SIZE + 1];    // Extra byte for the 00 transactions length.
-        buffer.get(header, 0, Block.HEADER_SIZE);
-        return new StoredBlock(params.getDefaultSerializer().makeBlock(header), chainWork, height);
+        return new StoredBlock(Block.readHeader(params, buffer, hash), chainWork, height);
     }
 
     @Override
@@ -43,10 +43,12 @@ import javax.annotation.Nullable;
 import java.io.*;
 import java.math.RoundingMode;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import static org.crownj.core.NetworkParameters.ProtocolVersion.WITNESS_VERSION;
 import static org.crownj.core.Utils.*;
 import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 import java.math.BigInteger;
 
@@ -139,6 +141,8 @@ public class Transaction extends ChildMessage {
     // Old serialized transactions don't have this field, thus null is valid. It is used for returning an ordered
     // list of transactions from a wallet, which is helpful for presenting to users.
     private Date updatedAt;
+    // Told about changes of updatedAt, e.g. by a wallet that keeps its transactions sorted by it. Created on demand.
+    @Nullable private CopyOnWriteArrayList<UpdateTimeListener> updateTimeListeners;
 
     // These are in memory helpers only. They contain the transaction hashes without and with witness.
     private Sha256Hash cachedTxId;
@@ -280,13 +284,13 @@ public class Transaction extends ChildMessage {
             if (!hasWitnesses() && cachedWTxId != null) {
                 cachedTxId = cachedWTxId;
             } else {
-                ByteArrayOutputStream stream = new UnsafeByteArrayOutputStream(length < 32 ? 32 : length + 32);
+                UnsafeByteArrayOutputStream stream = new UnsafeByteArrayOutputStream(length < 32 ? 32 : length + 32);
                 try {
                     crownSerializeToStream(stream, false);
                 } catch (IOException e) {
                     throw new RuntimeException(e); // cannot happen
                 }
-                cachedTxId = Sha256Hash.wrapReversed(Sha256Hash.hashTwice(stream.toByteArray()));
+                cachedTxId = Sha256Hash.twiceOfReversed(stream.getBuffer(), 0, stream.size());
             }
         }
         return cachedTxId;
@@ -296,7 +300,11 @@ public class Transaction extends ChildMessage {
      * Returns if tx witnesses are allowed based on the protocol version
      */
     private boolean allowWitness() {
-        int protocolVersion = serializer.getProtocolVersion();
+        return allowWitness(serializer.getProtocolVersion());
+    }
+
+    // Whether transactions are serialized with witnesses under the given protocol version.
+    static boolean allowWitness(int protocolVersion) {
         return (protocolVersion & SERIALIZE_TRANSACTION_NO_WITNESS) == 0
                 && protocolVersion >= WITNESS_VERSION.getcrownProtocolVersion();
     }
@@ -310,13 +318,13 @@ public class Transaction extends ChildMessage {
             if (!hasWitnesses() && cachedTxId != null) {
                 cachedWTxId = cachedTxId;
             } else {
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                UnsafeByteArrayOutputStream baos = new UnsafeByteArrayOutputStream(length < 32 ? 32 : length + 32);
                 try {
                     crownSerializeToStream(baos, hasWitnesses());
                 } catch (IOException e) {
                     throw new RuntimeException(e); // cannot happen
                 }
-                cachedWTxId = Sha256Hash.wrapReversed(Sha256Hash.hashTwice(baos.toByteArray()));
+                cachedWTxId = Sha256Hash.twiceOfReversed(baos.getBuffer(), 0, baos.size());
             }
         }
         return cachedWTxId;
@@ -410,6 +418,7 @@ public class Transaction extends ChildMessage {
         long blockTime = block.getHeader().getTimeSeconds() * 1000;
         if (bestChain && (updatedAt == null || updatedAt.getTime() == 0 || updatedAt.getTime() > blockTime)) {
             updatedAt = new Date(blockTime);
+            informUpdateTimeListeners();
         }
 
         addBlockAppearance(block.getHeader().getHash(), relativityOffset);
@@ -549,6 +558,36 @@ public class Transaction extends ChildMessage {
 
     public void setUpdateTime(Date updatedAt) {
         this.updatedAt = updatedAt;
+        informUpdateTimeListeners();
+    }
+
+    /** Tells an index sorted by update time that the update time of a transaction changed. */
+    public interface UpdateTimeListener {
+        /**
+         * Called on the thread that changed the update time, right after the change. Implementations must be quick
+         * and not block.
+         */
+        void onUpdateTimeChanged(Transaction tx);
+    }
+
+    /** Adds a listener that is told whenever the update time of this transaction changes. */
+    public void addUpdateTimeListener(UpdateTimeListener listener) {
+        checkNotNull(listener);
+        if (updateTimeListeners == null)
+            updateTimeListeners = new CopyOnWriteArrayList<>();
+        updateTimeListeners.addIfAbsent(listener);
+    }
+
+    /** Removes a listener added with {@link #addUpdateTimeListener(UpdateTimeListener)}. */
+    public boolean removeUpdateTimeListener(UpdateTimeListener listener) {
+        return updateTimeListeners != null && updateTimeListeners.remove(listener);
+    }
+
+    private void informUpdateTimeListeners() {
+        if (updateTimeListeners == null)
+            return;
+        for (UpdateTimeListener listener : updateTimeListeners)
+            listener.onUpdateTimeChanged(this);
     }
 
     /**
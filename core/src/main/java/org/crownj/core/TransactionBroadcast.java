@@ -157,9 +157,11 @@ public class TransactionBroadcast {
             peers = peers.subList(0, numToBroadcastTo);
             log.info("broadcastTransaction: We have {} peers, adding {} to the memory pool", numConnected, tx.getTxId());
             log.info("Sending to {} peers, will wait for {}, sending to: {}", numToBroadcastTo, numWaitingFor, Joiner.on(",").join(peers));
+            // Serialize once, all peers are sent the same bytes.
+            MessageFrame frame = tx.getParams().getDefaultSerializer().serializeFrame(tx);
             for (final Peer peer : peers) {
                 try {
-                    ListenableFuture future = peer.sendMessage(tx);
+                    ListenableFuture future = peer.sendMessage(frame);
                     if (dropPeersAfterBroadcast) {
                         // We drop the peer shortly after the transaction has been sent, because this peer will not
                         // send us back useful broadcast confirmations.
@@ -0,0 +1,247 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.core;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.*;
+
+/**
+ * <p>The transactions of a serialized block, located but not parsed. Parsing a {@link Block} turns every transaction
+ * into objects at once, with a copy of each script. This class only walks the payload to find where each transaction
+ * starts and ends, then parses single transactions on demand. Consumers that only care about some transactions, e.g.
+ * the ones whose id they are waiting for or the ones {@link #spendsOrPays(int, Set, Set) touching} their coins, can
+ * look at the raw bytes and skip the rest. {@link Peer#getBlockSlices(Sha256Hash)} hands out blocks this way.</p>
+ *
+ * <p>The slices refer to the given payload, which must not be modified. Instances of this class are safe for use by
+ * multiple threads.</p>
+ */
+public final class TransactionSlices {
+    private final MessageSerializer serializer;
+    private final byte[] payload;
+    // Where the block header starts.
+    private final int blockOffset;
+    // Start of each transaction, plus the end of the last one.
+    private final int[] offsets;
+    // For segwit transactions, the start of the witnesses, or -1.
+    private final int[] witnessOffsets;
+
+    private TransactionSlices(MessageSerializer serializer, byte[] payload, int blockOffset, int[] offsets,
+                              int[] witnessOffsets) {
+        this.serializer = serializer;
+        this.payload = payload;
+        this.blockOffset = blockOffset;
+        this.offsets = offsets;
+        this.witnessOffsets = witnessOffsets;
+    }
+
+    /**
+     * Locates the transactions of the serialized block starting at the given offset.
+     * @param serializer the serializer the block was received with, which decides whether witnesses are expected
+     * @param payload the payload holding the block
+     * @param offset where the block header starts
+     * @throws ProtocolException if the transactions run past the end of the payload
+     */
+    public static TransactionSlices ofBlock(MessageSerializer serializer, byte[] payload, int offset)
+            throws ProtocolException {
+        Walker walker = new Walker(payload, offset + Block.HEADER_SIZE);
+        if (walker.cursor == payload.length)
+            return new TransactionSlices(serializer, payload, offset, new int[] { walker.cursor }, new int[0]); // Header
+        long count = walker.readVarInt();
+        // Each transaction takes at least 10 bytes, which bounds the arrays by the payload size.
+        if (count < 0 || count > (payload.length - walker.cursor) / 10)
+            throw new ProtocolException("Bad transaction count: " + count);
+        int[] offsets = new int[(int) count + 1];
+        int[] witnessOffsets = new int[(int) count];
+        boolean allowWitness = Transaction.allowWitness(serializer.getProtocolVersion());
+        for (int i = 0; i < count; i++) {
+            offsets[i] = walker.cursor;
+            witnessOffsets[i] = walker.skipTransaction(allowWitness);
+        }
+        offsets[(int) count] = walker.cursor;
+        return new TransactionSlices(serializer, payload, offset, offsets, witnessOffsets);
+    }
+
+    /** Returns the hash of the block, computed from its header bytes. */
+    public Sha256Hash getBlockHash() {
+        return Sha256Hash.twiceOfReversed(payload, blockOffset, Block.HEADER_SIZE);
+    }
+
+    /** Parses the whole block, all transactions included. */
+    public Block parseBlock() throws ProtocolException {
+        return serializer.makeBlock(payload, blockOffset, getEnd() - blockOffset);
+    }
+
+    /** Returns the number of transactions. */
+    public int size() {
+        return witnessOffsets.length;
+    }
+
+    /** Returns where the transaction at the given index starts in the payload. */
+    public int getOffset(int index) {
+        checkElementIndex(index, size());
+        return offsets[index];
+    }
+
+    /** Returns the serialized length of the transaction at the given index, witnesses included. */
+    public int getLength(int index) {
+        checkElementIndex(index, size());
+        return offsets[index + 1] - offsets[index];
+    }
+
+    /** Returns the offset just after the last transaction. */
+    public int getEnd() {
+        return offsets[offsets.length - 1];
+    }
+
+    /** Computes the id of the transaction at the given index from its bytes, without parsing it. */
+    public Sha256Hash getTxId(int index) {
+        checkElementIndex(index, size());
+        int start = offsets[index];
+        int end = offsets[index + 1];
+        int witnesses = witnessOffsets[index];
+        if (witnesses < 0)
+            return Sha256Hash.twiceOfReversed(payload, start, end - start);
+        // The id leaves out the marker, the flag and the witnesses.
+        MessageDigest digest = Sha256Hash.newDigest();
+        digest.update(payload, start, 4);
+        digest.update(payload, start + 6, witnesses - (start + 6));
+        digest.update(payload, end - 4, 4);
+        return Sha256Hash.wrapReversed(Sha256Hash.hash(digest.digest()));
+    }
+
+    /**
+     * Returns true if the transaction at the given index spends one of the given outpoints or has an output with one of
+     * the given scripts, comparing the raw bytes. The sets hold serialized outpoints and script programs. A transaction
+     * that matches neither can't be relevant to whoever owns them, so it can be skipped without parsing it.
+     */
+    public boolean spendsOrPays(int index, Set<ByteBuffer> outPoints, Set<ByteBuffer> scripts)
+            throws ProtocolException {
+        checkElementIndex(index, size());
+        Walker walker = new Walker(payload, offsets[index]);
+        walker.outPoints = outPoints;
+        walker.scripts = scripts;
+        walker.skipTransaction(Transaction.allowWitness(serializer.getProtocolVersion()));
+        return walker.matched;
+    }
+
+    /** Parses the transaction at the given index. */
+    public Transaction parse(int index) throws ProtocolException {
+        Transaction tx = serializer.makeTransaction(payload, getOffset(index), getLength(index), null);
+        // Label the transaction as coming from the P2P network, like the transactions of a parsed block.
+        tx.getConfidence().setSource(TransactionConfidence.Source.NETWORK);
+        return tx;
+    }
+
+    // Moves over the payload the way Transaction.parse() reads it, without creating any objects. If given sets to look
+    // for, notes whether an outpoint or an output script is in them.
+    private static class Walker {
+        private final byte[] payload;
+        private int cursor;
+        private Set<ByteBuffer> outPoints, scripts;
+        private boolean matched;
+
+        Walker(byte[] payload, int cursor) {
+            this.payload = payload;
+            this.cursor = cursor;
+        }
+
+        // Returns the offset of the witnesses, or -1 if there are none.
+        int skipTransaction(boolean allowWitness) throws ProtocolException {
+            skip(4); // version
+            int witnesses = -1;
+            long inputs = readVarInt();
+            if (inputs == 0 && allowWitness) {
+                // Either a marker for witnesses or a transaction without inputs.
+                byte flags = payload[checkAvailable(1)];
+                cursor++;
+                if (flags != 0) {
+                    inputs = skipInputs();
+                    skipOutputs();
+                } else {
+                    inputs = 0;
+                }
+                if ((flags & 1) != 0) {
+                    witnesses = cursor;
+                    for (long i = 0; i < inputs; i++) {
+                        long pushes = readVarInt();
+                        for (long j = 0; j < pushes; j++)
+                            skip(readVarInt());
+                    }
+                }
+            } else {
+                for (long i = 0; i < inputs; i++)
+                    skipInput();
+                skipOutputs();
+            }
+            skip(4); // lock time
+            return witnesses;
+        }
+
+        private long skipInputs() throws ProtocolException {
+            long inputs = readVarInt();
+            for (long i = 0; i < inputs; i++)
+                skipInput();
+            return inputs;
+        }
+
+        private void skipInput() throws ProtocolException {
+            if (outPoints != null)
+                matched |= outPoints.contains(ByteBuffer.wrap(payload, checkAvailable(TransactionOutPoint.MESSAGE_LENGTH),
+                        TransactionOutPoint.MESSAGE_LENGTH));
+            skip(TransactionOutPoint.MESSAGE_LENGTH);
+            skip(readVarInt()); // script
+            skip(4); // sequence
+        }
+
+        private void skipOutputs() throws ProtocolException {
+            long outputs = readVarInt();
+            for (long i = 0; i < outputs; i++) {
+                skip(8); // value
+                long length = readVarInt();
+                if (scripts != null)
+                    matched |= scripts.contains(ByteBuffer.wrap(payload, checkAvailable(length), (int) length));
+                skip(length); // script
+            }
+        }
+
+        long readVarInt() throws ProtocolException {
+            checkAvailable(1);
+            try {
+                VarInt varInt = new VarInt(payload, cursor);
+                cursor += varInt.getOriginalSizeInBytes();
+                return varInt.longValue();
+            } catch (ArrayIndexOutOfBoundsException e) {
+                throw new ProtocolException(e);
+            }
+        }
+
+        private void skip(long length) throws ProtocolException {
+            checkAvailable(length);
+            cursor += (int) length;
+        }
+
+        // Returns the cursor if the given number of bytes is available.
+        private int checkAvailable(long length) throws ProtocolException {
+            if (length < 0 || length > payload.length - cursor)
+                throw new ProtocolException("Transaction runs past the end of the block at " + cursor);
+            return cursor;
+        }
+    }
+}
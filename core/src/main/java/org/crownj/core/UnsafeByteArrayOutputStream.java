@@ -118,6 +118,16 @@ public class UnsafeByteArrayOutputStream extends ByteArrayOutputStream {
         return count == buf.length ? buf : copyOf(buf, count);
     }
 
+    /**
+     * Returns the internal buffer without copying it. Only the first {@link #size()} bytes are valid, and the buffer
+     * is replaced if the stream grows beyond its capacity.
+     *
+     * @return the internal buffer of this output stream
+     */
+    public byte[] getBuffer() {
+        return buf;
+    }
+
     /**
      * Returns the current size of the buffer.
      *
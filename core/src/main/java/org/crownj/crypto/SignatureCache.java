@@ -0,0 +1,137 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.crypto;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.crownj.core.ECKey;
+import org.crownj.core.Sha256Hash;
+import org.crownj.core.Utils;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.*;
+
+/**
+ * <p>A bounded, thread safe set of signatures that have been found valid, so that the expensive elliptic curve
+ * operation isn't repeated when the same signature is checked again. That happens for example when a transaction is
+ * first checked on its own and later as part of a block. {@link ECKey#verify(byte[], ECKey.ECDSASignature, byte[])}
+ * and the methods built on it, including script execution, consult the cache set with
+ * {@link ECKey#setSignatureCache(SignatureCache)}.</p>
+ *
+ * <p>Entries are keyed by a salted hash of the signed data, the public key and the signature, so the cache holds no
+ * signature material and its keys can't be predicted. Only valid signatures are remembered.</p>
+ */
+public class SignatureCache {
+    /** Default memory cap, in bytes. */
+    public static final long DEFAULT_MAX_BYTES = 8 * 1024 * 1024;
+
+    // Rough footprint of an entry: the key hash and its array, plus the bookkeeping of the underlying cache.
+    static final int ENTRY_BYTES = 160;
+
+    private final Cache<Sha256Hash, Boolean> validSignatures;
+    private final long maxBytes;
+    private final byte[] salt = new byte[32];
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Creates an empty cache.
+     * @param maxBytes approximately how much memory the cache may use
+     */
+    public SignatureCache(long maxBytes) {
+        checkArgument(maxBytes >= ENTRY_BYTES, "Too small for a single entry: %s", maxBytes);
+        this.maxBytes = maxBytes;
+        this.validSignatures = CacheBuilder.newBuilder().maximumSize(maxBytes / ENTRY_BYTES).build();
+        new SecureRandom().nextBytes(salt);
+    }
+
+    /** Creates an empty cache with the {@link #DEFAULT_MAX_BYTES default} memory cap. */
+    public SignatureCache() {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * Returns true if the given signature has been {@link #add(byte[], byte[], byte[]) added} as valid before.
+     * @param data the signed data, usually a signature hash
+     * @param signature the signature, in any fixed encoding
+     * @param pubKey the encoded public key
+     */
+    public boolean contains(byte[] data, byte[] signature, byte[] pubKey) {
+        boolean found = validSignatures.getIfPresent(key(data, signature, pubKey)) != null;
+        (found ? hits : misses).incrementAndGet();
+        return found;
+    }
+
+    /**
+     * Remembers the given signature as valid.
+     * @param data the signed data, usually a signature hash
+     * @param signature the signature, in the same encoding that is passed to {@link #contains(byte[], byte[], byte[])}
+     * @param pubKey the encoded public key
+     */
+    public void add(byte[] data, byte[] signature, byte[] pubKey) {
+        validSignatures.put(key(data, signature, pubKey), Boolean.TRUE);
+    }
+
+    /** Forgets all signatures. The counters are not reset. */
+    public void clear() {
+        validSignatures.invalidateAll();
+    }
+
+    /** Returns the number of signatures remembered. */
+    public long size() {
+        return validSignatures.size();
+    }
+
+    /** Returns the approximate memory cap, in bytes. */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /** Returns how many lookups found the signature. */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /** Returns how many lookups didn't find the signature. */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    private Sha256Hash key(byte[] data, byte[] signature, byte[] pubKey) {
+        // Lengths are included, so that different splits of the same bytes give different keys.
+        byte[] input = new byte[salt.length + 3 * 4 + data.length + signature.length + pubKey.length];
+        int offset = 0;
+        System.arraycopy(salt, 0, input, offset, salt.length);
+        offset += salt.length;
+        for (byte[] part : new byte[][] { data, signature, pubKey }) {
+            Utils.uint32ToByteArrayLE(part.length, input, offset);
+            offset += 4;
+            System.arraycopy(part, 0, input, offset, part.length);
+            offset += part.length;
+        }
+        return Sha256Hash.of(input);
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this).add("size", size()).add("maxBytes", maxBytes)
+                .add("hits", getHitCount()).add("misses", getMissCount()).toString();
+    }
+}
@@ -31,9 +31,8 @@ import java.nio.ByteBuffer;
 import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
 import java.util.Arrays;
-import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.Set;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -56,15 +55,24 @@ class ConnectionHandler implements MessageWriteTarget {
     private static final int BUFFER_SIZE_UPPER_BOUND = 65536;
 
     private static final int OUTBOUND_BUFFER_BYTE_COUNT = Message.MAX_SIZE + 24; // 24 byte message header
+    // Maximum number of queued messages handed to the OS in a single gathering write.
+    private static final int MAX_GATHERED_WRITES = 16;
 
-    @GuardedBy("lock") private final ByteBuffer readBuff;
+    // Read buffers of the largest size are shared by all connections. A connection only holds one while a message is
+    // partially read.
+    static final DirectBufferPool READ_BUFFER_POOL = new DirectBufferPool(BUFFER_SIZE_UPPER_BOUND, 64);
+
+    // Only touched by the thread handling the key.
+    @Nullable private ByteBuffer readBuff;
+    private final int readBuffSize;
     @GuardedBy("lock") private final SocketChannel channel;
     @GuardedBy("lock") private final SelectionKey key;
     @GuardedBy("lock") StreamConnection connection;
     @GuardedBy("lock") private boolean closeCalled = false;
 
     @GuardedBy("lock") private long bytesToWriteRemaining = 0;
-    @GuardedBy("lock") private final LinkedList<BytesAndFuture> bytesToWrite = new LinkedList<>();
+    @GuardedBy("lock") private final ArrayDeque<BytesAndFuture> bytesToWrite = new ArrayDeque<>();
+    @GuardedBy("lock") private final ByteBuffer[] gatheredWrites = new ByteBuffer[MAX_GATHERED_WRITES];
 
     private static class BytesAndFuture {
         public final ByteBuffer bytes;
@@ -88,11 +96,11 @@ class ConnectionHandler implements MessageWriteTarget {
         this.key = key;
         this.channel = checkNotNull(((SocketChannel)key.channel()));
         if (connection == null) {
-            readBuff = null;
+            readBuffSize = 0;
             return;
         }
         this.connection = connection;
-        readBuff = ByteBuffer.allocateDirect(Math.min(Math.max(connection.getMaxMessageSize(), BUFFER_SIZE_LOWER_BOUND), BUFFER_SIZE_UPPER_BOUND));
+        readBuffSize = Math.min(Math.max(connection.getMaxMessageSize(), BUFFER_SIZE_LOWER_BOUND), BUFFER_SIZE_UPPER_BOUND);
         connection.setWriteTarget(this); // May callback into us (eg closeConnection() now)
         connectedHandlers = null;
     }
@@ -125,15 +133,21 @@ class ConnectionHandler implements MessageWriteTarget {
     private void tryWriteBytes() throws IOException {
         lock.lock();
         try {
-            // Iterate through the outbound ByteBuff queue, pushing as much as possible into the OS' network buffer.
-            Iterator<BytesAndFuture> iterator = bytesToWrite.iterator();
-            while (iterator.hasNext()) {
-                BytesAndFuture bytesAndFuture = iterator.next();
-                bytesToWriteRemaining -= channel.write(bytesAndFuture.bytes);
-                if (!bytesAndFuture.bytes.hasRemaining()) {
-                    iterator.remove();
-                    bytesAndFuture.future.set(null);
-                } else {
+            // Push as much of the outbound ByteBuff queue as possible into the OS' network buffer, handing it several
+            // messages per system call.
+            while (!bytesToWrite.isEmpty()) {
+                int count = 0;
+                for (BytesAndFuture bytesAndFuture : bytesToWrite) {
+                    gatheredWrites[count++] = bytesAndFuture.bytes;
+                    if (count == MAX_GATHERED_WRITES)
+                        break;
+                }
+                bytesToWriteRemaining -= channel.write(gatheredWrites, 0, count);
+                Arrays.fill(gatheredWrites, 0, count, null);
+                while (!bytesToWrite.isEmpty() && !bytesToWrite.peek().bytes.hasRemaining())
+                    bytesToWrite.poll().future.set(null);
+                if (!bytesToWrite.isEmpty() && bytesToWrite.peek().bytes.hasRemaining()) {
+                    // The network buffer is full.
                     setWriteOps();
                     break;
                 }
@@ -159,10 +173,10 @@ class ConnectionHandler implements MessageWriteTarget {
 
             if (bytesToWriteRemaining + message.length > OUTBOUND_BUFFER_BYTE_COUNT)
                 throw new IOException("Outbound buffer overflowed");
-            // Just dump the message onto the write buffer and call tryWriteBytes
-            // TODO: Kill the needless message duplication when the write completes right away
+            // Just dump the message onto the write buffer and call tryWriteBytes. The message isn't copied, callers
+            // leave it alone until it is written.
             final SettableFuture<Object> future = SettableFuture.create();
-            bytesToWrite.offer(new BytesAndFuture(ByteBuffer.wrap(Arrays.copyOf(message, message.length)), future));
+            bytesToWrite.offer(new BytesAndFuture(ByteBuffer.wrap(message), future));
             bytesToWriteRemaining += message.length;
             setWriteOps();
             return future;
@@ -221,16 +235,22 @@ class ConnectionHandler implements MessageWriteTarget {
                 return;
             if (!key.isValid()) {
                 handler.closeConnection(); // Key has been cancelled, make sure the socket gets closed
+                handler.releaseReadBuffer();
                 return;
             }
             if (key.isReadable()) {
                 // Do a socket read and invoke the connection's receiveBytes message
+                if (handler.readBuff == null)
+                    handler.acquireReadBuffer();
                 int read = handler.channel.read(handler.readBuff);
-                if (read == 0)
+                if (read == 0) {
+                    if (handler.readBuff.position() == 0)
+                        handler.releaseReadBuffer();
                     return; // Was probably waiting on a write
-                else if (read == -1) { // Socket was closed
+                } else if (read == -1) { // Socket was closed
                     key.cancel();
                     handler.closeConnection();
+                    handler.releaseReadBuffer();
                     return;
                 }
                 // "flip" the buffer - setting the limit to the current position and setting position to 0
@@ -241,6 +261,9 @@ class ConnectionHandler implements MessageWriteTarget {
                 // Now drop the bytes which were read by compacting readBuff (resetting limit and keeping relative
                 // position)
                 handler.readBuff.compact();
+                // Nothing left over, so the buffer can serve other connections until more bytes arrive.
+                if (handler.readBuff.position() == 0)
+                    handler.releaseReadBuffer();
             }
             if (key.isWritable())
                 handler.tryWriteBytes();
@@ -250,6 +273,23 @@ class ConnectionHandler implements MessageWriteTarget {
             Throwable t = Throwables.getRootCause(e);
             log.warn("Error handling SelectionKey: {} {}", t.getClass().getName(), t.getMessage() != null ? t.getMessage() : "", e);
             handler.closeConnection();
+            handler.releaseReadBuffer();
+        }
+    }
+
+    // Only called by the thread handling the key
+    private void acquireReadBuffer() {
+        if (readBuffSize == READ_BUFFER_POOL.getBufferSize())
+            readBuff = READ_BUFFER_POOL.acquire();
+        else
+            readBuff = ByteBuffer.allocateDirect(readBuffSize);
+    }
+
+    // Only called by the thread handling the key. Buffers that aren't from the pool are kept.
+    private void releaseReadBuffer() {
+        if (readBuff != null && readBuff.capacity() == READ_BUFFER_POOL.getBufferSize()) {
+            READ_BUFFER_POOL.release(readBuff);
+            readBuff = null;
         }
     }
 }
@@ -0,0 +1,98 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.net;
+
+import com.google.common.base.MoreObjects;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A pool of direct {@link ByteBuffer}s of a fixed capacity. Direct buffers are expensive to allocate and their memory
+ * is only given back once the garbage collector gets around to them, so connections borrow them from a shared pool
+ * instead of allocating their own. At most a given number of idle buffers are kept, further ones are left to the
+ * garbage collector.
+ *
+ * <p>This class is thread safe, but a buffer must only be used by one thread at a time and must not be touched anymore
+ * after it was {@link #release(ByteBuffer) released}.</p>
+ */
+public class DirectBufferPool {
+    private final int bufferSize;
+    private final int maxIdle;
+    private final Queue<ByteBuffer> idle = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+    private final AtomicLong allocated = new AtomicLong();
+
+    /**
+     * Creates an empty pool.
+     * @param bufferSize capacity of the buffers
+     * @param maxIdle maximum number of buffers kept for reuse
+     */
+    public DirectBufferPool(int bufferSize, int maxIdle) {
+        checkArgument(bufferSize > 0);
+        checkArgument(maxIdle >= 0);
+        this.bufferSize = bufferSize;
+        this.maxIdle = maxIdle;
+    }
+
+    /** Returns a cleared buffer, reusing an idle one if there is one. */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = idle.poll();
+        if (buffer == null) {
+            allocated.incrementAndGet();
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        idleCount.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /** Gives a buffer that was {@link #acquire() acquired} from this pool back for reuse. */
+    public void release(ByteBuffer buffer) {
+        checkArgument(buffer.isDirect() && buffer.capacity() == bufferSize, "Not from this pool: %s", buffer);
+        if (idleCount.incrementAndGet() <= maxIdle)
+            idle.offer(buffer);
+        else
+            idleCount.decrementAndGet();
+    }
+
+    /** Returns the capacity of the buffers. */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /** Returns the number of buffers waiting for reuse. */
+    public int getIdleCount() {
+        return idleCount.get();
+    }
+
+    /** Returns the number of buffers allocated so far, as opposed to reused. */
+    public long getAllocatedCount() {
+        return allocated.get();
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this).add("bufferSize", bufferSize).add("idle", getIdleCount())
+                .add("allocated", getAllocatedCount()).toString();
+    }
+}
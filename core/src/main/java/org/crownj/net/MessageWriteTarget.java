@@ -26,7 +26,8 @@ import java.io.IOException;
 public interface MessageWriteTarget {
     /**
      * Writes the given bytes to the remote server. The returned future will complete when all bytes
-     * have been written to the OS network buffer.
+     * have been written to the OS network buffer. The bytes may be queued without being copied, so the array must
+     * not be modified afterwards.
      */
     ListenableFuture writeBytes(byte[] message) throws IOException;
     /**
@@ -16,6 +16,7 @@
 
 package org.crownj.net;
 
+import com.google.common.base.MoreObjects;
 import com.google.common.base.Throwables;
 import com.google.common.util.concurrent.*;
 import org.crownj.utils.*;
@@ -28,15 +29,22 @@ import java.nio.channels.*;
 import java.nio.channels.spi.SelectorProvider;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
 
 /**
- * A class which manages a set of client connections. Uses Java NIO to select network events and processes them in a
- * single network processing thread.
+ * A class which manages a set of client connections. Uses Java NIO to select network events and processes them on a
+ * number of event loops, each with its own selector and thread. Every connection is assigned to the loop with the
+ * fewest connections when it is opened and is handled by that loop only.
  */
 public class NioClientManager extends AbstractExecutionThreadService implements ClientConnectionManager {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(NioClientManager.class);
 
-    private final Selector selector;
+    private final List<EventLoop> loops;
+    // Set when any loop stops, so that all of them stop.
+    private volatile boolean shutdown = false;
 
     class PendingConnect {
         SocketChannel sc;
@@ -46,100 +54,43 @@ public class NioClientManager extends AbstractExecutionThreadService implements
 
         PendingConnect(SocketChannel sc, StreamConnection connection, SocketAddress address) { this.sc = sc; this.connection = connection; this.address = address; }
     }
-    final Queue<PendingConnect> newConnectionChannels = new LinkedBlockingQueue<>();
-
-    // Added to/removed from by the individual ConnectionHandler's, thus must by synchronized on its own.
-    private final Set<ConnectionHandler> connectedHandlers = Collections.synchronizedSet(new HashSet<ConnectionHandler>());
-
-    // Handle a SelectionKey which was selected
-    private void handleKey(SelectionKey key) throws IOException {
-        // We could have a !isValid() key here if the connection is already closed at this point
-        if (key.isValid() && key.isConnectable()) { // ie a client connection which has finished the initial connect process
-            // Create a ConnectionHandler and hook everything together
-            PendingConnect data = (PendingConnect) key.attachment();
-            StreamConnection connection = data.connection;
-            SocketChannel sc = (SocketChannel) key.channel();
-            ConnectionHandler handler = new ConnectionHandler(connection, key, connectedHandlers);
-            try {
-                if (sc.finishConnect()) {
-                    log.info("Connected to {}", sc.socket().getRemoteSocketAddress());
-                    key.interestOps((key.interestOps() | SelectionKey.OP_READ) & ~SelectionKey.OP_CONNECT).attach(handler);
-                    connection.connectionOpened();
-                    data.future.set(data.address);
-                } else {
-                    log.warn("Failed to connect to {}", sc.socket().getRemoteSocketAddress());
-                    handler.closeConnection(); // Failed to connect for some reason
-                    data.future.setException(new ConnectException("Unknown reason"));
-                    data.future = null;
-                }
-            } catch (Exception e) {
-                // If e is a CancelledKeyException, there is a race to get to interestOps after finishConnect() which
-                // may cause this. Otherwise it may be any arbitrary kind of connection failure.
-                // Calling sc.socket().getRemoteSocketAddress() here throws an exception, so we can only log the error itself
-                Throwable cause = Throwables.getRootCause(e);
-                log.warn("Failed to connect with exception: {}: {}", cause.getClass().getName(), cause.getMessage(), e);
-                handler.closeConnection();
-                data.future.setException(cause);
-                data.future = null;
-            }
-        } else // Process bytes read
-            ConnectionHandler.handleKey(key);
-    }
 
     /**
-     * Creates a new client manager which uses Java NIO for socket management. Uses a single thread to handle all select
-     * calls.
+     * Creates a new client manager which uses Java NIO for socket management. Uses an event loop per available
+     * processor.
      */
     public NioClientManager() {
-        try {
-            selector = SelectorProvider.provider().openSelector();
-        } catch (IOException e) {
-            throw new RuntimeException(e); // Shouldn't ever happen
-        }
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a new client manager which uses Java NIO for socket management.
+     * @param loopCount number of event loops, each running select calls on a thread of its own
+     */
+    public NioClientManager(int loopCount) {
+        checkArgument(loopCount > 0);
+        List<EventLoop> loops = new ArrayList<>(loopCount);
+        for (int i = 0; i < loopCount; i++)
+            loops.add(new EventLoop(i));
+        this.loops = Collections.unmodifiableList(loops);
     }
 
     @Override
     public void run() {
-        try {
-            Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
-            while (isRunning()) {
-                PendingConnect conn;
-                while ((conn = newConnectionChannels.poll()) != null) {
-                    try {
-                        SelectionKey key = conn.sc.register(selector, SelectionKey.OP_CONNECT);
-                        key.attach(conn);
-                    } catch (ClosedChannelException e) {
-                        log.warn("SocketChannel was closed before it could be registered");
-                    }
-                }
-
-                selector.select();
-
-                Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
-                while (keyIterator.hasNext()) {
-                    SelectionKey key = keyIterator.next();
-                    keyIterator.remove();
-                    handleKey(key);
-                }
-            }
-        } catch (Exception e) {
-            log.warn("Error trying to open/read from connection: ", e);
-        } finally {
-            // Go through and close everything, without letting IOExceptions get in our way
-            for (SelectionKey key : selector.keys()) {
-                try {
-                    key.channel().close();
-                } catch (IOException e) {
-                    log.warn("Error closing channel", e);
-                }
-                key.cancel();
-                if (key.attachment() instanceof ConnectionHandler)
-                    ConnectionHandler.handleKey(key); // Close connection if relevant
-            }
+        // The first loop runs on the service thread, the others get threads of their own.
+        List<Thread> threads = new ArrayList<>();
+        for (EventLoop loop : loops.subList(1, loops.size())) {
+            Thread thread = new ContextPropagatingThreadFactory("NioClientManager " + loop.index).newThread(loop);
+            thread.start();
+            threads.add(thread);
+        }
+        loops.get(0).run();
+        for (Thread thread : threads) {
             try {
-                selector.close();
-            } catch (IOException e) {
-                log.warn("Error closing client manager selector", e);
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
             }
         }
     }
@@ -154,36 +105,69 @@ public class NioClientManager extends AbstractExecutionThreadService implements
             sc.configureBlocking(false);
             sc.connect(serverAddress);
             PendingConnect data = new PendingConnect(sc, connection, serverAddress);
-            newConnectionChannels.offer(data);
-            selector.wakeup();
+            EventLoop loop = leastLoaded();
+            loop.connecting.incrementAndGet();
+            loop.newConnectionChannels.offer(data);
+            loop.selector.wakeup();
             return data.future;
         } catch (Throwable e) {
             return Futures.immediateFailedFuture(e);
         }
     }
 
+    private EventLoop leastLoaded() {
+        EventLoop best = loops.get(0);
+        for (EventLoop loop : loops)
+            if (loop.getLoad() < best.getLoad())
+                best = loop;
+        return best;
+    }
+
     @Override
     public void triggerShutdown() {
-        selector.wakeup();
+        shutdown = true;
+        for (EventLoop loop : loops)
+            loop.selector.wakeup();
     }
 
     @Override
     public int getConnectedClientCount() {
-        return connectedHandlers.size();
+        int count = 0;
+        for (EventLoop loop : loops)
+            count += loop.connectedHandlers.size();
+        return count;
     }
 
     @Override
     public void closeConnections(int n) {
         while (n-- > 0) {
+            // Take from the busiest loop, to keep them balanced.
+            EventLoop busiest = loops.get(0);
+            for (EventLoop loop : loops)
+                if (loop.connectedHandlers.size() > busiest.connectedHandlers.size())
+                    busiest = loop;
             ConnectionHandler handler;
-            synchronized (connectedHandlers) {
-                handler = connectedHandlers.iterator().next();
+            synchronized (busiest.connectedHandlers) {
+                handler = busiest.connectedHandlers.iterator().next();
             }
             if (handler != null)
                 handler.closeConnection(); // Removes handler from connectedHandlers before returning
         }
     }
 
+    /** Returns the number of event loops. */
+    public int getLoopCount() {
+        return loops.size();
+    }
+
+    /** Returns a snapshot of the statistics of every event loop. */
+    public List<LoopStats> getLoopStats() {
+        List<LoopStats> stats = new ArrayList<>(loops.size());
+        for (EventLoop loop : loops)
+            stats.add(loop.getStats());
+        return stats;
+    }
+
     @Override
     protected Executor executor() {
         return new Executor() {
@@ -193,4 +177,187 @@ public class NioClientManager extends AbstractExecutionThreadService implements
             }
         };
     }
+
+    /** Statistics of one event loop, see {@link #getLoopStats()}. */
+    public static class LoopStats {
+        private final int connections;
+        private final int queueDepth;
+        private final long selectCount;
+        private final long keysHandled;
+        private final long selectNanos;
+        private final long handleNanos;
+
+        LoopStats(int connections, int queueDepth, long selectCount, long keysHandled, long selectNanos,
+                long handleNanos) {
+            this.connections = connections;
+            this.queueDepth = queueDepth;
+            this.selectCount = selectCount;
+            this.keysHandled = keysHandled;
+            this.selectNanos = selectNanos;
+            this.handleNanos = handleNanos;
+        }
+
+        /** Returns the number of connections established on this loop. */
+        public int getConnections() {
+            return connections;
+        }
+
+        /** Returns the number of connections that were assigned to this loop but haven't finished connecting. */
+        public int getQueueDepth() {
+            return queueDepth;
+        }
+
+        /** Returns how often this loop selected. */
+        public long getSelectCount() {
+            return selectCount;
+        }
+
+        /** Returns how many selected keys this loop handled. */
+        public long getKeysHandled() {
+            return keysHandled;
+        }
+
+        /** Returns the time this loop spent waiting in select calls, in milliseconds. */
+        public long getSelectMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(selectNanos);
+        }
+
+        /** Returns the time this loop spent handling selected keys, in milliseconds. */
+        public long getHandleMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(handleNanos);
+        }
+
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this).add("connections", connections).add("queueDepth", queueDepth)
+                    .add("selects", selectCount).add("keys", keysHandled).add("selectMillis", getSelectMillis())
+                    .add("handleMillis", getHandleMillis()).toString();
+        }
+    }
+
+    /** A selector and the connections it handles. Runs on a single thread. */
+    private class EventLoop implements Runnable {
+        final int index;
+        final Selector selector;
+        final Queue<PendingConnect> newConnectionChannels = new LinkedBlockingQueue<>();
+        // Added to/removed from by the individual ConnectionHandler's, thus must by synchronized on its own.
+        final Set<ConnectionHandler> connectedHandlers = Collections.synchronizedSet(new HashSet<ConnectionHandler>());
+        // Connections assigned to this loop that haven't finished connecting.
+        final AtomicInteger connecting = new AtomicInteger();
+        final AtomicLong selectCount = new AtomicLong();
+        final AtomicLong keysHandled = new AtomicLong();
+        final AtomicLong selectNanos = new AtomicLong();
+        final AtomicLong handleNanos = new AtomicLong();
+
+        EventLoop(int index) {
+            this.index = index;
+            try {
+                selector = SelectorProvider.provider().openSelector();
+            } catch (IOException e) {
+                throw new RuntimeException(e); // Shouldn't ever happen
+            }
+        }
+
+        int getLoad() {
+            return connecting.get() + connectedHandlers.size();
+        }
+
+        LoopStats getStats() {
+            return new LoopStats(connectedHandlers.size(), connecting.get(), selectCount.get(), keysHandled.get(),
+                    selectNanos.get(), handleNanos.get());
+        }
+
+        // Handle a SelectionKey which was selected
+        private void handleKey(SelectionKey key) throws IOException {
+            // We could have a !isValid() key here if the connection is already closed at this point
+            if (key.isValid() && key.isConnectable()) { // ie a client connection which has finished the initial connect process
+                // Create a ConnectionHandler and hook everything together
+                PendingConnect data = (PendingConnect) key.attachment();
+                StreamConnection connection = data.connection;
+                SocketChannel sc = (SocketChannel) key.channel();
+                ConnectionHandler handler = new ConnectionHandler(connection, key, connectedHandlers);
+                connecting.decrementAndGet();
+                try {
+                    if (sc.finishConnect()) {
+                        log.info("Connected to {}", sc.socket().getRemoteSocketAddress());
+                        key.interestOps((key.interestOps() | SelectionKey.OP_READ) & ~SelectionKey.OP_CONNECT).attach(handler);
+                        connection.connectionOpened();
+                        data.future.set(data.address);
+                    } else {
+                        log.warn("Failed to connect to {}", sc.socket().getRemoteSocketAddress());
+                        handler.closeConnection(); // Failed to connect for some reason
+                        data.future.setException(new ConnectException("Unknown reason"));
+                        data.future = null;
+                    }
+                } catch (Exception e) {
+                    // If e is a CancelledKeyException, there is a race to get to interestOps after finishConnect() which
+                    // may cause this. Otherwise it may be any arbitrary kind of connection failure.
+                    // Calling sc.socket().getRemoteSocketAddress() here throws an exception, so we can only log the error itself
+                    Throwable cause = Throwables.getRootCause(e);
+                    log.warn("Failed to connect with exception: {}: {}", cause.getClass().getName(), cause.getMessage(), e);
+                    handler.closeConnection();
+                    data.future.setException(cause);
+                    data.future = null;
+                }
+            } else // Process bytes read
+                ConnectionHandler.handleKey(key);
+        }
+
+        @Override
+        public void run() {
+            try {
+                Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
+                while (isRunning() && !shutdown) {
+                    PendingConnect conn;
+                    while ((conn = newConnectionChannels.poll()) != null) {
+                        try {
+                            SelectionKey key = conn.sc.register(selector, SelectionKey.OP_CONNECT);
+                            key.attach(conn);
+                        } catch (ClosedChannelException e) {
+                            connecting.decrementAndGet();
+                            log.warn("SocketChannel was closed before it could be registered");
+                        }
+                    }
+
+                    long start = System.nanoTime();
+                    selector.select();
+                    long selected = System.nanoTime();
+
+                    Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
+                    int keys = 0;
+                    while (keyIterator.hasNext()) {
+                        SelectionKey key = keyIterator.next();
+                        keyIterator.remove();
+                        handleKey(key);
+                        keys++;
+                    }
+                    selectCount.incrementAndGet();
+                    keysHandled.addAndGet(keys);
+                    selectNanos.addAndGet(selected - start);
+                    handleNanos.addAndGet(System.nanoTime() - selected);
+                }
+            } catch (Exception e) {
+                log.warn("Error trying to open/read from connection: ", e);
+            } finally {
+                // Stop the other loops too, in case this one failed.
+                triggerShutdown();
+                // Go through and close everything, without letting IOExceptions get in our way
+                for (SelectionKey key : selector.keys()) {
+                    try {
+                        key.channel().close();
+                    } catch (IOException e) {
+                        log.warn("Error closing channel", e);
+                    }
+                    key.cancel();
+                    if (key.attachment() instanceof ConnectionHandler)
+                        ConnectionHandler.handleKey(key); // Close connection if relevant
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    log.warn("Error closing client manager selector", e);
+                }
+            }
+        }
+    }
 }
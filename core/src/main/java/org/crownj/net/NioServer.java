@@ -18,18 +18,25 @@ package org.crownj.net;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.Socket;
 import java.nio.channels.*;
 import java.nio.channels.spi.SelectorProvider;
-import java.util.Iterator;
+import java.util.*;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.base.Throwables;
 import com.google.common.util.concurrent.AbstractExecutionThreadService;
 import org.slf4j.LoggerFactory;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
 /**
  * Creates a simple server listener which listens for incoming client connections and uses a {@link StreamConnection} to
- * process data.
+ * process data. Connections can be spread over several event loops, each running select calls on a thread of its own.
+ * The first loop accepts new connections and hands each to the loop with the fewest connections, which then handles it
+ * exclusively.
  */
 public class NioServer extends AbstractExecutionThreadService {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(NioServer.class);
@@ -37,81 +44,62 @@ public class NioServer extends AbstractExecutionThreadService {
     private final StreamConnectionFactory connectionFactory;
 
     private final ServerSocketChannel sc;
+    private final List<ServerLoop> loops;
+    // The selector of the first loop, which also accepts new connections.
     @VisibleForTesting final Selector selector;
+    // Set when any loop stops, so that all of them stop.
+    private volatile boolean shutdown = false;
 
-    // Handle a SelectionKey which was selected
-    private void handleKey(Selector selector, SelectionKey key) throws IOException {
-        if (key.isValid() && key.isAcceptable()) {
-            // Accept a new connection, give it a stream connection as an attachment
-            SocketChannel newChannel = sc.accept();
-            newChannel.configureBlocking(false);
-            SelectionKey newKey = newChannel.register(selector, SelectionKey.OP_READ);
-            try {
-                ConnectionHandler handler = new ConnectionHandler(connectionFactory, newKey);
-                newKey.attach(handler);
-                handler.connection.connectionOpened();
-            } catch (IOException e) {
-                // This can happen if ConnectionHandler's call to get a new handler returned null
-                log.error("Error handling new connection", Throwables.getRootCause(e).getMessage());
-                newKey.channel().close();
-            }
-        } else { // Got a closing channel or a channel to a client connection
-            ConnectionHandler.handleKey(key);
-        }
+    /**
+     * Creates a new server which is capable of listening for incoming connections and processing client provided data
+     * using {@link StreamConnection}s created by the given {@link StreamConnectionFactory}. All connections are handled
+     * by a single event loop.
+     *
+     * @throws IOException If there is an issue opening the server socket or binding fails for some reason
+     */
+    public NioServer(final StreamConnectionFactory connectionFactory, InetSocketAddress bindAddress) throws IOException {
+        this(connectionFactory, bindAddress, 1);
     }
 
     /**
      * Creates a new server which is capable of listening for incoming connections and processing client provided data
-     * using {@link StreamConnection}s created by the given {@link StreamConnectionFactory}
+     * using {@link StreamConnection}s created by the given {@link StreamConnectionFactory}.
      *
+     * @param loopCount number of event loops, each running select calls on a thread of its own
      * @throws IOException If there is an issue opening the server socket or binding fails for some reason
      */
-    public NioServer(final StreamConnectionFactory connectionFactory, InetSocketAddress bindAddress) throws IOException {
+    public NioServer(final StreamConnectionFactory connectionFactory, InetSocketAddress bindAddress, int loopCount)
+            throws IOException {
+        checkArgument(loopCount > 0);
         this.connectionFactory = connectionFactory;
 
+        List<ServerLoop> loops = new ArrayList<>(loopCount);
+        for (int i = 0; i < loopCount; i++)
+            loops.add(new ServerLoop(i));
+        this.loops = Collections.unmodifiableList(loops);
+        selector = loops.get(0).selector;
+
         sc = ServerSocketChannel.open();
         sc.configureBlocking(false);
         sc.socket().bind(bindAddress);
-        selector = SelectorProvider.provider().openSelector();
         sc.register(selector, SelectionKey.OP_ACCEPT);
     }
 
     @Override
     protected void run() throws Exception {
+        // The first loop runs on the service thread, the others get threads of their own.
+        List<Thread> threads = new ArrayList<>();
         try {
-            while (isRunning()) {
-                selector.select();
-
-                Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
-                while (keyIterator.hasNext()) {
-                    SelectionKey key = keyIterator.next();
-                    keyIterator.remove();
-
-                    handleKey(selector, key);
-                }
+            for (ServerLoop loop : loops.subList(1, loops.size())) {
+                Thread thread = new Thread(loop, "NioServer " + loop.index);
+                thread.setDaemon(true);
+                thread.start();
+                threads.add(thread);
             }
-        } catch (Exception e) {
-            log.error("Error trying to open/read from connection: {}", e);
+            loops.get(0).run();
+            for (Thread thread : threads)
+                thread.join();
         } finally {
-            // Go through and close everything, without letting IOExceptions get in our way
-            for (SelectionKey key : selector.keys()) {
-                try {
-                    key.channel().close();
-                } catch (IOException e) {
-                    log.error("Error closing channel", e);
-                }
-                try {
-                    key.cancel();
-                    handleKey(selector, key);
-                } catch (IOException e) {
-                    log.error("Error closing selection key", e);
-                }
-            }
-            try {
-                selector.close();
-            } catch (IOException e) {
-                log.error("Error closing server selector", e);
-            }
             try {
                 sc.close();
             } catch (IOException e) {
@@ -120,6 +108,38 @@ public class NioServer extends AbstractExecutionThreadService {
         }
     }
 
+    private ServerLoop leastLoaded() {
+        ServerLoop best = loops.get(0);
+        for (ServerLoop loop : loops)
+            if (loop.getLoad() < best.getLoad())
+                best = loop;
+        return best;
+    }
+
+    /** Returns the number of event loops. */
+    public int getLoopCount() {
+        return loops.size();
+    }
+
+    /** Returns the number of connections currently open on this server. */
+    public int getConnectedClientCount() {
+        int count = 0;
+        for (ServerLoop loop : loops)
+            count += loop.connectedHandlers.size();
+        return count;
+    }
+
+    /**
+     * Returns a snapshot of the statistics of every event loop. The queue depth is the number of accepted connections
+     * that haven't been picked up by their loop yet.
+     */
+    public List<NioClientManager.LoopStats> getLoopStats() {
+        List<NioClientManager.LoopStats> stats = new ArrayList<>(loops.size());
+        for (ServerLoop loop : loops)
+            stats.add(loop.getStats());
+        return stats;
+    }
+
     /**
      * Invoked by the Execution service when it's time to stop.
      * Calling this method directly will NOT stop the service, call
@@ -127,7 +147,139 @@ public class NioServer extends AbstractExecutionThreadService {
      */
     @Override
     public void triggerShutdown() {
-        // Wake up the selector and let the selection thread break its loop as the ExecutionService !isRunning()
-        selector.wakeup();
+        // Wake up the selectors and let the selection threads break their loops as the ExecutionService !isRunning()
+        shutdown = true;
+        for (ServerLoop loop : loops)
+            loop.selector.wakeup();
+    }
+
+    /** A selector and the connections it handles. Runs on a single thread. */
+    private class ServerLoop implements Runnable {
+        final int index;
+        final Selector selector;
+        // Accepted channels handed to this loop by the first one.
+        final Queue<SocketChannel> acceptedChannels = new LinkedBlockingQueue<>();
+        // Added to/removed from by the individual ConnectionHandler's, thus must by synchronized on its own.
+        final Set<ConnectionHandler> connectedHandlers = Collections.synchronizedSet(new HashSet<ConnectionHandler>());
+        // Channels assigned to this loop that it hasn't registered yet.
+        final AtomicInteger queued = new AtomicInteger();
+        final AtomicLong selectCount = new AtomicLong();
+        final AtomicLong keysHandled = new AtomicLong();
+        final AtomicLong selectNanos = new AtomicLong();
+        final AtomicLong handleNanos = new AtomicLong();
+
+        ServerLoop(int index) throws IOException {
+            this.index = index;
+            selector = SelectorProvider.provider().openSelector();
+        }
+
+        int getLoad() {
+            return queued.get() + connectedHandlers.size();
+        }
+
+        NioClientManager.LoopStats getStats() {
+            return new NioClientManager.LoopStats(connectedHandlers.size(), queued.get(), selectCount.get(),
+                    keysHandled.get(), selectNanos.get(), handleNanos.get());
+        }
+
+        // Handle a SelectionKey which was selected
+        private void handleKey(SelectionKey key) throws IOException {
+            if (key.isValid() && key.isAcceptable()) {
+                // Accept a new connection and pass it to the least loaded loop
+                SocketChannel newChannel = sc.accept();
+                if (newChannel == null)
+                    return;
+                newChannel.configureBlocking(false);
+                ServerLoop loop = leastLoaded();
+                if (loop == this) {
+                    open(newChannel);
+                } else {
+                    loop.queued.incrementAndGet();
+                    loop.acceptedChannels.offer(newChannel);
+                    loop.selector.wakeup();
+                }
+            } else { // Got a closing channel or a channel to a client connection
+                ConnectionHandler.handleKey(key);
+            }
+        }
+
+        // Register an accepted channel with this loop, give it a stream connection as an attachment
+        private void open(SocketChannel channel) throws IOException {
+            SelectionKey newKey = channel.register(selector, SelectionKey.OP_READ);
+            Socket socket = channel.socket();
+            StreamConnection connection = connectionFactory.getNewConnection(socket.getInetAddress(), socket.getPort());
+            if (connection == null) {
+                log.error("Error handling new connection: factory returned null");
+                channel.close();
+                return;
+            }
+            ConnectionHandler handler = new ConnectionHandler(connection, newKey, connectedHandlers);
+            newKey.attach(handler);
+            connection.connectionOpened();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (isRunning() && !shutdown) {
+                    SocketChannel channel;
+                    while ((channel = acceptedChannels.poll()) != null) {
+                        try {
+                            open(channel);
+                        } catch (ClosedChannelException e) {
+                            log.warn("SocketChannel was closed before it could be registered");
+                        } finally {
+                            queued.decrementAndGet();
+                        }
+                    }
+
+                    long start = System.nanoTime();
+                    selector.select();
+                    long selected = System.nanoTime();
+
+                    Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
+                    int keys = 0;
+                    while (keyIterator.hasNext()) {
+                        SelectionKey key = keyIterator.next();
+                        keyIterator.remove();
+                        handleKey(key);
+                        keys++;
+                    }
+                    selectCount.incrementAndGet();
+                    keysHandled.addAndGet(keys);
+                    selectNanos.addAndGet(selected - start);
+                    handleNanos.addAndGet(System.nanoTime() - selected);
+                }
+            } catch (Exception e) {
+                log.error("Error trying to open/read from connection: {}", e);
+            } finally {
+                // Stop the other loops too, in case this one failed.
+                triggerShutdown();
+                // Go through and close everything, without letting IOExceptions get in our way
+                for (SelectionKey key : selector.keys()) {
+                    try {
+                        key.channel().close();
+                    } catch (IOException e) {
+                        log.error("Error closing channel", e);
+                    }
+                    key.cancel();
+                    ConnectionHandler.handleKey(key);
+                }
+                SocketChannel channel;
+                while ((channel = acceptedChannels.poll()) != null) {
+                    queued.decrementAndGet();
+                    try {
+                        channel.close();
+                    } catch (IOException e) {
+                        log.error("Error closing channel", e);
+                    }
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    log.error("Error closing server selector", e);
+                }
+            }
+        }
     }
 }
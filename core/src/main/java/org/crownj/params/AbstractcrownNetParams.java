@@ -95,6 +95,12 @@ public abstract class AbstractcrownNetParams extends NetworkParameters {
         return ((previousHeight + 1) % this.getInterval()) == 0;
     }
 
+    @Override
+    public boolean needsBlockStoreForDifficulty(StoredBlock storedPrev, Block nextBlock) {
+        // Only transition points look back, for the first block of the interval.
+        return isDifficultyTransitionPoint(storedPrev.getHeight());
+    }
+
     @Override
     public void checkDifficultyTransitions(final StoredBlock storedPrev, final Block nextBlock,
         final BlockStore blockStore) throws VerificationException, BlockStoreException {
@@ -117,6 +117,13 @@ public class TestNet3Params extends AbstractcrownNetParams {
     // February 16th 2012
     private static final Date testnetDiffDate = new Date(1329264000000L);
 
+    @Override
+    public boolean needsBlockStoreForDifficulty(StoredBlock storedPrev, Block nextBlock) {
+        // Blocks following one with the easiest difficulty walk back to the last one that isn't, see below.
+        return super.needsBlockStoreForDifficulty(storedPrev, nextBlock) || (nextBlock.getTime().after(testnetDiffDate)
+                && storedPrev.getHeader().getDifficultyTargetAsInteger().equals(getMaxTarget()));
+    }
+
     @Override
     public void checkDifficultyTransitions(final StoredBlock storedPrev, final Block nextBlock,
         final BlockStore blockStore) throws VerificationException, BlockStoreException {
@@ -0,0 +1,32 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.store;
+
+import org.crownj.core.StoredBlock;
+
+import java.util.List;
+
+/**
+ * A {@link BlockStore} that can write several blocks at once, more cheaply than one by one. The block chain uses it,
+ * if available, to store a run of headers it connects in one go.
+ */
+public interface BatchingBlockStore extends BlockStore {
+    /**
+     * Saves the given blocks, in order, with the same effect as calling {@link #put(StoredBlock)} for each of them.
+     */
+    void putAll(List<StoredBlock> blocks) throws BlockStoreException;
+}
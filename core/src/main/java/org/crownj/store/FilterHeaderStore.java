@@ -0,0 +1,220 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.store;
+
+import org.crownj.core.Sha256Hash;
+import org.crownj.utils.Threading;
+
+import javax.annotation.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.*;
+
+/**
+ * Stores the chain of compact filter headers (BIP157) that a client has checked, one per block height, each together
+ * with the hash of the block it is for. The headers are kept in a flat file of 64 byte records, so the header of any
+ * height is a single positional read. Headers are only ever appended or cut off at the end, which is what following
+ * the block chain and its reorganizations needs. The block hashes tell which headers a reorganization made stale.
+ *
+ * <p>Instances of this class are thread safe.</p>
+ */
+public class FilterHeaderStore implements Closeable {
+    static final String HEADER_MAGIC = "CFHD";
+
+    // File format:
+    //   4 header bytes = "CFHD"
+    //   12 bytes reserved
+    //   64 bytes record of height 0, 1, 2 and so on: 32 bytes block hash, 32 bytes filter header
+    private static final int PROLOGUE_BYTES = 16;
+    private static final int RECORD_BYTES = 64;
+    private static final int HASH_BYTES = 32;
+
+    private final ReentrantLock lock = Threading.lock(FilterHeaderStore.class);
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel channel;
+    private final FileLock fileLock;
+    private int count;
+
+    /**
+     * Opens the given file, creating it if it doesn't exist.
+     * @throws ChainFileLockedException if another process has the file open
+     * @throws BlockStoreException if the file can't be read or isn't a filter header file
+     */
+    public FilterHeaderStore(File file) throws BlockStoreException {
+        try {
+            randomAccessFile = new RandomAccessFile(file, "rw");
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+        boolean opened = false;
+        try {
+            channel = randomAccessFile.getChannel();
+            fileLock = channel.tryLock();
+            if (fileLock == null)
+                throw new ChainFileLockedException("Store file is already locked by another process");
+            ByteBuffer prologue = ByteBuffer.allocate(PROLOGUE_BYTES);
+            if (randomAccessFile.length() == 0) {
+                prologue.put(HEADER_MAGIC.getBytes(StandardCharsets.US_ASCII));
+                ((Buffer) prologue).rewind();
+                channel.write(prologue, 0);
+            } else {
+                channel.read(prologue, 0);
+                byte[] header = new byte[4];
+                ((Buffer) prologue).rewind();
+                prologue.get(header);
+                if (!new String(header, StandardCharsets.US_ASCII).equals(HEADER_MAGIC))
+                    throw new BlockStoreException("Header bytes do not equal " + HEADER_MAGIC);
+            }
+            // A record cut short by a crash is dropped.
+            count = (int) ((channel.size() - PROLOGUE_BYTES) / RECORD_BYTES);
+            opened = true;
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            if (!opened) {
+                try {
+                    randomAccessFile.close(); // Also releases the lock.
+                } catch (IOException e) {
+                    // Ignored, the original exception is more useful.
+                }
+            }
+        }
+    }
+
+    /** Returns the height of the last stored header, or -1 if the store is empty. */
+    public int getHeight() {
+        lock.lock();
+        try {
+            return count - 1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the filter header at the given height, or null if there is none. */
+    @Nullable
+    public Sha256Hash get(int height) throws BlockStoreException {
+        return read(height, HASH_BYTES);
+    }
+
+    /** Returns the hash of the block the filter header at the given height is for, or null if there is none. */
+    @Nullable
+    public Sha256Hash getBlockHash(int height) throws BlockStoreException {
+        return read(height, 0);
+    }
+
+    @Nullable
+    private Sha256Hash read(int height, int offset) throws BlockStoreException {
+        checkArgument(height >= 0, "Negative height: %s", height);
+        lock.lock();
+        try {
+            if (height >= count)
+                return null;
+            ByteBuffer hash = ByteBuffer.allocate(HASH_BYTES);
+            while (hash.hasRemaining())
+                if (channel.read(hash, offsetOf(height) + offset + hash.position()) < 0)
+                    throw new BlockStoreException("Filter header file ends at height " + height);
+            return Sha256Hash.wrap(hash.array());
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stores the headers of consecutive heights, replacing any headers stored from the start height on.
+     * @param startHeight height of the first header, at most one more than {@link #getHeight()}
+     * @param blockHashes the hashes of the blocks the headers are for
+     */
+    public void putAll(int startHeight, List<Sha256Hash> blockHashes, List<Sha256Hash> headers)
+            throws BlockStoreException {
+        checkArgument(blockHashes.size() == headers.size(), "%s block hashes for %s headers", blockHashes.size(),
+                headers.size());
+        lock.lock();
+        try {
+            checkArgument(startHeight >= 0 && startHeight <= count, "Gap before height %s, store ends at %s",
+                    startHeight, count - 1);
+            ByteBuffer records = ByteBuffer.allocate(headers.size() * RECORD_BYTES);
+            for (int i = 0; i < headers.size(); i++) {
+                records.put(blockHashes.get(i).getBytes());
+                records.put(headers.get(i).getBytes());
+            }
+            ((Buffer) records).flip();
+            long position = offsetOf(startHeight);
+            while (records.hasRemaining())
+                position += channel.write(records, position);
+            channel.truncate(position);
+            count = startHeight + headers.size();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Removes the headers above the given height, e.g. after a reorganization of the block chain. */
+    public void rollback(int height) throws BlockStoreException {
+        checkArgument(height >= -1, "Bad height: %s", height);
+        lock.lock();
+        try {
+            if (height + 1 >= count)
+                return;
+            channel.truncate(offsetOf(height + 1));
+            count = height + 1;
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Writes the headers to disk. */
+    public void flush() throws BlockStoreException {
+        lock.lock();
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (!channel.isOpen())
+                return;
+            channel.force(false);
+            fileLock.release();
+            randomAccessFile.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static long offsetOf(int height) {
+        return PROLOGUE_BYTES + (long) height * RECORD_BYTES;
+    }
+}
@@ -23,6 +23,7 @@ import org.iq80.leveldb.*;
 import javax.annotation.*;
 import java.io.*;
 import java.nio.*;
+import java.util.*;
 
 /**
  * An SPV block store that writes every header it sees to a <a href="https://github.com/fusesource/leveldbjni">LevelDB</a>.
@@ -30,7 +31,7 @@ import java.nio.*;
  * usage than the {@link SPVBlockStore}. If all you want is a regular wallet you don't need this class: it exists for
  * specialised applications where you need to quickly verify a standalone SPV proof.
  */
-public class LevelDBBlockStore implements BlockStore {
+public class LevelDBBlockStore implements BatchingBlockStore {
     private static final byte[] CHAIN_HEAD_KEY = "chainhead".getBytes();
 
     private final Context context;
@@ -83,6 +84,21 @@ public class LevelDBBlockStore implements BlockStore {
         db.put(block.getHeader().getHash().getBytes(), buffer.array());
     }
 
+    @Override
+    public synchronized void putAll(List<StoredBlock> blocks) throws BlockStoreException {
+        try (WriteBatch batch = db.createWriteBatch()) {
+            for (StoredBlock block : blocks) {
+                buffer.clear();
+                block.serializeCompact(buffer);
+                // The batch keeps the array it is given, so each block needs its own copy.
+                batch.put(block.getHeader().getHash().getBytes(), buffer.array().clone());
+            }
+            db.write(batch);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
     @Override @Nullable
     public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
         byte[] bits = db.get(hash.getBytes());
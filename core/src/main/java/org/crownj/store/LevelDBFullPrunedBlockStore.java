@@ -16,7 +16,10 @@
 
 package org.crownj.store;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
@@ -28,6 +31,8 @@ import java.util.concurrent.TimeUnit;
 import java.io.*;
 import java.nio.ByteBuffer;
 
+import javax.annotation.Nullable;
+
 import org.crownj.core.Address;
 import org.crownj.core.AddressFormatException;
 import org.crownj.core.ECKey;
@@ -51,6 +56,7 @@ import org.slf4j.LoggerFactory;
 import static org.fusesource.leveldbjni.JniDBFactory.*;
 
 import com.google.common.base.Stopwatch;
+import com.google.common.primitives.UnsignedBytes;
 
 /**
  * <p>
@@ -60,6 +66,20 @@ import com.google.common.base.Stopwatch;
  * <p>
  * Includes number of caches to optimise the initial blockchain download.
  * </p>
+ *
+ * <p>
+ * Changes to the set of unspent outputs are written back: they are collected in memory over many blocks and
+ * written to the database in one sorted batch once they take up more than {@link #setUtxoCacheBytes(long)}, after
+ * {@link #setFlushInterval(long, TimeUnit)} and on {@link #close()}. Outputs that are created and spent in between
+ * never reach the database. The hash of the block the written outputs belong to is stored along with them. If the
+ * store wasn't closed cleanly, it goes back to that block when it is opened again, and the blocks after it are
+ * connected again by the chain.
+ * </p>
+ *
+ * <p>
+ * Undo data of blocks is not stored in the database but appended to memory mapped segment files in the same folder,
+ * see {@link UndoFileStore}. The database only holds where to find it. Pruning deletes whole segments.
+ * </p>
  */
 
 public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
@@ -92,14 +112,34 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
 
     // LRU Cache for getTransactionOutput
     protected Map<ByteBuffer, UTXO> utxoCache;
-    // Additional cache to cope with case when transactions are rolled back
-    // e.g. when block fails to verify.
-    protected Map<ByteBuffer, UTXO> utxoUncommittedCache;
-    protected Set<ByteBuffer> utxoUncommittedDeletedCache;
+    // Changes to unspent outputs and their address index made by the
+    // current batch. Only moved to pendingWrites on commit to cope with
+    // case when transactions are rolled back e.g. when block fails to verify.
+    protected Map<ByteBuffer, PendingWrite> uncommittedWrites;
+    // Write back cache: changes of committed blocks that have not been
+    // flushed to the database yet.
+    protected Map<ByteBuffer, PendingWrite> pendingWrites = new HashMap<>();
+    // Approximate memory taken by pendingWrites.
+    protected long pendingBytes;
+    // The verified chain head the database is at once pendingWrites are
+    // flushed.
+    protected Sha256Hash pendingHeadHash;
+    // Time since pendingWrites were last flushed.
+    protected Stopwatch sinceFlush = Stopwatch.createStarted();
+    // Flush triggers.
+    protected long utxoCacheBytes = UTXO_CACHE_BYTES_DEFAULT;
+    protected long flushIntervalMillis = FLUSH_INTERVAL_MILLIS_DEFAULT;
 
     // Database folder
     protected String filename;
 
+    // Segment files holding undo data, in the database folder.
+    protected UndoFileStore undoFiles;
+    protected int undoSegmentBytes = UndoFileStore.DEFAULT_SEGMENT_BYTES;
+    // Height up to which undo segments can be deleted once the current
+    // batch commits, or -1.
+    protected int uncommittedUndoPruneHeight = -1;
+
     // Do we auto commit transactions.
     protected boolean autoCommit = true;
 
@@ -122,6 +162,37 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
     static final long LEVELDB_READ_CACHE_DEFAULT = 100 * 1048576; // 100 meg
     static final int LEVELDB_WRITE_CACHE_DEFAULT = 10 * 1048576; // 10 meg
     static final int OPENOUT_CACHE_DEFAULT = 100000;
+    static final long UTXO_CACHE_BYTES_DEFAULT = 64 * 1048576; // 64 meg
+    static final long FLUSH_INTERVAL_MILLIS_DEFAULT = 10 * 60 * 1000; // 10 minutes
+    // Rough size of the objects making up a pending write, excluding the
+    // key and value bytes.
+    static final int PENDING_WRITE_OVERHEAD = 128;
+
+    // An unflushed change to a key of the unspent outputs or their address
+    // index.
+    protected static class PendingWrite {
+        // The value to write or null to delete the key.
+        @Nullable
+        final byte[] value;
+        // For unspent outputs that are written, the output itself.
+        @Nullable
+        final UTXO utxo;
+        // If the key is not in the database, so deleting it again does not
+        // need to reach the database at all.
+        final boolean fresh;
+
+        PendingWrite(@Nullable byte[] value, @Nullable UTXO utxo, boolean fresh) {
+            this.value = value;
+            this.utxo = utxo;
+            this.fresh = fresh;
+        }
+
+        long bytes(ByteBuffer key) {
+            // Outputs are held both serialized and deserialized.
+            long valueBytes = value == null ? 0 : (utxo == null ? value.length : 2 * value.length);
+            return PENDING_WRITE_OVERHEAD + key.capacity() + valueBytes;
+        }
+    }
 
     // LRUCache
     public class LRUCache extends LinkedHashMap<ByteBuffer, UTXO> {
@@ -288,6 +359,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         // options.blockSize(1024*1024*50);
         try {
             db = factory.open(new File(filename), options);
+            undoFiles = new UndoFileStore(new File(filename), undoSegmentBytes);
         } catch (IOException e) {
             throw new RuntimeException("Can not open DB", e);
         }
@@ -318,6 +390,29 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         if (this.verifiedChainHeadBlock == null) {
             throw new BlockStoreException("corrupt database block store - verified head block not found");
         }
+
+        byte[] utxoHead = batchGet(getKey(KeyType.UTXO_HEAD_SETTING));
+        if (utxoHead == null) {
+            // Stores written before unspent outputs were cached have them
+            // all in the database.
+            batchPut(getKey(KeyType.UTXO_HEAD_SETTING), hash.getBytes());
+        } else if (!hash.equals(Sha256Hash.wrap(utxoHead))) {
+            // Not closed cleanly, so the unspent outputs are behind. Go back
+            // to where they are, the chain connects the blocks after that
+            // again.
+            hash = Sha256Hash.wrap(utxoHead);
+            StoredBlock utxoHeadBlock = get(hash);
+            if (utxoHeadBlock == null) {
+                throw new BlockStoreException("corrupt database block store - unspent outputs head block not found");
+            }
+            log.warn("Store was not closed cleanly, going back from block {} to {}", verifiedChainHeadBlock.getHeight(),
+                    utxoHeadBlock.getHeight());
+            this.chainHeadBlock = this.verifiedChainHeadBlock = utxoHeadBlock;
+            this.chainHeadHash = this.verifiedChainHeadHash = hash;
+            batchPut(getKey(KeyType.CHAIN_HEAD_SETTING), hash.getBytes());
+            batchPut(getKey(KeyType.VERIFIED_CHAIN_HEAD_SETTING), hash.getBytes());
+        }
+        pendingHeadHash = hash;
     }
 
     private void createNewStore(NetworkParameters params) throws BlockStoreException {
@@ -337,6 +432,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
             put(storedGenesisHeader, storedGenesis);
             setChainHead(storedGenesisHeader);
             setVerifiedChainHead(storedGenesisHeader);
+            batchPut(getKey(KeyType.UTXO_HEAD_SETTING), storedGenesisHeader.getHeader().getHash().getBytes());
             batchPut(getKey(KeyType.CREATED), bytes("done"));
             commitDatabaseBatchWrite();
         } catch (VerificationException e) {
@@ -376,6 +472,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         double hitrate = (hit + 0.0) / (hit + miss + 0.0);
         log.info("Cache size:" + utxoCache.size() + " hit:" + hit + " miss:" + miss + " rate:"
                 + String.format("%.2f", hitrate));
+        log.info("Pending writes:" + pendingWrites.size() + " bytes:" + pendingBytes);
         bloom.printStat();
         log.info("hasTxOut call:" + hasCall + " True:" + hasTrue + " False:" + hasFalse);
         log.info("Wall:" + totalStopwatch + " percent:" + String.format("%.2f", dbproportion));
@@ -408,6 +505,8 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
 
     @Override
     public void close() throws BlockStoreException {
+        flush();
+        undoFiles.close();
         try {
             db.close();
         } catch (IOException e) {
@@ -426,6 +525,13 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         // This is critical or if one address paid another could get incorrect
         // results
 
+        // The address index is only searched in the database.
+        try {
+            flush();
+        } catch (BlockStoreException e) {
+            throw new UTXOProviderException("block store execption", e);
+        }
+
         List<UTXO> results = new LinkedList<>();
         for (ECKey key : keys) {
             ByteBuffer bb = ByteBuffer.allocate(21);
@@ -441,7 +547,9 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
             DBIterator iterator = db.iterator(ro);
             for (iterator.seek(bb.array()); iterator.hasNext(); iterator.next()) {
                 ByteBuffer bbKey = ByteBuffer.wrap(iterator.peekNext().getKey());
-                bbKey.get(); // remove the address_hashindex byte.
+                if (bbKey.get() != KeyType.ADDRESS_HASHINDEX.ordinal()) {
+                    break;
+                }
                 byte[] addressKey = new byte[20];
                 bbKey.get(addressKey);
                 if (!Arrays.equals(addressKey, key.getPubKeyHash())) {
@@ -533,20 +641,29 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         keyBuf.put(hash.getBytes(), 4, 28);
         batchPut(keyBuf.array(), new byte[1]);
 
+        ByteBuffer undoBuf;
         if (transactions == null) {
-            ByteBuffer undoBuf = ByteBuffer.allocate(4 + 4 + txOutChanges.length + 4 + 0);
+            undoBuf = ByteBuffer.allocate(4 + 4 + txOutChanges.length + 4 + 0);
             undoBuf.putInt(height);
             undoBuf.putInt(txOutChanges.length);
             undoBuf.put(txOutChanges);
             undoBuf.putInt(0);
-            batchPut(getKey(KeyType.UNDOABLEBLOCKS_ALL, hash), undoBuf.array());
         } else {
-            ByteBuffer undoBuf = ByteBuffer.allocate(4 + 4 + 0 + 4 + transactions.length);
+            undoBuf = ByteBuffer.allocate(4 + 4 + 0 + 4 + transactions.length);
             undoBuf.putInt(height);
             undoBuf.putInt(0);
             undoBuf.putInt(transactions.length);
             undoBuf.put(transactions);
-            batchPut(getKey(KeyType.UNDOABLEBLOCKS_ALL, hash), undoBuf.array());
+        }
+        try {
+            byte[] location = undoFiles.append(height, undoBuf.array());
+            // The location must not reach the database before the data it
+            // points to. In a batch, this is taken care of on commit.
+            if (autoCommit)
+                undoFiles.force();
+            batchPut(getKey(KeyType.UNDOABLEBLOCKS_LOCATION, hash), location);
+        } catch (IOException e) {
+            throw new BlockStoreException("Could not write undo data", e);
         }
         if (instrument)
             endMethod("put");
@@ -558,7 +675,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
     // in.
     // Do wonder if grouping each "table" like this is efficient or not...
     enum KeyType {
-        CREATED, CHAIN_HEAD_SETTING, VERIFIED_CHAIN_HEAD_SETTING, VERSION_SETTING, HEADERS_ALL, UNDOABLEBLOCKS_ALL, HEIGHT_UNDOABLEBLOCKS, OPENOUT_ALL, ADDRESS_HASHINDEX
+        CREATED, CHAIN_HEAD_SETTING, VERIFIED_CHAIN_HEAD_SETTING, VERSION_SETTING, HEADERS_ALL, UNDOABLEBLOCKS_ALL, HEIGHT_UNDOABLEBLOCKS, OPENOUT_ALL, ADDRESS_HASHINDEX, UTXO_HEAD_SETTING, UNDOABLEBLOCKS_LOCATION
     }
 
     // These helpers just get the key for an input
@@ -653,7 +770,12 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
             if (instrument)
                 beginMethod("getUndoBlock");
 
-            byte[] result = batchGet(getKey(KeyType.UNDOABLEBLOCKS_ALL, hash));
+            byte[] result;
+            byte[] location = batchGet(getKey(KeyType.UNDOABLEBLOCKS_LOCATION, hash));
+            if (location != null)
+                result = undoFiles.read(location);
+            else // Written before undo data was moved out of the database.
+                result = batchGet(getKey(KeyType.UNDOABLEBLOCKS_ALL, hash));
 
             if (result == null) {
                 if (instrument)
@@ -706,26 +828,16 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         try {
             UTXO result = null;
             byte[] key = getTxKey(KeyType.OPENOUT_ALL, hash, (int) index);
-            // Use cache
-            if (autoCommit) {
-                // Simple case of auto commit on so cache is consistent.
-                result = utxoCache.get(ByteBuffer.wrap(key));
-            } else {
-                // Check if we have an uncommitted delete.
-                if (utxoUncommittedDeletedCache.contains(ByteBuffer.wrap(key))) {
-                    // has been deleted so return null;
-                    hit++;
-                    if (instrument)
-                        endMethod("getTransactionOutput");
-                    return result;
-                }
-                // Check if we have an uncommitted entry
-                result = utxoUncommittedCache.get(ByteBuffer.wrap(key));
-                if (result == null)
-                    result = utxoCache.get(ByteBuffer.wrap(key));
-                // And lastly above check if we have a committed cached entry
-
+            // Check if we have an unflushed add or delete.
+            PendingWrite write = findPendingWrite(ByteBuffer.wrap(key));
+            if (write != null) {
+                hit++;
+                if (instrument)
+                    endMethod("getTransactionOutput");
+                return write.utxo;
             }
+            // And then if we have a cached entry
+            result = utxoCache.get(ByteBuffer.wrap(key));
             if (result != null) {
                 hit++;
                 if (instrument)
@@ -770,16 +882,10 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         }
 
         byte[] key = getTxKey(KeyType.OPENOUT_ALL, out.getHash(), (int) out.getIndex());
-        batchPut(key, bos.toByteArray());
-
-        if (autoCommit) {
-            utxoCache.put(ByteBuffer.wrap(key), out);
-        } else {
-            utxoUncommittedCache.put(ByteBuffer.wrap(key), out);
-            // leveldb just stores the last key/value added.
-            // So if we do an add must remove any previous deletes.
-            utxoUncommittedDeletedCache.remove(ByteBuffer.wrap(key));
-        }
+        // Coinbase transactions can have duplicates (see BIP30), so their
+        // outputs may be in the database already.
+        boolean fresh = !out.isCoinbase();
+        stageWrite(key, bos.toByteArray(), out, fresh);
 
         // Could run this in parallel with above too.
         // Should update instrumentation to see if worth while.
@@ -803,11 +909,126 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         bb.put(out.getHash().getBytes());
         bb.putInt((int) out.getIndex());
         byte[] value = new byte[0];
-        batchPut(bb.array(), value);
+        stageWrite(bb.array(), value, null, fresh);
         if (instrument)
             endMethod("addUnspentTransactionOutput");
     }
 
+    // Records a change to the unspent outputs or their address index. It is
+    // written to the database by the next flush after the batch commits.
+    private void stageWrite(byte[] key, @Nullable byte[] value, @Nullable UTXO utxo, boolean freshIfNew)
+            throws BlockStoreException {
+        ByteBuffer bbKey = ByteBuffer.wrap(key);
+        PendingWrite previous = findPendingWrite(bbKey);
+        PendingWrite write = new PendingWrite(value, utxo, previous != null ? previous.fresh : freshIfNew);
+        if (autoCommit) {
+            applyPendingWrite(bbKey, write);
+            maybeFlush();
+        } else {
+            uncommittedWrites.put(bbKey, write);
+        }
+    }
+
+    @Nullable
+    private PendingWrite findPendingWrite(ByteBuffer key) {
+        if (!autoCommit) {
+            PendingWrite write = uncommittedWrites.get(key);
+            if (write != null)
+                return write;
+        }
+        return pendingWrites.get(key);
+    }
+
+    private void applyPendingWrite(ByteBuffer key, PendingWrite write) {
+        PendingWrite previous;
+        if (write.value == null && write.fresh) {
+            // Created and deleted again before it reached the database.
+            previous = pendingWrites.remove(key);
+        } else {
+            previous = pendingWrites.put(key, write);
+            pendingBytes += write.bytes(key);
+        }
+        if (previous != null)
+            pendingBytes -= previous.bytes(key);
+
+        if (write.utxo != null)
+            utxoCache.put(key, write.utxo);
+        else if (write.value == null)
+            utxoCache.remove(key);
+    }
+
+    private void maybeFlush() throws BlockStoreException {
+        if (pendingBytes > utxoCacheBytes || sinceFlush.elapsed(TimeUnit.MILLISECONDS) > flushIntervalMillis)
+            flush();
+    }
+
+    /**
+     * Writes the changes to the unspent outputs that are held in memory to the database. This happens by itself when
+     * they take up too much memory, after the flush interval and on {@link #close()}.
+     */
+    public void flush() throws BlockStoreException {
+        if (instrument)
+            beginMethod("flush");
+        // LevelDB keeps keys sorted, so write them in that order.
+        List<Map.Entry<ByteBuffer, PendingWrite>> writes = new ArrayList<>(pendingWrites.entrySet());
+        Collections.sort(writes, new Comparator<Map.Entry<ByteBuffer, PendingWrite>>() {
+            private final Comparator<byte[]> comparator = UnsignedBytes.lexicographicalComparator();
+
+            @Override
+            public int compare(Map.Entry<ByteBuffer, PendingWrite> a, Map.Entry<ByteBuffer, PendingWrite> b) {
+                return comparator.compare(a.getKey().array(), b.getKey().array());
+            }
+        });
+        try {
+            WriteBatch flushBatch = db.createWriteBatch();
+            for (Map.Entry<ByteBuffer, PendingWrite> entry : writes) {
+                byte[] value = entry.getValue().value;
+                if (value != null)
+                    flushBatch.put(entry.getKey().array(), value);
+                else
+                    flushBatch.delete(entry.getKey().array());
+            }
+            if (pendingHeadHash != null)
+                flushBatch.put(getKey(KeyType.UTXO_HEAD_SETTING), pendingHeadHash.getBytes());
+            db.write(flushBatch);
+            flushBatch.close();
+        } catch (DBException | IOException e) {
+            throw new BlockStoreException("Could not flush unspent outputs", e);
+        }
+        log.debug("Flushed {} changes to unspent outputs, {} bytes, after {}", writes.size(), pendingBytes, sinceFlush);
+        pendingWrites.clear();
+        pendingBytes = 0;
+        sinceFlush.reset().start();
+        if (instrument)
+            endMethod("flush");
+    }
+
+    /**
+     * Sets approximately how much memory changes to the unspent outputs may take up before they are written to the
+     * database. Zero writes them after every block.
+     */
+    public void setUtxoCacheBytes(long utxoCacheBytes) {
+        this.utxoCacheBytes = utxoCacheBytes;
+    }
+
+    /** Sets after how long changes to the unspent outputs are written to the database at the latest. */
+    public void setFlushInterval(long interval, TimeUnit unit) {
+        this.flushIntervalMillis = unit.toMillis(interval);
+    }
+
+    /**
+     * Sets the size of newly created segment files for undo data. Smaller segments can be deleted sooner when pruning.
+     */
+    public void setUndoSegmentBytes(int undoSegmentBytes) {
+        undoFiles.setSegmentBytes(undoSegmentBytes);
+        this.undoSegmentBytes = undoSegmentBytes;
+    }
+
+    /** Returns approximately how much memory the changes to the unspent outputs not yet written take up. */
+    public long getPendingBytes() {
+        return pendingBytes;
+    }
+
     private void batchPut(byte[] key, byte[] value) {
         if (autoCommit) {
             db.put(key, value);
@@ -862,15 +1083,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
             beginMethod("removeUnspentTransactionOutput");
 
         byte[] key = getTxKey(KeyType.OPENOUT_ALL, out.getHash(), (int) out.getIndex());
-
-        if (autoCommit) {
-            utxoCache.remove(ByteBuffer.wrap(key));
-        } else {
-            utxoUncommittedDeletedCache.add(ByteBuffer.wrap(key));
-            utxoUncommittedCache.remove(ByteBuffer.wrap(key));
-        }
-
-        batchDelete(key);
+        stageWrite(key, null, null, false);
         // could run this and the above in parallel
         // Need to update instrumentation to check if worth the effort
 
@@ -898,7 +1111,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         bb.put(hashBytes);
         bb.put(out.getHash().getBytes());
         bb.putInt((int) out.getIndex());
-        batchDelete(bb.array());
+        stageWrite(bb.array(), null, null, false);
 
         if (instrument)
             endMethod("removeUnspentTransactionOutput");
@@ -922,34 +1135,32 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
             hasFalse++;
             return false;
         }
+        // Unflushed adds and deletes take precedence over the database.
+        for (int index = 0; index < numOutputs; index++) {
+            PendingWrite write = findPendingWrite(ByteBuffer.wrap(getTxKey(KeyType.OPENOUT_ALL, hash, index)));
+            if (write != null && write.value != null) {
+                hasTrue++;
+                if (instrument)
+                    endMethod("hasUnspentOutputs");
+                return true;
+            }
+        }
         // no index is fine as will find any entry with any index...
-        // TODO should I be checking uncommitted inserts/deletes???
         byte[] key = getTxKey(KeyType.OPENOUT_ALL, hash);
         byte[] subResult = new byte[key.length];
+        boolean found = false;
         DBIterator iterator = db.iterator();
-        for (iterator.seek(key); iterator.hasNext();) {
+        for (iterator.seek(key); iterator.hasNext(); iterator.next()) {
             byte[] result = iterator.peekNext().getKey();
+            if (result.length < subResult.length)
+                break;
             System.arraycopy(result, 0, subResult, 0, subResult.length);
-            if (Arrays.equals(key, subResult)) {
-                hasTrue++;
-                try {
-                    iterator.close();
-                } catch (IOException e) {
-                    log.error("Error closing iterator", e);
-                }
-                if (instrument)
-                    endMethod("hasUnspentOutputs");
-                return true;
-            } else {
-                hasFalse++;
-                try {
-                    iterator.close();
-                } catch (IOException e) {
-                    log.error("Error closing iterator", e);
-                }
-                if (instrument)
-                    endMethod("hasUnspentOutputs");
-                return false;
+            if (!Arrays.equals(key, subResult))
+                break;
+            PendingWrite write = findPendingWrite(ByteBuffer.wrap(result));
+            if (write == null || write.value != null) {
+                found = true;
+                break;
             }
         }
         try {
@@ -957,10 +1168,13 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         } catch (IOException e) {
             log.error("Error closing iterator", e);
         }
-        hasFalse++;
+        if (found)
+            hasTrue++;
+        else
+            hasFalse++;
         if (instrument)
             endMethod("hasUnspentOutputs");
-        return false;
+        return found;
     }
 
     @Override
@@ -976,6 +1190,8 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         this.verifiedChainHeadHash = hash;
         this.verifiedChainHeadBlock = chainHead;
         batchPut(getKey(KeyType.VERIFIED_CHAIN_HEAD_SETTING), hash.getBytes());
+        if (autoCommit)
+            pendingHeadHash = hash;
         if (this.chainHeadBlock.getHeight() < chainHead.getHeight())
             setChainHead(chainHead);
         removeUndoableBlocksWhereHeightIsLessThan(chainHead.getHeight() - fullStoreDepth);
@@ -1005,6 +1221,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
                 break;
 
             batchDelete(getKey(KeyType.UNDOABLEBLOCKS_ALL, hashbytes));
+            batchDelete(getKey(KeyType.UNDOABLEBLOCKS_LOCATION, hashbytes));
             batchDelete(bytekey);
         }
         try {
@@ -1012,7 +1229,12 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         } catch (IOException e) {
             log.error("Error closing iterator", e);
         }
-
+        // The batch deleting the locations may still be aborted, so only
+        // delete the segments they point into once it commits.
+        if (autoCommit)
+            undoFiles.deleteSegmentsUpTo(height);
+        else
+            uncommittedUndoPruneHeight = Math.max(uncommittedUndoPruneHeight, height);
     }
 
     WriteBatch batch;
@@ -1031,8 +1253,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         batch = db.createWriteBatch();
         uncommited = new HashMap<>();
         uncommitedDeletes = new HashSet<>();
-        utxoUncommittedCache = new HashMap<>();
-        utxoUncommittedDeletedCache = new HashSet<>();
+        uncommittedWrites = new HashMap<>();
         autoCommit = false;
         if (instrument)
             endMethod("beginDatabaseBatchWrite");
@@ -1045,19 +1266,18 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         if (instrument)
             beginMethod("commitDatabaseBatchWrite");
 
+        undoFiles.force();
         db.write(batch);
-        // order of these is not important as we only allow entry to be in one
-        // or the other.
-        // must update cache with uncommitted adds/deletes.
-        for (Map.Entry<ByteBuffer, UTXO> entry : utxoUncommittedCache.entrySet()) {
-
-            utxoCache.put(entry.getKey(), entry.getValue());
+        if (uncommittedUndoPruneHeight >= 0) {
+            undoFiles.deleteSegmentsUpTo(uncommittedUndoPruneHeight);
+            uncommittedUndoPruneHeight = -1;
         }
-        utxoUncommittedCache = null;
-        for (ByteBuffer entry : utxoUncommittedDeletedCache) {
-            utxoCache.remove(entry);
+        // Changes to unspent outputs stay in memory until the next flush.
+        for (Map.Entry<ByteBuffer, PendingWrite> entry : uncommittedWrites.entrySet()) {
+            applyPendingWrite(entry.getKey(), entry.getValue());
         }
-        utxoUncommittedDeletedCache = null;
+        uncommittedWrites = null;
+        pendingHeadHash = verifiedChainHeadHash;
 
         autoCommit = true;
 
@@ -1072,6 +1292,8 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         if (instrument)
             endMethod("commitDatabaseBatchWrite");
 
+        maybeFlush();
+
         if (instrument && verifiedChainHeadBlock.getHeight() % 1000 == 0) {
             log.info("Height: " + verifiedChainHeadBlock.getHeight());
             dumpStats();
@@ -1087,8 +1309,8 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         try {
             uncommited = null;
             uncommitedDeletes = null;
-            utxoUncommittedCache = null;
-            utxoUncommittedDeletedCache = null;
+            uncommittedWrites = null;
+            uncommittedUndoPruneHeight = -1;
             autoCommit = true;
             if (batch != null) {
                 batch.close();
@@ -1104,9 +1326,15 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         // bit dangerous and deletes files!
         try {
             db.close();
+            undoFiles.close();
             uncommited = null;
             uncommitedDeletes = null;
             autoCommit = true;
+            uncommittedWrites = null;
+            uncommittedUndoPruneHeight = -1;
+            pendingWrites.clear();
+            pendingBytes = 0;
+            pendingHeadHash = null;
             bloom = new BloomFilter();
             utxoCache = new LRUCache(openOutCache, 0.75f);
         } catch (IOException e) {
@@ -16,6 +16,7 @@
 
 package org.crownj.store;
 
+import com.google.common.cache.*;
 import org.crownj.core.*;
 import org.crownj.utils.*;
 import org.slf4j.*;
@@ -36,14 +37,27 @@ import static com.google.common.base.Preconditions.*;
  * An SPVBlockStore holds a limited number of block headers in a memory mapped ring buffer. With such a store, you
  * may not be able to process very deep re-orgs and could be disconnected from the chain (requiring a replay),
  * but as they are virtually unheard of this is not a significant risk.
+ *
+ * <p>Lookups by hash are served from a hash index kept in a sidecar file next to the ring, named like the store file
+ * plus {@link #INDEX_FILE_SUFFIX}. The index is rebuilt from the ring if it is missing or out of date.</p>
+ *
+ * <p>Reads don't take {@link #lock}. They are served from concurrent caches or read the ring optimistically,
+ * retrying if a writer modified the ring in the meantime. Only writers serialize on the lock.</p>
  */
-public class SPVBlockStore implements BlockStore {
+public class SPVBlockStore implements BatchingBlockStore {
     private static final Logger log = LoggerFactory.getLogger(SPVBlockStore.class);
     protected final ReentrantLock lock = Threading.lock(SPVBlockStore.class);
+    // Sequence lock that writers hold while they touch the ring or the index. Readers validate against it after an
+    // optimistic read, instead of locking.
+    private final StampedLock seqLock = new StampedLock();
+    // How often a reader retries optimistically before it waits for the writer in progress.
+    private static final int MAX_OPTIMISTIC_READS = 3;
 
     /** The default number of headers that will be stored in the ring buffer. */
     public static final int DEFAULT_CAPACITY = 10000;
     public static final String HEADER_MAGIC = "SPVB";
+    /** Suffix appended to the store file name to get the name of the hash index file. */
+    public static final String INDEX_FILE_SUFFIX = ".idx";
 
     protected volatile MappedByteBuffer buffer;
     protected final NetworkParameters params;
@@ -55,29 +69,26 @@ public class SPVBlockStore implements BlockStore {
     // the OpenJDK/Oracle JVM calls into the get() methods are compiled down to inlined native code on Android each
     // get() call is actually a full-blown JNI method under the hood, meaning it's unbelievably slow. The caches
     // below let us stay in the JIT-compiled Java world without expensive JNI transitions and make a 10x difference!
-    protected LinkedHashMap<Sha256Hash, StoredBlock> blockCache = new LinkedHashMap<Sha256Hash, StoredBlock>() {
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, StoredBlock> entry) {
-            return size() > 2050;  // Slightly more than the difficulty transition period.
-        }
-    };
+    private final Cache<Sha256Hash, StoredBlock> blockCache = CacheBuilder.newBuilder()
+            .maximumSize(2050)  // Slightly more than the difficulty transition period.
+            .concurrencyLevel(4)
+            .build();
     // Use a separate cache to track get() misses. This is to efficiently handle the case of an unconnected block
     // during chain download. Each new block will do a get() on the unconnected block so if we haven't seen it yet we
     // must efficiently respond.
     //
-    // We don't care about the value in this cache. It is always notFoundMarker. Unfortunately LinkedHashSet does not
-    // provide the removeEldestEntry control.
+    // We don't care about the value in this cache. It is always notFoundMarker.
     private static final Object NOT_FOUND_MARKER = new Object();
-    protected LinkedHashMap<Sha256Hash, Object> notFoundCache = new LinkedHashMap<Sha256Hash, Object>() {
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Object> entry) {
-            return size() > 100;  // This was chosen arbitrarily.
-        }
-    };
+    private final Cache<Sha256Hash, Object> notFoundCache = CacheBuilder.newBuilder()
+            .maximumSize(100)  // This was chosen arbitrarily.
+            .concurrencyLevel(4)
+            .build();
     // Used to stop other applications/processes from opening the store.
     protected FileLock fileLock = null;
     protected RandomAccessFile randomAccessFile = null;
     private int fileLength;
+    // Maps hashes to ring offsets, so get() doesn't have to scan the ring on a cache miss.
+    private SPVBlockStoreIndex index;
 
     /**
      * Creates and initializes an SPV block store that can hold {@link #DEFAULT_CAPACITY} block headers. Will create the
@@ -147,8 +158,22 @@ public class SPVBlockStore implements BlockStore {
             } else {
                 initNewStore(params);
             }
+
+            // Open the hash index and make sure it reflects the ring. A new ring always gets a fresh index, even if
+            // a stale index file was left behind by a deleted store.
+            index = new SPVBlockStoreIndex(new File(file.getPath() + INDEX_FILE_SUFFIX), FILE_PROLOGUE_BYTES,
+                    fileLength, RECORD_SIZE);
+            lock.lock();
+            try {
+                int cursor = getRingCursor(buffer);
+                if (!exists || !index.isInSyncWith(buffer, cursor))
+                    index.rebuild(buffer, cursor);
+            } finally {
+                lock.unlock();
+            }
         } catch (Exception e) {
             try {
+                if (index != null) index.close();
                 if (randomAccessFile != null) randomAccessFile.close();
             } catch (IOException e2) {
                 throw new BlockStoreException(e2);
@@ -181,24 +206,56 @@ public class SPVBlockStore implements BlockStore {
 
     @Override
     public void put(StoredBlock block) throws BlockStoreException {
+        putAll(Collections.singletonList(block));
+    }
+
+    /**
+     * Writes the blocks to the ring one after the other, like {@link #put(StoredBlock)}, but takes the locks, moves the
+     * ring cursor and brings the index in sync only once for all of them.
+     */
+    @Override
+    public void putAll(List<StoredBlock> blocks) throws BlockStoreException {
         final MappedByteBuffer buffer = this.buffer;
         if (buffer == null) throw new BlockStoreException("Store closed");
 
         lock.lock();
+        long stamp = seqLock.writeLock();
         try {
             int cursor = getRingCursor(buffer);
-            if (cursor == fileLength) {
-                // Wrapped around.
-                cursor = FILE_PROLOGUE_BYTES;
+            if (index != null)
+                index.markDirty();
+            for (StoredBlock block : blocks) {
+                if (cursor == fileLength) {
+                    // Wrapped around.
+                    cursor = FILE_PROLOGUE_BYTES;
+                }
+                Sha256Hash hash = block.getHeader().getHash();
+                notFoundCache.invalidate(hash);
+                if (index != null) {
+                    // The record we're about to overwrite drops out of the ring, so it must drop out of the index too.
+                    byte[] overwrittenHash = new byte[32];
+                    ((Buffer) buffer).position(cursor);
+                    buffer.get(overwrittenHash);
+                    Sha256Hash overwritten = Sha256Hash.wrap(overwrittenHash);
+                    index.remove(buffer, overwritten, cursor);
+                    blockCache.invalidate(overwritten);
+                }
+                ((Buffer) buffer).position(cursor);
+                buffer.put(hash.getBytes());
+                block.serializeCompact(buffer);
+                int recordOffset = cursor;
+                cursor = buffer.position();
+                if (index != null)
+                    index.insert(buffer, hash, recordOffset);
+                blockCache.put(hash, block);
             }
-            ((Buffer) buffer).position(cursor);
-            Sha256Hash hash = block.getHeader().getHash();
-            notFoundCache.remove(hash);
-            buffer.put(hash.getBytes());
-            block.serializeCompact(buffer);
-            setRingCursor(buffer, buffer.position());
-            blockCache.put(hash, block);
-        } finally { lock.unlock(); }
+            setRingCursor(buffer, cursor);
+            if (index != null)
+                index.markInSync(buffer, cursor);
+        } finally {
+            seqLock.unlockWrite(stamp);
+            lock.unlock();
+        }
     }
 
     @Override
@@ -207,51 +264,81 @@ public class SPVBlockStore implements BlockStore {
         final MappedByteBuffer buffer = this.buffer;
         if (buffer == null) throw new BlockStoreException("Store closed");
 
-        lock.lock();
-        try {
-            StoredBlock cacheHit = blockCache.get(hash);
-            if (cacheHit != null)
-                return cacheHit;
-            if (notFoundCache.get(hash) != null)
-                return null;
-
-            // Starting from the current tip of the ring work backwards until we have either found the block or
-            // wrapped around.
-            int cursor = getRingCursor(buffer);
-            final int startingPoint = cursor;
-            final byte[] targetHashBytes = hash.getBytes();
-            byte[] scratch = new byte[32];
-            do {
-                cursor -= RECORD_SIZE;
-                if (cursor < FILE_PROLOGUE_BYTES) {
-                    // We hit the start, so wrap around.
-                    cursor = fileLength - RECORD_SIZE;
-                }
-                // Cursor is now at the start of the next record to check, so read the hash and compare it.
-                ((Buffer) buffer).position(cursor);
-                buffer.get(scratch);
-                if (Arrays.equals(scratch, targetHashBytes)) {
-                    // Found the target.
-                    StoredBlock storedBlock = StoredBlock.deserializeCompact(params, buffer);
-                    blockCache.put(hash, storedBlock);
-                    return storedBlock;
-                }
-            } while (cursor != startingPoint);
-            // Not found.
-            notFoundCache.put(hash, NOT_FOUND_MARKER);
+        StoredBlock cacheHit = blockCache.getIfPresent(hash);
+        if (cacheHit != null)
+            return cacheHit;
+        if (notFoundCache.getIfPresent(hash) != null)
             return null;
+
+        // Read the ring without locking. If a writer got in between we may have seen a torn record, so validate and
+        // retry. Should that keep happening, take the read lock, which only waits for the write in progress.
+        for (int attempt = 0; attempt < MAX_OPTIMISTIC_READS; attempt++) {
+            long stamp = seqLock.tryOptimisticRead();
+            if (stamp == 0)
+                continue;
+            if (this.buffer == null) throw new BlockStoreException("Store closed");
+            StoredBlock storedBlock;
+            try {
+                storedBlock = readRecord(buffer.duplicate(), hash);
+            } catch (RuntimeException e) {
+                // A torn read can fail in all sorts of ways. Only if no writer got in, the failure is real.
+                if (seqLock.validate(stamp))
+                    throw e;
+                continue;
+            }
+            if (seqLock.validate(stamp) && cacheResult(hash, storedBlock, stamp))
+                return storedBlock;
+        }
+        long stamp = seqLock.readLock();
+        try {
+            if (this.buffer == null) throw new BlockStoreException("Store closed");
+            StoredBlock storedBlock = readRecord(buffer.duplicate(), hash);
+            cacheResult(hash, storedBlock, stamp);
+            return storedBlock;
         } catch (ProtocolException e) {
             throw new RuntimeException(e);  // Cannot happen.
-        } finally { lock.unlock(); }
+        } finally {
+            seqLock.unlockRead(stamp);
+        }
     }
 
-    protected StoredBlock lastChainHead = null;
+    /** Looks up the newest record with the given hash in the index and reads it from the given view of the ring. */
+    @Nullable
+    private StoredBlock readRecord(ByteBuffer ring, Sha256Hash hash) throws ProtocolException {
+        int offset = index.find(ring, hash);
+        if (offset < 0)
+            return null;
+        ((Buffer) ring).position(offset + 32);
+        // The index has just compared the hash of the record, so there is no need to hash the header again.
+        return StoredBlock.deserializeCompact(params, ring, hash);
+    }
+
+    /**
+     * Caches the result of a ring read. Returns false, and forgets about the result, if a writer got in since the
+     * read, because the cached value may already be stale.
+     */
+    private boolean cacheResult(Sha256Hash hash, @Nullable StoredBlock storedBlock, long stamp) {
+        if (storedBlock != null)
+            blockCache.put(hash, storedBlock);
+        else
+            notFoundCache.put(hash, NOT_FOUND_MARKER);
+        if (seqLock.validate(stamp))
+            return true;
+        blockCache.invalidate(hash);
+        notFoundCache.invalidate(hash);
+        return false;
+    }
+
+    protected volatile StoredBlock lastChainHead = null;
 
     @Override
     public StoredBlock getChainHead() throws BlockStoreException {
         final MappedByteBuffer buffer = this.buffer;
         if (buffer == null) throw new BlockStoreException("Store closed");
 
+        StoredBlock chainHead = lastChainHead;
+        if (chainHead != null)
+            return chainHead;
         lock.lock();
         try {
             if (lastChainHead == null) {
@@ -274,24 +361,36 @@ public class SPVBlockStore implements BlockStore {
         if (buffer == null) throw new BlockStoreException("Store closed");
 
         lock.lock();
+        long stamp = seqLock.writeLock();
         try {
             lastChainHead = chainHead;
             byte[] headHash = chainHead.getHeader().getHash().getBytes();
             ((Buffer) buffer).position(8);
             buffer.put(headHash);
-        } finally { lock.unlock(); }
+        } finally {
+            seqLock.unlockWrite(stamp);
+            lock.unlock();
+        }
     }
 
     @Override
     public void close() throws BlockStoreException {
+        // Lock-free readers validate against the write stamp, so they notice the close instead of reading on.
+        lock.lock();
+        long stamp = seqLock.writeLock();
         try {
             buffer.force();
             buffer = null;  // Allow it to be GCd and the underlying file mapping to go away.
+            index.close();
             fileLock.release();
             randomAccessFile.close();
-            blockCache.clear();
+            blockCache.invalidateAll();
+            notFoundCache.invalidateAll();
         } catch (IOException e) {
             throw new BlockStoreException(e);
+        } finally {
+            seqLock.unlockWrite(stamp);
+            lock.unlock();
         }
     }
 
@@ -329,18 +428,31 @@ public class SPVBlockStore implements BlockStore {
     public void clear() throws Exception {
         lock.lock();
         try {
-            // Clear caches
-            blockCache.clear();
-            notFoundCache.clear();
-            // Clear file content
-            ((Buffer) buffer).position(0);
-            long fileLength = randomAccessFile.length();
-            for (int i = 0; i < fileLength; i++) {
-                buffer.put((byte)0);
+            long stamp = seqLock.writeLock();
+            try {
+                // Clear caches
+                blockCache.invalidateAll();
+                notFoundCache.invalidateAll();
+                // Clear file content
+                ((Buffer) buffer).position(0);
+                long fileLength = randomAccessFile.length();
+                for (int i = 0; i < fileLength; i++) {
+                    buffer.put((byte)0);
+                }
+                ((Buffer) buffer).position(0);
+            } finally {
+                seqLock.unlockWrite(stamp);
             }
             // Initialize store again
-            ((Buffer) buffer).position(0);
             initNewStore(params);
-        } finally { lock.unlock(); }
+            stamp = seqLock.writeLock();
+            try {
+                index.rebuild(buffer, getRingCursor(buffer));
+            } finally {
+                seqLock.unlockWrite(stamp);
+            }
+        } finally {
+            lock.unlock();
+        }
     }
 }
@@ -0,0 +1,274 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.store;
+
+import org.crownj.core.*;
+import org.slf4j.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static com.google.common.base.Preconditions.*;
+
+/**
+ * A persistent open-addressing hash table that maps block hashes to record offsets in the ring buffer of an
+ * {@link SPVBlockStore}. It lives in a memory mapped sidecar file next to the store, so lookups that miss the block
+ * cache no longer have to scan the whole ring. The index carries no information of its own: whenever it is missing or
+ * out of sync with the ring it is simply rebuilt from the ring contents.
+ *
+ * <p>This class is not thread safe. Modifications must be serialized by the owning store. {@link #find(ByteBuffer,
+ * Sha256Hash)} may run concurrently with a modification, but then its result can be garbage and must be validated by
+ * the caller.</p>
+ */
+class SPVBlockStoreIndex {
+    private static final Logger log = LoggerFactory.getLogger(SPVBlockStoreIndex.class);
+
+    static final String HEADER_MAGIC = "SPVI";
+
+    // File format:
+    //   4 header bytes = "SPVI"
+    //   4 bytes number of slots, always a power of two
+    //   4 bytes ring cursor the index is in sync with, or 0 if an update was in progress
+    //   4 bytes reserved
+    //  32 bytes hash of the record just before the ring cursor, to detect a ring file that was swapped underneath us
+    //
+    // For each slot (8 bytes)
+    //   4 bytes fragment of the block hash, see Sha256Hash.hashCode()
+    //   4 bytes offset of the record in the ring, or 0 if the slot is empty
+    private static final int PROLOGUE_BYTES = 64;
+    private static final int SLOT_SIZE = 8;
+    private static final int CURSOR_OFFSET = 8;
+    private static final int LAST_HASH_OFFSET = 16;
+
+    private final int ringLength;
+    private final int recordSize;
+    private final int ringStart;
+    private final int slotCount;
+    private final int mask;
+    private final byte[] scratch = new byte[32];
+
+    private RandomAccessFile randomAccessFile;
+    private volatile MappedByteBuffer buffer;
+
+    /**
+     * Opens or creates the index file. The caller has to check {@link #isInSyncWith(ByteBuffer, int)} and
+     * {@link #rebuild(ByteBuffer, int)} if necessary before using it.
+     * @param file sidecar file to use for the index
+     * @param ringStart offset of the first record in the ring file
+     * @param ringLength length of the ring file in bytes
+     * @param recordSize size of a single record in the ring
+     */
+    SPVBlockStoreIndex(File file, int ringStart, int ringLength, int recordSize) throws IOException {
+        this.ringStart = ringStart;
+        this.ringLength = ringLength;
+        this.recordSize = recordSize;
+        this.slotCount = getSlotCount((ringLength - ringStart) / recordSize);
+        this.mask = slotCount - 1;
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            int fileLength = PROLOGUE_BYTES + slotCount * SLOT_SIZE;
+            if (randomAccessFile.length() != fileLength)
+                randomAccessFile.setLength(fileLength);
+            buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileLength);
+        } catch (IOException x) {
+            randomAccessFile.close();
+            throw x;
+        }
+    }
+
+    /** Returns the number of slots used for a ring of the given capacity, keeping the load factor at or below 0.5. */
+    static int getSlotCount(int capacity) {
+        checkArgument(capacity > 0);
+        return Integer.highestOneBit(capacity * 2 - 1) << 1;
+    }
+
+    /**
+     * Returns true if the index was last updated for the given ring cursor and the record before that cursor still
+     * has the hash the index remembers.
+     */
+    boolean isInSyncWith(ByteBuffer ring, int ringCursor) {
+        byte[] header = new byte[4];
+        ((Buffer) buffer).position(0);
+        buffer.get(header);
+        if (!new String(header, StandardCharsets.US_ASCII).equals(HEADER_MAGIC))
+            return false;
+        if (buffer.getInt(4) != slotCount || buffer.getInt(CURSOR_OFFSET) != ringCursor)
+            return false;
+        byte[] lastHash = new byte[32];
+        ((Buffer) buffer).position(LAST_HASH_OFFSET);
+        buffer.get(lastHash);
+        readHash(ring, previousRecord(ringCursor), scratch);
+        return Arrays.equals(lastHash, scratch);
+    }
+
+    /** Throws away all slots and re-inserts every record in the ring, oldest first, so that newer duplicates win. */
+    void rebuild(ByteBuffer ring, int ringCursor) {
+        log.info("Rebuilding SPV block store index with {} slots", slotCount);
+        markDirty();
+        for (int i = 0; i < slotCount; i++)
+            clearSlot(i);
+        final int oldest = ringCursor + recordSize > ringLength ? ringStart : ringCursor;
+        int offset = oldest;
+        do {
+            readHash(ring, offset, scratch);
+            if (!isZero(scratch))
+                insert(ring, Sha256Hash.wrap(Arrays.copyOf(scratch, 32)), offset);
+            offset += recordSize;
+            if (offset + recordSize > ringLength)
+                offset = ringStart;
+        } while (offset != oldest);
+        markInSync(ring, ringCursor);
+    }
+
+    /**
+     * Returns the ring offset of the newest record with the given hash, or -1 if there is none. Moves the position of
+     * the given ring buffer, so concurrent readers must each pass their own view of the ring.
+     * @throws IllegalStateException if the index has been closed
+     */
+    int find(ByteBuffer ring, Sha256Hash hash) {
+        final MappedByteBuffer buffer = this.buffer;
+        checkState(buffer != null, "Index closed");
+        int fragment = hash.hashCode();
+        byte[] target = hash.getBytes();
+        byte[] candidate = new byte[32];
+        for (int i = fragment & mask, probes = 0; probes < slotCount; i = (i + 1) & mask, probes++) {
+            int offset = buffer.getInt(slotPosition(i) + 4);
+            if (offset == 0)
+                return -1;
+            if (buffer.getInt(slotPosition(i)) == fragment && offset >= ringStart
+                    && offset + recordSize <= ringLength) {
+                readHash(ring, offset, candidate);
+                if (Arrays.equals(candidate, target))
+                    return offset;
+            }
+        }
+        return -1;
+    }
+
+    /** Points the given hash at the record at the given ring offset, replacing any older record of the same hash. */
+    void insert(ByteBuffer ring, Sha256Hash hash, int offset) {
+        int fragment = hash.hashCode();
+        byte[] target = hash.getBytes();
+        for (int i = fragment & mask, probes = 0; probes < slotCount; i = (i + 1) & mask, probes++) {
+            int existing = getOffset(i);
+            if (existing == 0 || (getFragment(i) == fragment && hashEquals(ring, existing, target))) {
+                buffer.putInt(slotPosition(i), fragment);
+                buffer.putInt(slotPosition(i) + 4, offset);
+                return;
+            }
+        }
+        throw new IllegalStateException("SPV block store index is full");
+    }
+
+    /**
+     * Removes the given hash from the index, but only if it still points at the given ring offset. Must be called
+     * while the record is still intact in the ring, i.e. before it gets overwritten.
+     */
+    void remove(ByteBuffer ring, Sha256Hash hash, int offset) {
+        int fragment = hash.hashCode();
+        int i = fragment & mask;
+        for (int probes = 0; probes < slotCount; i = (i + 1) & mask, probes++) {
+            int existing = getOffset(i);
+            if (existing == 0)
+                return;
+            if (existing == offset && getFragment(i) == fragment)
+                break;
+        }
+        if (getOffset(i) != offset)
+            return;
+        // Backward shift deletion: pull later entries of the same probe run into the hole, so that lookups never
+        // stop early and no tombstones are needed.
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (getOffset(j) == 0)
+                break;
+            int home = getFragment(j) & mask;
+            boolean stays = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+            if (stays)
+                continue;
+            buffer.putInt(slotPosition(i), getFragment(j));
+            buffer.putInt(slotPosition(i) + 4, getOffset(j));
+            i = j;
+        }
+        clearSlot(i);
+    }
+
+    /** Marks the index as being modified. If we crash before {@link #markInSync(ByteBuffer, int)}, it gets rebuilt. */
+    void markDirty() {
+        buffer.putInt(CURSOR_OFFSET, 0);
+    }
+
+    /** Records that the index reflects the ring up to the given cursor. */
+    void markInSync(ByteBuffer ring, int ringCursor) {
+        ((Buffer) buffer).position(0);
+        buffer.put(HEADER_MAGIC.getBytes(StandardCharsets.US_ASCII));
+        buffer.putInt(4, slotCount);
+        readHash(ring, previousRecord(ringCursor), scratch);
+        ((Buffer) buffer).position(LAST_HASH_OFFSET);
+        buffer.put(scratch);
+        buffer.putInt(CURSOR_OFFSET, ringCursor);
+    }
+
+    void close() throws IOException {
+        buffer.force();
+        buffer = null;
+        randomAccessFile.close();
+        randomAccessFile = null;
+    }
+
+    private int previousRecord(int ringCursor) {
+        int offset = ringCursor - recordSize;
+        return offset < ringStart ? ringLength - recordSize : offset;
+    }
+
+    private boolean hashEquals(ByteBuffer ring, int offset, byte[] target) {
+        readHash(ring, offset, scratch);
+        return Arrays.equals(scratch, target);
+    }
+
+    private static void readHash(ByteBuffer ring, int offset, byte[] dst) {
+        ((Buffer) ring).position(offset);
+        ring.get(dst);
+    }
+
+    private static boolean isZero(byte[] bytes) {
+        for (byte b : bytes)
+            if (b != 0)
+                return false;
+        return true;
+    }
+
+    private int slotPosition(int slot) {
+        return PROLOGUE_BYTES + slot * SLOT_SIZE;
+    }
+
+    private int getFragment(int slot) {
+        return buffer.getInt(slotPosition(slot));
+    }
+
+    private int getOffset(int slot) {
+        return buffer.getInt(slotPosition(slot) + 4);
+    }
+
+    private void clearSlot(int slot) {
+        buffer.putLong(slotPosition(slot), 0);
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.store;
+
+import org.slf4j.*;
+
+import javax.annotation.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.regex.*;
+
+import static com.google.common.base.Preconditions.*;
+
+/**
+ * Append-only storage for the undo data of blocks, kept in memory mapped segment files instead of a database. A blob
+ * is appended to the newest segment and found again by the 12 byte location {@link #append(int, byte[])} returns,
+ * which the owning store keeps in its index. Segments are never modified except by appending, and are deleted as a
+ * whole once all blocks in them are old enough to be pruned.
+ *
+ * <p>Segments are files named {@code undo-<number>.dat} in the given directory. A blob that was appended but never
+ * made it into the index, e.g. because the block failed to connect, simply stays unused until its segment is
+ * deleted.</p>
+ *
+ * <p>This class is not thread safe. Access must be serialized by the owning store.</p>
+ */
+class UndoFileStore {
+    private static final Logger log = LoggerFactory.getLogger(UndoFileStore.class);
+
+    static final String HEADER_MAGIC = "UNDO";
+    /** The default size of a segment. Blobs larger than this get a segment of their own. */
+    static final int DEFAULT_SEGMENT_BYTES = 32 * 1024 * 1024;
+    /** Length of the locations returned by {@link #append(int, byte[])}. */
+    static final int LOCATION_BYTES = 12;
+
+    // Segment file format:
+    //   4 header bytes = "UNDO"
+    //   4 bytes offset just after the last blob
+    //   4 bytes highest block height of a blob in the segment
+    //   4 bytes reserved
+    //   blobs, back to back
+    //
+    // Location format:
+    //   4 bytes segment number
+    //   4 bytes offset of the blob in the segment
+    //   4 bytes length of the blob
+    private static final int PROLOGUE_BYTES = 16;
+    private static final int CURSOR_OFFSET = 4;
+    private static final int MAX_HEIGHT_OFFSET = 8;
+    private static final Pattern FILE_NAME = Pattern.compile("undo-(\\d+)\\.dat");
+
+    private final File directory;
+    private int segmentBytes;
+    // All segments, by number. The last one is appended to.
+    private final TreeMap<Integer, MappedByteBuffer> segments = new TreeMap<>();
+    // Whether the last segment was appended to since it was last written to disk. The others already are.
+    private boolean dirty;
+
+    /**
+     * Opens the segments in the given directory, or prepares to create the first one.
+     * @param directory directory holding the segment files
+     * @param segmentBytes size of newly created segments
+     */
+    UndoFileStore(File directory, int segmentBytes) throws IOException {
+        this.directory = directory;
+        setSegmentBytes(segmentBytes);
+        File[] files = directory.listFiles();
+        if (files == null)
+            throw new FileNotFoundException(directory.toString());
+        for (File file : files) {
+            Matcher matcher = FILE_NAME.matcher(file.getName());
+            if (matcher.matches())
+                segments.put(Integer.parseInt(matcher.group(1)), map(file, 0));
+        }
+        for (Map.Entry<Integer, MappedByteBuffer> segment : segments.entrySet()) {
+            byte[] header = new byte[4];
+            segment.getValue().duplicate().get(header);
+            if (!new String(header, StandardCharsets.US_ASCII).equals(HEADER_MAGIC))
+                throw new IOException("Header bytes of undo segment " + segment.getKey() + " do not equal "
+                        + HEADER_MAGIC);
+        }
+    }
+
+    /**
+     * Appends a blob, starting a new segment if it doesn't fit into the current one. The blob and the cursor behind
+     * it are only durable after {@link #force()}, which has to happen before the location is stored anywhere.
+     * @param height height of the block the blob belongs to, for pruning
+     * @param blob the undo data
+     * @return the location of the blob, to pass to {@link #read(byte[])}
+     */
+    byte[] append(int height, byte[] blob) throws IOException {
+        Map.Entry<Integer, MappedByteBuffer> last = segments.lastEntry();
+        if (last == null || last.getValue().capacity() - last.getValue().getInt(CURSOR_OFFSET) < blob.length) {
+            int number = last == null ? 0 : last.getKey() + 1;
+            MappedByteBuffer buffer = map(segmentFile(number), Math.max(segmentBytes, PROLOGUE_BYTES + blob.length));
+            buffer.put(HEADER_MAGIC.getBytes(StandardCharsets.US_ASCII));
+            buffer.putInt(CURSOR_OFFSET, PROLOGUE_BYTES);
+            buffer.putInt(MAX_HEIGHT_OFFSET, -1);
+            if (last != null)
+                last.getValue().force();
+            segments.put(number, buffer);
+            last = segments.lastEntry();
+        }
+        MappedByteBuffer buffer = last.getValue();
+        int offset = buffer.getInt(CURSOR_OFFSET);
+        ((Buffer) buffer).position(offset);
+        buffer.put(blob);
+        buffer.putInt(CURSOR_OFFSET, offset + blob.length);
+        if (height > buffer.getInt(MAX_HEIGHT_OFFSET))
+            buffer.putInt(MAX_HEIGHT_OFFSET, height);
+        dirty = true;
+        ByteBuffer location = ByteBuffer.allocate(LOCATION_BYTES);
+        location.putInt(last.getKey());
+        location.putInt(offset);
+        location.putInt(blob.length);
+        return location.array();
+    }
+
+    /**
+     * Reads the blob at the given location.
+     * @return the blob, or null if its segment was deleted already
+     */
+    @Nullable
+    byte[] read(byte[] location) throws IOException {
+        checkArgument(location.length == LOCATION_BYTES);
+        ByteBuffer bb = ByteBuffer.wrap(location);
+        int number = bb.getInt();
+        int offset = bb.getInt();
+        int length = bb.getInt();
+        MappedByteBuffer buffer = segments.get(number);
+        if (buffer == null)
+            return null;
+        if (offset < PROLOGUE_BYTES || length < 0 || offset + length > buffer.getInt(CURSOR_OFFSET))
+            throw new IOException("Undo blob out of segment " + number + ": " + offset + "+" + length);
+        byte[] blob = new byte[length];
+        ByteBuffer view = buffer.duplicate();
+        ((Buffer) view).position(offset);
+        view.get(blob);
+        return blob;
+    }
+
+    /**
+     * Deletes the segments that only hold blobs of blocks at or below the given height. The segment being appended to
+     * is always kept.
+     * @return the number of segments deleted
+     */
+    int deleteSegmentsUpTo(int height) {
+        int deleted = 0;
+        if (segments.isEmpty())
+            return deleted;
+        Iterator<Map.Entry<Integer, MappedByteBuffer>> iterator = segments.headMap(segments.lastKey()).entrySet()
+                .iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Integer, MappedByteBuffer> segment = iterator.next();
+            if (segment.getValue().getInt(MAX_HEIGHT_OFFSET) > height)
+                continue;
+            iterator.remove();
+            File file = segmentFile(segment.getKey());
+            // Can fail on platforms that don't allow deleting mapped files. It is tried again on the next start.
+            if (!file.delete())
+                log.warn("Could not delete undo segment {}", file);
+            deleted++;
+        }
+        return deleted;
+    }
+
+    /** Sets the size of segments created from now on. */
+    void setSegmentBytes(int segmentBytes) {
+        checkArgument(segmentBytes > PROLOGUE_BYTES, "Segment too small: %s", segmentBytes);
+        this.segmentBytes = segmentBytes;
+    }
+
+    /** Returns the number of segments. */
+    int getSegmentCount() {
+        return segments.size();
+    }
+
+    /** Writes all blobs appended so far, and the cursor behind them, to disk. */
+    void force() {
+        if (!dirty)
+            return;
+        segments.lastEntry().getValue().force();
+        dirty = false;
+    }
+
+    /** Writes all segments to disk and forgets them. The store can't be used afterwards. */
+    void close() {
+        force();
+        segments.clear();
+    }
+
+    private File segmentFile(int number) {
+        return new File(directory, String.format(Locale.US, "undo-%05d.dat", number));
+    }
+
+    // Maps a whole segment file, creating it with the given length if it doesn't exist.
+    private static MappedByteBuffer map(File file, int newLength) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            if (randomAccessFile.length() == 0)
+                randomAccessFile.setLength(newLength);
+            // The mapping stays valid after the file is closed.
+            return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, randomAccessFile.length());
+        }
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.wallet;
+
+import org.crownj.core.Coin;
+
+/**
+ * A {@link CoinSelector} that can select from an {@link UnspentOutputIndex} instead of a list of all candidates. The
+ * wallet hands it its index when it keeps one, and falls back to {@link #select(Coin, java.util.List)} otherwise,
+ * e.g. when the outputs come from a {@link org.crownj.core.UTXOProvider}.
+ */
+public interface IndexedCoinSelector extends CoinSelector {
+    /**
+     * Creates a CoinSelection that tries to meet the target amount of value, looking the outputs up in the given
+     * index. The index must not be used after this call returns.
+     */
+    CoinSelection select(Coin target, UnspentOutputIndex candidates);
+}
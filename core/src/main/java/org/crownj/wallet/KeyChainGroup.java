@@ -816,6 +816,32 @@ public class KeyChainGroup implements KeyBag {
         return filter;
     }
 
+    /**
+     * Returns the output scripts paying to the keys of this group, lookahead keys included, for matching against compact
+     * block filters. Each key gives a P2PK and a P2PKH script, compressed keys also a P2WPKH script. The P2SH scripts of
+     * married chains are not included.
+     */
+    public List<byte[]> getCompactFilterElements() {
+        List<byte[]> elements = new ArrayList<>();
+        for (ECKey key : basic.getKeys())
+            addCompactFilterElements(key, elements);
+        if (chains != null) {
+            for (DeterministicKeyChain chain : chains) {
+                chain.maybeLookAhead();
+                for (DeterministicKey key : chain.getLeafKeys())
+                    addCompactFilterElements(key, elements);
+            }
+        }
+        return elements;
+    }
+
+    private static void addCompactFilterElements(ECKey key, List<byte[]> elements) {
+        elements.add(ScriptBuilder.createP2PKOutputScript(key).getProgram());
+        elements.add(ScriptBuilder.createP2PKHOutputScript(key).getProgram());
+        if (key.isCompressed())
+            elements.add(ScriptBuilder.createP2WPKHOutputScript(key).getProgram());
+    }
+
     public boolean isRequiringUpdateAllBloomFilter() {
         throw new UnsupportedOperationException();   // Unused.
     }
@@ -0,0 +1,98 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.wallet;
+
+import com.google.common.collect.Lists;
+import org.crownj.core.Coin;
+import org.crownj.core.Transaction;
+import org.crownj.core.TransactionOutput;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * <p>A coin selector that spends as few outputs as it can. If a single output covers the target, it picks the least
+ * valuable of those, otherwise it gathers the most valuable outputs until the target is met. Like
+ * {@link DefaultCoinSelector} it only picks outputs of transactions that are in the chain, or that are ours and pending
+ * but have been announced by peers.</p>
+ *
+ * <p>Given the wallet's {@link UnspentOutputIndex}, this only looks at the outputs it picks and the ones it skips on
+ * the way, rather than sorting all of them.</p>
+ */
+public class LargestFirstCoinSelector implements IndexedCoinSelector {
+    @Override
+    public CoinSelection select(Coin target, UnspentOutputIndex candidates) {
+        return select(target, candidates.atLeast(target), candidates.atMost(target));
+    }
+
+    @Override
+    public CoinSelection select(Coin target, List<TransactionOutput> candidates) {
+        ArrayList<TransactionOutput> sorted = new ArrayList<>(candidates);
+        Collections.sort(sorted, new Comparator<TransactionOutput>() {
+            @Override
+            public int compare(TransactionOutput a, TransactionOutput b) {
+                return a.getValue().compareTo(b.getValue());
+            }
+        });
+        int atLeast = 0;
+        while (atLeast < sorted.size() && sorted.get(atLeast).getValue().isLessThan(target))
+            atLeast++;
+        int atMost = atLeast;
+        while (atMost < sorted.size() && sorted.get(atMost).getValue().equals(target))
+            atMost++;
+        return select(target, sorted.subList(atLeast, sorted.size()), Lists.reverse(sorted.subList(0, atMost)));
+    }
+
+    private CoinSelection select(Coin target, Iterable<TransactionOutput> atLeast, Iterable<TransactionOutput> atMost) {
+        if (target.signum() <= 0)
+            return new CoinSelection(Coin.ZERO, new ArrayList<TransactionOutput>());
+        for (TransactionOutput output : atLeast) {
+            if (shouldSelect(output.getParentTransaction())) {
+                List<TransactionOutput> selected = new ArrayList<>(1);
+                selected.add(output);
+                return new CoinSelection(output.getValue(), selected);
+            }
+        }
+        // No single output is enough, and each selectable one is worth less than the target.
+        ArrayList<TransactionOutput> selected = new ArrayList<>();
+        long total = 0;
+        for (TransactionOutput output : atMost) {
+            if (total >= target.value) break;
+            if (!shouldSelect(output.getParentTransaction())) continue;
+            selected.add(output);
+            total += output.getValue().value;
+        }
+        return new CoinSelection(Coin.valueOf(total), selected);
+    }
+
+    /** Sub-classes can override this to customize whether transactions are usable, but keep the value ordering. */
+    protected boolean shouldSelect(Transaction tx) {
+        return tx == null || DefaultCoinSelector.isSelectable(tx);
+    }
+
+    private static LargestFirstCoinSelector instance;
+
+    /** Returns a global static instance of the selector. */
+    public static LargestFirstCoinSelector get() {
+        // This doesn't have to be thread safe as the object has no state, so discarded duplicates are harmless.
+        if (instance == null)
+            instance = new LargestFirstCoinSelector();
+        return instance;
+    }
+}
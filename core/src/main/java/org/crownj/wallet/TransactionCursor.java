@@ -0,0 +1,87 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.wallet;
+
+import org.crownj.core.Sha256Hash;
+import org.crownj.core.Transaction;
+
+import java.util.Date;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>A position in the transactions of a wallet ordered by update time, the most recent first. Transactions with the
+ * same update time are ordered by id, as {@link Transaction#SORT_TX_BY_UPDATE_TIME} does.</p>
+ *
+ * <p>Pass the cursor of one {@link TransactionPage} to
+ * {@link Wallet#getTransactions(TransactionCursor, int, TransactionFilter)} to get the next page. Cursors stay valid
+ * when transactions are added to or removed from the wallet in between.</p>
+ */
+public final class TransactionCursor implements Comparable<TransactionCursor> {
+    private final long updateTime;
+    private final Sha256Hash txId;
+
+    public TransactionCursor(Date updateTime, Sha256Hash txId) {
+        this(updateTime.getTime(), txId);
+    }
+
+    TransactionCursor(long updateTime, Sha256Hash txId) {
+        this.updateTime = updateTime;
+        this.txId = checkNotNull(txId);
+    }
+
+    /** Returns the position of the given transaction, as of its current update time. */
+    public static TransactionCursor of(Transaction tx) {
+        return new TransactionCursor(tx.getUpdateTime().getTime(), tx.getTxId());
+    }
+
+    public Date getUpdateTime() {
+        return new Date(updateTime);
+    }
+
+    long getUpdateTimeMillis() {
+        return updateTime;
+    }
+
+    public Sha256Hash getTxId() {
+        return txId;
+    }
+
+    @Override
+    public int compareTo(TransactionCursor other) {
+        int updateTimeComparison = -Long.compare(updateTime, other.updateTime);
+        return updateTimeComparison != 0 ? updateTimeComparison : txId.compareTo(other.txId);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        TransactionCursor other = (TransactionCursor) o;
+        return updateTime == other.updateTime && txId.equals(other.txId);
+    }
+
+    @Override
+    public int hashCode() {
+        return txId.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return updateTime + ":" + txId;
+    }
+}
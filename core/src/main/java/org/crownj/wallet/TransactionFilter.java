@@ -0,0 +1,134 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.wallet;
+
+import org.crownj.core.Coin;
+import org.crownj.core.Transaction;
+import org.crownj.core.TransactionBag;
+import org.crownj.core.TransactionConfidence.ConfidenceType;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Selects the transactions {@link Wallet#getTransactions(TransactionCursor, int, TransactionFilter)} returns, by
+ * direction, confidence type and value. Use {@link #builder()} to create one, or {@link #ALL} to select every
+ * transaction.</p>
+ *
+ * <p>The value of a transaction is the amount it moves in or out of the wallet, i.e. the absolute value of
+ * {@link Transaction#getValue(TransactionBag)}.</p>
+ */
+public class TransactionFilter {
+    public enum Direction {
+        /** Transactions that add to the balance of the wallet. */
+        RECEIVED,
+        /** Transactions that take from the balance of the wallet, including sends to the wallet itself. */
+        SENT
+    }
+
+    public static final TransactionFilter ALL = builder().build();
+
+    @Nullable private final Direction direction;
+    private final Set<ConfidenceType> confidenceTypes;
+    @Nullable private final Coin minValue, maxValue;
+
+    private TransactionFilter(Builder builder) {
+        this.direction = builder.direction;
+        this.confidenceTypes = builder.confidenceTypes;
+        this.minValue = builder.minValue;
+        this.maxValue = builder.maxValue;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        @Nullable private Direction direction;
+        private Set<ConfidenceType> confidenceTypes = EnumSet.noneOf(ConfidenceType.class);
+        @Nullable private Coin minValue, maxValue;
+
+        private Builder() {
+        }
+
+        /** Selects only transactions in the given direction. By default both directions are selected. */
+        public Builder direction(Direction direction) {
+            this.direction = direction;
+            return this;
+        }
+
+        /** Selects only transactions of the given confidence types. By default all types are selected. */
+        public Builder confidenceTypes(ConfidenceType... confidenceTypes) {
+            this.confidenceTypes = EnumSet.noneOf(ConfidenceType.class);
+            this.confidenceTypes.addAll(Arrays.asList(confidenceTypes));
+            return this;
+        }
+
+        /**
+         * Selects only transactions worth at least {@code minValue} and at most {@code maxValue}. Either bound may be
+         * null to leave that side open.
+         */
+        public Builder valueRange(@Nullable Coin minValue, @Nullable Coin maxValue) {
+            checkArgument(minValue == null || maxValue == null || !minValue.isGreaterThan(maxValue),
+                    "minValue is greater than maxValue");
+            this.minValue = minValue;
+            this.maxValue = maxValue;
+            return this;
+        }
+
+        public TransactionFilter build() {
+            return new TransactionFilter(this);
+        }
+    }
+
+    /** Returns true if the given transaction of the given wallet is selected. */
+    public boolean matches(Transaction tx, TransactionBag wallet) {
+        if (!confidenceTypes.isEmpty() && !confidenceTypes.contains(tx.getConfidence().getConfidenceType()))
+            return false;
+        if (direction == null && minValue == null && maxValue == null)
+            return true;
+        Coin value = tx.getValue(wallet);
+        if (direction == Direction.RECEIVED && !value.isPositive())
+            return false;
+        if (direction == Direction.SENT && !value.isNegative())
+            return false;
+        if (value.isNegative())
+            value = value.negate();
+        if (minValue != null && value.isLessThan(minValue))
+            return false;
+        if (maxValue != null && value.isGreaterThan(maxValue))
+            return false;
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("TransactionFilter{");
+        if (direction != null)
+            builder.append(direction).append(' ');
+        if (!confidenceTypes.isEmpty())
+            builder.append(confidenceTypes).append(' ');
+        if (minValue != null || maxValue != null)
+            builder.append(minValue != null ? minValue.toFriendlyString() : "").append("..")
+                    .append(maxValue != null ? maxValue.toFriendlyString() : "").append(' ');
+        return builder.toString().trim() + "}";
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.wallet;
+
+import org.crownj.core.Transaction;
+
+import javax.annotation.Nullable;
+import java.util.List;
+
+/**
+ * One page of the transactions returned by {@link Wallet#getTransactions(TransactionCursor, int, TransactionFilter)}.
+ */
+public class TransactionPage {
+    private final List<Transaction> transactions;
+    @Nullable private final TransactionCursor next;
+
+    TransactionPage(List<Transaction> transactions, @Nullable TransactionCursor next) {
+        this.transactions = transactions;
+        this.next = next;
+    }
+
+    /** Returns the transactions of this page, the most recent first. */
+    public List<Transaction> getTransactions() {
+        return transactions;
+    }
+
+    /**
+     * Returns the cursor to get the next page with, or null if this is the last page. The next page may turn out to
+     * be empty, if no more transactions match.
+     */
+    @Nullable
+    public TransactionCursor getNextCursor() {
+        return next;
+    }
+
+    @Override
+    public String toString() {
+        return transactions.size() + " transactions" + (next != null ? ", next: " + next : "");
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.wallet;
+
+import org.crownj.core.Coin;
+import org.crownj.core.TransactionOutput;
+
+/**
+ * <p>The outputs a wallet could spend, ordered by value. An {@link IndexedCoinSelector} uses it to look for the
+ * outputs it wants without going through all of them. The wallet keeps the index up to date as outputs are received
+ * and spent, so selecting coins from it needs neither a list of all candidates nor a sort.</p>
+ *
+ * <p>The index holds the same outputs as the candidates list a {@link CoinSelector} would get, so selectors still
+ * decide whether e.g. pending outputs should be spent. An index may only be used during the
+ * {@link IndexedCoinSelector#select(Coin, UnspentOutputIndex)} call it was given to, while the wallet is locked.</p>
+ */
+public interface UnspentOutputIndex {
+    /** Returns the outputs worth at most the given value, the most valuable first. */
+    Iterable<TransactionOutput> atMost(Coin value);
+
+    /** Returns the outputs worth at least the given value, the least valuable first. */
+    Iterable<TransactionOutput> atLeast(Coin value);
+}
@@ -18,6 +18,7 @@
 package org.crownj.wallet;
 
 import com.google.common.annotations.*;
+import com.google.common.base.Predicate;
 import com.google.common.collect.*;
 import com.google.common.math.IntMath;
 import com.google.common.util.concurrent.*;
@@ -27,6 +28,7 @@ import org.crownj.core.listeners.*;
 import org.crownj.core.Address;
 import org.crownj.core.Base58;
 import org.crownj.core.AbstractBlockChain;
+import org.crownj.core.Block;
 import org.crownj.core.BlockChain;
 import org.crownj.core.BloomFilter;
 import org.crownj.core.Coin;
@@ -50,6 +52,7 @@ import org.crownj.core.TransactionConfidence;
 import org.crownj.core.TransactionInput;
 import org.crownj.core.TransactionOutPoint;
 import org.crownj.core.TransactionOutput;
+import org.crownj.core.TransactionSlices;
 import org.crownj.core.UTXO;
 import org.crownj.core.UTXOProvider;
 import org.crownj.core.UTXOProviderException;
@@ -157,12 +160,14 @@ public class Wallet extends BaseTaggableObject
     private final Map<Sha256Hash, Transaction> spent;
     private final Map<Sha256Hash, Transaction> dead;
 
-    // All transactions together.
-    protected final Map<Sha256Hash, Transaction> transactions;
+    // All transactions together, also ordered by update time.
+    private final TransactionsByTime transactionsByTime = new TransactionsByTime(lock);
+    protected final Map<Sha256Hash, Transaction> transactions = transactionsByTime;
 
     // All the TransactionOutput objects that we could spend (ignoring whether we have the private key or not).
     // Used to speed up various calculations.
-    protected final HashSet<TransactionOutput> myUnspents = new HashSet<>();
+    private final UnspentOutputs unspentOutputs = new UnspentOutputs();
+    protected final HashSet<TransactionOutput> myUnspents = unspentOutputs;
 
     // Transactions that were dropped by the risk analysis system. These are not in any pools and not serialized
     // to disk. We have to keep them around because if we ignore a tx because we think it will never confirm, but
@@ -234,6 +239,15 @@ public class Wallet extends BaseTaggableObject
 
     protected final CoinSelector coinSelector = DefaultCoinSelector.get();
 
+    // What getReadSnapshot() returns. Only published once somebody asked for a snapshot.
+    private volatile ReadSnapshot snapshot;
+    private volatile boolean snapshotRequested;
+    // Set while receive() saves. The transactions of a block share one snapshot, published once the block is done.
+    @GuardedBy("lock") private boolean snapshotDeferred;
+    // Reads the spent transactions that were left in the wallet file, see WalletProtobufSerializer#setLazySpentHistory.
+    // Only changed under the lock.
+    @Nullable private volatile SpentHistoryLoader spentHistoryLoader;
+
     // The wallet version. This is an int that can be used to track breaking changes in the wallet format.
     // You can also use it to detect wallets that come from the future (ie they contain features you
     // do not know how to deal with).
@@ -467,7 +481,6 @@ public class Wallet extends BaseTaggableObject
         spent = new HashMap<>();
         pending = new HashMap<>();
         dead = new HashMap<>();
-        transactions = new HashMap<>();
         extensions = new HashMap<>();
         // Use a linked hash map to ensure ordering of event listeners is correct.
         confidenceChanged = new LinkedHashMap<>();
@@ -494,6 +507,8 @@ public class Wallet extends BaseTaggableObject
                         Transaction tx = getTransaction(confidence.getTransactionHash());
                         queueOnTransactionConfidenceChanged(tx);
                         maybeQueueOnWalletChanged();
+                        // The available balance may have changed.
+                        maybePublishSnapshot();
                     } finally {
                         lock.unlock();
                     }
@@ -805,7 +820,9 @@ public class Wallet extends BaseTaggableObject
     public boolean removeKey(ECKey key) {
         keyChainGroupLock.lock();
         try {
-            return keyChainGroup.removeImportedKey(key);
+            boolean removed = keyChainGroup.removeImportedKey(key);
+            unspentOutputs.invalidate();
+            return removed;
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -874,6 +891,7 @@ public class Wallet extends BaseTaggableObject
         keyChainGroupLock.lock();
         try {
             result = keyChainGroup.importKeys(keys);
+            unspentOutputs.invalidate();
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -904,7 +922,9 @@ public class Wallet extends BaseTaggableObject
         keyChainGroupLock.lock();
         try {
             checkNoDeterministicKeys(keys);
-            return keyChainGroup.importKeysAndEncrypt(keys, aesKey);
+            int result = keyChainGroup.importKeysAndEncrypt(keys, aesKey);
+            unspentOutputs.invalidate();
+            return result;
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -925,6 +945,7 @@ public class Wallet extends BaseTaggableObject
         keyChainGroupLock.lock();
         try {
             keyChainGroup.addAndActivateHDChain(chain);
+            unspentOutputs.invalidate();
         } finally {
             keyChainGroupLock.unlock();
         }
@@ -1656,6 +1677,7 @@ public class Wallet extends BaseTaggableObject
 
     /** Requests an asynchronous save on a background thread */
     protected void saveLater() {
+        maybePublishSnapshot();
         WalletFiles files = vFileManager;
         if (files != null)
             files.saveLater();
@@ -1663,6 +1685,7 @@ public class Wallet extends BaseTaggableObject
 
     /** If auto saving is enabled, do an immediate sync write to disk ignoring any delays. */
     protected void saveNow() {
+        maybePublishSnapshot();
         WalletFiles files = vFileManager;
         if (files != null) {
             try {
@@ -1743,6 +1766,7 @@ public class Wallet extends BaseTaggableObject
     public void isConsistentOrThrow() throws IllegalStateException {
         lock.lock();
         try {
+            checkSpentHistoryLoaded();
             Set<Transaction> transactions = getTransactions(true);
 
             Set<Sha256Hash> hashes = new HashSet<>();
@@ -1771,6 +1795,10 @@ public class Wallet extends BaseTaggableObject
                     throw new IllegalStateException("Inconsistent spent tx: " + tx.getTxId());
                 }
             }
+
+            // Calculating the balances from scratch is slow, so only do it when debugging.
+            if (log.isDebugEnabled())
+                checkBalancesOrThrow();
         } finally {
             lock.unlock();
         }
@@ -1839,6 +1867,7 @@ public class Wallet extends BaseTaggableObject
                                               int relativityOffset) throws VerificationException {
         lock.lock();
         try {
+            checkSpentHistoryLoaded();
             Transaction tx = transactions.get(txHash);
             if (tx == null) {
                 tx = riskDropped.get(txHash);
@@ -1876,6 +1905,7 @@ public class Wallet extends BaseTaggableObject
         // spend against one of our other pending transactions.
         lock.lock();
         try {
+            checkSpentHistoryLoaded();
             tx.verify();
             // Ignore it if we already know about this transaction. Receiving a pending transaction never moves it
             // between pools.
@@ -2095,6 +2125,7 @@ public class Wallet extends BaseTaggableObject
                                  int relativityOffset) throws VerificationException {
         lock.lock();
         try {
+            checkSpentHistoryLoaded();
             if (!isTransactionRelevant(tx))
                 return;
             receive(tx, block, blockType, relativityOffset);
@@ -2103,6 +2134,87 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    /**
+     * Receives the relevant transactions of a block that is on the best chain but at or below the last block this
+     * wallet has seen. This is how a wallet that follows the chain by its headers learns about the blocks a compact
+     * block filter matched, see {@link org.crownj.core.CompactFilterScan}. The depth of the transactions is counted
+     * from the last seen block.
+     */
+    public void receiveFromPastBlock(Block block, StoredBlock storedBlock) throws VerificationException {
+        lock.lock();
+        try {
+            checkSpentHistoryLoaded();
+            int depth = Math.max(1, getLastBlockSeenHeight() - storedBlock.getHeight() + 1);
+            List<Transaction> blockTransactions = block.getTransactions();
+            for (int i = 0; i < blockTransactions.size(); i++)
+                receiveFromPastBlock(blockTransactions.get(i), storedBlock, i, depth);
+            informConfidenceListenersIfNotReorganizing();
+            maybeQueueOnWalletChanged();
+            saveLater();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Like {@link #receiveFromPastBlock(Block, StoredBlock)}, but only parses the transactions that spend an output
+     * this wallet knows of or pay to one of its {@link #getCompactFilterElements() scripts}. The others are skipped
+     * without ever being turned into objects, which for a typical matched block is nearly all of them.
+     */
+    public void receiveFromPastBlock(TransactionSlices slices, StoredBlock storedBlock) throws VerificationException {
+        lock.lock();
+        try {
+            checkSpentHistoryLoaded();
+            Set<ByteBuffer> scripts = new HashSet<>();
+            for (byte[] element : getCompactFilterElements())
+                scripts.add(ByteBuffer.wrap(element));
+            // Our outputs, to see them spent, and the outputs our transactions spend, to see them double spent.
+            Set<ByteBuffer> outPoints = new HashSet<>();
+            for (Transaction tx : transactions.values()) {
+                for (TransactionOutput output : tx.getOutputs())
+                    if (output.isMineOrWatched(this))
+                        outPoints.add(ByteBuffer.wrap(output.getOutPointFor().crownSerialize()));
+                if (!tx.isCoinBase())
+                    for (TransactionInput input : tx.getInputs())
+                        outPoints.add(ByteBuffer.wrap(input.getOutpoint().crownSerialize()));
+            }
+            int depth = Math.max(1, getLastBlockSeenHeight() - storedBlock.getHeight() + 1);
+            for (int i = 0; i < slices.size(); i++) {
+                if (!slices.spendsOrPays(i, outPoints, scripts))
+                    continue;
+                Transaction tx = slices.parse(i);
+                if (!receiveFromPastBlock(tx, storedBlock, i, depth))
+                    continue;
+                // Later transactions of the block may spend this one.
+                for (TransactionOutput output : tx.getOutputs())
+                    outPoints.add(ByteBuffer.wrap(output.getOutPointFor().crownSerialize()));
+            }
+            informConfidenceListenersIfNotReorganizing();
+            maybeQueueOnWalletChanged();
+            saveLater();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Receives a transaction of a block the chain has already moved past, if it is relevant.
+    private boolean receiveFromPastBlock(Transaction tx, StoredBlock storedBlock, int relativityOffset, int depth)
+            throws VerificationException {
+        checkState(lock.isHeldByCurrentThread());
+        if (!isTransactionRelevant(tx))
+            return false;
+        receive(tx, storedBlock, BlockChain.NewBlockType.BEST_CHAIN, relativityOffset);
+        // The chain has moved past this block already, so no new best block will follow for it.
+        ignoreNextNewBlock.remove(tx.getTxId());
+        Transaction canonical = transactions.get(tx.getTxId());
+        TransactionConfidence confidence = canonical.getConfidence();
+        if (confidence.getConfidenceType() == ConfidenceType.BUILDING && confidence.getDepthInBlocks() < depth) {
+            confidence.setDepthInBlocks(depth);
+            confidenceChanged.put(canonical, TransactionConfidence.Listener.ChangeReason.DEPTH);
+        }
+        return true;
+    }
+
     // Whether to do a saveNow or saveLater when we are notified of the next best block.
     private boolean hardSaveOnNextBlock = false;
 
@@ -2226,7 +2338,7 @@ public class Wallet extends BaseTaggableObject
         //    own spends. If users want to know when a broadcast tx becomes confirmed, they need to use tx confidence
         //    listeners.
         if (!insideReorg && bestChain) {
-            Coin newBalance = getBalance();  // This is slow.
+            Coin newBalance = getBalance();
             log.info("Balance is now: " + newBalance.toFriendlyString());
             if (!wasPending) {
                 int diff = valueDifference.signum();
@@ -2244,7 +2356,12 @@ public class Wallet extends BaseTaggableObject
         informConfidenceListenersIfNotReorganizing();
         isConsistentOrThrow();
         // Optimization for the case where a block has tons of relevant transactions.
-        saveLater();
+        snapshotDeferred = true;
+        try {
+            saveLater();
+        } finally {
+            snapshotDeferred = false;
+        }
         hardSaveOnNextBlock = true;
     }
 
@@ -2322,6 +2439,7 @@ public class Wallet extends BaseTaggableObject
             return;
         lock.lock();
         try {
+            checkSpentHistoryLoaded();
             // Store the new block hash.
             setLastBlockSeenHash(newBlockHash);
             setLastBlockSeenHeight(block.getHeight());
@@ -2638,6 +2756,7 @@ public class Wallet extends BaseTaggableObject
         tx.verify();
         lock.lock();
         try {
+            checkSpentHistoryLoaded();
             if (pending.containsKey(tx.getTxId()))
                 return false;
             log.info("commitTx of {}", tx.getTxId());
@@ -3030,6 +3149,235 @@ public class Wallet extends BaseTaggableObject
 
     //region Vending transactions and other internal state
 
+    /**
+     * <p>The transactions of the wallet by id, which also keeps them ordered by update time so that the most recent
+     * ones can be listed without sorting them all.</p>
+     *
+     * <p>The transactions tell it when their update time changes. Changes made under the wallet lock move the
+     * transaction right away. Others, e.g. by an app calling {@link Transaction#setUpdateTime(Date)} itself, are noted
+     * and caught up with the next time the order is read. Removing entries through the views of the map isn't
+     * supported.</p>
+     */
+    private static class TransactionsByTime extends ForwardingMap<Sha256Hash, Transaction>
+            implements Transaction.UpdateTimeListener {
+        private final Map<Sha256Hash, Transaction> byId = new HashMap<>();
+        private final TreeMap<TransactionCursor, Transaction> byTime = new TreeMap<>();
+        private final Map<Sha256Hash, TransactionCursor> cursors = new HashMap<>();
+        // Transactions whose update time changed while another thread, or none, held the wallet lock.
+        private final Set<Transaction> moved = Collections.newSetFromMap(new ConcurrentHashMap<Transaction, Boolean>());
+        private final ReentrantLock lock;
+
+        TransactionsByTime(ReentrantLock lock) {
+            this.lock = lock;
+        }
+
+        @Override
+        protected Map<Sha256Hash, Transaction> delegate() {
+            return byId;
+        }
+
+        @Override
+        public Transaction put(Sha256Hash txId, Transaction tx) {
+            Transaction previous = byId.put(txId, tx);
+            if (previous != null && previous != tx)
+                previous.removeUpdateTimeListener(this);
+            tx.addUpdateTimeListener(this);
+            file(tx);
+            return previous;
+        }
+
+        @Override
+        public void putAll(Map<? extends Sha256Hash, ? extends Transaction> map) {
+            standardPutAll(map);
+        }
+
+        @Override
+        public Transaction remove(Object txId) {
+            Transaction tx = byId.remove(txId);
+            if (tx != null) {
+                tx.removeUpdateTimeListener(this);
+                byTime.remove(cursors.remove(txId));
+            }
+            return tx;
+        }
+
+        @Override
+        public void clear() {
+            for (Transaction tx : byId.values())
+                tx.removeUpdateTimeListener(this);
+            byId.clear();
+            byTime.clear();
+            cursors.clear();
+            moved.clear();
+        }
+
+        @Override
+        public void onUpdateTimeChanged(Transaction tx) {
+            if (lock.isHeldByCurrentThread())
+                refile(tx);
+            else
+                moved.add(tx);
+        }
+
+        private void file(Transaction tx) {
+            TransactionCursor cursor = TransactionCursor.of(tx);
+            TransactionCursor previous = cursors.put(tx.getTxId(), cursor);
+            if (previous != null)
+                byTime.remove(previous);
+            byTime.put(cursor, tx);
+        }
+
+        // Moves the given transaction to its current update time, if it is in the wallet.
+        private void refile(Transaction tx) {
+            TransactionCursor cursor = cursors.get(tx.getTxId());
+            if (cursor != null && cursor.getUpdateTimeMillis() != tx.getUpdateTime().getTime())
+                file(tx);
+        }
+
+        /** Returns the transactions after the given cursor, or all of them, the most recent first. */
+        Set<Map.Entry<TransactionCursor, Transaction>> after(@Nullable TransactionCursor cursor) {
+            checkState(lock.isHeldByCurrentThread());
+            for (Transaction tx : moved) {
+                // Removed first, so that a change coming in meanwhile is noted again.
+                moved.remove(tx);
+                refile(tx);
+            }
+            return cursor == null ? byTime.entrySet() : byTime.tailMap(cursor, false).entrySet();
+        }
+    }
+
+    /**
+     * <p>The balances, transactions and watched outputs of a wallet as they were at the end of a change, see
+     * {@link Wallet#getReadSnapshot()}. Its getters work like the wallet's own, but never wait for the wallet
+     * lock.</p>
+     *
+     * <p>The transactions themselves are not copied and may be changing.</p>
+     */
+    public static final class ReadSnapshot {
+        private final Map<BalanceType, Coin> balances;
+        // All transactions, the most recent first.
+        private final List<Transaction> transactions;
+        private final Set<Transaction> dead;
+        private final int live;
+        private final List<TransactionOutput> watchedOutputs;
+        private final int lastBlockSeenHeight;
+
+        private ReadSnapshot(Map<BalanceType, Coin> balances, TransactionsByTime transactions,
+                             Collection<Transaction> dead, List<TransactionOutput> watchedOutputs,
+                             int lastBlockSeenHeight) {
+            this.balances = balances;
+            ImmutableList.Builder<Transaction> byTime = ImmutableList.builder();
+            for (Map.Entry<TransactionCursor, Transaction> entry : transactions.after(null))
+                byTime.add(entry.getValue());
+            this.transactions = byTime.build();
+            this.dead = ImmutableSet.copyOf(dead);
+            this.live = this.transactions.size() - this.dead.size();
+            this.watchedOutputs = watchedOutputs;
+            this.lastBlockSeenHeight = lastBlockSeenHeight;
+        }
+
+        /** See {@link Wallet#getBalance(BalanceType)}. */
+        public Coin getBalance(BalanceType balanceType) {
+            return balances.get(balanceType);
+        }
+
+        /** See {@link Wallet#getTransactions(boolean)}. */
+        public Set<Transaction> getTransactions(boolean includeDead) {
+            Set<Transaction> all = new HashSet<>(transactions);
+            if (!includeDead)
+                all.removeAll(dead);
+            return all;
+        }
+
+        /** See {@link Wallet#getRecentTransactions(int, boolean)}. */
+        public List<Transaction> getRecentTransactions(int numTransactions, boolean includeDead) {
+            checkArgument(numTransactions >= 0);
+            // Mirrors the count of the wallet's method, which leaves out the dead transactions.
+            int size = numTransactions > live || numTransactions == 0 ? live : numTransactions;
+            ArrayList<Transaction> recent = new ArrayList<>(size);
+            for (Transaction tx : transactions) {
+                if (recent.size() == size)
+                    break;
+                if (includeDead || !dead.contains(tx))
+                    recent.add(tx);
+            }
+            return recent;
+        }
+
+        /** See {@link Wallet#getWatchedOutputs(boolean)}. */
+        public List<TransactionOutput> getWatchedOutputs(boolean excludeImmatureCoinbases) {
+            LinkedList<TransactionOutput> candidates = new LinkedList<>();
+            for (TransactionOutput output : watchedOutputs)
+                if (!excludeImmatureCoinbases || output.getParentTransaction().isMature())
+                    candidates.add(output);
+            return candidates;
+        }
+
+        /** Returns the height of the last block the wallet had seen. */
+        public int getLastBlockSeenHeight() {
+            return lastBlockSeenHeight;
+        }
+
+        @Override
+        public String toString() {
+            return "Wallet as of block " + lastBlockSeenHeight + ": "
+                    + balances.get(BalanceType.ESTIMATED).toFriendlyString() + " estimated, "
+                    + balances.get(BalanceType.AVAILABLE).toFriendlyString() + " available, "
+                    + live + " transactions, " + (transactions.size() - live) + " dead";
+        }
+    }
+
+    /**
+     * <p>Returns the balances, transactions and watched outputs of the wallet as of the end of the last change to it,
+     * without waiting for a change in progress. The getters of the wallet itself wait while another thread changes the
+     * wallet, e.g. connects a block, which can take a while for a large wallet. A reader such as a user interface that
+     * would rather show data from before that change than stall can use a snapshot instead.</p>
+     *
+     * <p>Snapshots are opt-in. The first call waits for the lock to build one, and from then on every change publishes
+     * a new one when it is done, once per block or re-org. Publishing copies the list of transactions, so only call
+     * this if you need it.</p>
+     */
+    public ReadSnapshot getReadSnapshot() {
+        ReadSnapshot snapshot = this.snapshot;
+        if (snapshot != null)
+            return snapshot;
+        lock.lock();
+        try {
+            snapshotRequested = true;
+            publishSnapshot();
+            return this.snapshot;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Publishes the current state for readers, if any of them asked for it. Every change ends up in saveLater() or
+    // saveNow(), which call this. Within a block or a re-org, it is left to notifyNewBestBlock() or reorganize() once
+    // they are done.
+    private void maybePublishSnapshot() {
+        if (!snapshotRequested || snapshotDeferred || insideReorg || !lock.isHeldByCurrentThread())
+            return;
+        publishSnapshot();
+    }
+
+    private void publishSnapshot() {
+        checkState(lock.isHeldByCurrentThread());
+        checkSpentHistoryLoaded();
+        EnumMap<BalanceType, Coin> balances = new EnumMap<>(BalanceType.class);
+        for (BalanceType balanceType : BalanceType.values())
+            balances.put(balanceType, getBalance(balanceType));
+        List<TransactionOutput> watchedOutputs;
+        keyChainGroupLock.lock();
+        try {
+            watchedOutputs = watchedScripts.isEmpty() ? ImmutableList.<TransactionOutput>of()
+                    : ImmutableList.copyOf(getWatchedOutputs(false));
+        } finally {
+            keyChainGroupLock.unlock();
+        }
+        snapshot = new ReadSnapshot(Collections.unmodifiableMap(balances), transactionsByTime, dead.values(),
+                watchedOutputs, lastBlockSeenHeight);
+    }
+
     /**
      * Returns a set of all transactions in the wallet.
      * @param includeDead     If true, transactions that were overridden by a double spend are included.
@@ -3037,6 +3385,7 @@ public class Wallet extends BaseTaggableObject
     public Set<Transaction> getTransactions(boolean includeDead) {
         lock.lock();
         try {
+            checkSpentHistoryLoaded();
             Set<Transaction> all = new HashSet<>();
             all.addAll(unspent.values());
             all.addAll(spent.values());
@@ -3055,6 +3404,7 @@ public class Wallet extends BaseTaggableObject
     public Iterable<WalletTransaction> getWalletTransactions() {
         lock.lock();
         try {
+            checkSpentHistoryLoaded();
             Set<WalletTransaction> all = new HashSet<>();
             addWalletTransactionsToSet(all, Pool.UNSPENT, unspent.values());
             addWalletTransactionsToSet(all, Pool.SPENT, spent.values());
@@ -3081,6 +3431,7 @@ public class Wallet extends BaseTaggableObject
     public void addWalletTransaction(WalletTransaction wtx) {
         lock.lock();
         try {
+            checkSpentHistoryLoaded();
             addWalletTransaction(wtx.getPool(), wtx.getTransaction());
         } finally {
             lock.unlock();
@@ -3120,6 +3471,64 @@ public class Wallet extends BaseTaggableObject
         tx.getConfidence().addEventListener(Threading.SAME_THREAD, txConfidenceListener);
     }
 
+    /**
+     * Reads the spent transactions that a wallet file still holds, connecting them to the given transactions of the
+     * wallet, and returns them.
+     */
+    interface SpentHistoryLoader {
+        List<Transaction> load(Map<Sha256Hash, Transaction> transactions) throws UnreadableWalletException;
+    }
+
+    void setSpentHistoryLoader(@Nullable SpentHistoryLoader loader) {
+        lock.lock();
+        try {
+            spentHistoryLoader = loader;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns false if the wallet was read with {@link WalletProtobufSerializer#setLazySpentHistory(boolean)} and
+     * {@link #loadSpentHistory()} hasn't been called since.
+     */
+    public boolean isSpentHistoryLoaded() {
+        return spentHistoryLoader == null;
+    }
+
+    /**
+     * <p>Reads the spent transactions that {@link WalletProtobufSerializer#setLazySpentHistory(boolean)} left in the
+     * wallet file. Does nothing if there are none left to read.</p>
+     *
+     * <p>Until this has been called, the wallet can tell its balance and the coins it can spend, and hand out keys.
+     * Everything else that looks at its transactions throws an {@link IllegalStateException}: listing them, receiving
+     * transactions or blocks, committing a spend, saving the wallet and so on. Call this before connecting the wallet
+     * to a block chain or a peer group.</p>
+     *
+     * @throws UnreadableWalletException if the file can't be read or was changed since the wallet was read from it.
+     * The wallet stays as it was, so the call can be retried.
+     */
+    public void loadSpentHistory() throws UnreadableWalletException {
+        lock.lock();
+        try {
+            SpentHistoryLoader loader = spentHistoryLoader;
+            if (loader == null)
+                return;
+            List<Transaction> history = loader.load(transactions);
+            spentHistoryLoader = null;
+            for (Transaction tx : history)
+                addWalletTransaction(Pool.SPENT, tx);
+            log.info("Read {} spent transactions from wallet file", history.size());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Everything that looks at the transactions, other than the balance and the spend candidates, calls this first.
+    private void checkSpentHistoryLoaded() {
+        checkState(spentHistoryLoader == null, "Spent history isn't loaded, call loadSpentHistory() first");
+    }
+
     /**
      * Returns all non-dead, active transactions ordered by recency.
      */
@@ -3130,28 +3539,57 @@ public class Wallet extends BaseTaggableObject
     /**
      * <p>Returns an list of N transactions, ordered by increasing age. Transactions on side chains are not included.
      * Dead transactions (overridden by double spends) are optionally included.</p>
-     * <p>Note: the current implementation is O(num transactions in wallet). Regardless of how many transactions are
-     * requested, the cost is always the same. In future, requesting smaller numbers of transactions may be faster
-     * depending on how the wallet is implemented (eg if backed by a database).</p>
+     * <p>The wallet keeps its transactions ordered by update time, so the cost depends on the number of transactions
+     * requested rather than on the size of the wallet. To page through the transactions, use
+     * {@link #getTransactions(TransactionCursor, int, TransactionFilter)}.</p>
      */
     public List<Transaction> getRecentTransactions(int numTransactions, boolean includeDead) {
         lock.lock();
         try {
             checkArgument(numTransactions >= 0);
-            // Firstly, put all transactions into an array.
+            checkSpentHistoryLoaded();
             int size = unspent.size() + spent.size() + pending.size();
             if (numTransactions > size || numTransactions == 0) {
                 numTransactions = size;
             }
-            ArrayList<Transaction> all = new ArrayList<>(getTransactions(includeDead));
-            // Order by update time.
-            Collections.sort(all, Transaction.SORT_TX_BY_UPDATE_TIME);
-            if (numTransactions == all.size()) {
-                return all;
-            } else {
-                all.subList(numTransactions, all.size()).clear();
-                return all;
+            ArrayList<Transaction> recent = new ArrayList<>(numTransactions);
+            for (Map.Entry<TransactionCursor, Transaction> entry : transactionsByTime.after(null)) {
+                if (recent.size() == numTransactions)
+                    break;
+                if (includeDead || !dead.containsKey(entry.getKey().getTxId()))
+                    recent.add(entry.getValue());
             }
+            return recent;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * <p>Returns a page of at most {@code limit} transactions selected by the given filter, the most recent first.
+     * The first page starts at the most recent transaction. Pass the cursor of a page to get the page after it.</p>
+     *
+     * <p>Only the transactions up to the end of the page are looked at, so pages cost the same regardless of how many
+     * transactions the wallet has, unless the filter skips most of them.</p>
+     *
+     * @param after where the page starts, or null to start at the most recent transaction
+     * @param limit the maximum number of transactions on the page
+     * @param filter which transactions to include, e.g. {@link TransactionFilter#ALL}
+     */
+    public TransactionPage getTransactions(@Nullable TransactionCursor after, int limit, TransactionFilter filter) {
+        checkArgument(limit > 0, "limit must be positive");
+        lock.lock();
+        try {
+            checkSpentHistoryLoaded();
+            List<Transaction> page = new ArrayList<>(Math.min(limit, 100));
+            for (Map.Entry<TransactionCursor, Transaction> entry : transactionsByTime.after(after)) {
+                if (!filter.matches(entry.getValue(), this))
+                    continue;
+                page.add(entry.getValue());
+                if (page.size() == limit)
+                    return new TransactionPage(page, entry.getKey());
+            }
+            return new TransactionPage(page, null);
         } finally {
             lock.unlock();
         }
@@ -3164,6 +3602,7 @@ public class Wallet extends BaseTaggableObject
     public Transaction getTransaction(Sha256Hash hash) {
         lock.lock();
         try {
+            checkSpentHistoryLoaded();
             return transactions.get(hash);
         } finally {
             lock.unlock();
@@ -3174,6 +3613,7 @@ public class Wallet extends BaseTaggableObject
     public Map<Sha256Hash, Transaction> getTransactionPool(Pool pool) {
         lock.lock();
         try {
+            checkSpentHistoryLoaded();
             switch (pool) {
                 case UNSPENT:
                     return unspent;
@@ -3230,6 +3670,7 @@ public class Wallet extends BaseTaggableObject
     }
 
     private void clearTransactions() {
+        spentHistoryLoader = null;
         unspent.clear();
         spent.clear();
         pending.clear();
@@ -3275,6 +3716,7 @@ public class Wallet extends BaseTaggableObject
     public void cleanup() {
         lock.lock();
         try {
+            checkSpentHistoryLoaded();
             boolean dirty = false;
             for (Iterator<Transaction> i = pending.values().iterator(); i.hasNext();) {
                 Transaction tx = i.next();
@@ -3317,6 +3759,7 @@ public class Wallet extends BaseTaggableObject
     EnumSet<Pool> getContainingPools(Transaction tx) {
         lock.lock();
         try {
+            checkSpentHistoryLoaded();
             EnumSet<Pool> result = EnumSet.noneOf(Pool.class);
             Sha256Hash txHash = tx.getTxId();
             if (unspent.containsKey(txHash)) {
@@ -3341,6 +3784,7 @@ public class Wallet extends BaseTaggableObject
     public int getPoolSize(WalletTransaction.Pool pool) {
         lock.lock();
         try {
+            checkSpentHistoryLoaded();
             switch (pool) {
                 case UNSPENT:
                     return unspent.size();
@@ -3361,6 +3805,7 @@ public class Wallet extends BaseTaggableObject
     public boolean poolContainsTxHash(final WalletTransaction.Pool pool, final Sha256Hash txHash) {
         lock.lock();
         try {
+            checkSpentHistoryLoaded();
             switch (pool) {
                 case UNSPENT:
                     return unspent.containsKey(txHash);
@@ -3425,6 +3870,7 @@ public class Wallet extends BaseTaggableObject
         lock.lock();
         keyChainGroupLock.lock();
         try {
+            checkSpentHistoryLoaded();
             StringBuilder builder = new StringBuilder("Wallet\n");
             if (includePrivateKeys)
                 builder.append("  WARNING: includes private keys!\n");
@@ -3530,6 +3976,7 @@ public class Wallet extends BaseTaggableObject
     public Collection<Transaction> getPendingTransactions() {
         lock.lock();
         try {
+            checkSpentHistoryLoaded();
             return Collections.unmodifiableCollection(pending.values());
         } finally {
             lock.unlock();
@@ -3731,23 +4178,31 @@ public class Wallet extends BaseTaggableObject
     public Coin getBalance(BalanceType balanceType) {
         lock.lock();
         try {
-            if (balanceType == BalanceType.AVAILABLE || balanceType == BalanceType.AVAILABLE_SPENDABLE) {
-                List<TransactionOutput> candidates = calculateAllSpendCandidates(true, balanceType == BalanceType.AVAILABLE_SPENDABLE);
-                CoinSelection selection = coinSelector.select(NetworkParameters.MAX_MONEY, candidates);
-                return selection.valueGathered;
-            } else if (balanceType == BalanceType.ESTIMATED || balanceType == BalanceType.ESTIMATED_SPENDABLE) {
-                List<TransactionOutput> all = calculateAllSpendCandidates(false, balanceType == BalanceType.ESTIMATED_SPENDABLE);
-                Coin value = Coin.ZERO;
-                for (TransactionOutput out : all) value = value.add(out.getValue());
-                return value;
-            } else {
-                throw new AssertionError("Unknown balance type");  // Unreachable.
-            }
+            if (vUTXOProvider != null)
+                return calculateBalance(balanceType);
+            return Coin.valueOf(unspentOutputs.getBalance(balanceType));
         } finally {
             lock.unlock();
         }
     }
 
+    // Calculates the balance from scratch, like the coin selector would see it.
+    private Coin calculateBalance(BalanceType balanceType) {
+        checkState(lock.isHeldByCurrentThread());
+        if (balanceType == BalanceType.AVAILABLE || balanceType == BalanceType.AVAILABLE_SPENDABLE) {
+            List<TransactionOutput> candidates = calculateAllSpendCandidates(true, balanceType == BalanceType.AVAILABLE_SPENDABLE);
+            CoinSelection selection = coinSelector.select(NetworkParameters.MAX_MONEY, candidates);
+            return selection.valueGathered;
+        } else if (balanceType == BalanceType.ESTIMATED || balanceType == BalanceType.ESTIMATED_SPENDABLE) {
+            List<TransactionOutput> all = calculateAllSpendCandidates(false, balanceType == BalanceType.ESTIMATED_SPENDABLE);
+            Coin value = Coin.ZERO;
+            for (TransactionOutput out : all) value = value.add(out.getValue());
+            return value;
+        } else {
+            throw new AssertionError("Unknown balance type");  // Unreachable.
+        }
+    }
+
     /**
      * Returns the balance that would be considered spendable by the given coin selector, including watched outputs
      * (i.e. balance includes outputs we don't have the private keys for). Just asks it to select as many coins as
@@ -3757,14 +4212,255 @@ public class Wallet extends BaseTaggableObject
         lock.lock();
         try {
             checkNotNull(selector);
-            List<TransactionOutput> candidates = calculateAllSpendCandidates(true, false);
-            CoinSelection selection = selector.select(params.getMaxMoney(), candidates);
+            CoinSelection selection;
+            if (selector instanceof IndexedCoinSelector && vUTXOProvider == null)
+                selection = ((IndexedCoinSelector) selector).select(params.getMaxMoney(), unspentOutputs.index(true, false));
+            else
+                selection = selector.select(params.getMaxMoney(), calculateAllSpendCandidates(true, false));
             return selection.valueGathered;
         } finally {
             lock.unlock();
         }
     }
 
+    /**
+     * Checks that the balances the wallet keeps up to date match the ones calculated from scratch. This runs as part
+     * of {@link #isConsistentOrThrow()} when debug logging is enabled.
+     */
+    @VisibleForTesting
+    void checkBalancesOrThrow() throws IllegalStateException {
+        lock.lock();
+        try {
+            if (vUTXOProvider != null)
+                return;
+            for (BalanceType balanceType : BalanceType.values()) {
+                Coin kept = Coin.valueOf(unspentOutputs.getBalance(balanceType));
+                Coin calculated = calculateBalance(balanceType);
+                if (!kept.equals(calculated))
+                    throw new IllegalStateException("Inconsistent " + balanceType + " balance: " + kept.toFriendlyString()
+                            + ", calculated " + calculated.toFriendlyString());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The set behind {@link #myUnspents}, which keeps running totals so that {@link #getBalance(BalanceType)} doesn't
+     * have to go through all outputs. An output is settled once its transaction is mature and in the best chain, and
+     * stays settled until a re-org. Whether the other outputs are available depends on confidence data that changes
+     * without the wallet being told, such as the number of peers that announced a pending transaction, so those are
+     * checked on every query. There are usually few of them.
+     */
+    private class UnspentOutputs extends HashSet<TransactionOutput> {
+        // Set when the keys or the best chain changed in a way that may affect outputs already in the set.
+        private volatile boolean stale;
+        private long estimated, estimatedSpendable, settled, settledSpendable;
+        private final Set<TransactionOutput> unsettled = new HashSet<>();
+        private final Set<TransactionOutput> unsignable = new HashSet<>();
+        // The outputs by value, split by whether the wallet can sign for them.
+        private final TreeMap<Long, Set<TransactionOutput>> signableByValue = new TreeMap<>();
+        private final TreeMap<Long, Set<TransactionOutput>> unsignableByValue = new TreeMap<>();
+
+        @Override
+        public boolean add(TransactionOutput output) {
+            if (!super.add(output))
+                return false;
+            track(output);
+            return true;
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            if (!super.remove(o))
+                return false;
+            untrack((TransactionOutput) o);
+            return true;
+        }
+
+        @Override
+        public void clear() {
+            super.clear();
+            reset();
+        }
+
+        @Override
+        public Iterator<TransactionOutput> iterator() {
+            final Iterator<TransactionOutput> iterator = super.iterator();
+            return new Iterator<TransactionOutput>() {
+                private TransactionOutput last;
+
+                @Override
+                public boolean hasNext() {
+                    return iterator.hasNext();
+                }
+
+                @Override
+                public TransactionOutput next() {
+                    return last = iterator.next();
+                }
+
+                @Override
+                public void remove() {
+                    iterator.remove();
+                    untrack(last);
+                }
+            };
+        }
+
+        /** Makes the next query calculate the totals again. Doesn't need the wallet lock. */
+        void invalidate() {
+            stale = true;
+        }
+
+        long getBalance(BalanceType balanceType) {
+            checkState(lock.isHeldByCurrentThread());
+            recalculateIfStale();
+            switch (balanceType) {
+                case ESTIMATED:
+                    return estimated;
+                case ESTIMATED_SPENDABLE:
+                    return estimatedSpendable;
+                case AVAILABLE:
+                    return available(false);
+                case AVAILABLE_SPENDABLE:
+                    return available(true);
+                default:
+                    throw new AssertionError("Unknown balance type");  // Unreachable.
+            }
+        }
+
+        /** Returns a view of the candidates {@link #calculateAllSpendCandidates(boolean, boolean)} would return. */
+        UnspentOutputIndex index(final boolean excludeImmatureCoinbases, final boolean excludeUnsignable) {
+            checkState(lock.isHeldByCurrentThread());
+            recalculateIfStale();
+            return new UnspentOutputIndex() {
+                @Override
+                public Iterable<TransactionOutput> atMost(Coin value) {
+                    return select(signableByValue.headMap(value.value, true).descendingMap(),
+                            unsignableByValue.headMap(value.value, true).descendingMap(), VALUE_ORDER.reverse());
+                }
+
+                @Override
+                public Iterable<TransactionOutput> atLeast(Coin value) {
+                    return select(signableByValue.tailMap(value.value, true),
+                            unsignableByValue.tailMap(value.value, true), VALUE_ORDER);
+                }
+
+                private Iterable<TransactionOutput> select(Map<Long, Set<TransactionOutput>> signable,
+                        Map<Long, Set<TransactionOutput>> unsignable, Ordering<TransactionOutput> order) {
+                    Iterable<TransactionOutput> outputs = Iterables.concat(signable.values());
+                    if (!excludeUnsignable) {
+                        List<Iterable<TransactionOutput>> both = ImmutableList.of(outputs,
+                                Iterables.concat(unsignable.values()));
+                        outputs = Iterables.mergeSorted(both, order);
+                    }
+                    if (excludeImmatureCoinbases) {
+                        outputs = Iterables.filter(outputs, new Predicate<TransactionOutput>() {
+                            @Override
+                            public boolean apply(TransactionOutput output) {
+                                return output.getParentTransaction().isMature();
+                            }
+                        });
+                    }
+                    return Iterables.unmodifiableIterable(outputs);
+                }
+            };
+        }
+
+        private void recalculateIfStale() {
+            if (stale) {
+                // Clear the flag first, so that a change made while recalculating isn't lost.
+                stale = false;
+                reset();
+                for (TransactionOutput output : this)
+                    track(output);
+            }
+        }
+
+        // Adds up the settled outputs and those of the others the default coin selector would pick right now.
+        private long available(boolean spendable) {
+            long value = 0;
+            for (Iterator<TransactionOutput> it = unsettled.iterator(); it.hasNext(); ) {
+                TransactionOutput output = it.next();
+                boolean signable = !unsignable.contains(output);
+                if (isSettled(output)) {
+                    it.remove();
+                    settled += output.getValue().value;
+                    if (signable)
+                        settledSpendable += output.getValue().value;
+                } else if (signable || !spendable) {
+                    Transaction tx = output.getParentTransaction();
+                    if (tx.isMature() && DefaultCoinSelector.isSelectable(tx))
+                        value += output.getValue().value;
+                }
+            }
+            return value + (spendable ? settledSpendable : settled);
+        }
+
+        private void track(TransactionOutput output) {
+            long value = output.getValue().value;
+            boolean signable = canSignFor(output.getScriptPubKey());
+            estimated += value;
+            if (signable)
+                estimatedSpendable += value;
+            else
+                unsignable.add(output);
+            TreeMap<Long, Set<TransactionOutput>> byValue = signable ? signableByValue : unsignableByValue;
+            Set<TransactionOutput> outputs = byValue.get(value);
+            if (outputs == null) {
+                outputs = new HashSet<>();
+                byValue.put(value, outputs);
+            }
+            outputs.add(output);
+            if (isSettled(output)) {
+                settled += value;
+                if (signable)
+                    settledSpendable += value;
+            } else {
+                unsettled.add(output);
+            }
+        }
+
+        private void untrack(TransactionOutput output) {
+            long value = output.getValue().value;
+            boolean signable = !unsignable.remove(output);
+            estimated -= value;
+            if (signable)
+                estimatedSpendable -= value;
+            TreeMap<Long, Set<TransactionOutput>> byValue = signable ? signableByValue : unsignableByValue;
+            Set<TransactionOutput> outputs = byValue.get(value);
+            outputs.remove(output);
+            if (outputs.isEmpty())
+                byValue.remove(value);
+            if (!unsettled.remove(output)) {
+                settled -= value;
+                if (signable)
+                    settledSpendable -= value;
+            }
+        }
+
+        private boolean isSettled(TransactionOutput output) {
+            Transaction tx = checkNotNull(output.getParentTransaction());
+            return tx.getConfidence().getConfidenceType() == ConfidenceType.BUILDING && tx.isMature();
+        }
+
+        private void reset() {
+            estimated = estimatedSpendable = settled = settledSpendable = 0;
+            unsettled.clear();
+            unsignable.clear();
+            signableByValue.clear();
+            unsignableByValue.clear();
+        }
+    }
+
+    private static final Ordering<TransactionOutput> VALUE_ORDER = new Ordering<TransactionOutput>() {
+        @Override
+        public int compare(TransactionOutput a, TransactionOutput b) {
+            return a.getValue().compareTo(b.getValue());
+        }
+    };
+
     private static class BalanceFutureRequest {
         public SettableFuture<Coin> future;
         public Coin value;
@@ -3817,7 +4513,7 @@ public class Wallet extends BaseTaggableObject
         final ListIterator<BalanceFutureRequest> it = balanceFutureRequests.listIterator();
         while (it.hasNext()) {
             final BalanceFutureRequest req = it.next();
-            Coin val = getBalance(req.type);   // This could be slow for lots of futures.
+            Coin val = getBalance(req.type);
             if (val.compareTo(req.value) < 0) continue;
             // Found one that's finished.
             it.remove();
@@ -3838,6 +4534,7 @@ public class Wallet extends BaseTaggableObject
      * @return the total amount of satoshis received, regardless of whether it was spent or not.
      */
     public Coin getTotalReceived() {
+        checkSpentHistoryLoaded();
         Coin total = Coin.ZERO;
 
         // Include outputs to us if they were not just change outputs, ie the inputs to us summed to less
@@ -3871,6 +4568,7 @@ public class Wallet extends BaseTaggableObject
      * @return the total amount of satoshis sent by us
      */
     public Coin getTotalSent() {
+        checkSpentHistoryLoaded();
         Coin total = Coin.ZERO;
 
         for (Transaction tx: transactions.values()) {
@@ -4265,15 +4963,24 @@ public class Wallet extends BaseTaggableObject
             // Calculate a list of ALL potential candidates for spending and then ask a coin selector to provide us
             // with the actual outputs that'll be used to gather the required amount of value. In this way, users
             // can customize coin selection policies. The call below will ignore immature coinbases and outputs
-            // we don't have the keys for.
-            List<TransactionOutput> candidates = calculateAllSpendCandidates(true, req.missingSigsMode == MissingSigsMode.THROW);
+            // we don't have the keys for. Selectors that can look the candidates up in our index of unspent
+            // outputs get that instead of the list.
+            CoinSelector selector = req.coinSelector == null ? coinSelector : req.coinSelector;
+            boolean excludeUnsignable = req.missingSigsMode == MissingSigsMode.THROW;
+            List<TransactionOutput> candidates = null;
+            UnspentOutputIndex index = null;
+            if (selector instanceof IndexedCoinSelector && vUTXOProvider == null)
+                index = unspentOutputs.index(true, excludeUnsignable);
+            else
+                candidates = calculateAllSpendCandidates(true, excludeUnsignable);
 
             CoinSelection bestCoinSelection;
             TransactionOutput bestChangeOutput = null;
             List<Coin> updatedOutputValues = null;
             if (!req.emptyWallet) {
                 // This can throw InsufficientMoneyException.
-                FeeCalculation feeCalculation = calculateFee(req, value, originalInputs, req.ensureMinRequiredFee, candidates);
+                FeeCalculation feeCalculation = calculateFee(req, value, originalInputs, req.ensureMinRequiredFee, selector,
+                        candidates, index);
                 bestCoinSelection = feeCalculation.bestCoinSelection;
                 bestChangeOutput = feeCalculation.bestChangeOutput;
                 updatedOutputValues = feeCalculation.updatedOutputValues;
@@ -4281,9 +4988,12 @@ public class Wallet extends BaseTaggableObject
                 // We're being asked to empty the wallet. What this means is ensuring "tx" has only a single output
                 // of the total value we can currently spend as determined by the selector, and then subtracting the fee.
                 checkState(req.tx.getOutputs().size() == 1, "Empty wallet TX must have a single output only.");
-                CoinSelector selector = req.coinSelector == null ? coinSelector : req.coinSelector;
-                bestCoinSelection = selector.select(params.getMaxMoney(), candidates);
-                candidates = null;  // Selector took ownership and might have changed candidates. Don't access again.
+                if (index != null) {
+                    bestCoinSelection = ((IndexedCoinSelector) selector).select(params.getMaxMoney(), index);
+                } else {
+                    bestCoinSelection = selector.select(params.getMaxMoney(), candidates);
+                    candidates = null;  // Selector took ownership and might have changed candidates. Don't access again.
+                }
                 req.tx.getOutput(0).setValue(bestCoinSelection.valueGathered);
                 log.info("  emptying {}", bestCoinSelection.valueGathered.toFriendlyString());
             }
@@ -4664,6 +5374,7 @@ public class Wallet extends BaseTaggableObject
     public void reorganize(StoredBlock splitPoint, List<StoredBlock> oldBlocks, List<StoredBlock> newBlocks) throws VerificationException {
         lock.lock();
         try {
+            checkSpentHistoryLoaded();
             // This runs on any peer thread with the block chain locked.
             //
             // The reorganize functionality of the wallet is tested in ChainSplitTest.java
@@ -4771,6 +5482,8 @@ public class Wallet extends BaseTaggableObject
             subtractDepth(depthToSubtract, spent.values());
             subtractDepth(depthToSubtract, unspent.values());
             subtractDepth(depthToSubtract, dead.values());
+            // Transactions left the best chain or lost depth, so outputs that were settled may not be any more.
+            unspentOutputs.invalidate();
 
             // The effective last seen block is now the split point so set the lastSeenBlockHash.
             setLastBlockSeenHash(splitPoint.getHeader().getHash());
@@ -4840,6 +5553,7 @@ public class Wallet extends BaseTaggableObject
     }
 
     private void calcBloomOutPointsLocked() {
+        checkSpentHistoryLoaded();
         // TODO: This could be done once and then kept up to date.
         bloomOutPoints.clear();
         Set<Transaction> all = new HashSet<>();
@@ -4868,6 +5582,23 @@ public class Wallet extends BaseTaggableObject
         lock.unlock();
     }
 
+    /**
+     * Returns the output scripts this wallet looks for, for matching against compact block filters: the scripts paying
+     * to its keys, lookahead keys included, and the watched scripts. Spends of the wallet's outputs match as well,
+     * because basic filters hold the scripts of the outputs a block spends.
+     */
+    public List<byte[]> getCompactFilterElements() {
+        keyChainGroupLock.lock();
+        try {
+            List<byte[]> elements = keyChainGroup.getCompactFilterElements();
+            for (Script script : watchedScripts)
+                elements.add(script.getProgram());
+            return elements;
+        } finally {
+            keyChainGroupLock.unlock();
+        }
+    }
+
     /**
      * Returns the number of distinct data items (note: NOT keys) that will be inserted into a bloom filter, when it
      * is constructed.
@@ -5079,7 +5810,9 @@ public class Wallet extends BaseTaggableObject
     //region Fee calculation code
 
     private FeeCalculation calculateFee(SendRequest req, Coin value, List<TransactionInput> originalInputs,
-                                       boolean needAtLeastReferenceFee, List<TransactionOutput> candidates) throws InsufficientMoneyException {
+                                       boolean needAtLeastReferenceFee, CoinSelector selector,
+                                       @Nullable List<TransactionOutput> candidates, @Nullable UnspentOutputIndex index)
+            throws InsufficientMoneyException {
         checkState(lock.isHeldByCurrentThread());
         FeeCalculation result;
         Coin fee = Coin.ZERO;
@@ -5113,9 +5846,12 @@ public class Wallet extends BaseTaggableObject
                 }
                 tx.addOutput(output);
             }
-            CoinSelector selector = req.coinSelector == null ? coinSelector : req.coinSelector;
-            // selector is allowed to modify candidates list.
-            CoinSelection selection = selector.select(valueNeeded, new LinkedList<>(candidates));
+            CoinSelection selection;
+            if (index != null)
+                selection = ((IndexedCoinSelector) selector).select(valueNeeded, index);
+            else
+                // selector is allowed to modify candidates list.
+                selection = selector.select(valueNeeded, new LinkedList<>(candidates));
             result.bestCoinSelection = selection;
             // Can we afford this?
             if (selection.valueGathered.compareTo(valueNeeded) < 0) {
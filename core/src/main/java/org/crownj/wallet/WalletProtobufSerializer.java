@@ -36,9 +36,11 @@ import org.crownj.utils.ExchangeRate;
 import org.crownj.utils.Fiat;
 import org.crownj.wallet.Protos.Wallet.EncryptionType;
 
+import com.google.common.primitives.Ints;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.CodedInputStream;
 import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.ExtensionRegistryLite;
 import com.google.protobuf.WireFormat;
 
 import org.slf4j.Logger;
@@ -47,7 +49,9 @@ import org.slf4j.LoggerFactory;
 import javax.annotation.Nullable;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -89,6 +93,7 @@ public class WalletProtobufSerializer {
 
     private boolean requireMandatoryExtensions = true;
     private boolean requireAllExtensionsKnown = false;
+    private boolean lazySpentHistory = false;
     private int walletWriteBufferSize = CodedOutputStream.DEFAULT_BUFFER_SIZE;
 
     public interface WalletFactory {
@@ -133,6 +138,16 @@ public class WalletProtobufSerializer {
         requireAllExtensionsKnown = value;
     }
 
+    /**
+     * If this property is set to true, {@link #readWallet(File, boolean, WalletExtension[])} leaves the spent
+     * transactions that no unspent, pending or dead transaction refers to in the file. Until they are read with
+     * {@link Wallet#loadSpentHistory()}, the wallet can tell its balance and the coins it can spend, but not much
+     * else. Speeds up showing the balance of a wallet with a long history.
+     */
+    public void setLazySpentHistory(boolean value) {
+        lazySpentHistory = value;
+    }
+
     /**
      * Change buffer size for writing wallet to output stream. Default is {@link com.google.protobuf.CodedOutputStream#DEFAULT_BUFFER_SIZE}
      * @param walletWriteBufferSize - buffer size in bytes
@@ -433,15 +448,107 @@ public class WalletProtobufSerializer {
      * @throws UnreadableWalletException thrown in various error conditions (see description).
      */
     public Wallet readWallet(InputStream input, boolean forceReset, @Nullable WalletExtension[] extensions) throws UnreadableWalletException {
+        return readWallet(input, null, forceReset, extensions);
+    }
+
+    /**
+     * <p>Loads a wallet from the given file, like {@link #readWallet(InputStream, boolean, WalletExtension[])}. If
+     * {@link #setLazySpentHistory(boolean)} is set, most spent transactions are only read by
+     * {@link Wallet#loadSpentHistory()}. The file must not be changed until then.</p>
+     *
+     * @throws UnreadableWalletException thrown in various error conditions (see description).
+     */
+    public Wallet readWallet(File file, boolean forceReset, @Nullable WalletExtension[] extensions) throws UnreadableWalletException {
+        try (FileInputStream input = new FileInputStream(file)) {
+            return readWallet(input, lazySpentHistory && !forceReset ? file : null, forceReset, extensions);
+        } catch (IOException e) {
+            throw new UnreadableWalletException("Could not open file", e);
+        }
+    }
+
+    // Copies a field that was not read into a Transaction as it is.
+    private static void copyField(int tag, CodedInputStream input, CodedOutputStream output)
+            throws IOException, UnreadableWalletException {
+        int field = WireFormat.getTagFieldNumber(tag);
+        switch (WireFormat.getTagWireType(tag)) {
+            case WireFormat.WIRETYPE_VARINT:
+                output.writeUInt64(field, input.readRawVarint64());
+                break;
+            case WireFormat.WIRETYPE_FIXED64:
+                output.writeFixed64(field, input.readRawLittleEndian64());
+                break;
+            case WireFormat.WIRETYPE_LENGTH_DELIMITED:
+                output.writeBytes(field, input.readBytes());
+                break;
+            case WireFormat.WIRETYPE_FIXED32:
+                output.writeFixed32(field, input.readRawLittleEndian32());
+                break;
+            default:
+                // Groups, which the wallet format doesn't use.
+                throw new UnreadableWalletException("Unexpected wire type in field " + field);
+        }
+    }
+
+    // If a file is given, the input reads it from the start and the spent transactions may be left in it.
+    private Wallet readWallet(InputStream input, @Nullable File lazyFile, boolean forceReset,
+                              @Nullable WalletExtension[] extensions) throws UnreadableWalletException {
         try {
-            Protos.Wallet walletProto = parseToProto(input);
-            final String paramsID = walletProto.getNetworkIdentifier();
-            NetworkParameters params = NetworkParameters.fromID(paramsID);
+            // Transactions are read one at a time as they come by, so that the protobuf tree of all of them and the
+            // wallet built from it are never in memory at once. Everything else is copied aside and parsed at the end.
+            long fileLength = lazyFile != null ? lazyFile.length() : 0;
+            long fileLastModified = lazyFile != null ? lazyFile.lastModified() : 0;
+            CodedInputStream codedInput = CodedInputStream.newInstance(input);
+            codedInput.setSizeLimit(WALLET_SIZE_LIMIT);
+            ByteString.Output rest = ByteString.newOutput();
+            CodedOutputStream restOutput = CodedOutputStream.newInstance(rest);
+            NetworkParameters params = null;
+            List<TransactionLinks> links = new ArrayList<>();
+            // In lazy mode, the offsets of the spent transactions in the file, by hash.
+            Map<ByteString, Integer> spentOffsets = lazyFile != null ? new LinkedHashMap<ByteString, Integer>() : null;
+            for (int tag = codedInput.readTag(); tag != 0; tag = codedInput.readTag()) {
+                int field = WireFormat.getTagFieldNumber(tag);
+                if (field == Protos.Wallet.NETWORK_IDENTIFIER_FIELD_NUMBER
+                        && WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+                    String paramsID = codedInput.readString();
+                    params = NetworkParameters.fromID(paramsID);
+                    if (params == null)
+                        throw new UnreadableWalletException("Unknown network parameters ID " + paramsID);
+                    restOutput.writeString(field, paramsID);
+                } else if (field == Protos.Wallet.TRANSACTION_FIELD_NUMBER && params != null
+                        && WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+                    if (forceReset) {
+                        codedInput.skipField(tag);
+                    } else {
+                        int offset = codedInput.getTotalBytesRead();
+                        Protos.Transaction txProto = readTransactionProto(codedInput);
+                        if (spentOffsets != null && txProto.getPool() == Protos.Transaction.Pool.SPENT) {
+                            if (spentOffsets.put(txProto.getHash(), offset) != null)
+                                throw new UnreadableWalletException("Wallet contained duplicate transaction "
+                                        + byteStringToHash(txProto.getHash()));
+                        } else {
+                            readTransaction(txProto, params);
+                            links.add(new TransactionLinks(txProto));
+                        }
+                    }
+                } else {
+                    // Includes transactions that come before the network identifier, which writeWallet never does.
+                    copyField(tag, codedInput, restOutput);
+                }
+            }
             if (params == null)
-                throw new UnreadableWalletException("Unknown network parameters ID " + paramsID);
-            return readWallet(params, extensions, walletProto, forceReset);
+                throw new UnreadableWalletException("Missing network parameters ID");
+            restOutput.flush();
+            Protos.Wallet walletProto = Protos.Wallet.parseFrom(rest.toByteString());
+            SpentHistoryReader spentHistory = null;
+            if (spentOffsets != null && !spentOffsets.isEmpty())
+                spentHistory = readReferencedSpentTransactions(lazyFile, fileLength, fileLastModified, params,
+                        spentOffsets, links);
+            return readWallet(params, extensions, walletProto, links, spentHistory, forceReset);
         } catch (IOException | IllegalArgumentException | IllegalStateException e) {
             throw new UnreadableWalletException("Could not parse input stream to protobuf", e);
+        } finally {
+            // Make sure the object can be re-used after a failed read, too.
+            txMap.clear();
         }
     }
 
@@ -479,6 +586,15 @@ public class WalletProtobufSerializer {
      */
     public Wallet readWallet(NetworkParameters params, @Nullable WalletExtension[] extensions,
                              Protos.Wallet walletProto, boolean forceReset) throws UnreadableWalletException {
+        return readWallet(params, extensions, walletProto, new ArrayList<TransactionLinks>(), null, forceReset);
+    }
+
+    // The transactions that were read from a stream already are in the txMap, and their links are given. The spent
+    // transactions that were left in the file, if any, are read by the given reader.
+    private Wallet readWallet(NetworkParameters params, @Nullable WalletExtension[] extensions,
+                              Protos.Wallet walletProto, List<TransactionLinks> links,
+                              @Nullable SpentHistoryReader spentHistory,
+                              boolean forceReset) throws UnreadableWalletException {
         if (walletProto.getVersion() > CURRENT_WALLET_VERSION)
             throw new UnreadableWalletException.FutureVersion();
         if (!walletProto.getNetworkIdentifier().equals(params.getId()))
@@ -522,13 +638,16 @@ public class WalletProtobufSerializer {
             // Read all transactions and insert into the txMap.
             for (Protos.Transaction txProto : walletProto.getTransactionList()) {
                 readTransaction(txProto, wallet.getParams());
+                links.add(new TransactionLinks(txProto));
             }
 
             // Update transaction outputs to point to inputs that spend them
-            for (Protos.Transaction txProto : walletProto.getTransactionList()) {
-                WalletTransaction wtx = connectTransactionOutputs(params, txProto);
+            for (TransactionLinks txLinks : links) {
+                WalletTransaction wtx = connectTransactionOutputs(params, txLinks);
                 wallet.addWalletTransaction(wtx);
             }
+            if (spentHistory != null)
+                wallet.setSpentHistoryLoader(spentHistory);
 
             // Update the lastBlockSeenHash.
             if (!walletProto.hasLastSeenBlockHash()) {
@@ -614,6 +733,59 @@ public class WalletProtobufSerializer {
         return Protos.Wallet.parseFrom(codedInput);
     }
 
+    private static Protos.Transaction readTransactionProto(CodedInputStream codedInput)
+            throws IOException, UnreadableWalletException {
+        Protos.Transaction txProto = codedInput.readMessage(Protos.Transaction.parser(),
+                ExtensionRegistryLite.getEmptyRegistry());
+        if (!txProto.isInitialized())
+            throw new UnreadableWalletException("Transaction is missing required fields");
+        return txProto;
+    }
+
+    /**
+     * Reads the spent transactions that the given links refer to, by spending or overriding them, and adds their
+     * links. Returns a reader for the others, which stay in the file. The links to those are taken out, as they are
+     * connected once the transactions are read.
+     */
+    private SpentHistoryReader readReferencedSpentTransactions(File file, long fileLength, long fileLastModified,
+            NetworkParameters params, Map<ByteString, Integer> spentOffsets, List<TransactionLinks> links)
+            throws IOException, UnreadableWalletException {
+        // The links of the spent transactions read here to the other spent ones are taken out below, so one pass does.
+        Set<ByteString> referenced = new HashSet<>();
+        for (TransactionLinks txLinks : links) {
+            for (ByteString spentByHash : txLinks.spentByHashes)
+                if (spentByHash != null && spentOffsets.containsKey(spentByHash))
+                    referenced.add(spentByHash);
+            if (txLinks.confidence != null && txLinks.confidence.hasOverridingTransaction()
+                    && spentOffsets.containsKey(txLinks.confidence.getOverridingTransaction()))
+                referenced.add(txLinks.confidence.getOverridingTransaction());
+        }
+        List<Integer> referencedOffsets = new ArrayList<>(referenced.size());
+        List<Integer> deferredOffsets = new ArrayList<>(spentOffsets.size() - referenced.size());
+        for (Map.Entry<ByteString, Integer> entry : spentOffsets.entrySet()) {
+            if (referenced.contains(entry.getKey()))
+                referencedOffsets.add(entry.getValue());
+            else
+                deferredOffsets.add(entry.getValue());
+        }
+        int firstReferenced = links.size();
+        try (RecordReader reader = new RecordReader(file)) {
+            for (int offset : referencedOffsets) {
+                Protos.Transaction txProto = reader.read(offset);
+                readTransaction(txProto, params);
+                links.add(new TransactionLinks(txProto));
+            }
+        }
+        List<TransactionLinks> laterLinks = new ArrayList<>();
+        for (TransactionLinks txLinks : links.subList(firstReferenced, links.size())) {
+            TransactionLinks later = txLinks.takeSpentBy(spentOffsets.keySet(), referenced);
+            if (later != null)
+                laterLinks.add(later);
+        }
+        return new SpentHistoryReader(file, fileLength, fileLastModified, params, Ints.toArray(deferredOffsets),
+                laterLinks);
+    }
+
     private void readTransaction(Protos.Transaction txProto, NetworkParameters params) throws UnreadableWalletException {
         Transaction tx = new Transaction(params);
 
@@ -698,11 +870,139 @@ public class WalletProtobufSerializer {
         txMap.put(txProto.getHash(), tx);
     }
 
+    /**
+     * What is needed of a transaction proto once all transactions are read: its pool, the inputs that spend its
+     * outputs and its confidence. The scripts, which make up most of a transaction, are left behind.
+     */
+    private static class TransactionLinks {
+        final ByteString hash;
+        final Protos.Transaction.Pool pool;
+        // By output index, the hash of the spending transaction or null, and the index of the spending input.
+        final ByteString[] spentByHashes;
+        final int[] spentByIndexes;
+        @Nullable final Protos.TransactionConfidence confidence;
+
+        TransactionLinks(Protos.Transaction txProto) {
+            hash = txProto.getHash();
+            pool = txProto.getPool();
+            int outputs = txProto.getTransactionOutputCount();
+            spentByHashes = new ByteString[outputs];
+            spentByIndexes = new int[outputs];
+            for (int i = 0; i < outputs; i++) {
+                Protos.TransactionOutput outputProto = txProto.getTransactionOutput(i);
+                if (outputProto.hasSpentByTransactionHash()) {
+                    spentByHashes[i] = outputProto.getSpentByTransactionHash();
+                    spentByIndexes[i] = outputProto.getSpentByTransactionIndex();
+                }
+            }
+            confidence = txProto.hasConfidence() ? txProto.getConfidence() : null;
+        }
+
+        private TransactionLinks(ByteString hash, Protos.Transaction.Pool pool, int outputs) {
+            this.hash = hash;
+            this.pool = pool;
+            spentByHashes = new ByteString[outputs];
+            spentByIndexes = new int[outputs];
+            confidence = null;
+        }
+
+        /**
+         * Moves the links to the spending transactions that are in the first set but not the second into new links,
+         * which are returned, or null if there are none.
+         */
+        @Nullable
+        TransactionLinks takeSpentBy(Set<ByteString> hashes, Set<ByteString> except) {
+            TransactionLinks taken = null;
+            for (int i = 0; i < spentByHashes.length; i++) {
+                ByteString spentByHash = spentByHashes[i];
+                if (spentByHash == null || !hashes.contains(spentByHash) || except.contains(spentByHash))
+                    continue;
+                if (taken == null)
+                    taken = new TransactionLinks(hash, pool, spentByHashes.length);
+                taken.spentByHashes[i] = spentByHash;
+                taken.spentByIndexes[i] = spentByIndexes[i];
+                spentByHashes[i] = null;
+            }
+            return taken;
+        }
+    }
+
+    /** Reads transaction records of a wallet file at the offsets they were found at, in ascending order. */
+    private static class RecordReader implements Closeable {
+        private final InputStream input;
+        private final CodedInputStream codedInput;
+
+        RecordReader(File file) throws IOException {
+            input = new FileInputStream(file);
+            codedInput = CodedInputStream.newInstance(input);
+            codedInput.setSizeLimit(WALLET_SIZE_LIMIT);
+        }
+
+        Protos.Transaction read(int offset) throws IOException, UnreadableWalletException {
+            codedInput.skipRawBytes(offset - codedInput.getTotalBytesRead());
+            return readTransactionProto(codedInput);
+        }
+
+        @Override
+        public void close() throws IOException {
+            input.close();
+        }
+    }
+
+    /**
+     * Reads the spent transactions that were left in a wallet file, once the wallet needs them. They are connected
+     * like the other transactions were when the wallet was read.
+     */
+    private static class SpentHistoryReader implements Wallet.SpentHistoryLoader {
+        private final File file;
+        private final long fileLength;
+        private final long fileLastModified;
+        private final NetworkParameters params;
+        private final int[] offsets;
+        // Links from the transactions that were read to the ones that were not.
+        private final List<TransactionLinks> laterLinks;
+
+        SpentHistoryReader(File file, long fileLength, long fileLastModified, NetworkParameters params, int[] offsets,
+                           List<TransactionLinks> laterLinks) {
+            this.file = file;
+            this.fileLength = fileLength;
+            this.fileLastModified = fileLastModified;
+            this.params = params;
+            this.offsets = offsets;
+            this.laterLinks = laterLinks;
+        }
+
+        @Override
+        public List<Transaction> load(Map<Sha256Hash, Transaction> transactions) throws UnreadableWalletException {
+            if (file.length() != fileLength || file.lastModified() != fileLastModified)
+                throw new UnreadableWalletException("Wallet file changed since it was read: " + file);
+            WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+            for (Map.Entry<Sha256Hash, Transaction> entry : transactions.entrySet())
+                serializer.txMap.put(hashToByteString(entry.getKey()), entry.getValue());
+            List<TransactionLinks> links = new ArrayList<>(offsets.length);
+            try (RecordReader reader = new RecordReader(file)) {
+                for (int offset : offsets) {
+                    Protos.Transaction txProto = reader.read(offset);
+                    serializer.readTransaction(txProto, params);
+                    links.add(new TransactionLinks(txProto));
+                }
+            } catch (IOException | IllegalArgumentException | IllegalStateException e) {
+                throw new UnreadableWalletException("Could not read spent transactions", e);
+            }
+            List<Transaction> history = new ArrayList<>(links.size());
+            for (TransactionLinks txLinks : links)
+                history.add(serializer.connectTransactionOutputs(params, txLinks).getTransaction());
+            for (TransactionLinks txLinks : laterLinks)
+                serializer.connectTransactionOutputs(params, txLinks);
+            return history;
+        }
+    }
+
     private WalletTransaction connectTransactionOutputs(final NetworkParameters params,
-                                                        final org.crownj.wallet.Protos.Transaction txProto) throws UnreadableWalletException {
-        Transaction tx = txMap.get(txProto.getHash());
+                                                        final TransactionLinks txLinks) throws UnreadableWalletException {
+        Transaction tx = txMap.get(txLinks.hash);
         final WalletTransaction.Pool pool;
-        switch (txProto.getPool()) {
+        switch (txLinks.pool) {
             case DEAD: pool = WalletTransaction.Pool.DEAD; break;
             case PENDING: pool = WalletTransaction.Pool.PENDING; break;
             case SPENT: pool = WalletTransaction.Pool.SPENT; break;
@@ -716,28 +1016,26 @@ public class WalletProtobufSerializer {
                 pool = WalletTransaction.Pool.PENDING;
                 break;
             default:
-                throw new UnreadableWalletException("Unknown transaction pool: " + txProto.getPool());
+                throw new UnreadableWalletException("Unknown transaction pool: " + txLinks.pool);
         }
         for (int i = 0 ; i < tx.getOutputs().size() ; i++) {
             TransactionOutput output = tx.getOutputs().get(i);
-            final Protos.TransactionOutput transactionOutput = txProto.getTransactionOutput(i);
-            if (transactionOutput.hasSpentByTransactionHash()) {
-                final ByteString spentByTransactionHash = transactionOutput.getSpentByTransactionHash();
+            final ByteString spentByTransactionHash = txLinks.spentByHashes[i];
+            if (spentByTransactionHash != null) {
                 Transaction spendingTx = txMap.get(spentByTransactionHash);
                 if (spendingTx == null) {
                     throw new UnreadableWalletException(String.format(Locale.US, "Could not connect %s to %s",
                             tx.getTxId(), byteStringToHash(spentByTransactionHash)));
                 }
-                final int spendingIndex = transactionOutput.getSpentByTransactionIndex();
+                final int spendingIndex = txLinks.spentByIndexes[i];
                 TransactionInput input = checkNotNull(spendingTx.getInput(spendingIndex));
                 input.connect(output);
             }
         }
 
-        if (txProto.hasConfidence()) {
-            Protos.TransactionConfidence confidenceProto = txProto.getConfidence();
+        if (txLinks.confidence != null) {
             TransactionConfidence confidence = tx.getConfidence();
-            readConfidence(params, tx, confidenceProto, confidence);
+            readConfidence(params, tx, txLinks.confidence, confidence);
         }
 
         return new WalletTransaction(pool, tx);
@@ -17,6 +17,7 @@
 
 package org.crownj.core;
 
+import org.crownj.core.listeners.NewBestBlockListener;
 import org.crownj.params.MainNetParams;
 import org.crownj.params.TestNet3Params;
 import org.crownj.params.UnitTestParams;
@@ -25,6 +26,7 @@ import org.crownj.store.BlockStore;
 import org.crownj.store.MemoryBlockStore;
 import org.crownj.testing.FakeTxBuilder;
 import org.crownj.utils.BriefLogFormatter;
+import org.crownj.utils.Threading;
 import org.crownj.wallet.Wallet;
 import org.crownj.wallet.Wallet.BalanceType;
 
@@ -36,7 +38,9 @@ import org.junit.Test;
 
 import java.math.BigInteger;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
 
 import static org.crownj.core.Coin.*;
@@ -138,6 +142,95 @@ public class BlockChainTest {
         assertTrue(wallet.getBalance().signum() > 0);
     }
 
+    @Test
+    public void headersOnly() throws Exception {
+        chain.setHeadersOnly(true);
+        Transaction tx1 = createFakeTx(UNITTEST,
+                                       COIN,
+                                       LegacyAddress.fromKey(UNITTEST, wallet.currentReceiveKey()));
+        Block b1 = createFakeBlock(blockStore, 1, tx1).block;
+        // The block is connected like its header, and the wallet only learns about the new best block.
+        assertTrue(chain.add(b1));
+        assertEquals(b1.cloneAsHeader(), chain.getChainHead().getHeader());
+        assertEquals(1, wallet.getLastBlockSeenHeight());
+        assertEquals(Coin.ZERO, wallet.getBalance(BalanceType.ESTIMATED));
+    }
+
+    @Test
+    public void addAll() throws Exception {
+        final List<StoredBlock> notified = new ArrayList<>();
+        chain.addNewBestBlockListener(Threading.SAME_THREAD, new NewBestBlockListener() {
+            @Override
+            public void notifyNewBestBlock(StoredBlock block) {
+                notified.add(block);
+            }
+        });
+        final List<StoredBlock> notifiedOnUserThread = new ArrayList<>();
+        chain.addNewBestBlockListener(new NewBestBlockListener() {
+            @Override
+            public void notifyNewBestBlock(StoredBlock block) {
+                notifiedOnUserThread.add(block);
+            }
+        });
+        // A run of headers that passes two difficulty transitions, as received in a headers message.
+        List<Block> headers = createHeaders(UNITTEST.getGenesisBlock(), UNITTEST.getInterval() * 2 + 5);
+        byte[] payload = new HeadersMessage(UNITTEST, headers).crownSerialize();
+        assertTrue(chain.addAll(new HeadersMessage(UNITTEST, payload).getBlockHeaders()));
+        assertEquals(headers.size(), chain.getBestChainHeight());
+        assertEquals(headers.get(headers.size() - 1), chain.getChainHead().getHeader());
+        for (Block header : headers)
+            assertEquals(header, blockStore.get(header.getHash()).getHeader());
+        // Listeners heard about every block, in order.
+        assertEquals(headers.size(), notified.size());
+        for (int i = 0; i < notified.size(); i++)
+            assertEquals(i + 1, notified.get(i).getHeight());
+        Threading.waitForUserCode();
+        assertEquals(notified, notifiedOnUserThread);
+        assertEquals(headers.size(), wallet.getLastBlockSeenHeight());
+    }
+
+    @Test
+    public void addAllConnectsHeadersBeforeBadOne() throws Exception {
+        List<Block> headers = createHeaders(UNITTEST.getGenesisBlock(), 8);
+        // Not a difficulty transition point, so the difficulty must not change.
+        Block bad = headers.get(7);
+        bad.setDifficultyTarget(bad.getDifficultyTarget() - 1);
+        try {
+            chain.addAll(headers);
+            fail();
+        } catch (VerificationException e) {
+        }
+        assertEquals(7, chain.getBestChainHeight());
+        assertEquals(headers.get(6), chain.getChainHead().getHeader());
+    }
+
+    @Test
+    public void addAllWithFork() throws Exception {
+        Block b1 = UNITTEST.getGenesisBlock().createNextBlock(coinbaseTo);
+        assertTrue(chain.add(b1));
+        // A run that doesn't build on the chain head is added block by block, and overtakes it.
+        List<Block> headers = createHeaders(UNITTEST.getGenesisBlock(), 3);
+        assertTrue(chain.addAll(headers));
+        assertEquals(headers.get(2), chain.getChainHead().getHeader());
+    }
+
+    // Creates a chain of headers on top of the given block. The fake chain is fast, so each difficulty transition
+    // makes the difficulty four times higher.
+    private static List<Block> createHeaders(Block prev, int count) {
+        List<Block> headers = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Block block = prev.createNextBlock(LegacyAddress.fromKey(UNITTEST, new ECKey()));
+            if ((headers.size() + 1) % UNITTEST.getInterval() == 0) {
+                BigInteger target = Utils.decodeCompactBits(prev.getDifficultyTarget()).divide(BigInteger.valueOf(4));
+                block.setDifficultyTarget(Utils.encodeCompactBits(target));
+                block.solve();
+            }
+            headers.add(block.cloneAsHeader());
+            prev = block;
+        }
+        return headers;
+    }
+
     @Test
     public void unconnectedBlocks() throws Exception {
         Block b1 = UNITTEST.getGenesisBlock().createNextBlock(coinbaseTo);
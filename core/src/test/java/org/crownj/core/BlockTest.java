@@ -34,6 +34,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.EnumSet;
@@ -78,6 +79,44 @@ public class BlockTest {
         assertEquals("2016-02-13T22:59:39Z", Utils.dateTimeFormat(block700000.getTime()));
     }
 
+    @Test
+    public void readHeader() throws Exception {
+        Block expected = block700000.cloneAsHeader();
+        for (ByteBuffer buffer : new ByteBuffer[] { ByteBuffer.wrap(block700000Bytes), ByteBuffer.allocateDirect(
+                block700000Bytes.length).put(block700000Bytes) }) {
+            buffer.position(0);
+            Block header = Block.readHeader(TESTNET, buffer, null);
+            assertEquals(Block.HEADER_SIZE, buffer.position());
+            assertEquals(expected, header);
+            assertEquals(expected.getMerkleRoot(), header.getMerkleRoot());
+            assertEquals(expected.getPrevBlockHash(), header.getPrevBlockHash());
+            assertEquals(expected.getTimeSeconds(), header.getTimeSeconds());
+            assertFalse(header.hasTransactions());
+            assertArrayEquals(expected.crownSerialize(), header.crownSerialize());
+        }
+        // A known hash is taken as is.
+        Block header = Block.readHeader(TESTNET, ByteBuffer.wrap(block700000Bytes), Sha256Hash.ZERO_HASH);
+        assertEquals(Sha256Hash.ZERO_HASH, header.getHash());
+    }
+
+    @Test
+    public void headersMessageRoundTrip() throws Exception {
+        Block header = block700000.cloneAsHeader();
+        HeadersMessage message = new HeadersMessage(TESTNET, header, header);
+        HeadersMessage parsed = new HeadersMessage(TESTNET, message.crownSerialize());
+        assertEquals(Arrays.asList(header, header), parsed.getBlockHeaders());
+        assertEquals(header.getMerkleRoot(), parsed.getBlockHeaders().get(1).getMerkleRoot());
+        // A header followed by transactions is rejected.
+        byte[] bytes = message.crownSerialize();
+        bytes[1 + Block.HEADER_SIZE] = 1;
+        try {
+            new HeadersMessage(TESTNET, bytes);
+            fail();
+        } catch (ProtocolException e) {
+            // Expected.
+        }
+    }
+
     @Test
     public void testProofOfWork() throws Exception {
         // This params accepts any difficulty target.
@@ -18,6 +18,7 @@
 package org.crownj.core;
 
 import org.crownj.params.MainNetParams;
+import org.crownj.script.ScriptBuilder;
 import org.crownj.wallet.KeyChainGroup;
 import org.crownj.wallet.Wallet;
 import org.junit.Test;
@@ -91,4 +92,50 @@ public class BloomFilterTest {
         // Value generated by crown Core
         assertEquals("082ae5edc8e51d4a03080000000000000002", HEX.encode(filter.unsafecrownSerialize()));
     }
+
+    @Test
+    public void containsRange() {
+        BloomFilter filter = new BloomFilter(3, 0.01, 0, BloomFilter.BloomUpdate.UPDATE_ALL);
+        byte[] element = HEX.decode("99108ad8ed9bb6274d3980bab5a85c048f0950c8");
+        assertFalse(filter.contains(element));
+        filter.insert(element);
+        assertTrue(filter.contains(element));
+        byte[] padded = new byte[element.length + 5];
+        System.arraycopy(element, 0, padded, 3, element.length);
+        assertTrue(filter.contains(padded, 3, element.length));
+        assertFalse(filter.contains(padded, 2, element.length));
+        assertEquals(BloomFilter.murmurHash3(new byte[4], 7, 1, element),
+                BloomFilter.murmurHash3(new byte[4], 7, 1, padded, 3, element.length));
+    }
+
+    @Test
+    public void applyAndUpdateTransactions() {
+        Context.propagate(new Context(MAINNET));
+        ECKey key = new ECKey();
+        BloomFilter filter = new BloomFilter(10, 0.0001, 0, BloomFilter.BloomUpdate.UPDATE_ALL);
+        filter.insert(key.getPubKeyHash());
+
+        // An output paying to the key matches and adds its outpoint.
+        Transaction payment = new Transaction(MAINNET);
+        payment.addInput(Sha256Hash.of(new byte[] { 1 }), 0, new ScriptBuilder().data(new byte[72]).build());
+        payment.addOutput(Coin.COIN, LegacyAddress.fromKey(MAINNET, new ECKey()));
+        payment.addOutput(Coin.COIN, LegacyAddress.fromKey(MAINNET, key));
+        assertTrue(filter.applyAndUpdate(payment));
+        assertTrue(filter.contains(payment.getOutput(1).getOutPointFor().unsafecrownSerialize()));
+        assertFalse(filter.contains(payment.getOutput(0).getOutPointFor().unsafecrownSerialize()));
+
+        // A transaction spending that output matches by the outpoint, witnesses or not.
+        Transaction spend = new Transaction(MAINNET);
+        spend.addInput(payment.getOutput(1));
+        spend.addOutput(Coin.COIN, LegacyAddress.fromKey(MAINNET, new ECKey()));
+        assertTrue(filter.applyAndUpdate(spend));
+        spend.getInput(0).setWitness(TransactionWitness.redeemP2WPKH(null, key));
+        assertTrue(spend.hasWitnesses());
+        assertTrue(filter.applyAndUpdate(spend));
+
+        Transaction unrelated = new Transaction(MAINNET);
+        unrelated.addInput(payment.getOutput(0));
+        unrelated.addOutput(Coin.COIN, LegacyAddress.fromKey(MAINNET, new ECKey()));
+        assertFalse(filter.applyAndUpdate(unrelated));
+    }
 }
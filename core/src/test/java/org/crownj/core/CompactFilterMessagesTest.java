@@ -0,0 +1,102 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.core;
+
+import org.crownj.params.UnitTestParams;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CompactFilterMessagesTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+    private static final byte TYPE = GolombCodedSet.BASIC_FILTER_TYPE;
+
+    @Test
+    public void getCFilters() throws Exception {
+        roundTrip(new GetCFiltersMessage(UNITTEST, TYPE, 1234, Sha256Hash.of(new byte[] { 1 })));
+    }
+
+    @Test
+    public void getCFHeaders() throws Exception {
+        GetCFHeadersMessage message = new GetCFHeadersMessage(UNITTEST, TYPE, 4000000000L, Sha256Hash.of(new byte[] { 1 }));
+        assertEquals(4000000000L, ((GetCFHeadersMessage) roundTrip(message)).getStartHeight());
+    }
+
+    @Test
+    public void getCFCheckpt() throws Exception {
+        roundTrip(new GetCFCheckptMessage(UNITTEST, TYPE, Sha256Hash.of(new byte[] { 1 })));
+    }
+
+    @Test
+    public void cfilter() throws Exception {
+        Sha256Hash blockHash = Sha256Hash.of(new byte[] { 1 });
+        byte[] element = { 1, 2, 3 };
+        GolombCodedSet filter = GolombCodedSet.buildBasicFilter(blockHash, Arrays.asList(element));
+        CFilterMessage message = (CFilterMessage) roundTrip(
+                new CFilterMessage(UNITTEST, TYPE, blockHash, filter.getEncoded()));
+        assertEquals(filter, message.getFilter());
+        assertTrue(message.getFilter().match(element));
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void cfilterOfUnknownType() throws Exception {
+        new CFilterMessage(UNITTEST, (byte) 1, Sha256Hash.ZERO_HASH, new byte[] { 0 }).getFilter();
+    }
+
+    @Test
+    public void cfheaders() throws Exception {
+        List<Sha256Hash> hashes = new ArrayList<>();
+        for (int i = 0; i < 3; i++)
+            hashes.add(Sha256Hash.of(new byte[] { (byte) i }));
+        Sha256Hash previous = Sha256Hash.of(new byte[] { 9 });
+        CFHeadersMessage message = (CFHeadersMessage) roundTrip(
+                new CFHeadersMessage(UNITTEST, TYPE, Sha256Hash.ZERO_HASH, previous, hashes));
+        List<Sha256Hash> headers = message.getFilterHeaders();
+        assertEquals(3, headers.size());
+        assertEquals(GolombCodedSet.filterHeader(hashes.get(0), previous), headers.get(0));
+        assertEquals(GolombCodedSet.filterHeader(hashes.get(2), headers.get(1)), headers.get(2));
+    }
+
+    @Test
+    public void cfcheckpt() throws Exception {
+        List<Sha256Hash> headers = Arrays.asList(Sha256Hash.of(new byte[] { 1 }), Sha256Hash.of(new byte[] { 2 }));
+        roundTrip(new CFCheckptMessage(UNITTEST, TYPE, Sha256Hash.ZERO_HASH, headers));
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void cfcheckptTruncated() throws Exception {
+        List<Sha256Hash> headers = Arrays.asList(Sha256Hash.of(new byte[] { 1 }), Sha256Hash.of(new byte[] { 2 }));
+        byte[] payload = new CFCheckptMessage(UNITTEST, TYPE, Sha256Hash.ZERO_HASH, headers).crownSerialize();
+        new CFCheckptMessage(UNITTEST, Arrays.copyOf(payload, payload.length - 1));
+    }
+
+    // Sends the message through a serializer and checks that the same message comes out.
+    private static Message roundTrip(Message message) throws Exception {
+        MessageSerializer serializer = UNITTEST.getDefaultSerializer();
+        ByteBuffer buffer = ByteBuffer.wrap(serializer.serializeFrame(message).toByteArray());
+        Message received = serializer.deserialize(buffer);
+        assertEquals(message.getClass(), received.getClass());
+        assertEquals(message, received);
+        assertFalse(buffer.hasRemaining());
+        return received;
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.core;
+
+import org.crownj.script.Script;
+import org.crownj.store.FilterHeaderStore;
+import org.crownj.testing.FakeTxBuilder;
+import org.crownj.testing.InboundMessageQueuer;
+import org.crownj.testing.TestWithPeerGroup;
+import org.crownj.utils.Threading;
+import org.crownj.wallet.KeyChainGroup;
+import org.crownj.wallet.Wallet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+@RunWith(value = Parameterized.class)
+public class CompactFilterScanTest extends TestWithPeerGroup {
+    private static final int BLOCKS = 8;
+    private static final int PAYMENT_HEIGHT = 5;
+    private static final byte TYPE = GolombCodedSet.BASIC_FILTER_TYPE;
+
+    private Wallet scanWallet;
+    private Transaction payment;
+    // The blocks by height, the genesis block included.
+    private final List<Block> blocks = new ArrayList<>();
+    private final List<GolombCodedSet> filters = new ArrayList<>();
+    private File filterHeaderFile;
+    private FilterHeaderStore filterHeaderStore;
+    private InboundMessageQueuer p1;
+
+    @Parameterized.Parameters
+    public static Collection<ClientType[]> parameters() {
+        return Arrays.asList(new ClientType[] {ClientType.NIO_CLIENT_MANAGER},
+                             new ClientType[] {ClientType.BLOCKING_CLIENT_MANAGER});
+    }
+
+    public CompactFilterScanTest(ClientType clientType) {
+        super(clientType);
+    }
+
+    @Override
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        // A wallet that follows the chain by its headers only, so it learns about its coins from the scan.
+        scanWallet = new Wallet(UNITTEST, KeyChainGroup.builder(UNITTEST).lookaheadSize(4).lookaheadThreshold(2)
+                .fromRandom(Script.ScriptType.P2PKH).build());
+        blockChain.addNewBestBlockListener(Threading.SAME_THREAD, scanWallet);
+        payment = FakeTxBuilder.createFakeTx(UNITTEST, Coin.COIN, scanWallet.currentReceiveAddress());
+
+        blocks.add(UNITTEST.getGenesisBlock());
+        for (int height = 1; height <= BLOCKS; height++) {
+            Block block = blocks.get(height - 1).createNextBlock(LegacyAddress.fromKey(UNITTEST, new ECKey()));
+            if (height == PAYMENT_HEIGHT) {
+                block.addTransaction(payment);
+                block.solve();
+            }
+            assertTrue(blockChain.add(block));
+            blocks.add(block);
+        }
+        for (Block block : blocks)
+            filters.add(basicFilter(block));
+
+        filterHeaderFile = File.createTempFile("filterheaders", null);
+        filterHeaderFile.delete();
+        filterHeaderFile.deleteOnExit();
+        filterHeaderStore = new FilterHeaderStore(filterHeaderFile);
+
+        peerGroup.start();
+        VersionMessage versionMessage = new VersionMessage(UNITTEST, BLOCKS);
+        versionMessage.localServices = remoteVersionMessage.localServices | VersionMessage.NODE_COMPACT_FILTERS;
+        versionMessage.clientVersion = remoteVersionMessage.clientVersion;
+        p1 = connectPeer(1, versionMessage);
+    }
+
+    @Override
+    @After
+    public void tearDown() {
+        super.tearDown();
+        try {
+            if (filterHeaderStore != null)
+                filterHeaderStore.close();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Test
+    public void scan() throws Exception {
+        CompactFilterScan scan = new CompactFilterScan(peerOf(p1), blockChain, filterHeaderStore, scanWallet);
+        Future<Integer> future = scan.start(3);
+        answerCheckpointsAndHeaders();
+
+        GetCFiltersMessage getcfilters = expect(p1, GetCFiltersMessage.class);
+        assertEquals(3, getcfilters.getStartHeight());
+        assertEquals(blocks.get(BLOCKS).getHash(), getcfilters.getStopHash());
+        for (int height = 3; height <= BLOCKS; height++)
+            inbound(p1, cfilter(height));
+
+        // Only the block with the payment is downloaded.
+        GetDataMessage getdata = expect(p1, GetDataMessage.class);
+        assertEquals(1, getdata.getItems().size());
+        assertEquals(blocks.get(PAYMENT_HEIGHT).getHash(), getdata.getItems().get(0).hash);
+        inbound(p1, blocks.get(PAYMENT_HEIGHT));
+
+        assertEquals(1, (int) future.get());
+        assertEquals(BLOCKS - 2, scan.getFiltersScanned());
+        assertEquals(BLOCKS, filterHeaderStore.getHeight());
+        Transaction received = scanWallet.getTransaction(payment.getTxId());
+        assertNotNull(received);
+        assertEquals(TransactionConfidence.ConfidenceType.BUILDING, received.getConfidence().getConfidenceType());
+        assertEquals(BLOCKS - PAYMENT_HEIGHT + 1, received.getConfidence().getDepthInBlocks());
+        assertEquals(Coin.COIN, scanWallet.getBalance(Wallet.BalanceType.ESTIMATED));
+    }
+
+    @Test
+    public void filterNotMatchingHeader() throws Exception {
+        CompactFilterScan scan = new CompactFilterScan(peerOf(p1), blockChain, filterHeaderStore, scanWallet);
+        Future<Integer> future = scan.start(PAYMENT_HEIGHT);
+        answerCheckpointsAndHeaders();
+        expect(p1, GetCFiltersMessage.class);
+        // A peer that hides the payment by sending an empty filter.
+        Sha256Hash hash = blocks.get(PAYMENT_HEIGHT).getHash();
+        byte[] empty = GolombCodedSet.buildBasicFilter(hash, new ArrayList<byte[]>()).getEncoded();
+        inbound(p1, new CFilterMessage(UNITTEST, TYPE, hash, empty));
+        try {
+            future.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof VerificationException);
+        }
+        assertNull(scanWallet.getTransaction(payment.getTxId()));
+    }
+
+    @Test
+    public void headersNotMatchingCheckpoint() throws Exception {
+        CompactFilterScan scan = new CompactFilterScan(peerOf(p1), blockChain, filterHeaderStore, scanWallet);
+        Future<Integer> future = scan.start(0);
+        expect(p1, GetCFCheckptMessage.class);
+        // The checkpoint interval is longer than the test chain, so store a wrong header for an earlier scan to check.
+        filterHeaderStore.putAll(0, Arrays.asList(blocks.get(0).getHash()), Arrays.asList(Sha256Hash.ZERO_HASH));
+        inbound(p1, new CFCheckptMessage(UNITTEST, TYPE, blocks.get(BLOCKS).getHash(), new ArrayList<Sha256Hash>()));
+        expect(p1, GetCFHeadersMessage.class);
+        // The previous header of the answer doesn't connect to the stored one.
+        inbound(p1, cfheaders(1));
+        try {
+            future.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof VerificationException);
+        }
+        assertEquals(0, filterHeaderStore.getHeight());
+    }
+
+    @Test
+    public void filterOutOfOrder() throws Exception {
+        CompactFilterScan scan = new CompactFilterScan(peerOf(p1), blockChain, filterHeaderStore, scanWallet);
+        Future<Integer> future = scan.start(3);
+        answerCheckpointsAndHeaders();
+        expect(p1, GetCFiltersMessage.class);
+        // The filter of height 3 never comes.
+        inbound(p1, cfilter(4));
+        try {
+            future.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ProtocolException);
+        }
+    }
+
+    @Test
+    public void headersOfReorganizedBlocksDropped() throws Exception {
+        // Filter headers stored by an earlier scan, up to the chain head.
+        List<Sha256Hash> blockHashes = new ArrayList<>();
+        List<Sha256Hash> headers = new ArrayList<>();
+        Sha256Hash previous = Sha256Hash.ZERO_HASH;
+        for (int height = 0; height <= BLOCKS; height++) {
+            previous = filters.get(height).getHeader(previous);
+            blockHashes.add(blocks.get(height).getHash());
+            headers.add(previous);
+        }
+        filterHeaderStore.putAll(0, blockHashes, headers);
+        // Then the chain reorganizes onto a longer fork after the payment.
+        Block fork = blocks.get(PAYMENT_HEIGHT);
+        for (int height = PAYMENT_HEIGHT + 1; height <= BLOCKS + 1; height++) {
+            fork = fork.createNextBlock(LegacyAddress.fromKey(UNITTEST, new ECKey()));
+            assertTrue(blockChain.add(fork));
+        }
+        assertEquals(fork.getHash(), blockChain.getChainHead().getHeader().getHash());
+
+        CompactFilterScan scan = new CompactFilterScan(peerOf(p1), blockChain, filterHeaderStore, scanWallet);
+        scan.start(0);
+        assertEquals(PAYMENT_HEIGHT, filterHeaderStore.getHeight());
+        GetCFCheckptMessage getcfcheckpt = expect(p1, GetCFCheckptMessage.class);
+        inbound(p1, new CFCheckptMessage(UNITTEST, TYPE, getcfcheckpt.getStopHash(), new ArrayList<Sha256Hash>()));
+        // The headers of the fork are asked for.
+        GetCFHeadersMessage getcfheaders = expect(p1, GetCFHeadersMessage.class);
+        assertEquals(PAYMENT_HEIGHT + 1, getcfheaders.getStartHeight());
+        assertEquals(fork.getHash(), getcfheaders.getStopHash());
+    }
+
+    private void answerCheckpointsAndHeaders() throws Exception {
+        GetCFCheckptMessage getcfcheckpt = expect(p1, GetCFCheckptMessage.class);
+        assertEquals(blocks.get(BLOCKS).getHash(), getcfcheckpt.getStopHash());
+        inbound(p1, new CFCheckptMessage(UNITTEST, TYPE, getcfcheckpt.getStopHash(), new ArrayList<Sha256Hash>()));
+        GetCFHeadersMessage getcfheaders = expect(p1, GetCFHeadersMessage.class);
+        assertEquals(0, getcfheaders.getStartHeight());
+        assertEquals(blocks.get(BLOCKS).getHash(), getcfheaders.getStopHash());
+        inbound(p1, cfheaders(0));
+    }
+
+    // The filter headers from the given height to the tip, as a peer following the real chain would send them.
+    private CFHeadersMessage cfheaders(int from) {
+        Sha256Hash previous = Sha256Hash.ZERO_HASH;
+        for (int height = 0; height < from; height++)
+            previous = filters.get(height).getHeader(previous);
+        List<Sha256Hash> hashes = new ArrayList<>();
+        for (int height = from; height <= BLOCKS; height++)
+            hashes.add(filters.get(height).getHash());
+        return new CFHeadersMessage(UNITTEST, TYPE, blocks.get(BLOCKS).getHash(), previous, hashes);
+    }
+
+    private CFilterMessage cfilter(int height) {
+        return new CFilterMessage(UNITTEST, TYPE, blocks.get(height).getHash(), filters.get(height).getEncoded());
+    }
+
+    // The basic filter of a block, less the scripts of spent outputs, which the fake transactions don't have.
+    private static GolombCodedSet basicFilter(Block block) {
+        List<byte[]> elements = new ArrayList<>();
+        for (Transaction tx : block.getTransactions())
+            for (TransactionOutput output : tx.getOutputs())
+                elements.add(output.getScriptBytes());
+        return GolombCodedSet.buildBasicFilter(block.getHash(), elements);
+    }
+
+    private <T extends Message> T expect(InboundMessageQueuer peer, Class<T> type) throws Exception {
+        while (true) {
+            Message message = waitForOutbound(peer);
+            if (type.isInstance(message))
+                return type.cast(message);
+        }
+    }
+}
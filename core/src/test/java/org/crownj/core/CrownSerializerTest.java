@@ -19,14 +19,21 @@ package org.crownj.core;
 
 import org.crownj.params.MainNetParams;
 import org.crownj.params.TestNet3Params;
+import org.junit.After;
 import org.junit.Test;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.math.BigInteger;
 import java.net.InetAddress;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import static org.crownj.core.Utils.HEX;
 import static org.junit.Assert.*;
@@ -56,6 +63,56 @@ public class crownSerializerTest {
             "0e ab 5b ea 43 6a 04 84  cf ab 12 48 5e fd a0 b7" +
             "8b 4e cc 52 88 ac 00 00  00 00");
 
+    @After
+    public void tearDown() {
+        MAINNET.unregisterMessage("snping");
+    }
+
+    @Test
+    public void testAllMessageTypes() throws Exception {
+        Context.propagate(new Context(MAINNET));
+        MessageSerializer serializer = MAINNET.getDefaultSerializer();
+        Block genesis = MAINNET.getGenesisBlock();
+        // The commands of all messages that were known before they could be registered.
+        Map<String, Message> messages = new LinkedHashMap<>();
+        messages.put("version", new VersionMessage(MAINNET, 0));
+        messages.put("inv", new InventoryMessage(MAINNET));
+        messages.put("block", genesis);
+        messages.put("getdata", new GetDataMessage(MAINNET));
+        messages.put("tx", genesis.getTransactions().get(0));
+        messages.put("addr", new AddressV1Message(MAINNET, new byte[] { 0 }));
+        messages.put("addrv2", new AddressV2Message(MAINNET, new byte[] { 0 }));
+        messages.put("ping", new Ping(1));
+        messages.put("pong", new Pong(1));
+        messages.put("verack", new VersionAck());
+        BlockLocator locator = new BlockLocator().add(genesis.getHash());
+        messages.put("getblocks", new GetBlocksMessage(MAINNET, locator, Sha256Hash.ZERO_HASH));
+        messages.put("getheaders", new GetHeadersMessage(MAINNET, locator, Sha256Hash.ZERO_HASH));
+        messages.put("getaddr", new GetAddrMessage(MAINNET));
+        messages.put("sendaddrv2", new SendAddrV2Message(MAINNET));
+        messages.put("headers", new HeadersMessage(MAINNET, genesis.cloneAsHeader()));
+        messages.put("filterload", new BloomFilter(1, 0.001, 0));
+        PartialMerkleTree tree = PartialMerkleTree.buildFromLeaves(MAINNET, new byte[] { 1 },
+                Collections.singletonList(genesis.getTransactions().get(0).getTxId()));
+        messages.put("merkleblock", new FilteredBlock(MAINNET, genesis.cloneAsHeader(), tree));
+        messages.put("notfound", new NotFoundMessage(MAINNET));
+        messages.put("mempool", new MemoryPoolMessage());
+        messages.put("reject", new RejectMessage(MAINNET, RejectMessage.RejectCode.INVALID, Sha256Hash.ZERO_HASH, "tx",
+                "bad"));
+        messages.put("getutxos", new GetUTXOsMessage(MAINNET, Collections.<TransactionOutPoint> emptyList(), true));
+        messages.put("utxos", new UTXOsMessage(MAINNET, Collections.<TransactionOutput> emptyList(), new long[0],
+                Sha256Hash.ZERO_HASH, 0));
+        messages.put("sendheaders", new SendHeadersMessage());
+        messages.put("feefilter", new FeeFilterMessage(MAINNET, new byte[8], (crownSerializer) serializer, 8));
+        for (Map.Entry<String, Message> entry : messages.entrySet()) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            serializer.serialize(entry.getValue(), bos);
+            byte[] bytes = bos.toByteArray();
+            assertEquals(entry.getKey(), serializer.deserializeHeader(ByteBuffer.wrap(bytes, 4, 20)).command);
+            assertEquals(entry.getValue().getClass(), serializer.deserialize(ByteBuffer.wrap(bytes)).getClass());
+        }
+    }
+
     @Test
     public void testAddr() throws Exception {
         MessageSerializer serializer = MAINNET.getDefaultSerializer();
@@ -138,6 +195,220 @@ public class crownSerializerTest {
         assertArrayEquals(TRANSACTION_MESSAGE_BYTES, bos.toByteArray());
     }
 
+    @Test
+    public void testRegisteredMessage() throws Exception {
+        MAINNET.registerMessage("snping", SystemNodePing.class, new MessageFactory() {
+            @Override
+            public Message make(crownSerializer serializer, byte[] payload, int length, byte[] hash) throws ProtocolException {
+                return new SystemNodePing(serializer.getParameters(), payload);
+            }
+        });
+        MessageSerializer serializer = MAINNET.getDefaultSerializer();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        serializer.serialize(new SystemNodePing(42), bos);
+        byte[] bytes = bos.toByteArray();
+        assertEquals("snping", new String(bytes, 4, 6, StandardCharsets.US_ASCII));
+
+        Message message = serializer.deserialize(ByteBuffer.wrap(bytes));
+        assertEquals(SystemNodePing.class, message.getClass());
+        assertEquals(42, ((SystemNodePing) message).getNonce());
+    }
+
+    @Test
+    public void testGarbageAfterCommand() throws Exception {
+        MessageSerializer serializer = MAINNET.getDefaultSerializer();
+        byte[] bytes = Arrays.copyOf(TRANSACTION_MESSAGE_BYTES, TRANSACTION_MESSAGE_BYTES.length);
+        // "tx", its terminating NULL, and then something that isn't.
+        bytes[4 + 5] = 'x';
+        crownSerializer.crownPacketHeader header = serializer.deserializeHeader(ByteBuffer.wrap(bytes, 4, 20));
+        assertEquals("tx", header.command);
+        assertEquals(Transaction.class, serializer.deserialize(ByteBuffer.wrap(bytes)).getClass());
+
+        byte[] unknown = Arrays.copyOf(TRANSACTION_MESSAGE_BYTES, TRANSACTION_MESSAGE_BYTES.length);
+        unknown[4 + 1] = 'z';
+        assertEquals(UnknownMessage.class, serializer.deserialize(ByteBuffer.wrap(unknown)).getClass());
+    }
+
+    @Test
+    public void testLegacyCommandsStillResolve() throws Exception {
+        // Every command the serializer knew before message types were registered in a table.
+        Map<String, Class<? extends Message>> legacy = new LinkedHashMap<>();
+        legacy.put("version", VersionMessage.class);
+        legacy.put("inv", InventoryMessage.class);
+        legacy.put("block", Block.class);
+        legacy.put("merkleblock", FilteredBlock.class);
+        legacy.put("getdata", GetDataMessage.class);
+        legacy.put("getblocks", GetBlocksMessage.class);
+        legacy.put("getheaders", GetHeadersMessage.class);
+        legacy.put("getaddr", GetAddrMessage.class);
+        legacy.put("tx", Transaction.class);
+        legacy.put("sendaddrv2", SendAddrV2Message.class);
+        legacy.put("addr", AddressV1Message.class);
+        legacy.put("addrv2", AddressV2Message.class);
+        legacy.put("ping", Ping.class);
+        legacy.put("pong", Pong.class);
+        legacy.put("verack", VersionAck.class);
+        legacy.put("headers", HeadersMessage.class);
+        legacy.put("filterload", BloomFilter.class);
+        legacy.put("notfound", NotFoundMessage.class);
+        legacy.put("mempool", MemoryPoolMessage.class);
+        legacy.put("reject", RejectMessage.class);
+        legacy.put("utxos", UTXOsMessage.class);
+        legacy.put("getutxos", GetUTXOsMessage.class);
+        legacy.put("sendheaders", SendHeadersMessage.class);
+        legacy.put("feefilter", FeeFilterMessage.class);
+
+        MessageSerializer serializer = MAINNET.getDefaultSerializer();
+        for (Map.Entry<String, Class<? extends Message>> e : legacy.entrySet()) {
+            byte[] header = new byte[crownSerializer.crownPacketHeader.HEADER_LENGTH];
+            byte[] command = e.getKey().getBytes(StandardCharsets.US_ASCII);
+            System.arraycopy(command, 0, header, 0, command.length);
+            crownSerializer.crownPacketHeader parsed = serializer.deserializeHeader(ByteBuffer.wrap(header));
+            assertEquals(e.getKey(), parsed.command);
+            assertNotNull(e.getKey(), parsed.entry);
+            assertEquals(e.getKey(), e.getValue(), parsed.entry.type);
+            assertEquals(e.getKey(), MAINNET.commands.lookup(e.getValue()).command);
+        }
+    }
+
+    @Test
+    public void testDefaultFactoriesMatchTheirTypes() throws Exception {
+        // Messages with an empty payload, parsed by the built in factory for their command.
+        crownSerializer serializer = MAINNET.getSerializer(false);
+        for (String command : new String[] { "getaddr", "sendaddrv2", "verack", "mempool", "sendheaders" }) {
+            CommandTable.Entry entry = MAINNET.commands.lookup(command);
+            Message message = entry.factory.make(serializer, new byte[0], 0, Sha256Hash.hashTwice(new byte[0]));
+            assertEquals(command, entry.type, message.getClass());
+        }
+    }
+
+    public static class SystemNodePing extends Ping {
+        public SystemNodePing(NetworkParameters params, byte[] payload) throws ProtocolException {
+            super(params, payload);
+        }
+
+        public SystemNodePing(long nonce) {
+            super(nonce);
+        }
+    }
+
+    @Test
+    public void testSerializeFrame() throws Exception {
+        MessageSerializer serializer = MAINNET.getDefaultSerializer();
+        Transaction transaction = (Transaction) serializer.deserialize(ByteBuffer.wrap(TRANSACTION_MESSAGE_BYTES));
+        MessageFrame frame = serializer.serializeFrame(transaction);
+        assertEquals("tx", frame.getName());
+        assertEquals(TRANSACTION_MESSAGE_BYTES.length, frame.length());
+        assertArrayEquals(TRANSACTION_MESSAGE_BYTES, frame.toByteArray());
+        // The frame parses back into the same message.
+        assertEquals(transaction, serializer.deserialize(ByteBuffer.wrap(frame.toByteArray())));
+    }
+
+    @Test
+    public void testDefaultFrameAndPayloadReader() throws Exception {
+        MessageSerializer serializer = new ForwardingSerializer(MAINNET.getDefaultSerializer());
+        Transaction transaction = (Transaction) serializer.deserialize(ByteBuffer.wrap(TRANSACTION_MESSAGE_BYTES));
+        MessageFrame frame = serializer.serializeFrame(transaction);
+        assertEquals("tx", frame.getName());
+        assertArrayEquals(TRANSACTION_MESSAGE_BYTES, frame.toByteArray());
+
+        ByteBuffer in = ByteBuffer.wrap(TRANSACTION_MESSAGE_BYTES);
+        serializer.seekPastMagicBytes(in);
+        PayloadReader reader = serializer.newPayloadReader(serializer.deserializeHeader(in));
+        reader.read(in);
+        assertEquals(transaction, reader.finish());
+    }
+
+    /** Only implements the abstract methods, so that the defaults of the others are used. */
+    private static class ForwardingSerializer extends MessageSerializer {
+        private final MessageSerializer delegate;
+
+        ForwardingSerializer(MessageSerializer delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public MessageSerializer withProtocolVersion(int protocolVersion) {
+            return new ForwardingSerializer(delegate.withProtocolVersion(protocolVersion));
+        }
+
+        @Override
+        public int getProtocolVersion() {
+            return delegate.getProtocolVersion();
+        }
+
+        @Override
+        public Message deserialize(ByteBuffer in) throws ProtocolException, IOException {
+            return delegate.deserialize(in);
+        }
+
+        @Override
+        public crownSerializer.crownPacketHeader deserializeHeader(ByteBuffer in) throws ProtocolException, IOException {
+            return delegate.deserializeHeader(in);
+        }
+
+        @Override
+        public Message deserializePayload(crownSerializer.crownPacketHeader header, ByteBuffer in) throws ProtocolException {
+            return delegate.deserializePayload(header, in);
+        }
+
+        @Override
+        public boolean isParseRetainMode() {
+            return delegate.isParseRetainMode();
+        }
+
+        @Override
+        public AddressV1Message makeAddressV1Message(byte[] payloadBytes, int length) throws ProtocolException {
+            return delegate.makeAddressV1Message(payloadBytes, length);
+        }
+
+        @Override
+        public AddressV2Message makeAddressV2Message(byte[] payloadBytes, int length) throws ProtocolException {
+            return delegate.makeAddressV2Message(payloadBytes, length);
+        }
+
+        @Override
+        public Block makeBlock(byte[] payloadBytes, int offset, int length) throws ProtocolException {
+            return delegate.makeBlock(payloadBytes, offset, length);
+        }
+
+        @Override
+        public Message makeBloomFilter(byte[] payloadBytes) throws ProtocolException {
+            return delegate.makeBloomFilter(payloadBytes);
+        }
+
+        @Override
+        public FilteredBlock makeFilteredBlock(byte[] payloadBytes) throws ProtocolException {
+            return delegate.makeFilteredBlock(payloadBytes);
+        }
+
+        @Override
+        public InventoryMessage makeInventoryMessage(byte[] payloadBytes, int length) throws ProtocolException {
+            return delegate.makeInventoryMessage(payloadBytes, length);
+        }
+
+        @Override
+        public Transaction makeTransaction(byte[] payloadBytes, int offset, int length, byte[] hash)
+                throws ProtocolException {
+            return delegate.makeTransaction(payloadBytes, offset, length, hash);
+        }
+
+        @Override
+        public void seekPastMagicBytes(ByteBuffer in) {
+            delegate.seekPastMagicBytes(in);
+        }
+
+        @Override
+        public void serialize(String name, byte[] message, OutputStream out) throws IOException {
+            delegate.serialize(name, message, out);
+        }
+
+        @Override
+        public void serialize(Message message, OutputStream out) throws IOException {
+            delegate.serialize(message, out);
+        }
+    }
+
     /**
      * Get 1 header of the block number 1 (the first one is 0) in the chain
      */
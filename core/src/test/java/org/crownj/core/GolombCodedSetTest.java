@@ -0,0 +1,123 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.crownj.core.Utils.HEX;
+import static org.junit.Assert.*;
+
+public class GolombCodedSetTest {
+    // The first block of testnet3 and its basic filter, from the BIP158 test vectors.
+    private static final Sha256Hash GENESIS_HASH =
+            Sha256Hash.wrap("000000000933ea01ad0ee984209779baaec3ced90fa3f408719526f8d77f4943");
+    private static final byte[] GENESIS_SCRIPT = HEX.decode("4104678afdb0fe5548271967f1a67130b7105cd6a828e03909a67962e0" +
+            "ea1f61deb649f6bc3f4cef38c4f35504e51ec112de5c384df7ba0b8d578a4c702b6bf11d5fac");
+    private static final byte[] GENESIS_FILTER = HEX.decode("019dfca8");
+    private static final Sha256Hash GENESIS_FILTER_HEADER =
+            Sha256Hash.wrap("21584579b7eb08997773e5aeff3a7f932700042d0ed2a6129012b7d7ae81b750");
+
+    @Test
+    public void sipHash() {
+        // Reference vector of the SipHash paper: 15 bytes under the key 00 01 .. 0f.
+        byte[] key = new byte[16];
+        for (int i = 0; i < key.length; i++)
+            key[i] = (byte) i;
+        byte[] message = Arrays.copyOf(key, 15);
+        long hash = GolombCodedSet.sipHash24(Utils.readInt64(key, 0), Utils.readInt64(key, 8), message);
+        assertEquals(0xa129ca6149be45e5L, hash);
+    }
+
+    @Test
+    public void genesisFilter() throws Exception {
+        GolombCodedSet filter = GolombCodedSet.buildBasicFilter(GENESIS_HASH,
+                Collections.singletonList(GENESIS_SCRIPT));
+        assertArrayEquals(GENESIS_FILTER, filter.getEncoded());
+        assertEquals(1, filter.size());
+        assertEquals(GENESIS_FILTER_HEADER, filter.getHeader(Sha256Hash.ZERO_HASH));
+
+        GolombCodedSet parsed = GolombCodedSet.parseBasicFilter(GENESIS_HASH, GENESIS_FILTER);
+        assertEquals(filter, parsed);
+        assertTrue(parsed.match(GENESIS_SCRIPT));
+        assertFalse(parsed.match(new byte[] { 1, 2, 3 }));
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        Random random = new Random(1);
+        List<byte[]> elements = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            byte[] element = new byte[1 + random.nextInt(40)];
+            random.nextBytes(element);
+            elements.add(element);
+        }
+        Sha256Hash blockHash = Sha256Hash.of(new byte[] { 42 });
+        GolombCodedSet filter = GolombCodedSet.buildBasicFilter(blockHash, elements);
+        assertEquals(elements.size(), filter.size());
+        GolombCodedSet parsed = GolombCodedSet.parseBasicFilter(blockHash, filter.getEncoded());
+        for (byte[] element : elements)
+            assertTrue(parsed.match(element));
+
+        // With M close to a million, none of a thousand other elements should match.
+        List<byte[]> others = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            byte[] element = new byte[41];
+            random.nextBytes(element);
+            others.add(element);
+        }
+        long[] scratch = new long[others.size() + 1];
+        assertFalse(parsed.matchAny(others, scratch));
+        others.add(elements.get(250));
+        assertTrue(parsed.matchAny(others, scratch));
+    }
+
+    @Test
+    public void duplicatesLeftOut() {
+        byte[] element = { 1, 2, 3 };
+        GolombCodedSet filter = GolombCodedSet.buildBasicFilter(Sha256Hash.ZERO_HASH,
+                Arrays.asList(element, element.clone()));
+        assertEquals(1, filter.size());
+    }
+
+    @Test
+    public void empty() throws Exception {
+        GolombCodedSet filter = GolombCodedSet.buildBasicFilter(Sha256Hash.ZERO_HASH, new ArrayList<byte[]>());
+        assertArrayEquals(new byte[] { 0 }, filter.getEncoded());
+        assertFalse(filter.match(GENESIS_SCRIPT));
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void truncated() throws Exception {
+        Random random = new Random(2);
+        List<byte[]> elements = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            byte[] element = new byte[20];
+            random.nextBytes(element);
+            elements.add(element);
+        }
+        byte[] encoded = GolombCodedSet.buildBasicFilter(GENESIS_HASH, elements).getEncoded();
+        GolombCodedSet filter = GolombCodedSet.parseBasicFilter(GENESIS_HASH,
+                Arrays.copyOf(encoded, encoded.length / 2));
+        filter.match(new byte[] { (byte) 0xff });
+    }
+}
@@ -19,9 +19,16 @@ package org.crownj.core;
 import org.crownj.store.BlockStoreException;
 import org.crownj.store.FullPrunedBlockStore;
 import org.crownj.store.LevelDBFullPrunedBlockStore;
+import org.crownj.script.Script;
+import org.crownj.script.ScriptBuilder;
 import org.junit.After;
+import org.junit.Test;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
 
 /**
  * An H2 implementation of the FullPrunedBlockStoreTest
@@ -41,6 +48,80 @@ public class LevelDBFullPrunedBlockChainTest extends
                 blockCount);
     }
 
+    @Test
+    public void unspentOutputsWrittenBack() throws Exception {
+        LevelDBFullPrunedBlockStore store = (LevelDBFullPrunedBlockStore) createStore(PARAMS, 10);
+        ECKey key = new ECKey();
+        Script script = ScriptBuilder.createP2PKHOutputScript(key);
+        Sha256Hash hash = Sha256Hash.of(new byte[] { 1 });
+        UTXO utxo = new UTXO(hash, 0, Coin.COIN, 1, false, script, LegacyAddress.fromKey(PARAMS, key).toString());
+
+        store.addUnspentTransactionOutput(utxo);
+        assertTrue(store.getPendingBytes() > 0);
+        assertEquals(utxo, store.getTransactionOutput(hash, 0));
+        assertTrue(store.hasUnspentOutputs(hash, 1));
+        // Created and spent again before it was written, so nothing is left to write.
+        store.removeUnspentTransactionOutput(utxo);
+        assertEquals(0, store.getPendingBytes());
+        assertNull(store.getTransactionOutput(hash, 0));
+        assertFalse(store.hasUnspentOutputs(hash, 1));
+
+        store.addUnspentTransactionOutput(utxo);
+        store.close();
+        store = new LevelDBFullPrunedBlockStore(PARAMS, "test-leveldb", 10);
+        try {
+            assertEquals(0, store.getPendingBytes());
+            assertEquals(utxo, store.getTransactionOutput(hash, 0));
+            assertTrue(store.hasUnspentOutputs(hash, 1));
+            // Deletes of outputs in the database are kept until written.
+            store.removeUnspentTransactionOutput(utxo);
+            assertTrue(store.getPendingBytes() > 0);
+            assertFalse(store.hasUnspentOutputs(hash, 1));
+            store.flush();
+            assertEquals(0, store.getPendingBytes());
+            assertNull(store.getTransactionOutput(hash, 0));
+            assertFalse(store.hasUnspentOutputs(hash, 1));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void undoDataKeptWhenPruningIsAborted() throws Exception {
+        createStore(PARAMS, 10).close();
+        // Start over without the segment holding the genesis block, which is far too large to ever fill up.
+        for (File file : new File("test-leveldb").listFiles())
+            if (file.getName().startsWith("undo-"))
+                assertTrue(file.delete());
+        LevelDBFullPrunedBlockStore store = new LevelDBFullPrunedBlockStore(PARAMS, "test-leveldb", 10);
+        try {
+            // Tiny segments, so that pruning has segments to delete.
+            store.setUndoSegmentBytes(100);
+            Address to = LegacyAddress.fromKey(PARAMS, new ECKey());
+            List<StoredBlock> blocks = new ArrayList<>();
+            StoredBlock stored = store.getChainHead();
+            for (int i = 0; i < 30; i++) {
+                Block block = stored.getHeader().createNextBlock(to);
+                stored = stored.build(block);
+                store.put(stored, new StoredUndoableBlock(block.getHash(), block.getTransactions()));
+                blocks.add(stored);
+            }
+            Sha256Hash first = blocks.get(0).getHeader().getHash();
+
+            store.beginDatabaseBatchWrite();
+            store.setVerifiedChainHead(stored);
+            store.abortDatabaseBatchWrite();
+            assertNotNull(store.getUndoBlock(first));
+
+            store.beginDatabaseBatchWrite();
+            store.setVerifiedChainHead(stored);
+            store.commitDatabaseBatchWrite();
+            assertNull(store.getUndoBlock(first));
+        } finally {
+            store.close();
+        }
+    }
+
     private void deleteFiles() {
         File f = new File("test-leveldb");
         if (f != null && f.exists()) {
@@ -0,0 +1,108 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.core;
+
+import com.google.common.io.ByteStreams;
+import org.crownj.params.MainNetParams;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MerkleBuilderTest {
+    private static final NetworkParameters MAINNET = MainNetParams.get();
+
+    @After
+    public void tearDown() {
+        MerkleBuilder.setParallelThreshold(MerkleBuilder.DEFAULT_PARALLEL_THRESHOLD);
+    }
+
+    @Test
+    public void matchesTreeForAllSmallSizes() {
+        List<Sha256Hash> leaves = new ArrayList<>();
+        MerkleBuilder builder = new MerkleBuilder();
+        for (int i = 0; i < 70; i++) {
+            Sha256Hash leaf = Sha256Hash.of(new byte[] { (byte) i });
+            leaves.add(leaf);
+            builder.add(leaf);
+            assertEquals(i + 1, builder.size());
+            assertEquals("leaves: " + leaves.size(), referenceRoot(leaves), builder.build());
+        }
+        builder.reset();
+        assertEquals(0, builder.size());
+        assertEquals(leaves.get(0), builder.add(leaves.get(0)).build());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void noLeaves() {
+        new MerkleBuilder().build();
+    }
+
+    @Test
+    public void blockRoots() throws Exception {
+        Context.propagate(new Context(MAINNET));
+        // Has witness transactions, so the witness root is different from the merkle root.
+        Block block = MAINNET.getDefaultSerializer().makeBlock(
+                ByteStreams.toByteArray(getClass().getResourceAsStream("block481815.dat")));
+        List<Sha256Hash> txIds = new ArrayList<>();
+        List<Sha256Hash> wtxIds = new ArrayList<>();
+        for (Transaction tx : block.getTransactions()) {
+            txIds.add(tx.getTxId());
+            wtxIds.add(tx.isCoinBase() ? Sha256Hash.ZERO_HASH : tx.getWTxId());
+        }
+        Sha256Hash expectedRoot = referenceRoot(txIds);
+        Sha256Hash expectedWitnessRoot = referenceRoot(wtxIds);
+        assertEquals(block.getMerkleRoot(), expectedRoot);
+        for (int threshold : new int[] { MerkleBuilder.DEFAULT_PARALLEL_THRESHOLD, 1, 2, 7, 64 }) {
+            MerkleBuilder.setParallelThreshold(threshold);
+            Sha256Hash[] roots = MerkleBuilder.buildRoots(block.getTransactions(), true);
+            assertEquals(expectedRoot, roots[0]);
+            assertEquals(expectedWitnessRoot, roots[1]);
+            roots = MerkleBuilder.buildRoots(new LinkedList<>(block.getTransactions()), false);
+            assertEquals(expectedRoot, roots[0]);
+            assertNull(roots[1]);
+        }
+        // Parallel splits of a partial tree, one leaf over a power of two.
+        MerkleBuilder.setParallelThreshold(2);
+        List<Transaction> transactions = block.getTransactions().subList(0, 17);
+        assertEquals(referenceRoot(txIds.subList(0, 17)), MerkleBuilder.buildRoots(transactions, false)[0]);
+        // Transaction ids calculated by the parallel tasks.
+        Block fresh = MAINNET.getDefaultSerializer().makeBlock(block.crownSerialize());
+        Sha256Hash[] roots = MerkleBuilder.buildRoots(fresh.getTransactions(), true);
+        assertEquals(expectedRoot, roots[0]);
+        assertEquals(expectedWitnessRoot, roots[1]);
+    }
+
+    /** Builds the tree level by level, the way it is described in the protocol. */
+    private static Sha256Hash referenceRoot(List<Sha256Hash> leaves) {
+        List<Sha256Hash> level = new ArrayList<>(leaves);
+        while (level.size() > 1) {
+            List<Sha256Hash> next = new ArrayList<>();
+            for (int i = 0; i < level.size(); i += 2) {
+                byte[] left = level.get(i).getReversedBytes();
+                byte[] right = level.get(Math.min(i + 1, level.size() - 1)).getReversedBytes();
+                next.add(Sha256Hash.wrapReversed(Sha256Hash.hashTwice(left, right)));
+            }
+            level = next;
+        }
+        return level.get(0);
+    }
+}
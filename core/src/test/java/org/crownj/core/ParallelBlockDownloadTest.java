@@ -0,0 +1,219 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.core;
+
+import org.crownj.core.listeners.AbstractPeerDataEventListener;
+import org.crownj.core.listeners.PeerDisconnectedEventListener;
+import org.crownj.testing.InboundMessageQueuer;
+import org.crownj.testing.TestWithPeerGroup;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+@RunWith(value = Parameterized.class)
+public class ParallelBlockDownloadTest extends TestWithPeerGroup {
+    private static final int BLOCKS = 40;
+
+    private final Map<Sha256Hash, Block> blocks = new HashMap<>();
+    private List<Block> headers;
+    private InboundMessageQueuer p1, p2;
+
+    @Parameterized.Parameters
+    public static Collection<ClientType[]> parameters() {
+        return Arrays.asList(new ClientType[] {ClientType.NIO_CLIENT_MANAGER},
+                             new ClientType[] {ClientType.BLOCKING_CLIENT_MANAGER});
+    }
+
+    public ParallelBlockDownloadTest(ClientType clientType) {
+        super(clientType);
+    }
+
+    @Override
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        Utils.setMockClock();
+        peerGroup.setParallelDownload(true);
+        peerGroup.start();
+        p1 = connectPeer(1);
+        p2 = connectPeer(2);
+
+        headers = new ArrayList<>();
+        Block prev = blockChain.getChainHead().getHeader();
+        for (int i = 0; i < BLOCKS; i++) {
+            Block block = prev.createNextBlock(LegacyAddress.fromKey(UNITTEST, new ECKey()));
+            if ((i + 1) % UNITTEST.getInterval() == 0) {
+                // The fake chain is fast, so each transition makes the difficulty four times higher.
+                BigInteger target = Utils.decodeCompactBits(prev.getDifficultyTarget()).divide(BigInteger.valueOf(4));
+                block.setDifficultyTarget(Utils.encodeCompactBits(target));
+                block.solve();
+            }
+            blocks.put(block.getHash(), block);
+            headers.add(block.cloneAsHeader());
+            prev = block;
+        }
+    }
+
+    @Override
+    @After
+    public void tearDown() {
+        Utils.resetMocking();
+        super.tearDown();
+    }
+
+    @Test
+    public void downloadFromSeveralPeers() throws Exception {
+        startDownload();
+        // The blocks are spread over both peers, the download peer asks for the first range.
+        List<GetDataMessage> requests1 = nextRequests(p1, 2);
+        List<GetDataMessage> requests2 = nextRequests(p2, 1);
+        assertEquals(headers.get(0).getHash(), requests1.get(0).getItems().get(0).hash);
+        assertEquals(ParallelBlockDownload.BLOCKS_PER_REQUEST, requests2.get(0).getItems().size());
+
+        // Blocks received ahead of the chain wait for the ones before them.
+        answer(p2, requests2);
+        assertEquals(0, blockChain.getBestChainHeight());
+        answer(p1, requests1);
+        assertEquals(BLOCKS, blockChain.getBestChainHeight());
+
+        // The download peer follows the chain on its own again.
+        assertEquals(GetBlocksMessage.class, nextNonPing(p1).getClass());
+        ParallelBlockDownload download = peerGroup.getParallelDownload();
+        assertFalse(download.isRunning());
+        assertEquals(BLOCKS, download.getBlocksConnected());
+        assertEquals(ParallelBlockDownload.BLOCKS_PER_REQUEST, download.getBlocksReceivedFrom(peerOf(p2)));
+        assertTrue(download.getBytesReceived() > 0);
+        assertEquals(0, download.getStalls());
+    }
+
+    @Test
+    public void stalledRequestsGoToOtherPeers() throws Exception {
+        peerGroup.getParallelDownload().setStallTimeoutMillis(5000);
+        startDownload();
+        nextRequests(p1, 2); // Never answered.
+        answer(p2, nextRequests(p2, 1));
+        assertEquals(0, blockChain.getBestChainHeight());
+
+        Utils.rollMockClock(10);
+        answer(p2, nextRequests(p2, 2));
+        assertEquals(BLOCKS, blockChain.getBestChainHeight());
+        assertEquals(2, peerGroup.getParallelDownload().getStalls());
+    }
+
+    @Test
+    public void bufferLimitHoldsBackRequests() throws Exception {
+        ParallelBlockDownload download = peerGroup.getParallelDownload();
+        download.setStallTimeoutMillis(5000);
+        download.setMaxBufferedBytes(1);
+        startDownload();
+        nextRequests(p1, 2); // Never answered.
+        answer(p2, nextRequests(p2, 1));
+        assertEquals(0, blockChain.getBestChainHeight());
+        assertTrue(download.getBufferedBytes() > 0);
+
+        // Only the range the chain waits for is handed out again while the buffer is full.
+        Utils.rollMockClock(10);
+        List<GetDataMessage> requests = nextRequests(p2, 1);
+        assertEquals(headers.get(0).getHash(), requests.get(0).getItems().get(0).hash);
+        assertEquals(ParallelBlockDownload.BLOCKS_PER_REQUEST, download.getBlocksInFlight());
+        answer(p2, requests);
+        assertEquals(2 * ParallelBlockDownload.BLOCKS_PER_REQUEST, blockChain.getBestChainHeight());
+        assertEquals(0, download.getBufferedBytes());
+
+        answer(p2, nextRequests(p2, 1));
+        assertEquals(BLOCKS, blockChain.getBestChainHeight());
+    }
+
+    @Test
+    public void requestsOfDeadPeersGoToOtherPeers() throws Exception {
+        startDownload();
+        List<GetDataMessage> requests1 = nextRequests(p1, 2);
+        nextRequests(p2, 1);
+
+        final CountDownLatch disconnected = new CountDownLatch(1);
+        peerOf(p2).addDisconnectedEventListener(new PeerDisconnectedEventListener() {
+            @Override
+            public void onPeerDisconnected(Peer peer, int peerCount) {
+                disconnected.countDown();
+            }
+        });
+        closePeer(peerOf(p2));
+        disconnected.await();
+
+        requests1.addAll(nextRequests(p1, 1));
+        answer(p1, requests1);
+        assertEquals(BLOCKS, blockChain.getBestChainHeight());
+    }
+
+    private void startDownload() throws Exception {
+        peerGroup.startBlockChainDownload(new AbstractPeerDataEventListener() {});
+        peerGroup.startBlockChainDownloadFromPeer(peerOf(p1));
+        GetHeadersMessage getheaders = (GetHeadersMessage) waitForOutbound(p1);
+        assertEquals(blockChain.getChainHead().getHeader().getHash(), getheaders.getLocator().getHashes().get(0));
+        inbound(p1, new HeadersMessage(UNITTEST, headers));
+    }
+
+    private List<GetDataMessage> nextRequests(InboundMessageQueuer peer, int count) throws Exception {
+        List<GetDataMessage> requests = new ArrayList<>();
+        while (requests.size() < count)
+            requests.add((GetDataMessage) nextNonPing(peer));
+        return requests;
+    }
+
+    private Message nextNonPing(InboundMessageQueuer peer) throws Exception {
+        Message message;
+        do {
+            message = waitForOutbound(peer);
+        } while (message instanceof Ping);
+        return message;
+    }
+
+    // Sends the requested filtered blocks and waits for them to be processed.
+    private void answer(InboundMessageQueuer peer, List<GetDataMessage> requests) throws Exception {
+        for (GetDataMessage request : requests) {
+            for (InventoryItem item : request.getItems()) {
+                assertEquals(InventoryItem.Type.FILTERED_BLOCK, item.type);
+                inbound(peer, filter(blocks.get(item.hash)));
+            }
+        }
+        // Answer the ping sent after the getdata, which ends the last filtered block.
+        inbound(peer, new Pong(0));
+        pingAndWait(peer);
+    }
+
+    private static FilteredBlock filter(Block block) {
+        List<Sha256Hash> txids = new ArrayList<>();
+        for (Transaction tx : block.getTransactions())
+            txids.add(tx.getTxId());
+        byte[] bits = new byte[(txids.size() + 7) / 8];
+        PartialMerkleTree pmt = PartialMerkleTree.buildFromLeaves(UNITTEST, bits, txids);
+        return new FilteredBlock(UNITTEST, block.cloneAsHeader(), pmt);
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.core;
+
+import com.google.common.io.ByteStreams;
+import org.crownj.params.MainNetParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class PayloadReaderTest {
+    private static final NetworkParameters MAINNET = MainNetParams.get();
+
+    @Before
+    public void setUp() {
+        Context.propagate(new Context(MAINNET));
+    }
+
+    @Test
+    public void readInPieces() throws Exception {
+        byte[] payload = ByteStreams.toByteArray(getClass().getResourceAsStream("block169482.dat"));
+        MessageSerializer serializer = MAINNET.getDefaultSerializer();
+        Block block = serializer.makeBlock(payload);
+        ByteBuffer frame = ByteBuffer.wrap(serializer.serializeFrame(block).toByteArray());
+        serializer.seekPastMagicBytes(frame);
+        PayloadReader reader = serializer.newPayloadReader(serializer.deserializeHeader(frame));
+        // Feed the payload in small reads, like a connection would.
+        while (!reader.isComplete()) {
+            ByteBuffer chunk = frame.slice();
+            chunk.limit(Math.min(chunk.remaining(), 1000));
+            frame.position(frame.position() + reader.read(chunk));
+        }
+        assertEquals(block, reader.finish());
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void badChecksum() throws Exception {
+        MessageSerializer serializer = MAINNET.getDefaultSerializer();
+        byte[] bytes = serializer.serializeFrame(new Ping(1)).toByteArray();
+        bytes[bytes.length - 1]++;
+        ByteBuffer frame = ByteBuffer.wrap(bytes);
+        serializer.seekPastMagicBytes(frame);
+        PayloadReader reader = serializer.newPayloadReader(serializer.deserializeHeader(frame));
+        reader.read(frame);
+        reader.finish();
+    }
+}
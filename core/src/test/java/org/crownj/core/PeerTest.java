@@ -48,6 +48,7 @@ import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
@@ -485,6 +486,63 @@ public class PeerTest extends TestWithNetworkConnections {
         closePeer(peer);
     }
 
+    @Test
+    public void headersOnly() throws Exception {
+        blockChain.setHeadersOnly(true);
+        connect();
+        Block b1 = makeSolvedTestBlock(UNITTEST.getGenesisBlock());
+        Block b2 = makeSolvedTestBlock(b1);
+        Block b3 = makeSolvedTestBlock(b2);
+
+        // Headers are requested and connected, whatever the fast catchup time, and no block bodies are requested.
+        peer.setDownloadParameters(0, false);
+        peer.startBlockChainDownload();
+        GetHeadersMessage getheaders = (GetHeadersMessage) outbound(writeTarget);
+        assertEquals(UNITTEST.getGenesisBlock().getHash(), getheaders.getLocator().getHashes().get(0));
+        inbound(writeTarget, new HeadersMessage(UNITTEST, b1.cloneAsHeader(), b2.cloneAsHeader()));
+        assertNull(outbound(writeTarget));
+        assertEquals(2, blockChain.getBestChainHeight());
+
+        // New blocks are followed by asking for their headers.
+        InventoryMessage inv = new InventoryMessage(UNITTEST);
+        inv.addBlock(b3);
+        inbound(writeTarget, inv);
+        getheaders = (GetHeadersMessage) outbound(writeTarget);
+        assertEquals(b2.getHash(), getheaders.getLocator().getHashes().get(0));
+        inbound(writeTarget, new HeadersMessage(UNITTEST, b3.cloneAsHeader()));
+        assertNull(outbound(writeTarget));
+        assertEquals(3, blockChain.getBestChainHeight());
+        closePeer(peer);
+    }
+
+    @Test
+    public void headersOnlyReportsHeadersConnectedBeforeFailure() throws Exception {
+        blockChain.setHeadersOnly(true);
+        connect();
+        final List<Sha256Hash> downloaded = Collections.synchronizedList(new ArrayList<Sha256Hash>());
+        peer.addBlocksDownloadedEventListener(Threading.SAME_THREAD, new BlocksDownloadedEventListener() {
+            @Override
+            public void onBlocksDownloaded(Peer p, Block block, @Nullable FilteredBlock filteredBlock, int blocksLeft) {
+                downloaded.add(block.getHash());
+            }
+        });
+        Block b1 = makeSolvedTestBlock(UNITTEST.getGenesisBlock());
+        Block b2 = makeSolvedTestBlock(b1);
+        // Changes the difficulty away from a transition point.
+        Block b3 = makeSolvedTestBlock(b2);
+        b3.setDifficultyTarget(b2.getDifficultyTarget() - 1);
+        b3.solve();
+
+        peer.setDownloadParameters(0, false);
+        peer.startBlockChainDownload();
+        assertTrue(outbound(writeTarget) instanceof GetHeadersMessage);
+        inbound(writeTarget, new HeadersMessage(UNITTEST, b1.cloneAsHeader(), b2.cloneAsHeader(), b3.cloneAsHeader()));
+        pingAndWait(writeTarget);
+        assertEquals(2, blockChain.getBestChainHeight());
+        assertEquals(Arrays.asList(b1.getHash(), b2.getHash()), downloaded);
+        closePeer(peer);
+    }
+
     @Test
     public void pingPong() throws Exception {
         connect();
@@ -0,0 +1,165 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.core;
+
+import org.crownj.params.UnitTestParams;
+import org.crownj.script.Script;
+import org.crownj.script.ScriptBuilder;
+import org.crownj.script.ScriptException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ScriptVerificationEngineTest {
+    private static final NetworkParameters UNITTEST = UnitTestParams.get();
+    private static final Set<Script.VerifyFlag> FLAGS = EnumSet.of(Script.VerifyFlag.P2SH);
+
+    private final ECKey key = ECKey.fromPrivate(BigInteger.valueOf(0xC0FFEE));
+    private final Script scriptPubKey = ScriptBuilder.createP2PKHOutputScript(key);
+    private ScriptVerificationEngine engine;
+
+    @Before
+    public void setUp() {
+        Context.propagate(new Context(UNITTEST));
+        // Tiny batches, so that a block is spread over several tasks.
+        engine = new ScriptVerificationEngine(2, 2);
+    }
+
+    @After
+    public void tearDown() {
+        engine.shutdown();
+    }
+
+    @Test
+    public void validBlock() throws Exception {
+        ScriptVerificationEngine.BlockVerification verification = engine.begin(Sha256Hash.ZERO_HASH);
+        for (int i = 0; i < 10; i++)
+            verification.add(spend(i), prevOutScripts(), FLAGS);
+        verification.complete();
+        assertEquals(10, verification.getInputCount());
+    }
+
+    @Test
+    public void invalidSignature() throws Exception {
+        ScriptVerificationEngine.BlockVerification verification = engine.begin(Sha256Hash.ZERO_HASH);
+        for (int i = 0; i < 10; i++)
+            verification.add(spend(i), prevOutScripts(), FLAGS);
+        // Spends an output that belongs to another key.
+        Script otherScriptPubKey = ScriptBuilder.createP2PKHOutputScript(ECKey.fromPrivate(BigInteger.TEN));
+        verification.add(spend(10), Collections.singletonList(otherScriptPubKey), FLAGS);
+        try {
+            verification.complete();
+            fail();
+        } catch (ScriptException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void failureWaitsForRunningBatches() throws Exception {
+        final CountDownLatch slowCheckStarted = new CountDownLatch(1);
+        final AtomicInteger running = new AtomicInteger();
+        ScriptVerificationEngine.BlockVerification verification = engine.begin(Sha256Hash.ZERO_HASH);
+        // The invalid input only fails once the check in the other batch is underway.
+        Transaction invalid = new Transaction(UNITTEST) {
+            @Override
+            public Sha256Hash hashForSignature(int inputIndex, byte[] connectedScript, byte sigHashType) {
+                if (running.get() >= 0)
+                    awaitUninterruptibly(slowCheckStarted);
+                return super.hashForSignature(inputIndex, connectedScript, sigHashType);
+            }
+        };
+        Transaction slow = new Transaction(UNITTEST) {
+            @Override
+            public Sha256Hash hashForSignature(int inputIndex, byte[] connectedScript, byte sigHashType) {
+                if (running.get() < 0)
+                    return super.hashForSignature(inputIndex, connectedScript, sigHashType);
+                running.incrementAndGet();
+                slowCheckStarted.countDown();
+                try {
+                    Thread.sleep(200);
+                    return super.hashForSignature(inputIndex, connectedScript, sigHashType);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    running.decrementAndGet();
+                }
+            }
+        };
+        // Signing calls the overridden methods as well, so keep them out of the way until the checks run.
+        running.set(-1);
+        Script otherScriptPubKey = ScriptBuilder.createP2PKHOutputScript(ECKey.fromPrivate(BigInteger.TEN));
+        verification.add(spend(invalid, 0), Collections.singletonList(otherScriptPubKey), FLAGS);
+        verification.add(spend(1), prevOutScripts(), FLAGS);
+        verification.add(spend(slow, 2), prevOutScripts(), FLAGS);
+        running.set(0);
+        try {
+            verification.complete();
+            fail();
+        } catch (ScriptException e) {
+            // Expected.
+        }
+        assertEquals(0, running.get());
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Test
+    public void cancelled() throws Exception {
+        ScriptVerificationEngine.BlockVerification verification = engine.begin(Sha256Hash.ZERO_HASH);
+        verification.cancel();
+        verification.add(spend(0), prevOutScripts(), FLAGS);
+        try {
+            verification.complete();
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+    }
+
+    private Transaction spend(int index) {
+        return spend(new Transaction(UNITTEST), index);
+    }
+
+    private Transaction spend(Transaction tx, int index) {
+        tx.addOutput(Coin.COIN, LegacyAddress.fromKey(UNITTEST, ECKey.fromPrivate(BigInteger.TEN)));
+        TransactionOutPoint outpoint = new TransactionOutPoint(UNITTEST, index, Sha256Hash.of(new byte[] { 1 }));
+        tx.addSignedInput(outpoint, scriptPubKey, key);
+        return tx;
+    }
+
+    private List<Script> prevOutScripts() {
+        return Collections.singletonList(scriptPubKey);
+    }
+}
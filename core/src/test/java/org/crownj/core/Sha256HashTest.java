@@ -0,0 +1,86 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.core;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.crownj.core.Utils.HEX;
+import static org.junit.Assert.*;
+
+public class Sha256HashTest {
+    private static final byte[] INPUT = "hello".getBytes(StandardCharsets.US_ASCII);
+    private static final String HELLO_TWICE = "9595c9df90075148eb06860365df33584b75bff782a510c6cd4883a419833d50";
+
+    @Test
+    public void hashTwice() {
+        assertEquals(HELLO_TWICE, HEX.encode(Sha256Hash.hashTwice(INPUT)));
+    }
+
+    @Test
+    public void hashTwiceIntoArray() {
+        byte[] input = new byte[INPUT.length + 4];
+        System.arraycopy(INPUT, 0, input, 2, INPUT.length);
+        byte[] output = new byte[40];
+        Sha256Hash.hashTwice(input, 2, INPUT.length, output, 4);
+        assertEquals(HELLO_TWICE, HEX.encode(Arrays.copyOfRange(output, 4, 36)));
+        assertArrayEquals(new byte[4], Arrays.copyOfRange(output, 0, 4));
+        assertArrayEquals(new byte[4], Arrays.copyOfRange(output, 36, 40));
+    }
+
+    @Test
+    public void hashTwiceIntoSameArray() {
+        byte[] buffer = Arrays.copyOf(INPUT, 32);
+        Sha256Hash.hashTwice(buffer, 0, INPUT.length, buffer, 0);
+        assertEquals(HELLO_TWICE, HEX.encode(buffer));
+    }
+
+    @Test
+    public void hashTwiceIntoByteBuffer() {
+        for (ByteBuffer output : new ByteBuffer[] { ByteBuffer.allocate(33), ByteBuffer.allocateDirect(33) }) {
+            ByteBuffer input = ByteBuffer.wrap(INPUT);
+            output.put((byte) 1);
+            Sha256Hash.hashTwice(input, output);
+            assertFalse(input.hasRemaining());
+            assertFalse(output.hasRemaining());
+            output.flip();
+            output.get();
+            byte[] hash = new byte[32];
+            output.get(hash);
+            assertEquals(HELLO_TWICE, HEX.encode(hash));
+        }
+    }
+
+    @Test
+    public void twiceOfReversed() {
+        assertEquals(Sha256Hash.wrapReversed(Sha256Hash.hashTwice(INPUT)),
+                Sha256Hash.twiceOfReversed(INPUT, 0, INPUT.length));
+    }
+
+    @Test
+    public void digestReusableAfterFailure() {
+        try {
+            Sha256Hash.hashTwice(INPUT, 0, INPUT.length, new byte[16], 0);
+            fail();
+        } catch (RuntimeException expected) {
+        }
+        assertEquals(HELLO_TWICE, HEX.encode(Sha256Hash.hashTwice(INPUT)));
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.core;
+
+import com.google.common.io.ByteStreams;
+import org.crownj.params.MainNetParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class TransactionSlicesTest {
+    private static final NetworkParameters MAINNET = MainNetParams.get();
+
+    @Before
+    public void setUp() {
+        Context.propagate(new Context(MAINNET));
+    }
+
+    @Test
+    public void matchesParsedBlock() throws Exception {
+        checkBlock("block169482.dat");
+    }
+
+    @Test
+    public void matchesParsedSegwitBlock() throws Exception {
+        checkBlock("block481815.dat");
+    }
+
+    private void checkBlock(String resource) throws Exception {
+        byte[] payload = ByteStreams.toByteArray(getClass().getResourceAsStream(resource));
+        MessageSerializer serializer = MAINNET.getDefaultSerializer();
+        List<Transaction> transactions = serializer.makeBlock(payload).getTransactions();
+
+        TransactionSlices slices = TransactionSlices.ofBlock(serializer, payload, 0);
+        assertEquals(serializer.makeBlock(payload).getHash(), slices.getBlockHash());
+        assertEquals(transactions.size(), slices.size());
+        assertEquals(payload.length, slices.getEnd());
+        for (int i = 0; i < slices.size(); i++) {
+            Transaction tx = transactions.get(i);
+            assertEquals(tx.getTxId(), slices.getTxId(i));
+            assertEquals(tx.getMessageSize(), slices.getLength(i));
+            assertEquals(tx, slices.parse(i));
+        }
+    }
+
+    @Test
+    public void headerOnly() throws Exception {
+        byte[] payload = ByteStreams.toByteArray(getClass().getResourceAsStream("block169482.dat"));
+        TransactionSlices slices = TransactionSlices.ofBlock(MAINNET.getDefaultSerializer(),
+                Arrays.copyOf(payload, Block.HEADER_SIZE), 0);
+        assertEquals(0, slices.size());
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void truncated() throws Exception {
+        byte[] payload = ByteStreams.toByteArray(getClass().getResourceAsStream("block169482.dat"));
+        TransactionSlices.ofBlock(MAINNET.getDefaultSerializer(), Arrays.copyOf(payload, payload.length - 1), 0);
+    }
+
+    @Test
+    public void spendsOrPays() throws Exception {
+        byte[] payload = ByteStreams.toByteArray(getClass().getResourceAsStream("block169482.dat"));
+        TransactionSlices slices = TransactionSlices.ofBlock(MAINNET.getDefaultSerializer(), payload, 0);
+        Set<ByteBuffer> none = Collections.emptySet();
+        Transaction tx = slices.parse(1);
+        Set<ByteBuffer> outPoint = Collections.singleton(ByteBuffer.wrap(
+                tx.getInput(0).getOutpoint().crownSerialize()));
+        Set<ByteBuffer> script = Collections.singleton(ByteBuffer.wrap(tx.getOutput(0).getScriptBytes()));
+        assertTrue(slices.spendsOrPays(1, outPoint, none));
+        assertTrue(slices.spendsOrPays(1, none, script));
+        assertFalse(slices.spendsOrPays(1, none, none));
+        for (int i = 2; i < slices.size(); i++)
+            assertFalse(slices.spendsOrPays(i, outPoint, none));
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.crypto;
+
+import org.crownj.core.ECKey;
+import org.crownj.core.Sha256Hash;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigInteger;
+
+import static org.junit.Assert.*;
+
+public class SignatureCacheTest {
+    private static final ECKey KEY = ECKey.fromPrivate(BigInteger.valueOf(0xC0FFEE));
+    private static final Sha256Hash HASH = Sha256Hash.of(new byte[] { 1, 2, 3 });
+
+    private SignatureCache originalCache;
+    private SignatureCache cache;
+
+    @Before
+    public void setUp() {
+        originalCache = ECKey.getSignatureCache();
+        cache = new SignatureCache();
+        ECKey.setSignatureCache(cache);
+    }
+
+    @After
+    public void tearDown() {
+        ECKey.setSignatureCache(originalCache);
+    }
+
+    @Test
+    public void containsOnlyWhatWasAdded() {
+        byte[] data = HASH.getBytes();
+        byte[] signature = new byte[] { 4, 5, 6 };
+        byte[] pubKey = KEY.getPubKey();
+        assertFalse(cache.contains(data, signature, pubKey));
+        cache.add(data, signature, pubKey);
+        assertTrue(cache.contains(data, signature, pubKey));
+        // Moving a byte from one part to another must not give the same entry.
+        assertFalse(cache.contains(data, new byte[] { 4, 5 }, concat(new byte[] { 6 }, pubKey)));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+        cache.clear();
+        assertFalse(cache.contains(data, signature, pubKey));
+    }
+
+    @Test
+    public void verifyConsultsCache() {
+        ECKey.ECDSASignature signature = KEY.sign(HASH);
+        assertTrue(KEY.verify(HASH, signature));
+        assertEquals(0, cache.getHitCount());
+        assertEquals(1, cache.size());
+        assertTrue(KEY.verify(HASH, signature));
+        assertEquals(1, cache.getHitCount());
+    }
+
+    @Test
+    public void invalidSignaturesNotCached() {
+        ECKey.ECDSASignature signature = KEY.sign(HASH);
+        Sha256Hash otherHash = Sha256Hash.of(new byte[] { 7 });
+        assertFalse(KEY.verify(otherHash, signature));
+        assertFalse(KEY.verify(otherHash, signature));
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getHitCount());
+    }
+
+    @Test
+    public void memoryCap() {
+        cache = new SignatureCache(10 * SignatureCache.ENTRY_BYTES);
+        for (int i = 0; i < 100; i++)
+            cache.add(Sha256Hash.of(new byte[] { (byte) i }).getBytes(), new byte[] { 1 }, KEY.getPubKey());
+        assertTrue(cache.size() <= 10);
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] result = new byte[a.length + b.length];
+        System.arraycopy(a, 0, result, 0, a.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.net;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class DirectBufferPoolTest {
+    @Test
+    public void reusesReleasedBuffers() {
+        DirectBufferPool pool = new DirectBufferPool(1024, 2);
+        ByteBuffer first = pool.acquire();
+        assertTrue(first.isDirect());
+        assertEquals(1024, first.capacity());
+        first.put((byte) 1);
+        pool.release(first);
+        assertEquals(1, pool.getIdleCount());
+
+        ByteBuffer second = pool.acquire();
+        assertSame(first, second);
+        assertEquals(0, second.position());
+        assertEquals(1024, second.limit());
+        assertEquals(1, pool.getAllocatedCount());
+    }
+
+    @Test
+    public void keepsAtMostMaxIdle() {
+        DirectBufferPool pool = new DirectBufferPool(16, 2);
+        ByteBuffer[] buffers = new ByteBuffer[5];
+        for (int i = 0; i < buffers.length; i++)
+            buffers[i] = pool.acquire();
+        for (ByteBuffer buffer : buffers)
+            pool.release(buffer);
+        assertEquals(2, pool.getIdleCount());
+        assertEquals(5, pool.getAllocatedCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsForeignBuffers() {
+        new DirectBufferPool(16, 2).release(ByteBuffer.allocate(16));
+    }
+}
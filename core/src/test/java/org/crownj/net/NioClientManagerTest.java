@@ -0,0 +1,137 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.net;
+
+import org.crownj.core.Coin;
+import org.crownj.core.Context;
+import org.crownj.params.UnitTestParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class NioClientManagerTest {
+    private ServerSocket server;
+    private InetSocketAddress address;
+    private NioClientManager manager;
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(UnitTestParams.get(), 100, Coin.ZERO, false));
+        // Connections complete through the listen backlog, nothing needs to accept them.
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        address = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort());
+        manager = new NioClientManager(3);
+        manager.startAsync().awaitRunning();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        manager.stopAsync().awaitTerminated();
+        server.close();
+    }
+
+    private void connect(int count) throws Exception {
+        for (int i = 0; i < count; i++)
+            manager.openConnection(address, new NullConnection()).get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void spreadsConnectionsOverLoops() throws Exception {
+        assertEquals(3, manager.getLoopCount());
+        connect(6);
+        assertEquals(6, manager.getConnectedClientCount());
+        for (NioClientManager.LoopStats stats : manager.getLoopStats()) {
+            assertEquals(2, stats.getConnections());
+            assertEquals(0, stats.getQueueDepth());
+        }
+    }
+
+    @Test
+    public void newConnectionGoesToLeastLoadedLoop() throws Exception {
+        connect(6);
+        manager.closeConnections(1);
+        int emptied = -1;
+        List<NioClientManager.LoopStats> before = manager.getLoopStats();
+        for (int i = 0; i < before.size(); i++)
+            if (before.get(i).getConnections() == 1)
+                emptied = i;
+        assertTrue(emptied >= 0);
+
+        connect(1);
+        List<NioClientManager.LoopStats> after = manager.getLoopStats();
+        for (int i = 0; i < after.size(); i++)
+            assertEquals(2, after.get(i).getConnections());
+    }
+
+    @Test
+    public void loopStatsCountSelects() throws Exception {
+        connect(3);
+        // Counters are updated once a loop has handled all selected keys, which is after the connect future completes.
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!allLoopsHandledKeys() && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        for (NioClientManager.LoopStats stats : manager.getLoopStats()) {
+            // Each loop selected at least once to finish its connect.
+            assertTrue(stats.getSelectCount() > 0);
+            assertTrue(stats.getKeysHandled() > 0);
+            assertTrue(stats.getSelectMillis() >= 0);
+            assertTrue(stats.getHandleMillis() >= 0);
+        }
+    }
+
+    private boolean allLoopsHandledKeys() {
+        for (NioClientManager.LoopStats stats : manager.getLoopStats())
+            if (stats.getKeysHandled() == 0)
+                return false;
+        return true;
+    }
+
+    static class NullConnection implements StreamConnection {
+        @Override
+        public void connectionClosed() {
+        }
+
+        @Override
+        public void connectionOpened() {
+        }
+
+        @Override
+        public int receiveBytes(ByteBuffer buff) {
+            int remaining = buff.remaining();
+            buff.position(buff.limit());
+            return remaining;
+        }
+
+        @Override
+        public void setWriteTarget(MessageWriteTarget writeTarget) {
+        }
+
+        @Override
+        public int getMaxMessageSize() {
+            return 1024;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.net;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.annotation.Nullable;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class NioServerTest {
+    private static final InetSocketAddress ADDRESS = new InetSocketAddress(InetAddress.getLoopbackAddress(), 2010);
+
+    private final List<Socket> clients = new ArrayList<>();
+    private NioServer server;
+    private CountDownLatch opened;
+    private CountDownLatch received;
+
+    @Before
+    public void setUp() throws Exception {
+        opened = new CountDownLatch(6);
+        received = new CountDownLatch(6);
+        server = new NioServer(new StreamConnectionFactory() {
+            @Nullable
+            @Override
+            public StreamConnection getNewConnection(InetAddress inetAddress, int port) {
+                return new NioClientManagerTest.NullConnection() {
+                    @Override
+                    public void connectionOpened() {
+                        opened.countDown();
+                    }
+
+                    @Override
+                    public int receiveBytes(ByteBuffer buff) {
+                        received.countDown();
+                        return super.receiveBytes(buff);
+                    }
+                };
+            }
+        }, ADDRESS, 3);
+        server.startAsync().awaitRunning();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (Socket client : clients)
+            client.close();
+        server.stopAsync().awaitTerminated();
+    }
+
+    @Test
+    public void spreadsConnectionsOverLoops() throws Exception {
+        assertEquals(3, server.getLoopCount());
+        for (int i = 0; i < 6; i++)
+            clients.add(new Socket(ADDRESS.getAddress(), ADDRESS.getPort()));
+        assertTrue(opened.await(10, TimeUnit.SECONDS));
+        assertEquals(6, server.getConnectedClientCount());
+        for (NioClientManager.LoopStats stats : server.getLoopStats())
+            assertEquals(2, stats.getConnections());
+
+        // Every loop reads from its own connections.
+        for (Socket client : clients)
+            client.getOutputStream().write(1);
+        assertTrue(received.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void closesConnectionsOnAllLoopsWhenStopped() throws Exception {
+        for (int i = 0; i < 6; i++)
+            clients.add(new Socket(ADDRESS.getAddress(), ADDRESS.getPort()));
+        assertTrue(opened.await(10, TimeUnit.SECONDS));
+        server.stopAsync().awaitTerminated();
+        assertEquals(0, server.getConnectedClientCount());
+        for (Socket client : clients)
+            assertEquals(-1, client.getInputStream().read());
+    }
+}
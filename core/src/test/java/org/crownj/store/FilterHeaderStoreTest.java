@@ -0,0 +1,144 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.store;
+
+import org.crownj.core.Sha256Hash;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FilterHeaderStoreTest {
+    private File file;
+    private FilterHeaderStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("filterheaders", null);
+        file.delete();
+        file.deleteOnExit();
+        store = new FilterHeaderStore(file);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.close();
+    }
+
+    @Test
+    public void putAllAndGet() throws Exception {
+        assertEquals(-1, store.getHeight());
+        assertNull(store.get(0));
+        List<Sha256Hash> headers = headers(0, 10);
+        put(0, headers.subList(0, 4));
+        put(4, headers.subList(4, 10));
+        assertEquals(9, store.getHeight());
+        List<Sha256Hash> blockHashes = blockHashes(headers);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(headers.get(i), store.get(i));
+            assertEquals(blockHashes.get(i), store.getBlockHash(i));
+        }
+        assertNull(store.get(10));
+        assertNull(store.getBlockHash(10));
+
+        // Survives reopening.
+        store.close();
+        store = new FilterHeaderStore(file);
+        assertEquals(9, store.getHeight());
+        assertEquals(headers.get(7), store.get(7));
+        assertEquals(blockHashes.get(7), store.getBlockHash(7));
+    }
+
+    @Test
+    public void putAllReplacesTail() throws Exception {
+        put(0, headers(0, 10));
+        List<Sha256Hash> fork = headers(100, 2);
+        put(5, fork);
+        assertEquals(6, store.getHeight());
+        assertEquals(fork.get(1), store.get(6));
+        assertNull(store.get(7));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void putAllWithGap() throws Exception {
+        put(0, headers(0, 2));
+        put(3, headers(3, 1));
+    }
+
+    @Test
+    public void rollback() throws Exception {
+        put(0, headers(0, 10));
+        store.rollback(3);
+        assertEquals(3, store.getHeight());
+        assertNull(store.get(4));
+        store.rollback(5);
+        assertEquals(3, store.getHeight());
+        store.rollback(-1);
+        assertEquals(-1, store.getHeight());
+    }
+
+    @Test
+    public void partialRecordDropped() throws Exception {
+        put(0, headers(0, 3));
+        store.close();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 1);
+        }
+        store = new FilterHeaderStore(file);
+        assertEquals(1, store.getHeight());
+    }
+
+    @Test(expected = BlockStoreException.class)
+    public void notAFilterHeaderFile() throws Exception {
+        store.close();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.write(new byte[] { 'N', 'O', 'P', 'E' });
+        }
+        store = new FilterHeaderStore(file);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void putAllWithMissingBlockHash() throws Exception {
+        List<Sha256Hash> headers = headers(0, 2);
+        store.putAll(0, blockHashes(headers).subList(0, 1), headers);
+    }
+
+    private void put(int startHeight, List<Sha256Hash> headers) throws BlockStoreException {
+        store.putAll(startHeight, blockHashes(headers), headers);
+    }
+
+    // Made up block hashes for the given headers.
+    private static List<Sha256Hash> blockHashes(List<Sha256Hash> headers) {
+        List<Sha256Hash> hashes = new ArrayList<>();
+        for (Sha256Hash header : headers)
+            hashes.add(Sha256Hash.twiceOf(header.getBytes()));
+        return hashes;
+    }
+
+    private static List<Sha256Hash> headers(int first, int count) {
+        List<Sha256Hash> headers = new ArrayList<>();
+        for (int i = first; i < first + count; i++)
+            headers.add(Sha256Hash.of(new byte[] { (byte) i, (byte) (i >> 8) }));
+        return headers;
+    }
+}
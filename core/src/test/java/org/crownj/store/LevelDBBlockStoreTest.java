@@ -26,6 +26,7 @@ import org.crownj.params.*;
 import org.junit.*;
 
 import java.io.*;
+import java.util.*;
 
 import static org.junit.Assert.assertEquals;
 
@@ -72,4 +73,29 @@ public class LevelDBBlockStoreTest {
             store.destroy();
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    public void putAll() throws Exception {
+        File f = File.createTempFile("leveldbblockstore", null);
+        f.delete();
+
+        Context context = new Context(UNITTEST);
+        LevelDBBlockStore store = new LevelDBBlockStore(context, f);
+        try {
+            store.reset();
+            Address to = LegacyAddress.fromBase58(UNITTEST, "mrj2K6txjo2QBcSmuAzHj4nD1oXSEJE1Qo");
+            List<StoredBlock> blocks = new ArrayList<>();
+            StoredBlock prev = store.getChainHead();
+            for (int i = 0; i < 5; i++) {
+                prev = prev.build(prev.getHeader().createNextBlock(to).cloneAsHeader());
+                blocks.add(prev);
+            }
+            store.putAll(blocks);
+            for (StoredBlock block : blocks)
+                assertEquals(block, store.get(block.getHeader().getHash()));
+        } finally {
+            store.close();
+            store.destroy();
+        }
+    }
+}
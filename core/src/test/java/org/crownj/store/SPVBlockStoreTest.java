@@ -23,8 +23,14 @@ import static org.junit.Assert.assertNull;
 
 import java.io.File;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
+import java.util.Random;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.crownj.core.Address;
 import org.crownj.core.Block;
@@ -45,6 +51,7 @@ import com.google.common.base.Stopwatch;
 public class SPVBlockStoreTest {
     private static NetworkParameters UNITTEST;
     private File blockStoreFile;
+    private File indexFile;
 
     @BeforeClass
     public static void setUpClass() throws Exception {
@@ -57,6 +64,8 @@ public class SPVBlockStoreTest {
         blockStoreFile = File.createTempFile("spvblockstore", null);
         blockStoreFile.delete();
         blockStoreFile.deleteOnExit();
+        indexFile = new File(blockStoreFile.getPath() + SPVBlockStore.INDEX_FILE_SUFFIX);
+        indexFile.deleteOnExit();
     }
 
     @Test
@@ -173,6 +182,162 @@ public class SPVBlockStoreTest {
         store.close();
     }
 
+    @Test
+    public void indexRebuiltWhenMissing() throws Exception {
+        Address to = LegacyAddress.fromKey(UNITTEST, new ECKey());
+        SPVBlockStore store = new SPVBlockStore(UNITTEST, blockStoreFile);
+        StoredBlock genesis = store.getChainHead();
+        StoredBlock b1 = genesis.build(genesis.getHeader().createNextBlock(to).cloneAsHeader());
+        store.put(b1);
+        store.setChainHead(b1);
+        store.close();
+        assertTrue(indexFile.delete());
+
+        store = new SPVBlockStore(UNITTEST, blockStoreFile);
+        assertEquals(b1, store.get(b1.getHeader().getHash()));
+        assertEquals(genesis, store.get(genesis.getHeader().getHash()));
+        store.close();
+        assertTrue(indexFile.exists());
+    }
+
+    @Test
+    public void indexFollowsRingWrapAround() throws Exception {
+        final int capacity = 10;
+        SPVBlockStore store = new SPVBlockStore(UNITTEST, blockStoreFile, capacity, false);
+        List<StoredBlock> blocks = new ArrayList<>();
+        for (int i = 0; i < capacity * 3; i++) {
+            Block block = new Block(UNITTEST, 0, Sha256Hash.ZERO_HASH, Sha256Hash.ZERO_HASH, 0, 0, i,
+                    Collections.<Transaction> emptyList());
+            StoredBlock b = new StoredBlock(block, BigInteger.ZERO, i);
+            store.put(b);
+            store.setChainHead(b);
+            blocks.add(b);
+        }
+        store.close();
+
+        // Reopen so that lookups can't be served from the block cache.
+        store = new SPVBlockStore(UNITTEST, blockStoreFile, capacity, false);
+        for (int i = 0; i < blocks.size(); i++) {
+            StoredBlock expected = blocks.get(i);
+            StoredBlock actual = store.get(expected.getHeader().getHash());
+            if (i < blocks.size() - capacity)
+                assertNull(actual);
+            else
+                assertEquals(expected, actual);
+        }
+        store.close();
+    }
+
+    @Test
+    public void putAll() throws Exception {
+        final int capacity = 10;
+        SPVBlockStore store = new SPVBlockStore(UNITTEST, blockStoreFile, capacity, false);
+        List<StoredBlock> blocks = new ArrayList<>();
+        for (int i = 0; i < capacity * 2 + 5; i++) {
+            Block block = new Block(UNITTEST, 0, Sha256Hash.ZERO_HASH, Sha256Hash.ZERO_HASH, 0, 0, i,
+                    Collections.<Transaction> emptyList());
+            blocks.add(new StoredBlock(block, BigInteger.ZERO, i));
+        }
+        // One batch that wraps around the ring twice.
+        store.putAll(blocks);
+        store.setChainHead(blocks.get(blocks.size() - 1));
+        store.close();
+
+        store = new SPVBlockStore(UNITTEST, blockStoreFile, capacity, false);
+        for (int i = 0; i < blocks.size(); i++) {
+            StoredBlock expected = blocks.get(i);
+            StoredBlock actual = store.get(expected.getHeader().getHash());
+            if (i < blocks.size() - capacity)
+                assertNull(actual);
+            else
+                assertEquals(expected, actual);
+        }
+        store.close();
+    }
+
+    @Test
+    public void concurrentReadsDuringWrites() throws Exception {
+        final int capacity = 100;
+        final SPVBlockStore store = new SPVBlockStore(UNITTEST, blockStoreFile, capacity, false);
+        final List<StoredBlock> blocks = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            Block block = new Block(UNITTEST, 0, Sha256Hash.ZERO_HASH, Sha256Hash.ZERO_HASH, 0, 0, i,
+                    Collections.<Transaction> emptyList());
+            blocks.add(new StoredBlock(block, BigInteger.valueOf(i), i));
+        }
+        final AtomicInteger written = new AtomicInteger();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> readers = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread reader = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        Random random = new Random();
+                        while (written.get() < blocks.size()) {
+                            // Pick a block that was written recently enough to still be in the ring.
+                            int upTo = written.get();
+                            if (upTo == 0)
+                                continue;
+                            int i = upTo - 1 - random.nextInt(Math.min(upTo, capacity / 2));
+                            StoredBlock expected = blocks.get(i);
+                            StoredBlock actual = store.get(expected.getHeader().getHash());
+                            if (actual != null && !expected.equals(actual))
+                                throw new AssertionError("read " + actual + ", expected " + expected);
+                        }
+                    } catch (Throwable x) {
+                        failure.compareAndSet(null, x);
+                    }
+                }
+            };
+            reader.start();
+            readers.add(reader);
+        }
+        for (StoredBlock block : blocks) {
+            store.put(block);
+            store.setChainHead(block);
+            written.incrementAndGet();
+        }
+        for (Thread reader : readers)
+            reader.join();
+        if (failure.get() != null)
+            throw new AssertionError(failure.get());
+        for (StoredBlock expected : blocks.subList(blocks.size() - capacity, blocks.size()))
+            assertEquals(expected, store.get(expected.getHeader().getHash()));
+        store.close();
+    }
+
+    @Test
+    public void concurrentReadsDuringClose() throws Exception {
+        final SPVBlockStore store = new SPVBlockStore(UNITTEST, blockStoreFile);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> readers = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread reader = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        // Always miss the caches, so every read goes through the index.
+                        for (int i = 0; ; i++)
+                            store.get(Sha256Hash.of(ByteBuffer.allocate(4).putInt(i).array()));
+                    } catch (BlockStoreException x) {
+                        // Expected once the store has been closed.
+                    } catch (Throwable x) {
+                        failure.compareAndSet(null, x);
+                    }
+                }
+            };
+            reader.start();
+            readers.add(reader);
+        }
+        Thread.sleep(50);
+        store.close();
+        for (Thread reader : readers)
+            reader.join();
+        if (failure.get() != null)
+            throw new AssertionError(failure.get());
+    }
+
     @Test
     public void oneStoreDelete() throws Exception {
         SPVBlockStore store = new SPVBlockStore(UNITTEST, blockStoreFile);
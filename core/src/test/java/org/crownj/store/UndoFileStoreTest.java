@@ -0,0 +1,104 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.store;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class UndoFileStoreTest {
+    private static final int SEGMENT_BYTES = 1024;
+
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = File.createTempFile("undofilestore", null);
+        directory.delete();
+        directory.mkdir();
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : directory.listFiles())
+            file.delete();
+        directory.delete();
+    }
+
+    @Test
+    public void appendReadAndReopen() throws Exception {
+        UndoFileStore store = new UndoFileStore(directory, SEGMENT_BYTES);
+        List<byte[]> blobs = new ArrayList<>();
+        List<byte[]> locations = new ArrayList<>();
+        for (int height = 0; height < 20; height++) {
+            byte[] blob = blob(height, 100);
+            blobs.add(blob);
+            locations.add(store.append(height, blob));
+        }
+        // A blob larger than a segment gets a segment of its own.
+        byte[] large = blob(20, 3 * SEGMENT_BYTES);
+        blobs.add(large);
+        locations.add(store.append(20, large));
+        assertTrue(store.getSegmentCount() > 2);
+        for (int i = 0; i < blobs.size(); i++)
+            assertArrayEquals(blobs.get(i), store.read(locations.get(i)));
+        store.close();
+
+        store = new UndoFileStore(directory, SEGMENT_BYTES);
+        for (int i = 0; i < blobs.size(); i++)
+            assertArrayEquals(blobs.get(i), store.read(locations.get(i)));
+        byte[] next = blob(21, 10);
+        assertArrayEquals(next, store.read(store.append(21, next)));
+        store.close();
+    }
+
+    @Test
+    public void deleteSegments() throws Exception {
+        UndoFileStore store = new UndoFileStore(directory, SEGMENT_BYTES);
+        // Ten blobs per segment.
+        List<byte[]> locations = new ArrayList<>();
+        for (int height = 0; height < 30; height++)
+            locations.add(store.append(height, blob(height, 100)));
+        assertEquals(3, store.getSegmentCount());
+
+        // Heights 0 to 9 are in the first segment.
+        assertEquals(0, store.deleteSegmentsUpTo(8));
+        assertEquals(1, store.deleteSegmentsUpTo(9));
+        assertNull(store.read(locations.get(0)));
+        assertNotNull(store.read(locations.get(10)));
+        // The segment being appended to is kept.
+        assertEquals(1, store.deleteSegmentsUpTo(100));
+        assertEquals(1, store.getSegmentCount());
+        assertNotNull(store.read(locations.get(29)));
+        store.close();
+        assertEquals(1, directory.listFiles().length);
+    }
+
+    private static byte[] blob(int seed, int length) {
+        byte[] blob = new byte[length];
+        Arrays.fill(blob, (byte) seed);
+        blob[0] = (byte) length;
+        return blob;
+    }
+}
@@ -33,6 +33,7 @@ import org.crownj.core.Transaction.Purpose;
 import org.crownj.core.TransactionConfidence;
 import org.crownj.core.TransactionConfidence.ConfidenceType;
 import org.crownj.core.TransactionInput;
+import org.crownj.core.TransactionOutput;
 import org.crownj.core.Utils;
 import org.crownj.crypto.DeterministicKey;
 import org.crownj.params.MainNetParams;
@@ -49,6 +50,7 @@ import org.crownj.wallet.KeyChainGroup;
 
 import com.google.common.io.ByteStreams;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
 
 import org.crownj.wallet.MarriedKeyChain;
 import org.crownj.wallet.Protos;
@@ -65,11 +67,14 @@ import org.junit.Test;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.math.BigInteger;
 import java.net.InetAddress;
 import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
 
@@ -472,6 +477,138 @@ public class WalletProtobufSerializerTest {
         assertEquals(0, wallet.getExtensions().size());
     }
 
+    @Test
+    public void networkIdentifierAfterTransactions() throws Exception {
+        // writeWallet puts the network identifier first, but the format doesn't require it.
+        Transaction t1 = createFakeTx(UNITTEST, COIN, myAddress);
+        myWallet.receiveFromBlock(t1, null, BlockChain.NewBlockType.BEST_CHAIN, 0);
+        Protos.Wallet proto = new WalletProtobufSerializer().walletToProto(myWallet);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        proto.toBuilder().clearNetworkIdentifier().buildPartial().writeTo(output);
+        CodedOutputStream codedOutput = CodedOutputStream.newInstance(output);
+        codedOutput.writeString(Protos.Wallet.NETWORK_IDENTIFIER_FIELD_NUMBER, proto.getNetworkIdentifier());
+        codedOutput.flush();
+        Wallet wallet1 = new WalletProtobufSerializer().readWallet(new ByteArrayInputStream(output.toByteArray()));
+        assertEquals(t1, wallet1.getTransaction(t1.getTxId()));
+        assertEquals(COIN, wallet1.getBalance(Wallet.BalanceType.ESTIMATED));
+    }
+
+    @Test
+    public void reuseAfterUnreadableWallet() throws Exception {
+        myWallet.receiveFromBlock(createFakeTx(UNITTEST, COIN, myAddress), null, BlockChain.NewBlockType.BEST_CHAIN, 0);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+        serializer.writeWallet(myWallet, output);
+        byte[] bytes = output.toByteArray();
+        try {
+            serializer.readWallet(new ByteArrayInputStream(Arrays.copyOf(bytes, bytes.length - 1)));
+            fail();
+        } catch (UnreadableWalletException e) {
+            // Expected.
+        }
+        Wallet wallet1 = serializer.readWallet(new ByteArrayInputStream(bytes));
+        assertEquals(COIN, wallet1.getBalance(Wallet.BalanceType.ESTIMATED));
+    }
+
+    @Test(expected = UnreadableWalletException.class)
+    public void emptyStream() throws Exception {
+        new WalletProtobufSerializer().readWallet(new ByteArrayInputStream(new byte[0]));
+    }
+
+    @Test
+    public void transactionMissingRequiredFields() throws Exception {
+        myWallet.receiveFromBlock(createFakeTx(UNITTEST, COIN, myAddress), null, BlockChain.NewBlockType.BEST_CHAIN, 0);
+        Protos.Wallet proto = new WalletProtobufSerializer().walletToProto(myWallet);
+        Protos.Transaction partialTx = proto.getTransaction(0).toBuilder().clearVersion().buildPartial();
+        proto = proto.toBuilder().setTransaction(0, partialTx).buildPartial();
+        try {
+            new WalletProtobufSerializer().readWallet(new ByteArrayInputStream(proto.toByteArray()));
+            fail();
+        } catch (UnreadableWalletException e) {
+            assertEquals("Transaction is missing required fields", e.getMessage());
+        }
+    }
+
+    @Test
+    public void lazySpentHistory() throws Exception {
+        // t1 -> u -> s -> t and d -> e, where u, t and e are unspent. s is read at once, as u refers to it, while t1
+        // and d are only read by loadSpentHistory(). Then s is connected to d.
+        Transaction t1 = createFakeTx(UNITTEST, COIN, myAddress);
+        myWallet.receiveFromBlock(t1, null, BlockChain.NewBlockType.BEST_CHAIN, 0);
+        Transaction u = spend(t1.getOutput(0), 2);
+        Transaction s = spend(u.getOutput(0), 2);
+        Transaction t = spend(s.getOutput(0), 1);
+        Transaction d = spend(s.getOutput(1), 1);
+        Transaction e = spend(d.getOutput(0), 1);
+        File file = File.createTempFile("crownj-unit-test", null);
+        file.deleteOnExit();
+        myWallet.saveToFile(file);
+
+        WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+        serializer.setLazySpentHistory(true);
+        Wallet wallet1 = serializer.readWallet(file, false, null);
+        assertFalse(wallet1.isSpentHistoryLoaded());
+        assertEquals(COIN, wallet1.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertEquals(3, wallet1.calculateAllSpendCandidates().size());
+        try {
+            wallet1.getTransactions(true);
+            fail();
+        } catch (IllegalStateException x) {
+            // Expected.
+        }
+        assertFalse(wallet1.isSpentHistoryLoaded());
+
+        wallet1.loadSpentHistory();
+        assertTrue(wallet1.isSpentHistoryLoaded());
+        assertEquals(6, wallet1.getTransactions(true).size());
+        assertEquals(3, wallet1.getPoolSize(Pool.SPENT));
+        assertEquals(wallet1.getTransaction(u.getTxId()),
+                wallet1.getTransaction(t1.getTxId()).getOutput(0).getSpentBy().getParentTransaction());
+        assertEquals(wallet1.getTransaction(d.getTxId()),
+                wallet1.getTransaction(s.getTxId()).getOutput(1).getSpentBy().getParentTransaction());
+        assertEquals(wallet1.getTransaction(e.getTxId()),
+                wallet1.getTransaction(d.getTxId()).getOutput(0).getSpentBy().getParentTransaction());
+        wallet1.isConsistentOrThrow();
+        assertEquals(new HashSet<>(serializer.walletToProto(myWallet).getTransactionList()),
+                new HashSet<>(serializer.walletToProto(wallet1).getTransactionList()));
+    }
+
+    @Test
+    public void lazySpentHistoryOfChangedFile() throws Exception {
+        Transaction t1 = createFakeTx(UNITTEST, COIN, myAddress);
+        myWallet.receiveFromBlock(t1, null, BlockChain.NewBlockType.BEST_CHAIN, 0);
+        spend(t1.getOutput(0), 1);
+        File file = File.createTempFile("crownj-unit-test", null);
+        file.deleteOnExit();
+        myWallet.saveToFile(file);
+        WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+        serializer.setLazySpentHistory(true);
+        Wallet wallet1 = serializer.readWallet(file, false, null);
+        long lastModified = file.lastModified();
+        assertTrue(file.setLastModified(lastModified - 10000));
+        try {
+            wallet1.loadSpentHistory();
+            fail();
+        } catch (UnreadableWalletException x) {
+            // Expected.
+        }
+        assertFalse(wallet1.isSpentHistoryLoaded());
+        // Once the file is back as it was, the load can be retried.
+        assertTrue(file.setLastModified(lastModified));
+        wallet1.loadSpentHistory();
+        assertEquals(2, wallet1.getTransactions(true).size());
+    }
+
+    // Spends the given output of myWallet to new outputs of equal value, which go to myWallet as well.
+    private Transaction spend(TransactionOutput output, int outputs) throws Exception {
+        Transaction tx = new Transaction(UNITTEST);
+        tx.addInput(output);
+        for (int i = 0; i < outputs; i++)
+            tx.addOutput(output.getValue().divide(outputs), myAddress);
+        myWallet.receiveFromBlock(tx, null, BlockChain.NewBlockType.BEST_CHAIN, 0);
+        return tx;
+    }
+
     @Test(expected = UnreadableWalletException.FutureVersion.class)
     public void versions() throws Exception {
         Protos.Wallet.Builder proto = Protos.Wallet.newBuilder(new WalletProtobufSerializer().walletToProto(myWallet));
@@ -0,0 +1,85 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.crownj.wallet;
+
+import org.crownj.core.*;
+import org.crownj.testing.*;
+import org.junit.*;
+
+import java.util.*;
+
+import static org.crownj.core.Coin.*;
+import static org.crownj.testing.FakeTxBuilder.*;
+import static org.junit.Assert.*;
+
+public class LargestFirstCoinSelectorTest extends TestWithWallet {
+    private final Address OTHER_ADDRESS = LegacyAddress.fromKey(UNITTEST, new ECKey());
+
+    private Transaction t1, t2, t3;
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        t1 = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, CENT);
+        t2 = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        t3 = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN.multiply(2));
+        // Pending payments from others are not selected.
+        sendMoneyToWallet(null, createFakeTx(UNITTEST, COIN.multiply(5), myAddress));
+    }
+
+    @After
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    @Test
+    public void singleOutputCoveringTarget() throws Exception {
+        CoinSelection selection = LargestFirstCoinSelector.get().select(valueOf(0, 50), wallet.calculateAllSpendCandidates());
+        assertEquals(Collections.singletonList(t2.getOutput(0)), new ArrayList<>(selection.gathered));
+        selection = LargestFirstCoinSelector.get().select(COIN, wallet.calculateAllSpendCandidates());
+        assertEquals(Collections.singletonList(t2.getOutput(0)), new ArrayList<>(selection.gathered));
+    }
+
+    @Test
+    public void largestFirst() throws Exception {
+        CoinSelection selection = LargestFirstCoinSelector.get().select(valueOf(3, 0), wallet.calculateAllSpendCandidates());
+        assertEquals(Arrays.asList(t3.getOutput(0), t2.getOutput(0)), new ArrayList<>(selection.gathered));
+        selection = LargestFirstCoinSelector.get().select(valueOf(10, 0), wallet.calculateAllSpendCandidates());
+        assertEquals(Arrays.asList(t3.getOutput(0), t2.getOutput(0), t1.getOutput(0)), new ArrayList<>(selection.gathered));
+        assertEquals(valueOf(3, 1), selection.valueGathered);
+    }
+
+    @Test
+    public void selectsFromWalletIndex() throws Exception {
+        assertEquals(valueOf(3, 1), wallet.getBalance(LargestFirstCoinSelector.get()));
+
+        SendRequest req = SendRequest.to(OTHER_ADDRESS, valueOf(0, 50));
+        req.coinSelector = LargestFirstCoinSelector.get();
+        wallet.completeTx(req);
+        assertEquals(1, req.tx.getInputs().size());
+        assertEquals(t2.getOutput(0), req.tx.getInput(0).getConnectedOutput());
+
+        // Once the output is spent, the index no longer offers it.
+        wallet.commitTx(req.tx);
+        req = SendRequest.to(OTHER_ADDRESS, valueOf(0, 50));
+        req.coinSelector = LargestFirstCoinSelector.get();
+        wallet.completeTx(req);
+        assertEquals(t3.getOutput(0), req.tx.getInput(0).getConnectedOutput());
+    }
+}
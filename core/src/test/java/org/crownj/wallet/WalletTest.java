@@ -81,6 +81,7 @@ import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static org.crownj.core.Coin.*;
@@ -590,6 +591,142 @@ public class WalletTest extends TestWithWallet {
         assertEquals(Coin.COIN.plus(Coin.COIN), wallet.getBalance(BalanceType.ESTIMATED));
     }
 
+    @Test
+    public void readSnapshotDoesntWaitForChanges() throws Exception {
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        // The first snapshot is taken under the lock, and makes changes publish snapshots from then on.
+        assertEquals(COIN, wallet.getReadSnapshot().getBalance(BalanceType.AVAILABLE));
+
+        CountDownLatch release = new CountDownLatch(1);
+        Thread writer = holdLock(true, release);
+        // The change the writer made before getting busy is visible, without waiting for the lock.
+        Wallet.ReadSnapshot snapshot = wallet.getReadSnapshot();
+        assertEquals(valueOf(2, 0), snapshot.getBalance(BalanceType.AVAILABLE));
+        assertEquals(2, snapshot.getTransactions(false).size());
+        assertEquals(2, snapshot.getRecentTransactions(0, false).size());
+        assertTrue(wallet.lock.isLocked());
+        release.countDown();
+        writer.join();
+        assertEquals(wallet.getLastBlockSeenHeight(), snapshot.getLastBlockSeenHeight());
+    }
+
+    @Test
+    public void gettersWaitForChanges() throws Exception {
+        wallet.getReadSnapshot();
+        CountDownLatch release = new CountDownLatch(1);
+        Thread writer = holdLock(false, release);
+        final AtomicReference<String> text = new AtomicReference<>();
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                text.set(wallet.toString());
+            }
+        };
+        reader.start();
+        reader.join(100);
+        // Even with snapshots published, the wallet's own getters wait for the lock and see the whole wallet.
+        assertNull(text.get());
+        release.countDown();
+        reader.join();
+        writer.join();
+        assertTrue(text.get().startsWith("Wallet\n"));
+    }
+
+    @Test
+    public void snapshotPublishedOncePerBlock() throws Exception {
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+        assertEquals(COIN, wallet.getReadSnapshot().getBalance(BalanceType.AVAILABLE));
+
+        // A writer that stops after receiving the transactions of a block, before it is told the block is done.
+        final CountDownLatch received = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                wallet.lock.lock();
+                try {
+                    Transaction tx1 = createFakeTx(UNITTEST, COIN, myAddress);
+                    Transaction tx2 = createFakeTx(UNITTEST, COIN, myAddress);
+                    FakeTxBuilder.BlockPair bp = createFakeBlock(blockStore, Block.BLOCK_HEIGHT_GENESIS, tx1, tx2);
+                    wallet.receiveFromBlock(tx1, bp.storedBlock, AbstractBlockChain.NewBlockType.BEST_CHAIN, 0);
+                    wallet.receiveFromBlock(tx2, bp.storedBlock, AbstractBlockChain.NewBlockType.BEST_CHAIN, 1);
+                    received.countDown();
+                    release.await(500, TimeUnit.MILLISECONDS);
+                    wallet.notifyNewBestBlock(bp.storedBlock);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    wallet.lock.unlock();
+                }
+            }
+        };
+        writer.start();
+        received.await();
+        // Nothing of the block is visible until it is done.
+        assertEquals(COIN, wallet.getReadSnapshot().getBalance(BalanceType.AVAILABLE));
+        assertEquals(1, wallet.getReadSnapshot().getTransactions(false).size());
+        release.countDown();
+        writer.join();
+        assertEquals(valueOf(3, 0), wallet.getReadSnapshot().getBalance(BalanceType.AVAILABLE));
+        assertEquals(valueOf(3, 0), wallet.getBalance());
+    }
+
+    // Starts a thread that takes the wallet lock, optionally receives a coin, then holds the lock until released or
+    // for half a second. Returns once the lock is taken.
+    private Thread holdLock(final boolean receive, final CountDownLatch release) throws InterruptedException {
+        final CountDownLatch locked = new CountDownLatch(1);
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                wallet.lock.lock();
+                try {
+                    if (receive)
+                        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN);
+                    locked.countDown();
+                    release.await(500, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    wallet.lock.unlock();
+                }
+            }
+        };
+        thread.start();
+        locked.await();
+        return thread;
+    }
+
+    @Test
+    public void balancesKeptUpToDate() throws Exception {
+        // A pending payment from somebody else only counts towards the estimated balance until it confirms.
+        Transaction tx1 = createFakeTx(UNITTEST, COIN, myAddress);
+        sendMoneyToWallet(null, tx1);
+        assertEquals(COIN, wallet.getBalance(BalanceType.ESTIMATED));
+        assertEquals(ZERO, wallet.getBalance(BalanceType.AVAILABLE));
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, tx1);
+        assertEquals(COIN, wallet.getBalance(BalanceType.AVAILABLE));
+
+        // Our own change becomes available once a peer announced the spend, which the wallet isn't told about.
+        Transaction spend = wallet.createSend(OTHER_ADDRESS, CENT);
+        wallet.commitTx(spend);
+        assertEquals(COIN.subtract(CENT), wallet.getBalance(BalanceType.ESTIMATED));
+        assertEquals(ZERO, wallet.getBalance(BalanceType.AVAILABLE));
+        spend.getConfidence().markBroadcastBy(new PeerAddress(UNITTEST, InetAddress.getByAddress(new byte[]{1,2,3,4})));
+        assertEquals(COIN.subtract(CENT), wallet.getBalance(BalanceType.AVAILABLE));
+
+        // Watched outputs become spendable when their key is imported.
+        ECKey key = new ECKey();
+        Address watched = LegacyAddress.fromKey(UNITTEST, key);
+        wallet.addWatchedAddress(watched);
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, COIN, watched);
+        assertEquals(valueOf(2, 0).subtract(CENT), wallet.getBalance(BalanceType.AVAILABLE));
+        assertEquals(COIN.subtract(CENT), wallet.getBalance(BalanceType.AVAILABLE_SPENDABLE));
+        wallet.importKey(key);
+        assertEquals(valueOf(2, 0).subtract(CENT), wallet.getBalance(BalanceType.AVAILABLE_SPENDABLE));
+        assertEquals(valueOf(2, 0).subtract(CENT), wallet.getBalance(BalanceType.ESTIMATED_SPENDABLE));
+        wallet.checkBalancesOrThrow();
+    }
+
     // Intuitively you'd expect to be able to create a transaction with identical inputs and outputs and get an
     // identical result to crown Core. However the signatures are not deterministic - signing the same data
     // with the same key twice gives two different outputs. So we cannot prove bit-for-bit compatibility in this test
@@ -1489,6 +1626,89 @@ public class WalletTest extends TestWithWallet {
         assertEquals(3, transactions.size());
     }
 
+    @Test
+    public void transactionPages() throws Exception {
+        Utils.setMockClock();
+        for (int i = 1; i <= 5; i++) {
+            sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, valueOf(i, 0));
+            Utils.rollMockClock(60);
+        }
+        Transaction sent = wallet.createSend(OTHER_ADDRESS, valueOf(0, 50));
+        wallet.commitTx(sent);
+        List<Transaction> expected = new ArrayList<>(wallet.getTransactions(true));
+        Collections.sort(expected, Transaction.SORT_TX_BY_UPDATE_TIME);
+        assertEquals(sent, expected.get(0));
+
+        // Page through all of them.
+        List<Transaction> all = new ArrayList<>();
+        TransactionCursor cursor = null;
+        do {
+            TransactionPage page = wallet.getTransactions(cursor, 2, TransactionFilter.ALL);
+            assertTrue(page.getTransactions().size() <= 2);
+            all.addAll(page.getTransactions());
+            cursor = page.getNextCursor();
+        } while (cursor != null);
+        assertEquals(expected, all);
+
+        // Filters.
+        TransactionFilter sends = TransactionFilter.builder().direction(TransactionFilter.Direction.SENT).build();
+        assertEquals(ImmutableList.of(sent), wallet.getTransactions(null, 10, sends).getTransactions());
+        TransactionFilter pendingFilter = TransactionFilter.builder().confidenceTypes(ConfidenceType.PENDING).build();
+        assertEquals(ImmutableList.of(sent), wallet.getTransactions(null, 10, pendingFilter).getTransactions());
+        TransactionFilter receives = TransactionFilter.builder().direction(TransactionFilter.Direction.RECEIVED)
+                .confidenceTypes(ConfidenceType.BUILDING).build();
+        assertEquals(expected.subList(1, 6), wallet.getTransactions(null, 10, receives).getTransactions());
+
+        // A value range, a page at a time. The cursor stays valid while transactions come in.
+        TransactionFilter range = TransactionFilter.builder().valueRange(valueOf(2, 0), valueOf(4, 0)).build();
+        TransactionPage page = wallet.getTransactions(null, 1, range);
+        assertEquals(ImmutableList.of(expected.get(2)), page.getTransactions());
+        Utils.rollMockClock(60);
+        sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, valueOf(3, 0));
+        page = wallet.getTransactions(page.getNextCursor(), 2, range);
+        assertEquals(expected.subList(3, 5), page.getTransactions());
+        assertNotNull(page.getNextCursor());
+        page = wallet.getTransactions(page.getNextCursor(), 2, range);
+        assertEquals(0, page.getTransactions().size());
+        assertNull(page.getNextCursor());
+    }
+
+    @Test
+    public void recentTransactionsFollowUpdateTimes() throws Exception {
+        Utils.setMockClock();
+        Transaction[] txns = new Transaction[3];
+        for (int i = 0; i < txns.length; i++) {
+            txns[i] = sendMoneyToWallet(AbstractBlockChain.NewBlockType.BEST_CHAIN, valueOf(i + 1, 0));
+            Utils.rollMockClock(60);
+        }
+        assertEquals(ImmutableList.of(txns[2]), wallet.getRecentTransactions(1, false));
+
+        // Changed by the app, without the wallet lock.
+        txns[0].setUpdateTime(Utils.now());
+        assertEquals(ImmutableList.of(txns[0]), wallet.getRecentTransactions(1, false));
+        assertEquals(ImmutableList.of(txns[0]), wallet.getTransactions(null, 1, TransactionFilter.ALL)
+                .getTransactions());
+
+        // Changed by another thread.
+        Utils.rollMockClock(60);
+        final Date later = Utils.now();
+        final Transaction moved = txns[1];
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                moved.setUpdateTime(later);
+            }
+        };
+        thread.start();
+        thread.join();
+        assertEquals(ImmutableList.of(txns[1], txns[0]), wallet.getRecentTransactions(2, false));
+
+        // Transactions no longer in the wallet don't move anything.
+        wallet.reset();
+        txns[2].setUpdateTime(Utils.now());
+        assertEquals(0, wallet.getRecentTransactions(1, true).size());
+    }
+
     @Test
     public void keyCreationTime() throws Exception {
         Utils.setMockClock();